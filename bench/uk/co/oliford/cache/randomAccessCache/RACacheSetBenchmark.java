@@ -0,0 +1,246 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import uk.co.oliford.jolu.OneLiners;
+
+/** JMH benchmarks of RACacheSet, replacing timing things with CacheStressTest.
+ * Build and run with the 'jmh' profile, see the pom.
+ *
+ * Each trial makes a set of nEntries entries, keyed by Integer, of random payloadBytes
+ * byte arrays, in a cache called 'jmhBenchmark' under the usual cache path, and deletes
+ * it afterwards. The thread count is JMH's -t, or run main() for several.
+ *
+ * - getHitFromMemory: get() of one of the first 1024 entries, which stay loaded.
+ * - getHitFromDisk: get() of any entry, after dropping it from memory. That includes an extra index lookup.
+ * - getMiss: get() of a key that isn't there.
+ * - put: put() of new entries.
+ * - loadIndex: Opening the file with a new RACacheSet, reading the index (from the .idx file).
+ * - fastSyncWithWriter: fastSync() while another RACacheSet on the same file puts as fast as it can.
+ * - cleanCache: cleanCache() of a copy of the file in which half the entries have been overwritten.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RACacheSetBenchmark {
+
+	private static final String cacheName = "jmhBenchmark";
+
+	/** Number of entries at the start of the first iteration */
+	@Param({ "10000", "100000" })
+	public int nEntries;
+
+	/** Size of the byte array in each entry */
+	@Param({ "100", "10000" })
+	public int payloadBytes;
+
+	/** Number of the first (lowest) keys used by getHitFromMemory */
+	private static final int nHotKeys = 1024;
+
+	private RACacheSet set;
+	private byte payload[];
+	private final AtomicInteger nextKey = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void makeSet(){
+		payload = randomPayload(payloadBytes);
+		set = newSet("bench" + nEntries + "x" + payloadBytes);
+		fill(set, 0, nEntries, payload);
+		nextKey.set(nEntries);
+
+		//get the hot ones in memory
+		for(int i=0; i < Math.min(nHotKeys, nEntries); i++)
+			set.get(i);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteSet(){
+		deleteFiles(set, true);
+	}
+
+	@Benchmark
+	public Object getHitFromMemory(){
+		return set.get(ThreadLocalRandom.current().nextInt(Math.min(nHotKeys, nEntries)));
+	}
+
+	@Benchmark
+	public Object getHitFromDisk(){
+		Integer key = ThreadLocalRandom.current().nextInt(nEntries);
+		set.dropFromMemory(key);
+		return set.get(key);
+	}
+
+	@Benchmark
+	public Object getMiss(){
+		return set.get(-1 - ThreadLocalRandom.current().nextInt(nEntries));
+	}
+
+	@Benchmark
+	public void put(){
+		set.put(nextKey.getAndIncrement(), payload);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public Object loadIndex(){
+		RACacheSet reader = new RACacheSet(cacheName, set.getSetName(), null);
+		try{
+			return reader.get(0);
+		}finally{
+			reader.close();
+		}
+	}
+
+	/** The writer for fastSyncWithWriter(), putting new entries to the same file from its own thread */
+	@State(Scope.Benchmark)
+	public static class ConcurrentWriter {
+		private RACacheSet writer;
+		private Thread thread;
+		private volatile boolean stop;
+
+		@Setup(Level.Iteration)
+		public void start(RACacheSetBenchmark bench){
+			writer = new RACacheSet(cacheName, bench.set.getSetName(), null);
+			stop = false;
+			thread = new Thread(() -> {
+				while(!stop)
+					writer.put(bench.nextKey.getAndIncrement(), bench.payload);
+			}, "RACacheSetBenchmark writer");
+			thread.start();
+		}
+
+		@TearDown(Level.Iteration)
+		public void stop() throws InterruptedException{
+			stop = true;
+			thread.join();
+			writer.close();
+		}
+	}
+
+	@Benchmark
+	public void fastSyncWithWriter(ConcurrentWriter writer){
+		set.fastSync();
+	}
+
+	/** A fresh copy, for each cleanCache(), of a file in which half the entries have been overwritten.
+	 * The template is kept next to it under another name, and copied back before each one. */
+	@State(Scope.Thread)
+	public static class DirtyCopy {
+		private static final AtomicInteger nTemplates = new AtomicInteger();
+		private String setName, templateFile;
+		private RACacheSet copy;
+
+		@Setup(Level.Trial)
+		public void makeTemplate(RACacheSetBenchmark bench) throws IOException{
+			RACacheSet template = newSet("benchDirty" + bench.nEntries + "x" + bench.payloadBytes + "_" + nTemplates.getAndIncrement());
+			fill(template, 0, bench.nEntries, bench.payload);
+			fill(template, 0, bench.nEntries / 2, bench.payload);
+			deleteFiles(template, false);
+			setName = template.getSetName();
+			templateFile = template.getFileName() + ".template";
+			Files.move(Paths.get(template.getFileName()), Paths.get(templateFile), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		@Setup(Level.Invocation)
+		public void copy() throws IOException{
+			copy = new RACacheSet(cacheName, setName, null);
+			Files.copy(Paths.get(templateFile), Paths.get(copy.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		@TearDown(Level.Invocation)
+		public void deleteCopy(){
+			deleteFiles(copy, true);
+		}
+
+		@TearDown(Level.Trial)
+		public void deleteTemplate(){
+			new File(templateFile).delete();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2, batchSize = 1)
+	@Measurement(iterations = 5, batchSize = 1)
+	public void cleanCache(DirtyCopy dirty){
+		dirty.copy.cleanCache(false);
+	}
+
+	private static byte[] randomPayload(int size){
+		byte data[] = new byte[size];
+		ThreadLocalRandom.current().nextBytes(data);
+		return data;
+	}
+
+	private static RACacheSet newSet(String setName){
+		OneLiners.mkdir(RACacheService.getCachePath() + cacheName);
+		RACacheSet set = new RACacheSet(cacheName, setName + "_" + System.nanoTime(), null);
+		set.setHotTier(new RACacheHotTier(64 * 1024 * 1024));
+		return set;
+	}
+
+	/** Puts entries with keys from start to end-1, in batches */
+	private static void fill(RACacheSet set, int start, int end, byte payload[]){
+		HashMap<Integer, byte[]> batch = new HashMap<>();
+		for(int i=start; i < end; i++){
+			batch.put(i, payload);
+			if(batch.size() >= 1000 || i == end - 1){
+				set.putAll(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	/** Closes the set and deletes its sidecar files, and the .mrc too if withData */
+	private static void deleteFiles(RACacheSet set, boolean withData){
+		set.close();
+		for(String suffix : new String[]{ ".idx", ".bloom", ".lease" })
+			new File(set.getFileName() + suffix).delete();
+		if(withData)
+			new File(set.getFileName()).delete();
+	}
+
+	/** Runs the benchmarks once for each of the thread counts in -Dthreads (default 1,4,16),
+	 * with any other JMH arguments given */
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+		for(String nThreads : System.getProperty("threads", "1,4,16").split(",")){
+			new Runner(new OptionsBuilder()
+					.parent(cmdOptions)
+					.include(RACacheSetBenchmark.class.getSimpleName())
+					.threads(Integer.parseInt(nThreads.trim()))
+					.build()).run();
+		}
+	}
+}
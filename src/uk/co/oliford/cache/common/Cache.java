@@ -1,6 +1,13 @@
 package uk.co.oliford.cache.common;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /** Interface for a single cache, pulled from the caching service.
  * 
@@ -29,6 +36,33 @@ public interface Cache {
 	 */
 	public Object get(String setKeyName, Object requestKey);
 	
+	/**
+	 * Gets an object from the cache, or if it isn't there, calculates it with the
+	 * loader and puts it in, i.e. the usual get(), compute, put().
+	 * 
+	 * Implementations should make sure that only one caller at a time calculates
+	 * any given entry, with anyone else asking for it waiting for that and then
+	 * getting the same result, rather than all doing the calculation.
+	 * The default doesn't, it just does get(), compute, put().
+	 * 
+	 * @param setKeyName Unique name for the key of the primary set, typically built
+	 *                   from a friendly name and a unique ID.
+	 * @param requestKey The requested key object.
+	 * @param loader     Calculates the object for the request key. If it returns null,
+	 *                   nothing is put in the cache. Anything it throws comes out of here.
+	 * @return The cached or newly calculated object.
+	 */
+	public default Object computeIfAbsent(String setKeyName, Object requestKey, Function<Object, Object> loader) {
+		Object object = get(setKeyName, requestKey);
+		if(object != null)
+			return object;
+		
+		object = loader.apply(requestKey);
+		if(object != null)
+			put(setKeyName, requestKey, object);
+		return object;
+	}
+	
 	/**
 	 * Puts an object into the cache.
 	 * 
@@ -45,9 +79,54 @@ public interface Cache {
 	public void put(String setKeyName, Object requestKey, Object object);
 	
 	
+	/**
+	 * Retrieves many objects from the cache at once, which implementations can
+	 * do more efficiently than lots of get()s.
+	 * 
+	 * @param setKeyName  Unique name for the key of the primary set.
+	 * @param requestKeys The requested key objects.
+	 * @return Map of the given request key objects that were found, to the cached 
+	 *         objects. Since arrays keys in it are the given ones, they need looking
+	 *         up with those same instances.
+	 */
+	public default Map<Object, Object> getAll(String setKeyName, Collection<?> requestKeys) {
+		Map<Object, Object> found = new HashMap<>();
+		for(Object requestKey : requestKeys){
+			Object object = get(setKeyName, requestKey);
+			if(object != null)
+				found.put(requestKey, object);
+		}
+		return found;
+	}
+	
+	/**
+	 * Puts many objects into the cache at once, which implementations can
+	 * do more efficiently than lots of put()s.
+	 * 
+	 * @param setKeyName Unique name for the key of the primary set.
+	 * @param entries    Map of request keys to the objects to be cached.
+	 */
+	public default void putAll(String setKeyName, Map<?, ?> entries) {
+		for(Map.Entry<?, ?> entry : entries.entrySet())
+			put(setKeyName, entry.getKey(), entry.getValue());
+	}
+	
 	/** Returns all the request keys in the given cache set */
 	public List<Object> getKeys(String setKeyName);
 	
+	/** Streams the request keys in the given cache set. Implementations that can, read them as the
+	 * stream goes, so a big set doesn't need them all in memory at once, and filtering the stream
+	 * keeps nothing that doesn't pass. The default just streams getKeys().
+	 */
+	public default Stream<Object> streamKeys(String setKeyName) {
+		return getKeys(setKeyName).stream();
+	}
+	
+	/** As streamKeys(), but only the keys of the given class */
+	public default <T> Stream<T> streamKeys(String setKeyName, Class<T> keyClass) {
+		return streamKeys(setKeyName).filter(keyClass::isInstance).map(keyClass::cast);
+	}
+	
 	/** Obviously named setters/getters */
 	public int getCacheMode();
 	public void setCacheMode(int cacheMode);
@@ -57,5 +136,50 @@ public interface Cache {
 	
 	/** cleanup, defragment, sync etc a given set in the cache. Can be very slow. */
 	public void organise(String setKeyName);
+	
+	/** Blocks until everything put() so far is in the permanent store.
+	 * Only does anything for implementations that write in the background,
+	 * the default does nothing. */
+	public default void flush() { }
+	
+	/**
+	 * As get(), but done in the background where the implementation can, so that
+	 * many lookups can be in flight while the caller gets on with something else.
+	 * 
+	 * There is no ordering between separate async calls, so something put with
+	 * putAsync() is only certain to be found once that future has completed.
+	 * 
+	 * The default just does the get() now.
+	 * 
+	 * @return Future of the cached object, or null if it's not there.
+	 */
+	public default CompletableFuture<Object> getAsync(String setKeyName, Object requestKey) {
+		return CompletableFuture.completedFuture(get(setKeyName, requestKey));
+	}
+	
+	/**
+	 * As put(), but done in the background where the implementation can.
+	 * The object mustn't be modified until the future completes.
+	 * flush() also waits for these.
+	 * 
+	 * The default just does the put() now.
+	 */
+	public default CompletableFuture<Void> putAsync(String setKeyName, Object requestKey, Object object) {
+		put(setKeyName, requestKey, object);
+		return CompletableFuture.completedFuture(null);
+	}
+	
+	/** As organise(), but done in the background where the implementation can.
+	 * The default just does the organise() now. */
+	public default CompletableFuture<Void> organiseAsync(String setKeyName) {
+		organise(setKeyName);
+		return CompletableFuture.completedFuture(null);
+	}
+	
+	/** Snapshot of the cache's counters and operation times, by name, for monitoring.
+	 * What's in it depends on the implementation. The default has nothing. */
+	public default Map<String, Long> getMetrics() {
+		return Collections.emptyMap();
+	}
 
 }
@@ -1,5 +1,11 @@
 package uk.co.oliford.cache.common;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
 /**
  * Main interface of the Minerva environment general caching service
  *
@@ -42,6 +48,67 @@ public interface CacheService {
 	 */
 	public void put(String cacheName, String setKeyName, Object requestKey, Object object);
 
+	/**
+	 * Retrieves many objects from the cache at once. See Cache.getAll().
+	 * 
+	 * This is equivalent to calling
+	 * CacheService.getCache(cacheName).getAll(setKeyName, requestKeys)
+	 */
+	public default Map<Object, Object> getAll(String cacheName, String setKeyName, Collection<?> requestKeys) {
+		return getCache(cacheName).getAll(setKeyName, requestKeys);
+	}
+	
+	/**
+	 * Puts many objects into the cache at once. See Cache.putAll().
+	 * 
+	 * This is equivalent to calling
+	 * CacheService.getCache(cacheName).putAll(setKeyName, entries)
+	 */
+	public default void putAll(String cacheName, String setKeyName, Map<?, ?> entries) {
+		getCache(cacheName).putAll(setKeyName, entries);
+	}
+	
+	/**
+	 * Gets an object from the cache, or calculates and puts it if it isn't there,
+	 * with only one caller calculating any given entry at once. See Cache.computeIfAbsent().
+	 * 
+	 * This is equivalent to calling
+	 * CacheService.getCache(cacheName).computeIfAbsent(setKeyName, requestKey, loader)
+	 */
+	public default Object computeIfAbsent(String cacheName, String setKeyName, Object requestKey, Function<Object, Object> loader) {
+		return getCache(cacheName).computeIfAbsent(setKeyName, requestKey, loader);
+	}
+	
+	/**
+	 * As get(), but done in the background where the implementation can.
+	 * See Cache.getAsync().
+	 * 
+	 * This is equivalent to calling
+	 * CacheService.getCache(cacheName).getAsync(setKeyName, requestKey)
+	 */
+	public default CompletableFuture<Object> getAsync(String cacheName, String setKeyName, Object requestKey) {
+		return getCache(cacheName).getAsync(setKeyName, requestKey);
+	}
+	
+	/**
+	 * As put(), but done in the background where the implementation can.
+	 * See Cache.putAsync().
+	 * 
+	 * This is equivalent to calling
+	 * CacheService.getCache(cacheName).putAsync(setKeyName, requestKey, object)
+	 */
+	public default CompletableFuture<Void> putAsync(String cacheName, String setKeyName, Object requestKey, Object object) {
+		return getCache(cacheName).putAsync(setKeyName, requestKey, object);
+	}
+	
+	/** Cleanup, defragment, sync etc a given set in the background. See Cache.organise().
+	 * 
+	 * This is equivalent to calling
+	 * CacheService.getCache(cacheName).organiseAsync(setKeyName) */
+	public default CompletableFuture<Void> organiseAsync(String cacheName, String setKeyName) {
+		return getCache(cacheName).organiseAsync(setKeyName);
+	}
+
 	/**
 	 * Sets a tag name under which to store all future objects passed to
 	 * putCachedObject().
@@ -113,4 +180,17 @@ public interface CacheService {
 
 	public void setCacheModeAll(int cachemodeReadonly);
 	
+	/** Snapshot of the counters and operation times of a cache, see Cache.getMetrics().
+	 * 
+	 * This is equivalent to calling
+	 * CacheService.getCache(cacheName).getMetrics() */
+	public default Map<String, Long> getMetrics(String cacheName) {
+		return getCache(cacheName).getMetrics();
+	}
+	
+	/** Snapshots of the metrics of all the caches in use, by cache name. The default has nothing. */
+	public default Map<String, Map<String, Long>> getMetrics() {
+		return Collections.emptyMap();
+	}
+	
 }
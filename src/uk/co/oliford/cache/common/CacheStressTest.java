@@ -1,108 +1,507 @@
 package uk.co.oliford.cache.common;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import uk.co.oliford.cache.randomAccessCache.RACache;
 import uk.co.oliford.cache.randomAccessCache.RACacheService;
+import uk.co.oliford.cache.remote.CacheServer;
+import uk.co.oliford.cache.remote.RemoteCacheService;
 import uk.co.oliford.jolu.SettingsManager;
 
+/** Load generator for a CacheService, run from several VMs against the same cache directory.
+ *
+ * The first VM starts the others (with the same classpath, -D and -X options) and adds up
+ * what they report. Each runs a number of threads doing a mix of get(), put() and organise()
+ * on keys picked from a Zipf distribution, for a given time.
+ *
+ * Every object written is a byte array that says what key it's for and which process
+ * and put made it, followed by data that can be regenerated from those, so any read
+ * can check it. A get() that returns something that doesn't check out is counted as
+ * corrupt. A get() that finds nothing for a key the same process has already put is
+ * counted as lost. At the end, every key is read back and checked again.
+ *
+ * Options (all optional):
+ *   --processes 4 --threads 8 --seconds 30
+ *   --read 0.8 --organise 0.001       (fractions of operations, the rest are put()s)
+ *   --keys 10000 --zipf 0.99           (0 for uniform)
+ *   --payloadMin 1000 --payloadMax 100000
+ *   --cache test --set stressTest
+ *   --fresh                            (empty the set first)
+ *   --verbose                          (show the output of the other processes)
+ *   --server 7437                      (start a CacheServer in the first VM on that port, 0 for any,
+ *                                       and have every process use it with a RemoteCacheService)
+ *   --remote host:7437                 (use an already running CacheServer)
+ *
+ * With a server, the lock waits are the server's, so only the first process reports them.
+ */
 public class CacheStressTest implements Runnable {
-	
+
 	static{ new SettingsManager("minerva", true);	}
-	
-	private static CacheService getService(){
+
+	private static CacheService getService(Options opts){
+		if(opts.remote != null){
+			int colon = opts.remote.lastIndexOf(':');
+			return new RemoteCacheService(opts.remote.substring(0, colon), Integer.parseInt(opts.remote.substring(colon + 1)));
+		}
 		//replace with whatever implementation you want to test
-		return new RACacheService(); 
+		return new RACacheService();
 	}
-	
-	
-	/** Delete the file, then run this lots of time, in separate VMs */
-	public static void main(String[] args) {
-		long calcDelay = 1000;
-		if(args.length > 0){
-			calcDelay = Long.parseLong(args[0]);
-		}
-		
-		CacheService cacheService = getService();
-		int nThreads = 1;
-		for(int i=0; i < nThreads; i++){
-			(new Thread(new CacheStressTest(cacheService, calcDelay))).start();
-		}
-		try {
-			Thread.sleep(1000000);
-		} catch (InterruptedException e) { }
+
+	private static final String resultPrefix = "CACHESTRESSTEST-RESULT ";
+
+	private static final int OP_READ = 0, OP_WRITE = 1, OP_ORGANISE = 2;
+	private static final String opNames[] = { "get", "put", "organise" };
+
+	/** Number of power-of-2 nanosecond latency buckets */
+	private static final int nBuckets = 48;
+
+	private static class Options {
+		int processes = 1, threads = 4;
+		double seconds = 30;
+		double readFraction = 0.8, organiseFraction = 0.001;
+		int nKeys = 10000;
+		double zipfExponent = 0.99;
+		int payloadMin = 1000, payloadMax = 100000;
+		String cacheName = "test", setName = "stressTest";
+		boolean fresh = false, verbose = false;
+		/** host:port of the CacheServer to use, or null for the local files */
+		String remote = null;
+		/** Port to start a CacheServer on, or -1 for none */
+		int serverPort = -1;
+		/** Process number, 0 for the one that starts the others */
+		int processID = 0;
+
+		static Options parse(String args[]){
+			Options opts = new Options();
+			for(int i=0; i < args.length; i++){
+				switch(args[i]){
+					case "--processes": opts.processes = Integer.parseInt(args[++i]); break;
+					case "--threads": opts.threads = Integer.parseInt(args[++i]); break;
+					case "--seconds": opts.seconds = Double.parseDouble(args[++i]); break;
+					case "--read": opts.readFraction = Double.parseDouble(args[++i]); break;
+					case "--organise": opts.organiseFraction = Double.parseDouble(args[++i]); break;
+					case "--keys": opts.nKeys = Integer.parseInt(args[++i]); break;
+					case "--zipf": opts.zipfExponent = Double.parseDouble(args[++i]); break;
+					case "--payloadMin": opts.payloadMin = Integer.parseInt(args[++i]); break;
+					case "--payloadMax": opts.payloadMax = Integer.parseInt(args[++i]); break;
+					case "--cache": opts.cacheName = args[++i]; break;
+					case "--set": opts.setName = args[++i]; break;
+					case "--fresh": opts.fresh = true; break;
+					case "--verbose": opts.verbose = true; break;
+					case "--server": opts.serverPort = Integer.parseInt(args[++i]); break;
+					case "--remote": opts.remote = args[++i]; break;
+					case "--processID": opts.processID = Integer.parseInt(args[++i]); break;
+					default: throw new IllegalArgumentException("Unknown option '" + args[i] + "'");
+				}
+			}
+			if(opts.payloadMin < 20 || opts.payloadMax < opts.payloadMin)
+				throw new IllegalArgumentException("Need 20 <= payloadMin <= payloadMax");
+			return opts;
+		}
+
+		/** The arguments for another process doing the same */
+		List<String> toArgs(int processID){
+			ArrayList<String> args = new ArrayList<>(Arrays.asList("--threads", "" + threads, "--seconds", "" + seconds,
+					"--read", "" + readFraction, "--organise", "" + organiseFraction,
+					"--keys", "" + nKeys, "--zipf", "" + zipfExponent,
+					"--payloadMin", "" + payloadMin, "--payloadMax", "" + payloadMax,
+					"--cache", cacheName, "--set", setName, "--processID", "" + processID));
+			if(remote != null){
+				args.add("--remote");
+				args.add(remote);
+			}
+			return args;
+		}
 	}
-	
-	public CacheStressTest(CacheService cacheService, long calcDelay) { 
+
+	/** Counts and latency histograms, for a thread, a process or everything */
+	private static class Stats {
+		final long latency[][] = new long[opNames.length][nBuckets];
+		final long latencySum[] = new long[opNames.length];
+		final long latencyMax[] = new long[opNames.length];
+		long hits, misses, lost, corrupt;
+		/** From the cache's own metrics, if it has them */
+		long lockWaits, lockWaitSumNanos, lockWaitMaxNanos, lockWaitWorstP99Nanos;
+		/** Of all the processes, in seconds */
+		double elapsed;
+
+		void record(int op, long nanos){
+			latency[op][Math.min(nBuckets - 1, 63 - Long.numberOfLeadingZeros(nanos | 1))]++;
+			latencySum[op] += nanos;
+			latencyMax[op] = Math.max(latencyMax[op], nanos);
+		}
+
+		long count(int op){
+			long n = 0;
+			for(long c : latency[op])
+				n += c;
+			return n;
+		}
+
+		/** @return Upper edge of the bucket with the given quantile, in nanoseconds */
+		long percentile(int op, double quantile){
+			long target = (long)Math.ceil(quantile * count(op));
+			long n = 0;
+			for(int i=0; i < nBuckets; i++){
+				n += latency[op][i];
+				if(n >= target && n > 0)
+					return Math.min(latencyMax[op], (2L << i) - 1);
+			}
+			return 0;
+		}
+
+		void add(Stats other){
+			for(int op=0; op < opNames.length; op++){
+				for(int i=0; i < nBuckets; i++)
+					latency[op][i] += other.latency[op][i];
+				latencySum[op] += other.latencySum[op];
+				latencyMax[op] = Math.max(latencyMax[op], other.latencyMax[op]);
+			}
+			hits += other.hits;
+			misses += other.misses;
+			lost += other.lost;
+			corrupt += other.corrupt;
+			lockWaits += other.lockWaits;
+			lockWaitSumNanos += other.lockWaitSumNanos;
+			lockWaitMaxNanos = Math.max(lockWaitMaxNanos, other.lockWaitMaxNanos);
+			lockWaitWorstP99Nanos = Math.max(lockWaitWorstP99Nanos, other.lockWaitWorstP99Nanos);
+			elapsed = Math.max(elapsed, other.elapsed);
+		}
+
+		/** One line of numbers, for decode() in the first process */
+		String encode(){
+			StringBuilder sb = new StringBuilder();
+			for(int op=0; op < opNames.length; op++){
+				for(long c : latency[op])
+					sb.append(c).append(' ');
+				sb.append(latencySum[op]).append(' ').append(latencyMax[op]).append(' ');
+			}
+			sb.append(hits).append(' ').append(misses).append(' ').append(lost).append(' ').append(corrupt).append(' ');
+			sb.append(lockWaits).append(' ').append(lockWaitSumNanos).append(' ').append(lockWaitMaxNanos).append(' ').append(lockWaitWorstP99Nanos).append(' ');
+			sb.append(elapsed);
+			return sb.toString();
+		}
+
+		static Stats decode(String line){
+			String v[] = line.trim().split(" ");
+			Stats stats = new Stats();
+			int i = 0;
+			for(int op=0; op < opNames.length; op++){
+				for(int b=0; b < nBuckets; b++)
+					stats.latency[op][b] = Long.parseLong(v[i++]);
+				stats.latencySum[op] = Long.parseLong(v[i++]);
+				stats.latencyMax[op] = Long.parseLong(v[i++]);
+			}
+			stats.hits = Long.parseLong(v[i++]);
+			stats.misses = Long.parseLong(v[i++]);
+			stats.lost = Long.parseLong(v[i++]);
+			stats.corrupt = Long.parseLong(v[i++]);
+			stats.lockWaits = Long.parseLong(v[i++]);
+			stats.lockWaitSumNanos = Long.parseLong(v[i++]);
+			stats.lockWaitMaxNanos = Long.parseLong(v[i++]);
+			stats.lockWaitWorstP99Nanos = Long.parseLong(v[i++]);
+			stats.elapsed = Double.parseDouble(v[i++]);
+			return stats;
+		}
+	}
+
+	/** See the class comment for the options */
+	public static void main(String[] args) throws Exception {
+		Options opts = Options.parse(args);
+
+		if(opts.processID == 0 && opts.serverPort >= 0){
+			RACacheService serverService = new RACacheService();
+			if(opts.fresh)
+				serverService.getCache(opts.cacheName).emptyAllSets(opts.setName);
+			CacheServer server = new CacheServer(serverService, InetAddress.getLoopbackAddress(), opts.serverPort);
+			opts.remote = InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getPort();
+			System.out.println("CacheStressTest: CacheServer on port " + server.getPort());
+		}
+
+		CacheService cacheService = getService(opts);
+
+		if(opts.processID > 0){
+			//we're one of the others, just report back
+			System.out.println(resultPrefix + runThreads(cacheService, opts).encode());
+			System.exit(0);
+		}
+
+		if(opts.fresh && cacheService instanceof RACacheService)
+			((RACache)cacheService.getCache(opts.cacheName)).emptyAllSets(opts.setName);
+
+		//their output has to be read as it comes, or they stop when the pipe is full, maybe holding the file lock
+		ArrayList<FutureTask<Stats>> others = new ArrayList<>();
+		for(int p=1; p < opts.processes; p++){
+			Process process = startProcess(opts, p);
+			FutureTask<Stats> results = new FutureTask<>(() -> collect(process, opts.verbose));
+			Thread t = new Thread(results, "CacheStressTest process " + p);
+			t.setDaemon(true);
+			t.start();
+			others.add(results);
+		}
+
+		Stats total = runThreads(cacheService, opts);
+		for(int p=0; p < others.size(); p++){
+			Stats stats = others.get(p).get();
+			if(stats == null)
+				System.err.println("WARNING: Process " + (p+1) + " didn't report its results");
+			else
+				total.add(stats);
+		}
+
+		report(opts, total);
+		finalCheck(cacheService, opts);
+		System.exit(0);
+	}
+
+	/** Starts another VM running this with the same classpath and -D/-X options */
+	private static Process startProcess(Options opts, int processID) throws IOException{
+		ArrayList<String> cmd = new ArrayList<>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		for(String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()){
+			if(arg.startsWith("-D") || arg.startsWith("-X"))
+				cmd.add(arg);
+		}
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(CacheStressTest.class.getName());
+		cmd.addAll(opts.toArgs(processID));
+
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+		return pb.start();
+	}
+
+	/** Waits for another process and reads its results from its output */
+	private static Stats collect(Process process, boolean verbose) throws IOException, InterruptedException{
+		Stats stats = null;
+		try(BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))){
+			String line;
+			while((line = in.readLine()) != null){
+				if(line.startsWith(resultPrefix))
+					stats = Stats.decode(line.substring(resultPrefix.length()));
+				else if(verbose)
+					System.out.println(line);
+			}
+		}
+		process.waitFor();
+		return stats;
+	}
+
+	/** Runs opts.threads threads in this process for opts.seconds */
+	private static Stats runThreads(CacheService cacheService, Options opts) throws InterruptedException{
+		ZipfKeys keys = new ZipfKeys(opts.nKeys, opts.zipfExponent);
+		Set<Long> written = ConcurrentHashMap.newKeySet();
+		AtomicLong nextSeq = new AtomicLong();
+
+		ArrayList<CacheStressTest> workers = new ArrayList<>();
+		ArrayList<Thread> threads = new ArrayList<>();
+		long endTime = System.nanoTime() + (long)(opts.seconds * 1e9);
+		for(int i=0; i < opts.threads; i++){
+			CacheStressTest worker = new CacheStressTest(cacheService, opts, keys, written, nextSeq, endTime,
+					new Random(opts.processID * 1000L + i + System.nanoTime()));
+			workers.add(worker);
+			Thread t = new Thread(worker, "CacheStressTest " + i);
+			threads.add(t);
+			t.start();
+		}
+
+		Stats stats = new Stats();
+		for(int i=0; i < threads.size(); i++){
+			threads.get(i).join();
+			stats.add(workers.get(i).stats);
+		}
+		stats.elapsed = opts.seconds;
+
+		cacheService.getCache(opts.cacheName).flush();
+		Map<String, Long> metrics = cacheService.getMetrics(opts.cacheName);
+		if(metrics.containsKey("lockWait.count") && (opts.remote == null || opts.processID == 0)){
+			stats.lockWaits = metrics.get("lockWait.count");
+			stats.lockWaitSumNanos = metrics.get("lockWait.meanNanos") * stats.lockWaits;
+			stats.lockWaitMaxNanos = metrics.get("lockWait.maxNanos");
+			stats.lockWaitWorstP99Nanos = metrics.get("lockWait.p99Nanos");
+		}
+		return stats;
+	}
+
+	private static void report(Options opts, Stats total){
+		System.out.println(String.format("CacheStressTest: %d processes x %d threads, %.1f s, %d keys (zipf %.2f), payload %d..%d bytes, get/organise/put %.3f/%.3f/%.3f",
+				opts.processes, opts.threads, total.elapsed, opts.nKeys, opts.zipfExponent, opts.payloadMin, opts.payloadMax,
+				opts.readFraction, opts.organiseFraction, 1 - opts.readFraction - opts.organiseFraction));
+
+		long nAll = 0;
+		for(int op=0; op < opNames.length; op++){
+			long n = total.count(op);
+			nAll += n;
+			System.out.println(String.format("  %-9s %10d ops %10.1f ops/s   mean %9.1f us  p50 %9.1f us  p99 %9.1f us  p999 %9.1f us  max %9.1f us",
+					opNames[op], n, n / total.elapsed, n > 0 ? total.latencySum[op] / 1e3 / n : 0,
+					total.percentile(op, 0.5) / 1e3, total.percentile(op, 0.99) / 1e3, total.percentile(op, 0.999) / 1e3, total.latencyMax[op] / 1e3));
+		}
+		System.out.println(String.format("  %-9s %10d ops %10.1f ops/s", "total", nAll, nAll / total.elapsed));
+		System.out.println(String.format("  get()s: %d hits, %d misses (%.1f%% hits)", total.hits, total.misses,
+				100.0 * total.hits / Math.max(1, total.hits + total.misses)));
+		if(total.lockWaits > 0)
+			System.out.println(String.format("  lock waits: %d, mean %.1f us, worst process p99 %.1f us, max %.1f us", total.lockWaits,
+					total.lockWaitSumNanos / 1e3 / total.lockWaits, total.lockWaitWorstP99Nanos / 1e3, total.lockWaitMaxNanos / 1e3));
+		System.out.println("  lost: " + total.lost + (total.lost > 0 ? "   <--- ENTRIES LOST" : ""));
+		System.out.println("  corrupt: " + total.corrupt + (total.corrupt > 0 ? "   <--- ENTRIES CORRUPT" : ""));
+	}
+
+	/** Reads back every key, once everyone has finished, and checks whatever is there */
+	private static void finalCheck(CacheService cacheService, Options opts){
+		cacheService.fastSync();
+		long nFound = 0, nCorrupt = 0;
+		for(long key=0; key < opts.nKeys; key++){
+			Object obj = cacheService.get(opts.cacheName, opts.setName, key);
+			if(obj != null){
+				nFound++;
+				if(!checkPayload(key, obj))
+					nCorrupt++;
+			}
+		}
+		System.out.println("  final check: " + nFound + " of " + opts.nKeys + " keys present, " + nCorrupt + " corrupt" +
+				(nCorrupt > 0 ? "   <--- ENTRIES CORRUPT" : ""));
+	}
+
+	/** Picks keys 0..n-1 with probability proportional to 1/(k+1)^s */
+	private static class ZipfKeys {
+		private final double cdf[];
+
+		ZipfKeys(int n, double s){
+			cdf = new double[n];
+			double sum = 0;
+			for(int k=0; k < n; k++){
+				sum += 1.0 / Math.pow(k + 1, s);
+				cdf[k] = sum;
+			}
+			for(int k=0; k < n; k++)
+				cdf[k] /= sum;
+		}
+
+		long next(Random rand){
+			int k = Arrays.binarySearch(cdf, rand.nextDouble());
+			return (k >= 0) ? k : Math.min(cdf.length - 1, -k - 1);
+		}
+	}
+
+	/** [key (8)][process (4)][put number (8)][data made from those] */
+	private static byte[] makePayload(long key, int processID, long seq, int size){
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putLong(key);
+		buf.putInt(processID);
+		buf.putLong(seq);
+		fillData(buf, key, processID, seq);
+		return buf.array();
+	}
+
+	private static void fillData(ByteBuffer buf, long key, int processID, long seq){
+		long x = key * 0x9E3779B97F4A7C15L ^ processID * 0xC2B2AE3D27D4EB4FL ^ seq;
+		while(buf.hasRemaining()){
+			x += 0x9E3779B97F4A7C15L;
+			long z = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			buf.put((byte)(z ^ (z >>> 31)));
+		}
+	}
+
+	/** @return true if the object is a payload made for this key by makePayload() */
+	private static boolean checkPayload(long key, Object obj){
+		if(!(obj instanceof byte[]) || ((byte[])obj).length < 20)
+			return false;
+		ByteBuffer buf = ByteBuffer.wrap((byte[])obj);
+		if(buf.getLong() != key)
+			return false;
+		int processID = buf.getInt();
+		long seq = buf.getLong();
+
+		ByteBuffer expected = ByteBuffer.allocate(buf.remaining());
+		fillData(expected, key, processID, seq);
+		expected.flip();
+		return buf.equals(expected);
+	}
+
+	private CacheStressTest(CacheService cacheService, Options opts, ZipfKeys keys, Set<Long> written, AtomicLong nextSeq, long endTime, Random randGen) {
 		this.cacheService = cacheService;
-		this.calcDelay = calcDelay;
+		this.opts = opts;
+		this.keys = keys;
+		this.written = written;
+		this.nextSeq = nextSeq;
+		this.endTime = endTime;
+		this.randGen = randGen;
 	}
-	
+
 	private CacheService cacheService;
-	private long calcDelay;
-	
+	private Options opts;
+	private ZipfKeys keys;
+	/** Keys this process has put, so a get() that doesn't find them has lost them */
+	private Set<Long> written;
+	private AtomicLong nextSeq;
+	private long endTime;
+	private Random randGen;
+	private Stats stats = new Stats();
+
 	@Override
 	public void run() {
-		
+
 		try{
-			int nSets = 10000000;		
-			int objSize = 10000;
-			
-			if(cacheService instanceof RACacheService){
-				((RACache)cacheService.getCache("test")).cleanAllSets("stressTest", true);
-			}
-			
-			Random randGen = new Random();
-			
-			for(int i=0; i < nSets; i++){			
-				
-				double obj[] = new double[objSize];
-				for(int j=0; j < objSize; j++) {
-					obj[j] = randGen.nextDouble();
-				}
-				
-				byte key = (byte) randGen.nextInt(50);
-				
-				//one with a key that will get rehit quite often
-				cacheService.put("test", "stressTest", key, obj);
-				
-				//one with a simple int key but the same big data so we can read back
-				cacheService.put("test", "stressTest", i, obj);
-				
-				if(i == 0)
-					continue;
-				
-				//do a random get, of the things we know have been written
-				int j = randGen.nextInt(i);
-				try{
-					long thisDelay = (long)(calcDelay * (0.8 + randGen.nextDouble() * 0.4));
-					Thread.sleep(thisDelay); //simulated calculation time, with jitter
-				}catch(InterruptedException e){ }
-				
-				Object x = cacheService.get("test", "stressTest", j);
-				//assertTrue(x != null);
-				if(x == null)
-					System.err.println("Cache missed for item " + j);
-				
-				
-				System.out.println(i + " / " + nSets);
-				
-				/*if((i % 10) == 0){
-					if(cacheService instanceof RACacheService)
-						((RACache)cacheService.getCache("test")).getAllSets("stressTest")[0].dumpCacheMemoryStats();
-				}*/
-				
-				//periodically, and randomly, clean the cache			
-				if(randGen.nextInt(400) == 0){
-					cacheService.getCache("test").organise("stressTest");
+			while(System.nanoTime() < endTime){
+				long key = keys.next(randGen);
+				double r = randGen.nextDouble();
+
+				if(r < opts.readFraction){
+					boolean wasWritten = written.contains(key);
+					long t0 = System.nanoTime();
+					Object obj = cacheService.get(opts.cacheName, opts.setName, key);
+					stats.record(OP_READ, System.nanoTime() - t0);
+
+					if(obj == null){
+						stats.misses++;
+						if(wasWritten){
+							stats.lost++;
+							System.err.println("CacheStressTest: LOST key " + key + " in process " + opts.processID);
+						}
+					}else{
+						stats.hits++;
+						if(!checkPayload(key, obj)){
+							stats.corrupt++;
+							System.err.println("CacheStressTest: CORRUPT object for key " + key + " in process " + opts.processID);
+						}
+					}
+
+				}else if(r < opts.readFraction + opts.organiseFraction){
+					long t0 = System.nanoTime();
+					cacheService.getCache(opts.cacheName).organise(opts.setName);
+					stats.record(OP_ORGANISE, System.nanoTime() - t0);
+
+				}else{
+					int size = opts.payloadMin + randGen.nextInt(opts.payloadMax - opts.payloadMin + 1);
+					byte payload[] = makePayload(key, opts.processID, nextSeq.incrementAndGet(), size);
+
+					long t0 = System.nanoTime();
+					cacheService.put(opts.cacheName, opts.setName, key, payload);
+					stats.record(OP_WRITE, System.nanoTime() - t0);
+					written.add(key);
 				}
-			
 			}
 		}catch(Exception e){
 			e.printStackTrace();
 			throw(new RuntimeException(e));
 		}
 	}
-	
+
 }
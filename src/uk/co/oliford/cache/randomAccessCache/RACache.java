@@ -1,8 +1,24 @@
 package uk.co.oliford.cache.randomAccessCache;
 
 import java.io.File;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.ObjectName;
 import java.util.List;
 
 import uk.co.oliford.cache.common.Cache;
@@ -31,10 +47,66 @@ public class RACache implements Cache {
 	 * active tag set, should we copy it in?? */
 	private boolean copyExisting = false;
 	
+	/** Write-behind mode for our sets, or null to leave them on the default from the settings */
+	private Boolean writeBehind = null;
+	
+	/** Strong references to the hottest objects across all our sets, in front of
+	 * their SoftReferences. Normally the one shared by all the caches in the VM (see RACacheHotTier.shared()),
+	 * unless 'minerva.cache.hotTierMaxBytes.<cacheName>' gives this cache its own budget in bytes. 0 to disable. */
+	private final RACacheHotTier hotTier;
+	
+	/** Off-heap copies of the object packages of recently loaded entries, for all our sets, or null.
+	 * The budget is 'minerva.cache.offHeapMaxBytes' (or '...offHeapMaxBytes.<cacheName>'),
+	 * default 0, which is off. Needs -XX:MaxDirectMemorySize to be big enough. */
+	private RACacheOffHeapTier offHeapTier;
+	
+	/** Disk quotas of the set files and the whole cache, see RACacheQuota */
+	private final RACacheQuota quota;
+	
 	/** Storage of all cache sets under a given set name.
 	 * key is set name
 	 * val is list of sets with different tags (you have to check them all!) */
-	HashMap<String, RACacheSet[]> sets = new HashMap<>();
+	ConcurrentHashMap<String, RACacheSet[]> sets = new ConcurrentHashMap<>();
+	
+	/** Tag names of the files found by scanForSets() for each set name, that we haven't made RACacheSets for yet */
+	private final ConcurrentHashMap<String, List<String>> unopenedSets = new ConcurrentHashMap<>();
+	
+	/** The per-set MBeans, if 'minerva.cache.jmxPerSet' is on */
+	private final ConcurrentHashMap<RACacheSet, ObjectName> setMBeans = new ConcurrentHashMap<>();
+	
+	/** putAsync()s that haven't finished yet, so flush() can wait for them */
+	private final Set<CompletableFuture<Void>> pendingPuts = ConcurrentHashMap.newKeySet();
+	
+	/** computeIfAbsent() loads going on in this VM, so that other threads wanting the same thing can wait for them */
+	private final ConcurrentHashMap<LoadKey, CompletableFuture<Object>> loadsInFlight = new ConcurrentHashMap<>();
+	
+	/** The loadsInFlight that this thread is doing, so that a loader asking for its own key doesn't wait for itself */
+	private final ThreadLocal<Set<LoadKey>> loadsHere = ThreadLocal.withInitial(HashSet::new);
+	
+	/** How long computeIfAbsent() waits for another process's load of the same thing before doing
+	 * it anyway. 'minerva.cache.computeLeaseMaxWaitMillis', 0 to wait as long as it takes. */
+	private static final long computeLeaseMaxWait = Long.parseLong(SettingsManager.defaultGlobal().getProperty("minerva.cache.computeLeaseMaxWaitMillis", "0"));
+	
+	private static final class LoadKey {
+		final String setKeyName;
+		final RACacheKey key;
+		
+		LoadKey(String setKeyName, Object requestKey) {
+			this.setKeyName = setKeyName;
+			this.key = new RACacheKey(requestKey);
+		}
+		
+		@Override
+		public int hashCode() { return 31 * setKeyName.hashCode() + key.hash; }
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof LoadKey))
+				return false;
+			LoadKey other = (LoadKey)obj;
+			return Objects.equals(setKeyName, other.setKeyName) && key.equals(other.key);
+		}
+	}
 	
 	/** Only things in this package should instantiate this */
 	protected RACache(String cacheName, int cacheMode, String tagName, boolean copyExisting) {
@@ -43,10 +115,29 @@ public class RACache implements Cache {
 		this.tagName = tagName;
 		this.copyExisting = copyExisting;
 		
+		SettingsManager settings = SettingsManager.defaultGlobal();
+		String ownHotTierBytes = "minerva.cache.hotTierMaxBytes." + cacheName;
+		this.hotTier = (cacheName != null && settings.propertyDefined(ownHotTierBytes))
+				? new RACacheHotTier(Long.parseLong(settings.getProperty(ownHotTierBytes)))
+				: RACacheHotTier.shared();
+		
+		long offHeapMaxBytes = Long.parseLong(RACacheService.getCacheSetting(cacheName, "minerva.cache.offHeapMaxBytes", "0"));
+		if(offHeapMaxBytes > 0)
+			this.offHeapTier = new RACacheOffHeapTier(offHeapMaxBytes, 
+						Integer.parseInt(RACacheService.getCacheSetting(cacheName, "minerva.cache.offHeapBlockSize", "4096")));
+		
+		this.quota = new RACacheQuota(this, cacheName);
+		
 		scanForSets();
+		
+		if(RACacheMetrics.jmxEnabled)
+			RACacheMetrics.registerMBean("type=RACache,name=" + ObjectName.quote(cacheName), this, RACache::getMetrics);
 	}
 	
-	/** Look for correctly named '.mrc' files in the correct dir and load their indices */ 
+	/** Look for correctly named '.mrc' files in the correct dir. Their RACacheSets are
+	 * only made (and their indices loaded) when their set name is first asked for, see getSets().
+	 * Parsing the names is done in parallel on the common fork-join pool, since a long
+	 * lived cache directory can have many thousands of them. */ 
 	public void scanForSets(){
 		String path = RACacheService.getCachePath() + cacheName; // getCachePath already appends a File.separator
 		File dir = new File(path);
@@ -57,27 +148,74 @@ public class RACache implements Cache {
 		}
 		
 		File files[] = dir.listFiles();
+		if(files == null)
+			return;
 		
-		for(File file : files){
-			String fName = file.getName();
-			if(!fName.startsWith("minervaCache_") || ! fName.endsWith(".mrc"))
-				continue;
-			
-			String parts[] = fName.substring(13, fName.length() - 4).split("_");
-			
-			if(parts.length < 2 || !parts[0].equals(RACacheService.forFilename(cacheName)))
-				continue;
-			
-			String setName = OneLiners.desanitizeFilename(parts[1]);
-			String tagName = parts.length < 3 ? null : OneLiners.desanitizeFilename(parts[2]);
-			
-			try{
-				addSetToList(setName, new RACacheSet(cacheName, setName, tagName));
+		String prefix = RACacheService.forFilename(cacheName);
+		Map<String, List<String>> found = Arrays.stream(files).parallel()
+				.map(file -> parseSetFileName(file.getName(), prefix))
+				.filter(Objects::nonNull)
+				.collect(Collectors.groupingByConcurrent(setAndTag -> setAndTag[0], 
+						Collectors.mapping(setAndTag -> setAndTag[1], Collectors.toList())));
+		
+		synchronized (this) {
+			for(Map.Entry<String, List<String>> entry : found.entrySet()){
+				//if we've been scanned before, leave out the ones we already have
+				List<String> tagNames = new ArrayList<>(entry.getValue());
+				RACacheSet[] existingSets = sets.get(entry.getKey());
+				if(existingSets != null)
+					for(RACacheSet set : existingSets)
+						tagNames.remove(set.getTagName());
 				
-			}catch(Exception e){
-				System.err.println("RACache: WARNING: Error loading cache entry cache='"+cacheName+"', set='"+setName+"', tag='"+tagName+"'");
+				if(!tagNames.isEmpty())
+					unopenedSets.merge(entry.getKey(), tagNames, (a, b) -> { 
+						ArrayList<String> all = new ArrayList<>(a); 
+						for(String t : b)
+							if(!all.contains(t))
+								all.add(t);
+						return all; 
+					});
+			}
+		}
+	}
+	
+	/** @return {setName, tagName} from 'minervaCache_<cacheName>_<setName>[_<tagName>].mrc' (or '.mrcs' for
+	 * a RACacheSegmentedSet), or null if it isn't one of ours */
+	private static String[] parseSetFileName(String fName, String cacheNameForFilename){
+		int extLen = fName.endsWith(".mrc") ? 4 : fName.endsWith(RACacheSegmentedSet.EXTENSION) ? 5 : -1;
+		if(!fName.startsWith("minervaCache_") || extLen < 0)
+			return null;
+		
+		String parts[] = fName.substring(13, fName.length() - extLen).split("_");
+		
+		if(parts.length < 2 || !parts[0].equals(cacheNameForFilename))
+			return null;
+		
+		return new String[]{ OneLiners.desanitizeFilename(parts[1]),
+							parts.length < 3 ? null : OneLiners.desanitizeFilename(parts[2]) };
+	}
+	
+	/** @return All the sets with the given set name, or null if there aren't any. The first time a set name
+	 * is asked for, this makes the RACacheSets for the files scanForSets() found for it. */
+	private RACacheSet[] getSets(String setKeyName){
+		if(unopenedSets.containsKey(setKeyName)){
+			synchronized (this) {
+				List<String> tagNames = unopenedSets.get(setKeyName);
+				if(tagNames != null){
+					for(String tagName : tagNames){
+						try{
+							addSetToList(setKeyName, makeSet(setKeyName, tagName));
+							
+						}catch(Exception e){
+							System.err.println("RACache: WARNING: Error loading cache entry cache='"+cacheName+"', set='"+setKeyName+"', tag='"+tagName+"'");
+						}
+					}
+					//only now, so that anyone who sees it gone will see the sets
+					unopenedSets.remove(setKeyName);
+				}
 			}
 		}
+		return sets.get(setKeyName);
 	}
 	
 	@Override
@@ -89,7 +227,7 @@ public class RACache implements Cache {
 			return null;
 		
 		//now find the list of sets matching
-		RACacheSet[] matchingSets = sets.get(setKeyName);
+		RACacheSet[] matchingSets = getSets(setKeyName);
 		
 		//TODO: We ought to see if the tagged set at least has turned up
 		// on disk since we scanned in construction
@@ -97,12 +235,15 @@ public class RACache implements Cache {
 			return null;
 		
 		
+		//the sets' bloom filters can rule most of them out without looking
+		int hash = RACacheKey.hash(requestKey);
+		
 		//if we have an active tag
 		if(tagName != null){
 			//then first look in that set
 			for(RACacheSet set : matchingSets){
 				if(tagName.equals(set.getTagName())) {		
-					Object val = set.get(requestKey);
+					Object val = set.mightContain(hash) ? set.get(requestKey) : null;
 					if(val != null)
 						return val;	//if we found it, we don't even need to look in the others
 					break; //otherwise go search other tags
@@ -115,6 +256,8 @@ public class RACache implements Cache {
 		RACacheSet foundInSet = null;
 		Object foundVal = null;
 		for(RACacheSet set : matchingSets){
+			if(!set.mightContain(hash))
+				continue;
 			Object val = set.get(requestKey);			
 			
 			if(val != null){ //found one
@@ -154,24 +297,94 @@ public class RACache implements Cache {
 		return foundVal;
 	}
 	
+	/** Gets many objects at once, from the set of the active tag first, and then anything not there
+	 * from the sets of the other tags. Each set gets one RACacheSet.getAll() for the keys its bloom
+	 * filter doesn't rule out. Unlike get(), the first found is used without checking the others. */
+	@Override
+	public Map<Object, Object> getAll(String setKeyName, Collection<?> requestKeys) {
+		Map<Object, Object> found = new HashMap<>();
+		if(cacheMode == CacheService.CACHEMODE_OFF ||
+				cacheMode == CacheService.CACHEMODE_UPDATE)
+			return found;
+		
+		RACacheSet[] matchingSets = getSets(setKeyName);
+		if(matchingSets == null)
+			return found;
+		
+		RACacheSet activeSet = null;
+		if(tagName != null){
+			for(RACacheSet set : matchingSets){
+				if(tagName.equals(set.getTagName()))
+					activeSet = set;
+			}
+		}
+		
+		ArrayList<Object> remainingKeys = new ArrayList<>(requestKeys);
+		if(activeSet != null){
+			found.putAll(getAllFromSet(activeSet, remainingKeys));
+			remainingKeys.removeIf(found::containsKey);
+		}
+		
+		//whatever turns up under other tags may need copying to the active one
+		Map<Object, Object> foundElsewhere = new HashMap<>();
+		for(RACacheSet set : matchingSets){
+			if(set == activeSet || remainingKeys.isEmpty())
+				continue;
+			Map<Object, Object> foundInSet = getAllFromSet(set, remainingKeys);
+			foundElsewhere.putAll(foundInSet);
+			remainingKeys.removeIf(foundInSet::containsKey);
+		}
+		found.putAll(foundElsewhere);
+		
+		if(copyExisting && !foundElsewhere.isEmpty())
+			putAll(setKeyName, foundElsewhere);
+		
+		return found;
+	}
+	
+	private static Map<Object, Object> getAllFromSet(RACacheSet set, List<Object> requestKeys) {
+		ArrayList<Object> maybeKeys = new ArrayList<>(requestKeys.size());
+		for(Object requestKey : requestKeys){
+			if(set.mightContain(RACacheKey.hash(requestKey)))
+				maybeKeys.add(requestKey);
+		}
+		return maybeKeys.isEmpty() ? Collections.emptyMap() : set.getAll(maybeKeys);
+	}
+	
 	/** @returns An array of RandomAccessCacheSet s that match the given set name */ 
 	public RACacheSet[] getAllSets(String setKeyName) {
 		//now find the list of sets matching
-		return sets.get(setKeyName);
+		return getSets(setKeyName);
 	}
 
+	/** @return All our sets, for RACacheQuota.
+	 * @param includeUnopened Also make the sets for the files scanForSets() found that nobody has asked for yet */
+	List<RACacheSet> allSets(boolean includeUnopened) {
+		if(includeUnopened)
+			for(String setKeyName : new ArrayList<>(unopenedSets.keySet()))
+				getSets(setKeyName);
+		
+		ArrayList<RACacheSet> all = new ArrayList<>();
+		for(RACacheSet[] matchingSets : sets.values())
+			all.addAll(Arrays.asList(matchingSets));
+		return all;
+	}
+	
+	/** @return The disk quotas of this cache */
+	public RACacheQuota getQuota() { return quota; }
+	
 	@Override
 	public List<Object> getKeys(String setKeyName) {
-		RACacheSet[] allSets = sets.get(setKeyName);
-
-		LinkedList<Object> keys = new LinkedList<>();
-		if (allSets != null) {
-			for (RACacheSet set : allSets) {
-				keys.addAll(set.getKeys());
-			}
-		}
-
-		return keys;
+		return streamKeys(setKeyName).collect(Collectors.toCollection(ArrayList::new));
+	}
+	
+	/** Streams the keys of the set's files, one after the other, see RACacheSet.streamKeys() */
+	@Override
+	public Stream<Object> streamKeys(String setKeyName) {
+		RACacheSet[] allSets = getSets(setKeyName);
+		if(allSets == null)
+			return Stream.empty();
+		return Arrays.stream(allSets).map(RACacheSet::streamKeys).reduce(Stream::concat).orElseGet(Stream::empty);
 	}
 
 	@Override
@@ -181,8 +394,125 @@ public class RACache implements Cache {
 				cacheMode == CacheService.CACHEMODE_READONLY)
 			return;
 		
+		getOrCreateActiveSet(setKeyName).put(requestKey, object);
+		quota.check();
+	}
+	
+	/** Gets the object, or calculates and puts it. Only one thread in this VM calculates any
+	 * given entry at once, and the others wait for it. Between processes, the one calculating
+	 * holds a lease on the key hash (see RACacheSet.acquireLoadLease()), so the others wait 
+	 * until it's in the file and then read it.
+	 * 
+	 * Only in CACHEMODE_FULL, otherwise it's just get(), compute, put(). That's also what a loader
+	 * gets if it asks for the very entry it is calculating, rather than waiting for itself.
+	 */
+	@Override
+	public Object computeIfAbsent(String setKeyName, Object requestKey, Function<Object, Object> loader) {
+		if(cacheMode != CacheService.CACHEMODE_FULL)
+			return Cache.super.computeIfAbsent(setKeyName, requestKey, loader);
+		
+		Object object = get(setKeyName, requestKey);
+		if(object != null)
+			return object;
+		
+		LoadKey loadKey = new LoadKey(setKeyName, requestKey);
+		Set<LoadKey> ownLoads = loadsHere.get();
+		if(ownLoads.contains(loadKey))
+			return Cache.super.computeIfAbsent(setKeyName, requestKey, loader);
+		
+		CompletableFuture<Object> ours = new CompletableFuture<>();
+		CompletableFuture<Object> theirs = loadsInFlight.putIfAbsent(loadKey, ours);
+		if(theirs != null){
+			//another thread here is already doing it
+			try{
+				return theirs.join();
+			}catch(CompletionException e){
+				if(e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				if(e.getCause() instanceof Error)
+					throw (Error)e.getCause();
+				throw e;
+			}
+		}
+		
+		ownLoads.add(loadKey);
+		try{
+			object = loadUnderLease(setKeyName, requestKey, loader);
+			ours.complete(object);
+			return object;
+		}catch(RuntimeException | Error e){
+			ours.completeExceptionally(e);
+			throw e;
+		}finally{
+			ownLoads.remove(loadKey);
+			loadsInFlight.remove(loadKey, ours);
+		}
+	}
+	
+	/** Does the load for computeIfAbsent(), holding the lease so other processes wait */
+	private Object loadUnderLease(String setKeyName, Object requestKey, Function<Object, Object> loader) {
+		RACacheSet set = getOrCreateActiveSet(setKeyName);
+		FileLock lease = set.acquireLoadLease(RACacheKey.hash(requestKey), computeLeaseMaxWait);
+		try{
+			//whoever had the lease before us has probably just put it there,
+			// or another thread here finished just before we started. The sync policy
+			// might not look at the file for a while, so make sure we have what they put.
+			set.fastSync();
+			Object object = get(setKeyName, requestKey);
+			if(object != null)
+				return object;
+			
+			object = loader.apply(requestKey);
+			if(object != null){
+				set.put(requestKey, object);
+				set.flush(); //has to be in the file before anyone else looks
+			}
+			return object;
+			
+		}finally{
+			set.releaseLoadLease(lease);
+		}
+	}
+	
+	/** Puts all the entries into the set of the active tag, in one batch. See RACacheSet.putAll() */
+	@Override
+	public void putAll(String setKeyName, Map<?, ?> entries) {
+		if(cacheMode == CacheService.CACHEMODE_OFF ||
+				cacheMode == CacheService.CACHEMODE_READONLY || entries.isEmpty())
+			return;
+		
+		getOrCreateActiveSet(setKeyName).putAll(entries);
+		quota.check();
+	}
+	
+	/** Finds the set for the given set name under the active tag, making it if necessary */
+	private RACacheSet getOrCreateActiveSet(String setKeyName) {
+		RACacheSet set = findActiveSet(setKeyName);
+		if(set != null)
+			return set;
+		
+		synchronized (this) {
+			//someone else might have made it while we were looking
+			set = findActiveSet(setKeyName);
+			if(set == null){
+				//now we need to make a new set
+				set = makeSet(setKeyName, tagName);
+				addSetToList(setKeyName, set);
+			}
+			return set;
+		}
+	}
+	
+	/** @return A new RACacheSet, or RACacheSegmentedSet if it is one on disk, or will be (see RACacheSegmentedSet.isSegmented()) */
+	private RACacheSet makeSet(String setKeyName, String tagName){
+		if(RACacheSegmentedSet.isSegmented(cacheName, setKeyName, tagName))
+			return new RACacheSegmentedSet(cacheName, setKeyName, tagName);
+		return new RACacheSet(cacheName, setKeyName, tagName);
+	}
+	
+	private RACacheSet findActiveSet(String setKeyName) {
 		//now find the list of sets matching sets
-		RACacheSet[] matchingSets = sets.get(setKeyName);
+		RACacheSet[] matchingSets = getSets(setKeyName);
 		
 		//scan the sets
 		if (matchingSets != null) {
@@ -191,24 +521,28 @@ public class RACache implements Cache {
 				// one
 				if ((tagName == null && set.getTagName() == null)
 						|| (tagName != null && tagName.equals(set.getTagName()))) {
-
-					set.put(requestKey, object); // add it
-					return; // and we're done
+					return set;
 				}
 			}
 		}
-		
-		//now we need to make a new set
-		RACacheSet newSet = new RACacheSet(cacheName, setKeyName, tagName);
-		
-		newSet.put(requestKey, object); //and add it
-		
-		addSetToList(setKeyName, newSet);
+		return null;
 	}
 
 	/** Adds the given RandomAccessCacheSet to the relevant set list */
-	private void addSetToList(String setName, RACacheSet newSet){
+	private synchronized void addSetToList(String setName, RACacheSet newSet){
 		RACacheSet[] matchingSets = sets.get(setName);
+		
+		if(writeBehind != null)
+			newSet.setWriteBehind(writeBehind);
+		newSet.setHotTier(hotTier);
+		newSet.setOffHeapTier(offHeapTier);
+		if(RACacheMetrics.jmxPerSet){
+			ObjectName name = RACacheMetrics.registerMBean("type=RACacheSet,cache=" + ObjectName.quote(cacheName) + 
+					",set=" + ObjectName.quote(setName) + (newSet.getTagName() != null ? ",tag=" + ObjectName.quote(newSet.getTagName()) : ""),
+					newSet, RACacheSet::getMetrics);
+			if(name != null)
+				setMBeans.put(newSet, name);
+		}
 
 		if (matchingSets != null) {
 			RACacheSet tmp[] = new RACacheSet[matchingSets.length + 1];
@@ -223,13 +557,132 @@ public class RACache implements Cache {
 	
 	@Override
 	public void organise(String setKeyName) {
-		RACacheSet matchingSets[] = sets.get(setKeyName);
+		RACacheSet matchingSets[] = getSets(setKeyName);
+		if(matchingSets == null)
+			return;
 		for(RACacheSet set : matchingSets){
 			// a full object integrity check is REALLY slow, so has to be explicit
 			set.cleanCache(false);
 		}
 	}
 	
+	/** Does the get() on the RACacheService I/O threads */
+	@Override
+	public CompletableFuture<Object> getAsync(String setKeyName, Object requestKey) {
+		if(cacheMode == CacheService.CACHEMODE_OFF ||
+				cacheMode == CacheService.CACHEMODE_UPDATE)
+			return CompletableFuture.completedFuture(null);
+		
+		return CompletableFuture.supplyAsync(() -> get(setKeyName, requestKey), RACacheService.ioExecutor());
+	}
+	
+	/** Does the put() on the RACacheService I/O threads, into the set of the tag active now */
+	@Override
+	public CompletableFuture<Void> putAsync(String setKeyName, Object requestKey, Object object) {
+		if(cacheMode == CacheService.CACHEMODE_OFF ||
+				cacheMode == CacheService.CACHEMODE_READONLY)
+			return CompletableFuture.completedFuture(null);
+		
+		RACacheSet set = getOrCreateActiveSet(setKeyName);
+		CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
+			set.put(requestKey, object);
+			quota.check();
+		}, RACacheService.ioExecutor());
+		pendingPuts.add(future);
+		future.whenComplete((r, e) -> pendingPuts.remove(future));
+		return future;
+	}
+	
+	/** Does the organise() on the RACacheService I/O threads */
+	@Override
+	public CompletableFuture<Void> organiseAsync(String setKeyName) {
+		return CompletableFuture.runAsync(() -> organise(setKeyName), RACacheService.ioExecutor());
+	}
+	
+	/** Catches up all our sets that are open with their files. Ones that aren't will read everything when they are. */
+	public void fastSync() {
+		for(RACacheSet[] matchingSets : sets.values())
+			for(RACacheSet set : matchingSets)
+				if(set.isOpen())
+					set.fastSync();
+	}
+	
+	@Override
+	public void flush() {
+		//the putAsync()s first, since they might just be going into the write-behind queue
+		for(CompletableFuture<Void> future : pendingPuts)
+			future.exceptionally(e -> null).join();
+		
+		//and then to the disk, whatever the fsync policy
+		for(RACacheSet[] matchingSets : sets.values())
+			for(RACacheSet set : matchingSets){
+				set.flush();
+				set.forceFile();
+			}
+	}
+	
+	/** Switches write-behind mode (see RACacheSet) for all sets in this cache, now and later */
+	public synchronized void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+		for(RACacheSet[] matchingSets : sets.values())
+			for(RACacheSet set : matchingSets)
+				set.setWriteBehind(writeBehind);
+	}
+	
+	/** Adds up the RACacheMetrics of all the sets that have been used, and adds the sizes
+	 * of the tiers and how many sets there are. Sets thrown away by emptyAllSets() take their counts with them. */
+	@Override
+	public Map<String, Long> getMetrics() {
+		ArrayList<RACacheMetrics> all = new ArrayList<>();
+		long nSets = 0, nOpen = 0;
+		for(RACacheSet[] matchingSets : sets.values()){
+			for(RACacheSet set : matchingSets){
+				all.add(set.metrics());
+				nSets++;
+				if(set.isOpen())
+					nOpen++;
+			}
+		}
+		
+		Map<String, Long> metrics = RACacheMetrics.snapshot(all);
+		metrics.put("sets", nSets);
+		metrics.put("openSets", nOpen);
+		metrics.put("unusedSetNames", (long)unopenedSets.size());
+		metrics.put("hotTierBytes", hotTier.getBytes()); //of all the caches, if it's the shared one
+		metrics.put("hotTierObjects", (long)hotTier.getCount());
+		RACacheOffHeapTier offHeapTier = this.offHeapTier;
+		if(offHeapTier != null){
+			metrics.put("offHeapBytes", offHeapTier.getBytes());
+			metrics.put("offHeapPackages", (long)offHeapTier.getCount());
+		}
+		return metrics;
+	}
+	
+	/** The tier of strong references to objects used by all sets of this cache, and maybe other caches too */
+	public RACacheHotTier getHotTier() { return hotTier; }
+	
+	/** Changes the byte budget of the hot tier, which is that of all the caches using the shared one.
+	 * 0 to effectively turn it off */
+	public void setHotTierMaxBytes(long maxBytes) { hotTier.setMaxBytes(maxBytes); }
+	
+	/** The off-heap tier shared by all sets of this cache, or null if it's off */
+	public RACacheOffHeapTier getOffHeapTier() { return offHeapTier; }
+	
+	/** Changes the byte budget of the off-heap tier, making it if it was off. 0 to stop using it */
+	public synchronized void setOffHeapMaxBytes(long maxBytes) {
+		if(offHeapTier == null){
+			if(maxBytes <= 0)
+				return;
+			offHeapTier = new RACacheOffHeapTier(maxBytes, 
+						Integer.parseInt(RACacheService.getCacheSetting(cacheName, "minerva.cache.offHeapBlockSize", "4096")));
+			for(RACacheSet[] matchingSets : sets.values())
+				for(RACacheSet set : matchingSets)
+					set.setOffHeapTier(offHeapTier);
+		}else{
+			offHeapTier.setMaxBytes(maxBytes);
+		}
+	}
+	
 	/** Obviously named setters/getters */
 	@Override
 	public int getCacheMode() { return this.cacheMode; }
@@ -259,7 +712,7 @@ public class RACache implements Cache {
 	
 	/** Calls RACacheSet.cleanCache() for all sets with the given set name */
 	public void cleanAllSets(String setName, boolean checkObjectPackageIntegrity) {
-		RACacheSet[] matchingSets = sets.get(setName);
+		RACacheSet[] matchingSets = getSets(setName);
 		if (matchingSets != null)
 			for (RACacheSet set : matchingSets)
 				set.cleanCache(checkObjectPackageIntegrity);
@@ -270,11 +723,12 @@ public class RACache implements Cache {
 	 * setName. The files are left empty but not actually deleted (16 bytes)
 	 */
 	public void emptyAllSets(String setName) {
-		RACacheSet[] matchingSets = sets.get(setName);
+		RACacheSet[] matchingSets = getSets(setName);
 		if (matchingSets != null)
 			for (RACacheSet set : matchingSets) {
 				set.emptyFile();
+				RACacheMetrics.unregisterMBean(setMBeans.remove(set));
 			}
-		sets.put(setName, null);
+		sets.remove(setName);
 	}
 }
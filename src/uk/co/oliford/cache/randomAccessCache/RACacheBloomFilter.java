@@ -0,0 +1,112 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.nio.ByteBuffer;
+
+/** Bloom filter of the request key hashes in an RACacheSet, so that RACache
+ * can skip sets that definitely don't have a key without looking in them.
+ *
+ * It works on the same 32-bit hash as the index (RACacheKey.hash()), which is all
+ * we have for entries without loading their keys, so keys with the same hash always
+ * look present. Removed entries stay in it until it's rebuilt.
+ *
+ * Sized for about 10 bits per entry and 7 probes, which is around 1% false positives
+ * when full. Once more than the capacity has been added, isFull() says so, and the owner
+ * should make a bigger one.
+ *
+ * add() and mightContain() can be called at the same time, but a key being added
+ * at the time might not be seen yet.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheBloomFilter {
+
+	private static final int bitsPerEntry = 10;
+	private static final int defaultProbes = 7;
+
+	private final long bits[];
+	private final int mask;
+	private final int nProbes;
+	private final long capacity;
+	private long nAdded;
+
+	/** @param capacity Number of entries it should hold before it's considered full */
+	public RACacheBloomFilter(long capacity) {
+		long nBits = Math.max(64, capacity * bitsPerEntry);
+		nBits = Math.min(1L << 31, Long.highestOneBit(nBits - 1) << 1);
+		this.bits = new long[(int)(nBits / 64)];
+		this.mask = (int)(nBits - 1);
+		this.nProbes = defaultProbes;
+		this.capacity = capacity;
+	}
+
+	private RACacheBloomFilter(long bits[], int nProbes, long nAdded) {
+		this.bits = bits;
+		this.mask = bits.length * 64 - 1;
+		this.nProbes = nProbes;
+		this.capacity = (long)bits.length * 64 / bitsPerEntry;
+		this.nAdded = nAdded;
+	}
+
+	/** Mixes the (often small) key hash into two independent probe hashes */
+	private static long mix(int hash){
+		long h = hash * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		h *= 0xBF58476D1CE4E5B9L;
+		h ^= h >>> 29;
+		return h;
+	}
+
+	public void add(int hash){
+		long h = mix(hash);
+		int h1 = (int)h;
+		int h2 = (int)(h >>> 32) | 1;
+		for(int i=0; i < nProbes; i++){
+			int bit = (h1 + i * h2) & mask;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+		nAdded++;
+	}
+
+	/** @return false if nothing with the given hash was ever added */
+	public boolean mightContain(int hash){
+		long h = mix(hash);
+		int h1 = (int)h;
+		int h2 = (int)(h >>> 32) | 1;
+		for(int i=0; i < nProbes; i++){
+			int bit = (h1 + i * h2) & mask;
+			if((bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** @return true if more has been added than it was sized for */
+	public boolean isFull(){ return nAdded > capacity; }
+
+	public long getNAdded(){ return nAdded; }
+
+	/** @return Size when written by write() */
+	public int serialisedSize(){ return 4 + 8 + 4 + 8 * bits.length; }
+
+	/** Writes as: x4 number of probes, x8 number added, x4 number of longs, then the bits */
+	public void write(ByteBuffer buf){
+		buf.putInt(nProbes);
+		buf.putLong(nAdded);
+		buf.putInt(bits.length);
+		buf.asLongBuffer().put(bits);
+		buf.position(buf.position() + 8 * bits.length);
+	}
+
+	/** Reads back what write() wrote, or returns null if it doesn't make sense */
+	public static RACacheBloomFilter read(ByteBuffer buf){
+		int nProbes = buf.getInt();
+		long nAdded = buf.getLong();
+		int nLongs = buf.getInt();
+		if(nProbes < 1 || nProbes > 32 || nLongs < 1 || Integer.bitCount(nLongs) != 1 || buf.remaining() < 8L * nLongs)
+			return null;
+		long bits[] = new long[nLongs];
+		buf.asLongBuffer().get(bits);
+		buf.position(buf.position() + 8 * nLongs);
+		return new RACacheBloomFilter(bits, nProbes, nAdded);
+	}
+}
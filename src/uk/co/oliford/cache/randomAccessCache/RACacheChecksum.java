@@ -0,0 +1,18 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/** CRC32C (Castagnoli) checksums of the entries in RACacheSet files (version 4 onwards).
+ *
+ * This uses java.util.zip.CRC32C, which the JIT turns into the CPU's CRC instructions.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheChecksum {
+
+	/** @return A new CRC32C */
+	public static Checksum create(){
+		return new CRC32C();
+	}
+}
@@ -0,0 +1,36 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Converts request keys or cached objects to and from the packages stored
+ * in RACacheSet files, without going through Java serialisation.
+ *
+ * Each package written by a codec starts with its codec ID byte, so the
+ * codec must be registered with RACacheCodecs in any VM that reads the file.
+ *
+ * Decoding must give back an object of exactly the same class, that is
+ * deepEquals() to the original, since request keys are matched that way.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public interface RACacheCodec {
+
+	/** Identifier written as the first byte of each package. Must be unique among
+	 * the registered codecs, and not 0xAC, which starts a Java serialisation stream.
+	 * IDs below 16 are used by the built-in codecs. */
+	public byte getCodecID();
+
+	/** @return true if this codec can encode the given object exactly */
+	public boolean canEncode(Object obj);
+
+	/** @return Size, in bytes, that encode() will write for this object */
+	public int encodedSize(Object obj);
+
+	/** Writes the object into the buffer, which has at least encodedSize() bytes remaining */
+	public void encode(Object obj, ByteBuffer buf);
+
+	/** Reads back an object written by encode(), from the buffer's position (after the codec ID) */
+	public Object decode(ByteBuffer buf) throws IOException;
+
+}
@@ -0,0 +1,171 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import uk.co.oliford.jolu.SettingsManager;
+
+/** Registry of the RACacheCodecs used to turn keys and objects into packages
+ * for RACacheSet files, with Java serialisation as the fallback.
+ *
+ * A codec is chosen for each object by, in order:
+ *  1) The codec set for the cache name with setCodecForCache(), if it can encode the object.
+ *  2) The codec set for the object's class with setCodecForClass().
+ *  3) The first registered codec that can encode it (the built-in ones
+ *     do primitive arrays and simple key values).
+ *  4) Java serialisation.
+ *
+ * Packages from a codec start with its ID byte. Java serialised packages
+ * start with the serialisation stream magic (0xACED), which is how we can still
+ * read files written before the codecs existed.
+ *
+ * Set minerva.cache.useCodecs=false to write everything with Java serialisation,
+ * e.g. if older code needs to read the files. Entries added to version 1 files, which
+ * older code might be reading, are Java serialised anyway (see RACacheSet).
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheCodecs {
+
+	/** First byte of a Java serialisation stream, so can't be a codec ID */
+	public static final byte JAVA_SERIALISATION_MAGIC = (byte)0xAC;
+
+	private static final boolean useCodecs = Boolean.parseBoolean(SettingsManager.defaultGlobal().getProperty("minerva.cache.useCodecs", "true"));
+
+	private static final RACacheCodec codecsByID[] = new RACacheCodec[256];
+
+	/** Codecs to try for automatic selection, in order */
+	private static final CopyOnWriteArrayList<RACacheCodec> codecs = new CopyOnWriteArrayList<>();
+
+	private static final ConcurrentHashMap<String, RACacheCodec> cacheCodecs = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<Class<?>, RACacheCodec> classCodecs = new ConcurrentHashMap<>();
+
+	static {
+		register(new RACachePrimitiveArrayCodec());
+		register(new RACacheSimpleValueCodec());
+	}
+
+	/** Makes a codec available for decoding, and for automatic selection when encoding. */
+	public static synchronized void register(RACacheCodec codec){
+		byte id = codec.getCodecID();
+		if(id == JAVA_SERIALISATION_MAGIC)
+			throw new IllegalArgumentException("Codec ID 0xAC is reserved for Java serialisation");
+
+		RACacheCodec existing = codecsByID[id & 0xFF];
+		if(existing != null){
+			if(existing.getClass() == codec.getClass())
+				return; //already have it
+			throw new IllegalArgumentException("Codec ID " + id + " is already used by " + existing.getClass().getName());
+		}
+
+		codecsByID[id & 0xFF] = codec;
+		codecs.add(codec);
+	}
+
+	/** Use the given codec for everything in the given cache that it can encode. null to clear. */
+	public static void setCodecForCache(String cacheName, RACacheCodec codec){
+		if(codec == null){
+			cacheCodecs.remove(cacheName);
+			return;
+		}
+		register(codec);
+		cacheCodecs.put(cacheName, codec);
+	}
+
+	/** Use the given codec for all objects of exactly the given class. null to clear. */
+	public static void setCodecForClass(Class<?> cls, RACacheCodec codec){
+		if(codec == null){
+			classCodecs.remove(cls);
+			return;
+		}
+		register(codec);
+		classCodecs.put(cls, codec);
+	}
+
+	/** @return The codec that would be used for the given object in the given cache, or null for Java serialisation */
+	public static RACacheCodec selectCodec(String cacheName, Object obj){
+		if(!useCodecs || obj == null)
+			return null;
+
+		if(cacheName != null){
+			RACacheCodec codec = cacheCodecs.get(cacheName);
+			if(codec != null && codec.canEncode(obj))
+				return codec;
+		}
+
+		RACacheCodec codec = classCodecs.get(obj.getClass());
+		if(codec != null && codec.canEncode(obj))
+			return codec;
+
+		for(RACacheCodec c : codecs){
+			if(c.canEncode(obj))
+				return c;
+		}
+		return null;
+	}
+
+	/** Turns the object into a package for the given cache */
+	public static byte[] encode(String cacheName, Object obj) throws IOException {
+		RACacheCodec codec = selectCodec(cacheName, obj);
+		if(codec == null)
+			return javaSerialise(obj);
+
+		byte data[] = new byte[1 + codec.encodedSize(obj)];
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.put(codec.getCodecID());
+		codec.encode(obj, buf);
+		if(buf.hasRemaining())
+			throw new IOException("Codec " + codec.getClass().getName() + " wrote " + buf.position() + " bytes but claimed " + data.length);
+		return data;
+	}
+
+	/** Turns a package back into the object */
+	public static Object decode(byte data[]) throws IOException, ClassNotFoundException {
+		return decode(data, null);
+	}
+
+	/** Turns a package back into the object, with the given filter (if not null) on the classes
+	 * of Java serialised packages, for packages from somewhere that isn't trusted. */
+	public static Object decode(byte data[], ObjectInputFilter javaFilter) throws IOException, ClassNotFoundException {
+		if(data.length == 0)
+			throw new IOException("Empty cache package");
+
+		if(data[0] == JAVA_SERIALISATION_MAGIC)
+			return javaDeserialise(data, javaFilter);
+
+		RACacheCodec codec = codecsByID[data[0] & 0xFF];
+		if(codec == null)
+			throw new IOException("Cache package has codec ID " + data[0] + ", which isn't registered in this VM");
+
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.position(1);
+		return codec.decode(buf);
+	}
+
+	public static byte[] javaSerialise(Object obj) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ObjectOutputStream oout = new ObjectOutputStream(bout);
+		oout.writeObject(obj);
+		oout.flush();
+		return bout.toByteArray();
+	}
+
+	public static Object javaDeserialise(byte data[]) throws IOException, ClassNotFoundException {
+		return javaDeserialise(data, null);
+	}
+
+	public static Object javaDeserialise(byte data[], ObjectInputFilter filter) throws IOException, ClassNotFoundException {
+		ByteArrayInputStream bin = new ByteArrayInputStream(data);
+		ObjectInputStream oin = new ObjectInputStream(bin);
+		if(filter != null)
+			oin.setObjectInputFilter(filter);
+		return oin.readObject();
+	}
+}
@@ -0,0 +1,423 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Per-entry compression of object packages in RACacheSet files (version 2 onwards).
+ *
+ * The method and filter are recorded in the flags byte of each entry header:
+ *   bits 0-3: METHOD_xxxx
+ *   bit 4: FLAG_WORD_FILTER, the 8-byte element data of a double[] (or long[]) package
+ *          from RACachePrimitiveArrayCodec was delta coded and byte shuffled before compression.
+ *
+ * A compressed package is an integer size of the original package, then the compressed data.
+ *
+ * METHOD_LZ is a simple LZ77 in the style of LZ4's block format, much faster than
+ * deflate in both directions, but not as small.
+ *
+ * Run main() to check that everything comes back the same through each method, after
+ * changing any of this.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheCompression {
+
+	public static final int METHOD_NONE = 0;
+	public static final int METHOD_DEFLATE = 1;
+	public static final int METHOD_LZ = 2;
+
+	public static final int METHOD_MASK = 0x0F;
+	public static final int FLAG_WORD_FILTER = 0x10;
+
+	/** @return The METHOD_xxxx from the name used in the settings ('none', 'deflate' or 'lz') */
+	public static int methodFromName(String name){
+		switch(name.trim().toLowerCase()){
+			case "none": case "": return METHOD_NONE;
+			case "deflate": case "zip": return METHOD_DEFLATE;
+			case "lz": case "lz4": return METHOD_LZ;
+			default:
+				System.err.println("WARNING: Unknown cache compression method '" + name + "', not compressing.");
+				return METHOD_NONE;
+		}
+	}
+
+	/** @return The flags for the entry header that compress() will use for this package */
+	public static int compressionFlags(byte pkg[], int method){
+		if(method == METHOD_NONE)
+			return 0;
+		int wordOffset = RACachePrimitiveArrayCodec.wordDataOffset(pkg);
+		return method | ((wordOffset >= 0 && (pkg.length - wordOffset) >= 16) ? FLAG_WORD_FILTER : 0);
+	}
+	
+	/** Compresses the package, if it's worth it.
+	 * @param pkg	Object package from RACacheCodecs
+	 * @param flags	From compressionFlags()
+	 * @param level	Deflater level, for METHOD_DEFLATE
+	 * @return The compressed package, or null if it shouldn't be compressed (i.e. it didn't get any smaller)
+	 */
+	public static byte[] compress(byte pkg[], int flags, int level){
+		int method = flags & METHOD_MASK;
+		if(method == METHOD_NONE)
+			return null;
+
+		byte input[] = pkg;
+		if((flags & FLAG_WORD_FILTER) != 0){
+			input = pkg.clone();
+			wordFilter(input, RACachePrimitiveArrayCodec.wordDataOffset(pkg));
+		}
+
+		//leave space for the size at the start
+		byte out[];
+		int outLen;
+		if(method == METHOD_DEFLATE){
+			Deflater deflater = new Deflater(level);
+			try{
+				deflater.setInput(input);
+				deflater.finish();
+				out = new byte[4 + input.length];
+				outLen = 4;
+				while(!deflater.finished()){
+					if(outLen == out.length)
+						return null; //bigger than the original
+					outLen += deflater.deflate(out, outLen, out.length - outLen);
+				}
+			}finally{
+				deflater.end();
+			}
+		}else if(method == METHOD_LZ){
+			out = new byte[4 + lzMaxCompressedSize(input.length)];
+			outLen = 4 + lzCompress(input, out, 4);
+		}else{
+			throw new IllegalArgumentException("Unknown compression method " + method);
+		}
+
+		if(outLen >= pkg.length)
+			return null;
+
+		ByteBuffer.wrap(out, 0, 4).putInt(pkg.length);
+		return Arrays.copyOf(out, outLen);
+	}
+
+	/** Reverses compress(), given the flags from the entry header and the stored data */
+	public static byte[] decompress(byte stored[], int flags) throws IOException {
+		int method = flags & METHOD_MASK;
+		if(method == METHOD_NONE)
+			return stored;
+
+		int rawLen = ByteBuffer.wrap(stored, 0, 4).getInt();
+		byte raw[] = new byte[rawLen];
+
+		if(method == METHOD_DEFLATE){
+			Inflater inflater = new Inflater();
+			try{
+				inflater.setInput(stored, 4, stored.length - 4);
+				int n = 0;
+				while(n < rawLen){
+					int got = inflater.inflate(raw, n, rawLen - n);
+					if(got == 0 && (inflater.finished() || inflater.needsInput()))
+						throw new IOException("Deflated cache package is truncated");
+					n += got;
+				}
+			}catch(DataFormatException e){
+				throw new IOException("Deflated cache package is corrupt", e);
+			}finally{
+				inflater.end();
+			}
+		}else if(method == METHOD_LZ){
+			lzDecompress(stored, 4, stored.length, raw);
+		}else{
+			throw new IOException("Unknown compression method " + method + " in cache entry");
+		}
+
+		if((flags & FLAG_WORD_FILTER) != 0){
+			int wordOffset = RACachePrimitiveArrayCodec.wordDataOffset(raw);
+			if(wordOffset < 0)
+				throw new IOException("Cache entry is flagged as word filtered, but isn't a suitable package");
+			wordUnfilter(raw, wordOffset);
+		}
+		return raw;
+	}
+
+	/** Delta codes the 8-byte big-endian words from offset on, then shuffles them into
+	 * byte planes. Smooth doubles have very similar high bytes, so this leaves long runs
+	 * of zeros for the compressor. */
+	static void wordFilter(byte data[], int offset){
+		ByteBuffer buf = ByteBuffer.wrap(data, offset, data.length - offset).slice();
+		int nWords = buf.remaining() / 8;
+
+		long prev = 0;
+		for(int i=0; i < nWords; i++){
+			long w = buf.getLong(i * 8);
+			buf.putLong(i * 8, w - prev);
+			prev = w;
+		}
+
+		byte tmp[] = Arrays.copyOfRange(data, offset, offset + nWords * 8);
+		for(int i=0; i < nWords; i++)
+			for(int b=0; b < 8; b++)
+				data[offset + b * nWords + i] = tmp[i * 8 + b];
+	}
+
+	static void wordUnfilter(byte data[], int offset){
+		int nWords = (data.length - offset) / 8;
+
+		byte tmp[] = Arrays.copyOfRange(data, offset, offset + nWords * 8);
+		for(int i=0; i < nWords; i++)
+			for(int b=0; b < 8; b++)
+				data[offset + i * 8 + b] = tmp[b * nWords + i];
+
+		ByteBuffer buf = ByteBuffer.wrap(data, offset, data.length - offset).slice();
+		long prev = 0;
+		for(int i=0; i < nWords; i++){
+			prev += buf.getLong(i * 8);
+			buf.putLong(i * 8, prev);
+		}
+	}
+
+	private static final int lzHashBits = 14;
+	private static final int lzMinMatch = 4;
+	private static final int lzMaxOffset = 65535;
+
+	static int lzMaxCompressedSize(int len){
+		return len + len / 255 + 16;
+	}
+
+	private static int readInt(byte a[], int i){
+		return (a[i] & 0xFF) | (a[i+1] & 0xFF) << 8 | (a[i+2] & 0xFF) << 16 | (a[i+3] & 0xFF) << 24;
+	}
+
+	/** Each sequence is a token (literal length << 4 | match length - 4), any extra
+	 * literal length bytes, the literals, a 2 byte offset, then any extra match length bytes.
+	 * The last sequence has only literals. Lengths of 15 or more continue in bytes of 255.
+	 * @return Number of bytes written to out from outPos */
+	static int lzCompress(byte src[], byte out[], int outPos){
+		int table[] = new int[1 << lzHashBits];
+		Arrays.fill(table, -1);
+
+		int op = outPos;
+		int anchor = 0;
+		int ip = 0;
+		int limit = src.length - lzMinMatch;
+
+		while(ip <= limit){
+			int seq = readInt(src, ip);
+			int h = (seq * 0x9E3779B1) >>> (32 - lzHashBits);
+			int ref = table[h];
+			table[h] = ip;
+
+			if(ref < 0 || (ip - ref) > lzMaxOffset || readInt(src, ref) != seq){
+				ip++;
+				continue;
+			}
+
+			int matchLen = lzMinMatch;
+			while(ip + matchLen < src.length && src[ref + matchLen] == src[ip + matchLen])
+				matchLen++;
+
+			op = lzWriteSequence(src, anchor, ip - anchor, out, op, ip - ref, matchLen);
+			ip += matchLen;
+			anchor = ip;
+		}
+
+		op = lzWriteSequence(src, anchor, src.length - anchor, out, op, 0, 0);
+		return op - outPos;
+	}
+
+	private static int lzWriteSequence(byte src[], int litStart, int litLen, byte out[], int op, int offset, int matchLen){
+		int tokenPos = op++;
+		int litNibble = Math.min(litLen, 15);
+		int matchNibble = (matchLen == 0) ? 0 : Math.min(matchLen - lzMinMatch, 15);
+		out[tokenPos] = (byte)(litNibble << 4 | matchNibble);
+
+		if(litLen >= 15)
+			op = lzWriteLength(out, op, litLen - 15);
+		System.arraycopy(src, litStart, out, op, litLen);
+		op += litLen;
+
+		if(matchLen == 0)
+			return op; //last one
+
+		out[op++] = (byte)offset;
+		out[op++] = (byte)(offset >>> 8);
+		if(matchLen - lzMinMatch >= 15)
+			op = lzWriteLength(out, op, matchLen - lzMinMatch - 15);
+		return op;
+	}
+
+	private static int lzWriteLength(byte out[], int op, int len){
+		while(len >= 255){
+			out[op++] = (byte)255;
+			len -= 255;
+		}
+		out[op++] = (byte)len;
+		return op;
+	}
+
+	static void lzDecompress(byte in[], int ip, int end, byte out[]) throws IOException {
+		int op = 0;
+		try{
+			while(ip < end){
+				int token = in[ip++] & 0xFF;
+
+				int litLen = token >>> 4;
+				if(litLen == 15){
+					int b;
+					do{
+						if(ip >= end)
+							throw new IOException("Corrupt LZ cache package, literal length runs past the end");
+						b = in[ip++] & 0xFF;
+						litLen += b;
+					}while(b == 255);
+				}
+				if(litLen > end - ip)
+					throw new IOException("Corrupt LZ cache package, literals run past the end");
+				System.arraycopy(in, ip, out, op, litLen);
+				ip += litLen;
+				op += litLen;
+
+				if(ip >= end)
+					break; //last sequence
+
+				if(end - ip < 2)
+					throw new IOException("Corrupt LZ cache package, offset runs past the end");
+				int offset = (in[ip] & 0xFF) | (in[ip+1] & 0xFF) << 8;
+				ip += 2;
+				int matchLen = (token & 0x0F);
+				if(matchLen == 15){
+					int b;
+					do{
+						if(ip >= end)
+							throw new IOException("Corrupt LZ cache package, match length runs past the end");
+						b = in[ip++] & 0xFF;
+						matchLen += b;
+					}while(b == 255);
+				}
+				matchLen += lzMinMatch;
+
+				int ref = op - offset;
+				if(offset == 0 || ref < 0)
+					throw new IOException("Corrupt LZ cache package, bad offset " + offset);
+				//may overlap, so byte by byte
+				for(int i=0; i < matchLen; i++)
+					out[op + i] = out[ref + i];
+				op += matchLen;
+			}
+		}catch(IndexOutOfBoundsException e){
+			throw new IOException("Corrupt LZ cache package", e);
+		}
+		if(op != out.length)
+			throw new IOException("LZ cache package decompressed to " + op + " bytes, but should be " + out.length);
+	}
+
+	/** Round trips lots of awkward packages through each method, with and without the word
+	 * filter, and through lzCompress() directly (since compress() gives up on anything that
+	 * doesn't shrink). Also checks that truncated LZ data is an IOException, not something worse.
+	 * Exits with 1 if anything didn't come back the same. */
+	public static void main(String[] args) throws IOException {
+		Random randGen = new Random((args.length > 0) ? Long.parseLong(args[0]) : 1);
+		List<byte[]> pkgs = new ArrayList<>();
+
+		//every short length, random and all the same
+		for(int len=0; len < 300; len++){
+			byte random[] = new byte[len];
+			randGen.nextBytes(random);
+			pkgs.add(random);
+			byte same[] = new byte[len];
+			Arrays.fill(same, (byte)7);
+			pkgs.add(same);
+		}
+
+		//long literal runs and long matches, either side of the 15 and 255 length steps
+		for(int len : new int[]{ 14, 15, 16, 18, 19, 20, 269, 270, 271, 274, 275, 525, 526, 100000 }){
+			byte data[] = new byte[2 * len + 8];
+			byte lit[] = new byte[len];
+			randGen.nextBytes(lit);
+			System.arraycopy(lit, 0, data, 0, len);
+			System.arraycopy(lit, 0, data, len, len);
+			pkgs.add(data);
+		}
+
+		//matches right at the maximum offset and just beyond it
+		for(int offset : new int[]{ lzMaxOffset - 1, lzMaxOffset, lzMaxOffset + 1 }){
+			byte data[] = new byte[offset + 64];
+			randGen.nextBytes(data);
+			System.arraycopy(data, 0, data, offset, 64);
+			pkgs.add(data);
+		}
+
+		//text-like, with a small alphabet so there are lots of short matches
+		for(int n=0; n < 50; n++){
+			byte data[] = new byte[randGen.nextInt(20000)];
+			for(int i=0; i < data.length; i++)
+				data[i] = (byte)('a' + randGen.nextInt(1 + n % 8));
+			pkgs.add(data);
+		}
+
+		//double[] packages, for the word filter, smooth and noisy
+		for(int n=0; n < 50; n++){
+			double d[] = new double[randGen.nextInt(5000)];
+			for(int i=0; i < d.length; i++)
+				d[i] = (n % 2 == 0) ? Math.sin(i * 0.01) * n : randGen.nextGaussian();
+			pkgs.add(RACacheCodecs.encode(null, d));
+		}
+
+		int nChecked = 0, nFailed = 0;
+		for(byte pkg[] : pkgs){
+			byte lz[] = new byte[lzMaxCompressedSize(pkg.length)];
+			int lzLen = lzCompress(pkg, lz, 0);
+			byte raw[] = new byte[pkg.length];
+			try{
+				lzDecompress(lz, 0, lzLen, raw);
+			}catch(IOException e){
+				raw = null;
+			}
+			nChecked++;
+			if(!Arrays.equals(pkg, raw)){
+				System.err.println("FAILED: lzCompress() of " + pkg.length + " bytes didn't come back the same");
+				nFailed++;
+			}
+
+			//cutting it short has to be noticed (the last sequence can be empty, so losing only that is fine)
+			if(lzLen > 1){
+				byte cut[] = new byte[pkg.length];
+				try{
+					lzDecompress(lz, 0, lzLen - 1 - randGen.nextInt(lzLen - 1), cut);
+					if(!Arrays.equals(pkg, cut)){
+						System.err.println("FAILED: Truncated LZ data of " + pkg.length + " bytes wasn't noticed");
+						nFailed++;
+					}
+				}catch(IOException e){ }
+				nChecked++;
+			}
+
+			for(int method : new int[]{ METHOD_LZ, METHOD_DEFLATE }){
+				for(int flags : new int[]{ method, compressionFlags(pkg, method) }){
+					byte stored[] = compress(pkg, flags, 1);
+					if(stored == null)
+						continue; //wasn't worth it
+					byte back[];
+					try{
+						back = decompress(stored, flags);
+					}catch(IOException e){
+						back = null;
+					}
+					nChecked++;
+					if(!Arrays.equals(pkg, back)){
+						System.err.println("FAILED: compress() with flags 0x" + Integer.toHexString(flags) + " of " + pkg.length + " bytes didn't come back the same");
+						nFailed++;
+					}
+				}
+			}
+		}
+
+		System.out.println("RACacheCompression: " + nChecked + " round trips of " + pkgs.size() + " packages, " + nFailed + " failed.");
+		System.exit((nFailed > 0) ? 1 : 0);
+	}
+}
@@ -2,16 +2,17 @@ package uk.co.oliford.cache.randomAccessCache;
 
 import java.lang.ref.SoftReference;
 
-/** A entry into the memory cache HashMap inside RandomAccessCacheSet */
+/** The in memory parts of an entry in RACacheSet, made by RACacheIndex once the entry has been touched */
 public class RACacheEntry {
 	
 	protected RACacheEntry(){ }
 	
-	/** The actual object data, if we have already loaded it, maybe */
-	SoftReference<Object> objectRef;
+	/** The actual object data, if we have already loaded it, maybe.
+	 * Volatile since readers fill this in under only the read lock. */
+	volatile SoftReference<Object> objectRef;
 	
 	/** The real request key object, if we loaded it */
-	SoftReference<Object> keyRef;
+	volatile SoftReference<Object> keyRef;
 	
 	/** position in bytes into the file of this entry (if the file hasn't been reorganized)*/
 	public long entryHeaderPos;
@@ -22,8 +23,5 @@ public class RACacheEntry {
 	/** Size, in bytes on disk, of the object serialized package */ 
 	public int objectPackageSize; 
 	
-	/** For chaining entries with colliding hashes */
-	public RACacheEntry nextEntry;
-	
 }
 
@@ -0,0 +1,349 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+import uk.co.oliford.jolu.SettingsManager;
+
+/** Size bounded tier of strong references to loaded objects, so that the hottest objects
+ * don't get dropped by the GC along with everything else. The SoftReferences in RACacheEntry
+ * are then only the overflow for whatever doesn't fit in here.
+ *
+ * Normally there's one, shared() by all the sets of all the caches in the VM, so the budget
+ * doesn't grow with the number of caches. Its budget is 'minerva.cache.hotTierMaxBytes' if
+ * that's set, otherwise 'minerva.cache.hotTierMaxHeapFraction' (default 1/16) of the maximum heap.
+ * A cache with 'minerva.cache.hotTierMaxBytes.<cacheName>' has its own instead (see RACache).
+ *
+ * The policy is W-TinyLFU, as in Caffeine:
+ *  - New objects go into a small LRU window (windowFraction of the budget).
+ *  - Things falling out of the window are only admitted to the main LRU if they have
+ *    been asked for more often than the entry they would push out, according to a
+ *    count-min sketch of recent access frequency, which is halved periodically
+ *    so that it forgets.
+ *  - The main LRU is segmented into probation and protected, and an entry hit while on
+ *    probation moves to protected, so one-off scans can't flush it.
+ *
+ * The size of each object is estimated as its (stored) objectPackageSize, plus a bit for
+ * the objects themselves. That's a lower estimate for Java objects, but it's what we have.
+ *
+ * Everything is under the one monitor. Each call is only a few pointer swaps,
+ * the loading and decoding is all done outside.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheHotTier {
+
+	/** Rough overhead of the node and the object's own header, added to the package size */
+	private static final int nodeOverheadBytes = 64;
+
+	/** Fraction of the budget for the admission window */
+	private static final double windowFraction = 0.01;
+	/** Fraction of the main part of the budget for the protected segment */
+	private static final double protectedFraction = 0.8;
+
+	private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+	/** The one for all the caches that don't have their own */
+	private static RACacheHotTier shared;
+
+	private static final class Node {
+		final RACacheSet set;
+		final RACacheEntry entry;
+		Object object;
+		long weight;
+		int queue;
+		Node prev, next;
+
+		Node(RACacheSet set, RACacheEntry entry){
+			this.set = set;
+			this.entry = entry;
+		}
+	}
+
+	/** Circular lists with sentinels, most recent at head.next */
+	private final Node heads[] = new Node[3];
+	private final long queueBytes[] = new long[3];
+
+	private final HashMap<RACacheEntry, Node> nodes = new HashMap<>();
+
+	private final FrequencySketch sketch;
+
+	private long maxBytes;
+	private long windowMaxBytes;
+	private long protectedMaxBytes;
+
+	private long nHits, nAdmitted, nRejected, nEvicted;
+
+	public RACacheHotTier(long maxBytes) {
+		for(int i=0; i < heads.length; i++){
+			heads[i] = new Node(null, null);
+			heads[i].prev = heads[i].next = heads[i];
+		}
+
+		//size the sketch for the number of typical (few kB) objects that would fit
+		sketch = new FrequencySketch((int)Math.min(1 << 22, Math.max(256, maxBytes / 4096)));
+		setMaxBytes(maxBytes);
+	}
+
+	/** @return The tier shared by all the caches in the VM that don't have their own budget */
+	static synchronized RACacheHotTier shared(){
+		if(shared == null){
+			SettingsManager settings = SettingsManager.defaultGlobal();
+			long maxBytes;
+			if(settings.propertyDefined("minerva.cache.hotTierMaxBytes")){
+				maxBytes = Long.parseLong(settings.getProperty("minerva.cache.hotTierMaxBytes"));
+			}else{
+				//not written back as a default, since it depends on -Xmx
+				long maxHeap = Runtime.getRuntime().maxMemory();
+				if(maxHeap == Long.MAX_VALUE) //no limit
+					maxHeap = Runtime.getRuntime().totalMemory();
+				maxBytes = (long)(maxHeap * Double.parseDouble(
+						settings.getProperty("minerva.cache.hotTierMaxHeapFraction", "0.0625")));
+			}
+			shared = new RACacheHotTier(maxBytes);
+		}
+		return shared;
+	}
+
+	/** Changes the budget, evicting things if it's gone down */
+	public synchronized void setMaxBytes(long maxBytes){
+		this.maxBytes = Math.max(0, maxBytes);
+		this.windowMaxBytes = (long)(this.maxBytes * windowFraction);
+		this.protectedMaxBytes = (long)((this.maxBytes - windowMaxBytes) * protectedFraction);
+
+		while(queueBytes[PROTECTED] > protectedMaxBytes)
+			demoteProtected();
+		evict();
+	}
+
+	/** @return The object held for this entry, or null. Either way, counts as an access to it. */
+	public synchronized Object get(RACacheEntry entry){
+		sketch.increment(entry);
+
+		Node node = nodes.get(entry);
+		if(node == null)
+			return null;
+
+		nHits++;
+		switch(node.queue){
+			case WINDOW:
+			case PROTECTED:
+				moveToHead(node, node.queue);
+				break;
+			case PROBATION:
+				//proved itself, promote it
+				moveToHead(node, PROTECTED);
+				while(queueBytes[PROTECTED] > protectedMaxBytes)
+					demoteProtected();
+				break;
+		}
+		return node.object;
+	}
+
+	/** Offers a newly loaded (or put) object. It starts in the window and will only
+	 * stay for long if it gets used again. */
+	public synchronized void put(RACacheSet set, RACacheEntry entry, Object object){
+		long weight = entry.objectPackageSize + nodeOverheadBytes;
+		if(weight > maxBytes - windowMaxBytes){
+			remove(entry); //would never fit
+			return;
+		}
+
+		Node node = nodes.get(entry);
+		if(node != null){
+			queueBytes[node.queue] += weight - node.weight;
+			node.object = object;
+			node.weight = weight;
+			moveToHead(node, node.queue);
+		}else{
+			node = new Node(set, entry);
+			node.object = object;
+			node.weight = weight;
+			nodes.put(entry, node);
+			link(node, WINDOW);
+		}
+
+		evict();
+	}
+
+	/** Drops the object for the given entry, e.g. because it has been overwritten */
+	public synchronized void remove(RACacheEntry entry){
+		Node node = nodes.remove(entry);
+		if(node != null)
+			unlink(node);
+	}
+
+	/** Drops everything belonging to the given set, e.g. when its index is being reloaded */
+	public synchronized void removeSet(RACacheSet set){
+		Iterator<Node> it = nodes.values().iterator();
+		while(it.hasNext()){
+			Node node = it.next();
+			if(node.set == set){
+				unlink(node);
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear(){
+		for(Node node : nodes.values())
+			node.prev = node.next = null;
+		nodes.clear();
+		for(int i=0; i < heads.length; i++){
+			heads[i].prev = heads[i].next = heads[i];
+			queueBytes[i] = 0;
+		}
+	}
+
+	/** Moves overflowing entries from the window to probation, if they win against
+	 * the probation victims, and keeps the whole thing within maxBytes */
+	private void evict(){
+		long mainMaxBytes = maxBytes - windowMaxBytes;
+
+		while(queueBytes[WINDOW] > windowMaxBytes){
+			Node candidate = heads[WINDOW].prev;
+			unlink(candidate);
+
+			//make room in the main part, if the candidate is more popular than the victims
+			boolean admit = true;
+			while(queueBytes[PROBATION] + queueBytes[PROTECTED] + candidate.weight > mainMaxBytes){
+				Node victim = heads[PROBATION].prev;
+				if(victim == heads[PROBATION])
+					victim = heads[PROTECTED].prev;
+				if(victim == heads[PROTECTED]){ //nothing left, shouldn't happen since it fits
+					admit = false;
+					break;
+				}
+
+				if(sketch.frequency(candidate.entry) > sketch.frequency(victim.entry)){
+					evictNode(victim);
+				}else{
+					admit = false;
+					break;
+				}
+			}
+
+			if(admit){
+				link(candidate, PROBATION);
+				nAdmitted++;
+			}else{
+				nodes.remove(candidate.entry);
+				nRejected++;
+			}
+		}
+
+		//in case the budget was reduced
+		while(queueBytes[PROBATION] + queueBytes[PROTECTED] > mainMaxBytes){
+			Node victim = heads[PROBATION].prev;
+			if(victim == heads[PROBATION])
+				victim = heads[PROTECTED].prev;
+			evictNode(victim);
+		}
+	}
+
+	private void evictNode(Node node){
+		unlink(node);
+		nodes.remove(node.entry);
+		nEvicted++;
+	}
+
+	private void demoteProtected(){
+		Node node = heads[PROTECTED].prev;
+		moveToHead(node, PROBATION);
+	}
+
+	private void moveToHead(Node node, int queue){
+		unlink(node);
+		link(node, queue);
+	}
+
+	private void link(Node node, int queue){
+		Node head = heads[queue];
+		node.queue = queue;
+		node.prev = head;
+		node.next = head.next;
+		head.next.prev = node;
+		head.next = node;
+		queueBytes[queue] += node.weight;
+	}
+
+	private void unlink(Node node){
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = node.next = null;
+		queueBytes[node.queue] -= node.weight;
+	}
+
+	public synchronized long getMaxBytes() { return maxBytes; }
+	public synchronized long getBytes() { return queueBytes[WINDOW] + queueBytes[PROBATION] + queueBytes[PROTECTED]; }
+	public synchronized int getCount() { return nodes.size(); }
+
+	public synchronized String getStats() {
+		return "Hot tier: " + nodes.size() + " objects, ~" + (getBytes() / 1024) + " of " + (maxBytes / 1024) + " kB, " +
+				nHits + " hits, " + nAdmitted + " admitted, " + nRejected + " rejected, " + nEvicted + " evicted";
+	}
+
+	/** Count-min sketch of 4-bit counters, 16 to a long, 4 hashes per item.
+	 * All the counters are halved after 10 times as many increments as there are
+	 * counters per row, so that old popularity fades. */
+	private static final class FrequencySketch {
+		private final long table[];
+		private final int mask;
+		private final int sampleSize;
+		private int nSamples;
+
+		private static final long seeds[] = { 0x97CB3127L, 0xB492B66FL, 0x9AE16A3BL, 0xCBF29CE4L };
+
+		FrequencySketch(int width){
+			int size = Integer.highestOneBit(Math.max(16, width - 1) << 1) / 16;
+			table = new long[size];
+			mask = size - 1;
+			sampleSize = 10 * size * 16;
+		}
+
+		private static int spread(Object item){
+			int h = System.identityHashCode(item) * 0x9E3779B9;
+			return h ^ (h >>> 17);
+		}
+
+		private int index(int h, int i){
+			long hash = (h + seeds[i]) * seeds[i];
+			hash += hash >>> 32;
+			return (int)hash & mask;
+		}
+
+		/** Counter within a long, different for each hash function */
+		private static int offset(int h, int i){
+			return (((h >>> (i << 3)) & 3) << 2) + i * 16 & 63;
+		}
+
+		int frequency(Object item){
+			int h = spread(item);
+			int freq = Integer.MAX_VALUE;
+			for(int i=0; i < 4; i++){
+				int count = (int)((table[index(h, i)] >>> offset(h, i)) & 0xF);
+				freq = Math.min(freq, count);
+			}
+			return freq;
+		}
+
+		void increment(Object item){
+			int h = spread(item);
+			boolean added = false;
+			for(int i=0; i < 4; i++){
+				int idx = index(h, i);
+				int off = offset(h, i);
+				if(((table[idx] >>> off) & 0xF) != 0xF){
+					table[idx] += 1L << off;
+					added = true;
+				}
+			}
+
+			if(added && ++nSamples >= sampleSize){
+				for(int i=0; i < table.length; i++)
+					table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+				nSamples /= 2;
+			}
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** The in-memory index of a RACacheSet file.
+ *
+ * Entries are held in parallel primitive arrays, in the order they were added
+ * (which is file order, since the file is only appended to). On top of that
+ * is an open addressing (linear probing) table of entry numbers, keyed by the
+ * integer hash of the request key. Entries with the same hash just sit further
+ * along the same probe run. An untouched entry costs 22 bytes in the arrays, or 30 with
+ * fingerprints, plus 4-8 in the table, with no objects at all.
+ *
+ * Each entry can also have the 64-bit fingerprint of its key package (see RACacheKey.fingerprint()),
+ * or 0 if it isn't known. The array for those is only made once there is one to keep, so files
+ * from before version 3 don't pay for it, and not at all if the index was made without them.
+ *
+ * Each entry has the time it was last read or written (see accessClock()), which is what the quota
+ * eviction and RACacheMemory.trimTo() go by. That's held to the nearest accessTickSeconds, as 16 bits
+ * from accessBase, which is moved along by add() when it needs to be. Anything older than
+ * the start of the window (about 4 months back) is held as the start of it.
+ *
+ * A RACacheEntry, with its soft references to the key and object, is only made
+ * for entries that have actually been looked at.
+ *
+ * Entry numbers are only valid until the next add(), which may compact the arrays.
+ *
+ * Not thread safe by itself. RACacheSet only modifies it with the write side
+ * of its indexLock held and reads it with at least the read side. touch() is
+ * safe to call from multiple readers at once.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheIndex {
+
+	/** Marker in positions[] for entries that have been removed */
+	private static final long REMOVED = -1;
+
+	/** Maximum fraction of the table used (including removed entries) before we grow it */
+	private static final double maxLoad = 0.75;
+
+	private static final int minCapacity = 16;
+
+	/** Access time for entries loaded from somewhere that doesn't say, see restoreAccessTimes() */
+	public static final int UNKNOWN_ACCESS = Integer.MIN_VALUE;
+
+	/** Start of the access clock, 2020-01-01 UTC, so that seconds fit an int for a good while */
+	private static final long accessClockEpochMillis = 1577836800000L;
+
+	/** Resolution of the last used times held in the index, in seconds of the access clock */
+	private static final int accessTickSeconds = 300;
+
+	/** Ticks left ahead of the present when the window is moved, so add() only has to do it every couple of months */
+	private static final int accessTicksAhead = 0x8000;
+
+	/** The probe table, entry number + 1 or 0 for empty */
+	private int table[];
+
+	private int hashes[];
+	/** null until there's a fingerprint to keep */
+	private long fingerprints[];
+	private long positions[];
+	private int keyPackageSizes[];
+	private int objectPackageSizes[];
+	/** Ticks after accessBase, plus 1, with 0 for UNKNOWN_ACCESS */
+	private char lastAccess[];
+
+	/** Access clock time of lastAccess tick 1 */
+	private int accessBase;
+
+	private final boolean keepFingerprints;
+
+	/** Number of entries in the arrays, including removed ones */
+	private int nUsed;
+
+	/** Number of entries not removed */
+	private int nEntries;
+
+	/** The RACacheEntry of the entries that have been touched */
+	private ConcurrentHashMap<Integer, RACacheEntry> touched = new ConcurrentHashMap<>();
+
+	/** @param keepFingerprints Whether to hold the key fingerprints, otherwise fingerprint() is always 0 */
+	protected RACacheIndex(boolean keepFingerprints) {
+		this.keepFingerprints = keepFingerprints;
+		clear();
+	}
+
+	public void clear(){
+		hashes = new int[minCapacity];
+		fingerprints = null;
+		positions = new long[minCapacity];
+		keyPackageSizes = new int[minCapacity];
+		objectPackageSizes = new int[minCapacity];
+		lastAccess = new char[minCapacity];
+		accessBase = accessClock() - (0xFFFF - accessTicksAhead) * accessTickSeconds;
+		table = new int[tableSizeFor(minCapacity)];
+		nUsed = 0;
+		nEntries = 0;
+		touched.clear();
+	}
+
+	private static int tableSizeFor(long nEntries){
+		long n = (long)Math.ceil(nEntries / maxLoad);
+		return 1 << (64 - Long.numberOfLeadingZeros(Math.max(minCapacity, n) - 1));
+	}
+
+	/** Fibonacci hashing, since the deepHashCode of small keys is often a small integer */
+	private final int homeSlot(int hash){
+		return (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(table.length));
+	}
+
+	/** @return The first entry with the given hash, or -1 */
+	public int first(int hash){
+		return scan(hash, homeSlot(hash));
+	}
+
+	private int scan(int hash, int slot){
+		slot = scanSlot(hash, slot);
+		return (slot < 0) ? -1 : table[slot] - 1;
+	}
+
+	/** For walking all the entries with the same hash, with nextSlot().
+	 * Slots are only valid until the next add().
+	 * @return The table slot of the first entry with the given hash, or -1 */
+	public int firstSlot(int hash){
+		return scanSlot(hash, homeSlot(hash));
+	}
+
+	/** @return The table slot of the next entry with the given hash after the given slot, or -1 */
+	public int nextSlot(int hash, int slot){
+		return scanSlot(hash, (slot + 1) & (table.length - 1));
+	}
+
+	/** @return The entry number in the given table slot */
+	public int entryAt(int slot){
+		return table[slot] - 1;
+	}
+
+	private int scanSlot(int hash, int slot){
+		int mask = table.length - 1;
+		while(true){
+			int entry = table[slot] - 1;
+			if(entry < 0)
+				return -1;
+			if(hashes[entry] == hash && positions[entry] != REMOVED)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/** Adds an entry. Entry numbers from before this call are no longer valid.
+	 * @return The number of the new entry */
+	public int add(int hash, long fingerprint, long entryHeaderPos, int keyPackageSize, int objectPackageSize){
+		if(nUsed == positions.length)
+			growArrays(nEntries + 1);
+
+		if((nUsed + 1) > maxLoad * table.length)
+			rebuildTable(nUsed + 1);
+
+		if(fingerprint != 0 && fingerprints == null && keepFingerprints)
+			fingerprints = new long[positions.length];
+
+		int now = accessClock();
+		if(now >= accessBase + (0xFFFF - 1) * accessTickSeconds)
+			moveAccessWindow(now);
+
+		int entry = nUsed++;
+		hashes[entry] = hash;
+		if(fingerprints != null)
+			fingerprints[entry] = fingerprint;
+		positions[entry] = entryHeaderPos;
+		keyPackageSizes[entry] = keyPackageSize;
+		objectPackageSizes[entry] = objectPackageSize;
+		lastAccess[entry] = accessTicks(now);
+		nEntries++;
+
+		insertInTable(hash, entry);
+		return entry;
+	}
+
+	private void insertInTable(int hash, int entry){
+		int mask = table.length - 1;
+		int slot = homeSlot(hash);
+		while(table[slot] != 0)
+			slot = (slot + 1) & mask;
+		table[slot] = entry + 1;
+	}
+
+	/** Removes the given entry from the index. It stays in the probe table
+	 * until the next rebuild, but is never returned. */
+	public void remove(int entry){
+		positions[entry] = REMOVED;
+		touched.remove(entry);
+		nEntries--;
+	}
+
+	/** Makes sure we can hold the given number of entries without reallocating */
+	public void ensureCapacity(long nEntriesExpected){
+		if(nEntriesExpected > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("RACacheIndex can't hold " + nEntriesExpected + " entries");
+		if(nEntriesExpected > positions.length)
+			growArrays((int)nEntriesExpected);
+		if(nEntriesExpected > maxLoad * table.length)
+			rebuildTable(nEntriesExpected);
+	}
+
+	/** Grows the arrays to hold at least the given number of entries, dropping removed entries
+	 * if there are enough to be worth it. */
+	private void growArrays(int nEntriesExpected){
+		if(nUsed - nEntries > nEntries){
+			compact();
+			if(nUsed < positions.length && nEntriesExpected <= positions.length)
+				return;
+		}
+
+		int newLength = Math.max(nEntriesExpected, positions.length + (positions.length >> 1));
+		hashes = Arrays.copyOf(hashes, newLength);
+		if(fingerprints != null)
+			fingerprints = Arrays.copyOf(fingerprints, newLength);
+		positions = Arrays.copyOf(positions, newLength);
+		keyPackageSizes = Arrays.copyOf(keyPackageSizes, newLength);
+		objectPackageSizes = Arrays.copyOf(objectPackageSizes, newLength);
+		lastAccess = Arrays.copyOf(lastAccess, newLength);
+	}
+
+	/** Shifts all the remaining entries down over the removed ones, keeping the order */
+	private void compact(){
+		ConcurrentHashMap<Integer, RACacheEntry> newTouched = new ConcurrentHashMap<>();
+		int j = 0;
+		for(int i=0; i < nUsed; i++){
+			if(positions[i] == REMOVED)
+				continue;
+			hashes[j] = hashes[i];
+			if(fingerprints != null)
+				fingerprints[j] = fingerprints[i];
+			positions[j] = positions[i];
+			keyPackageSizes[j] = keyPackageSizes[i];
+			objectPackageSizes[j] = objectPackageSizes[i];
+			lastAccess[j] = lastAccess[i];
+			RACacheEntry t = touched.get(i);
+			if(t != null)
+				newTouched.put(j, t);
+			j++;
+		}
+		nUsed = j;
+		touched = newTouched;
+		rebuildTable(nUsed);
+	}
+
+	private void rebuildTable(long nEntriesExpected){
+		table = new int[tableSizeFor(nEntriesExpected)];
+		for(int i=0; i < nUsed; i++){
+			if(positions[i] != REMOVED)
+				insertInTable(hashes[i], i);
+		}
+	}
+
+	/** @return Number of entries in the index */
+	public int size(){ return nEntries; }
+
+	/** @return Number of entry numbers in use, for iterating in file order with isEntry() */
+	public int count(){ return nUsed; }
+
+	/** @return true if the given entry number hasn't been removed */
+	public boolean isEntry(int entry){ return positions[entry] != REMOVED; }
+
+	public int hash(int entry){ return hashes[entry]; }
+	public long fingerprint(int entry){ return (fingerprints != null) ? fingerprints[entry] : 0; }
+	public long entryHeaderPos(int entry){ return positions[entry]; }
+	public int keyPackageSize(int entry){ return keyPackageSizes[entry]; }
+	public int objectPackageSize(int entry){ return objectPackageSizes[entry]; }
+	public int lastAccess(int entry){ return accessTime(lastAccess[entry]); }
+	public void setLastAccess(int entry, int time){ lastAccess[entry] = accessTicks(time); }
+
+	/** Notes that the entry has just been used. Safe to call from readers, since it's
+	 * only a hint and a lost update just makes the entry look a few minutes older. */
+	public void recordAccess(int entry){
+		char now = accessTicks(accessClock());
+		if(lastAccess[entry] != now)
+			lastAccess[entry] = now;
+	}
+
+	/** @return The given access clock time as held in lastAccess[] */
+	private char accessTicks(int time){
+		if(time == UNKNOWN_ACCESS)
+			return 0;
+		long ticks = ((long)time - accessBase) / accessTickSeconds + 1;
+		return (char)Math.max(1, Math.min(0xFFFF, ticks));
+	}
+
+	/** @return The access clock time of a lastAccess[] value */
+	private int accessTime(char ticks){
+		return (ticks == 0) ? UNKNOWN_ACCESS : accessBase + (ticks - 1) * accessTickSeconds;
+	}
+
+	/** Moves the access time window along so that the given time is accessTicksAhead from the end of it.
+	 * Only with the write side of RACacheSet's indexLock, since it changes every entry. */
+	private void moveAccessWindow(int now){
+		int newBase = now - (0xFFFF - accessTicksAhead) * accessTickSeconds;
+		int shift = (newBase - accessBase) / accessTickSeconds;
+		if(shift <= 0)
+			return;
+		for(int i=0; i < nUsed; i++){
+			if(lastAccess[i] != 0)
+				lastAccess[i] = (char)Math.max(1, lastAccess[i] - shift);
+		}
+		accessBase += shift * accessTickSeconds;
+	}
+
+	/** @return The current time in seconds since 2020-01-01, as held in the index and the .idx file */
+	public static int accessClock(){
+		return accessClock(System.currentTimeMillis());
+	}
+
+	/** @return The given time (as System.currentTimeMillis()) in seconds since 2020-01-01 */
+	public static int accessClock(long timeMillis){
+		return (int)((timeMillis - accessClockEpochMillis) / 1000);
+	}
+
+	/** @return The access times of all the entries, keyed by fingerprint (or hash where there isn't one),
+	 *   to be put back with restoreAccessTimes() after the index has been reloaded. */
+	public AccessTimes saveAccessTimes(){
+		long keys[] = new long[nEntries];
+		int times[] = new int[nEntries];
+		int n = 0;
+		for(int i=0; i < nUsed; i++){
+			if(positions[i] != REMOVED){
+				keys[n] = accessKey(i);
+				times[n] = accessTime(lastAccess[i]);
+				n++;
+			}
+		}
+		return new AccessTimes(keys, times, n);
+	}
+
+	/** Puts back access times from saveAccessTimes() onto the entries with the same key,
+	 * where they are later than what the entry was loaded with. Entries loaded with
+	 * UNKNOWN_ACCESS that aren't in there get the given time. */
+	public void restoreAccessTimes(AccessTimes saved, int unknownTime){
+		for(int i=0; i < nUsed; i++){
+			if(positions[i] == REMOVED)
+				continue;
+			if(saved != null)
+				lastAccess[i] = (char)Math.max(lastAccess[i], accessTicks(saved.get(accessKey(i))));
+			if(lastAccess[i] == 0)
+				lastAccess[i] = accessTicks(unknownTime);
+		}
+	}
+
+	private long accessKey(int entry){
+		long fingerprint = fingerprint(entry);
+		return fingerprint != 0 ? fingerprint : hashes[entry];
+	}
+
+	/** Access times of a whole index, sorted by key. Entries with the same key
+	 * (which can only be entries with the same hash and no fingerprint) keep the latest time. */
+	public static final class AccessTimes {
+		private final long keys[];
+		private final int times[];
+
+		private AccessTimes(long unsortedKeys[], int unsortedTimes[], int n){
+			Integer order[] = new Integer[n];
+			for(int i=0; i < n; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> Long.compare(unsortedKeys[a], unsortedKeys[b]));
+
+			long sortedKeys[] = new long[n];
+			int sortedTimes[] = new int[n];
+			int nUnique = 0;
+			for(int i : order){
+				if(nUnique > 0 && sortedKeys[nUnique-1] == unsortedKeys[i]){
+					sortedTimes[nUnique-1] = Math.max(sortedTimes[nUnique-1], unsortedTimes[i]);
+				}else{
+					sortedKeys[nUnique] = unsortedKeys[i];
+					sortedTimes[nUnique] = unsortedTimes[i];
+					nUnique++;
+				}
+			}
+			keys = Arrays.copyOf(sortedKeys, nUnique);
+			times = Arrays.copyOf(sortedTimes, nUnique);
+		}
+
+		private int get(long key){
+			int i = Arrays.binarySearch(keys, key);
+			return (i < 0) ? UNKNOWN_ACCESS : times[i];
+		}
+	}
+
+	/** @return The RACacheEntry for this entry, if it's been touched, otherwise null */
+	public RACacheEntry getTouched(int entry){ return touched.get(entry); }
+
+	/** @return The RACacheEntry for this entry, making it if it hasn't been touched yet */
+	public RACacheEntry touch(int entry){
+		RACacheEntry raEntry = touched.get(entry);
+		if(raEntry != null)
+			return raEntry;
+
+		raEntry = new RACacheEntry();
+		raEntry.entryHeaderPos = positions[entry];
+		raEntry.keyPackageSize = keyPackageSizes[entry];
+		raEntry.objectPackageSize = objectPackageSizes[entry];
+
+		//someone else might be doing the same thing
+		RACacheEntry existing = touched.putIfAbsent(entry, raEntry);
+		return existing != null ? existing : raEntry;
+	}
+
+	/** Sets the RACacheEntry of a freshly added entry */
+	public void setTouched(int entry, RACacheEntry raEntry){ touched.put(entry, raEntry); }
+
+	/** @return Number of touched entries */
+	public int nTouched(){ return touched.size(); }
+
+	/** @return Approximate bytes used by the index arrays, not counting touched entries */
+	public long indexMemoryBytes(){
+		return ((fingerprints != null) ? 30L : 22L) * positions.length + 4L * table.length;
+	}
+}
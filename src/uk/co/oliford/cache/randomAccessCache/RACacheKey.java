@@ -0,0 +1,88 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.util.Arrays;
+
+/** Wraps a request key so it can go in a Java collection, with the same
+ * deep hash and equality that RACacheSet uses for the keys on disk
+ * (i.e. arrays are compared by their content). */
+public final class RACacheKey {
+
+	public final Object key;
+
+	public final int hash;
+
+	public RACacheKey(Object key) {
+		this.key = key;
+		this.hash = hash(key);
+	}
+
+	/** The hash of the request key, as stored in the .mrc file.
+	 * Yes, I know it's odd, but I do really mean to hashmap a hash here. */
+	public static int hash(Object requestKey){
+		return Arrays.deepHashCode(new Object[]{ requestKey });
+	}
+
+	/** 64-bit fingerprint of a serialised request key package, stored in the entry headers
+	 * so that we can reject most non-matching entries with the same hash without loading their keys.
+	 * Never 0, which means 'unknown'.
+	 *
+	 * The top byte is the package's codec ID (see RACacheCodecs), the rest is a MurmurHash64A
+	 * of the package. The same key can be encoded differently once the codec settings change,
+	 * so fingerprints only say anything about the keys when their codecs are the same (see sameCodec()). */
+	public static long fingerprint(byte keyData[]){
+		final long m = 0xC6A4A7935BD1E995L;
+		final int r = 47;
+		long h = 0x9E3779B97F4A7C15L ^ (keyData.length * m);
+
+		int i = 0;
+		for(; i + 8 <= keyData.length; i += 8){
+			long k = (keyData[i] & 0xFFL) | (keyData[i+1] & 0xFFL) << 8 | (keyData[i+2] & 0xFFL) << 16 | (keyData[i+3] & 0xFFL) << 24 |
+					(keyData[i+4] & 0xFFL) << 32 | (keyData[i+5] & 0xFFL) << 40 | (keyData[i+6] & 0xFFL) << 48 | (keyData[i+7] & 0xFFL) << 56;
+			k *= m;
+			k ^= k >>> r;
+			k *= m;
+			h ^= k;
+			h *= m;
+		}
+
+		if(i < keyData.length){
+			long k = 0;
+			for(int j = keyData.length - 1; j >= i; j--)
+				k = (k << 8) | (keyData[j] & 0xFFL);
+			h ^= k;
+			h *= m;
+		}
+
+		h ^= h >>> r;
+		h *= m;
+		h ^= h >>> r;
+
+		long codecID = (keyData.length > 0) ? (keyData[0] & 0xFFL) : 0;
+		h = (codecID << 56) | (h & 0x00FFFFFFFFFFFFFFL);
+		return (h != 0) ? h : 1;
+	}
+
+	/** @return If the two (non-zero) fingerprints are of packages from the same codec,
+	 * so that different fingerprints mean different keys. */
+	public static boolean sameCodec(long fingerprintA, long fingerprintB){
+		return (fingerprintA >>> 56) == (fingerprintB >>> 56);
+	}
+
+	/** Equality of request keys, deep for arrays */
+	public static boolean keysEqual(Object a, Object b){
+		return Arrays.deepEquals(new Object[]{ a }, new Object[]{ b });
+	}
+
+	@Override
+	public int hashCode() { return hash; }
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj)
+			return true;
+		if(!(obj instanceof RACacheKey))
+			return false;
+		RACacheKey other = (RACacheKey)obj;
+		return hash == other.hash && keysEqual(key, other.key);
+	}
+}
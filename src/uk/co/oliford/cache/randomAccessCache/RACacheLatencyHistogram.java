@@ -0,0 +1,83 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Histogram of operation times, for RACacheMetrics.
+ *
+ * The buckets are powers of 2 of nanoseconds, so the percentiles are only good to a factor
+ * of 2, but recording is one array increment and there are only 48 buckets (up to ~3 days),
+ * which matters when every set has several of these.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheLatencyHistogram {
+
+	public static final int nBuckets = 48;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(nBuckets);
+	private final LongAdder sumNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/** Records the time since the given RACacheMetrics.now(), unless that was 0 because timing is off */
+	public void recordSince(long startNanos){
+		if(startNanos != 0)
+			record(System.nanoTime() - startNanos);
+	}
+
+	public void record(long nanos){
+		if(nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(Math.min(nBuckets - 1, 63 - Long.numberOfLeadingZeros(nanos | 1)));
+		sumNanos.add(nanos);
+		if(nanos > maxNanos.get())
+			maxNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/** Adds what's been recorded so far to the given snapshot */
+	public void addTo(Snapshot snapshot){
+		for(int i=0; i < nBuckets; i++){
+			long n = buckets.get(i);
+			snapshot.buckets[i] += n;
+			snapshot.count += n;
+		}
+		snapshot.sumNanos += sumNanos.sum();
+		snapshot.maxNanos = Math.max(snapshot.maxNanos, maxNanos.get());
+	}
+
+	/** Sum of one or more histograms at some point */
+	public static class Snapshot {
+		final long buckets[] = new long[nBuckets];
+		long count, sumNanos, maxNanos;
+
+		public long getCount(){ return count; }
+		public long getMeanNanos(){ return count > 0 ? sumNanos / count : 0; }
+		public long getMaxNanos(){ return maxNanos; }
+
+		/** @return Upper edge of the bucket holding the given quantile, or the max if that's less */
+		public long getPercentileNanos(double quantile){
+			if(count == 0)
+				return 0;
+			long target = (long)Math.ceil(quantile * count);
+			long n = 0;
+			for(int i=0; i < nBuckets; i++){
+				n += buckets[i];
+				if(n >= target)
+					return Math.min(maxNanos, (2L << i) - 1);
+			}
+			return maxNanos;
+		}
+
+		/** Puts [name].count, .meanNanos, .p50Nanos, .p99Nanos, .p999Nanos and .maxNanos in the map */
+		public void putInto(Map<String, Long> metrics, String name){
+			metrics.put(name + ".count", count);
+			metrics.put(name + ".meanNanos", getMeanNanos());
+			metrics.put(name + ".p50Nanos", getPercentileNanos(0.5));
+			metrics.put(name + ".p99Nanos", getPercentileNanos(0.99));
+			metrics.put(name + ".p999Nanos", getPercentileNanos(0.999));
+			metrics.put(name + ".maxNanos", maxNanos);
+		}
+	}
+}
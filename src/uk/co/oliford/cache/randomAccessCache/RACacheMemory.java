@@ -0,0 +1,175 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.NotificationEmitter;
+
+import uk.co.oliford.jolu.SettingsManager;
+
+/** Accounts for the heap used by all the RACacheSets in the VM, and lets it go on request,
+ * rather than leaving that to when the GC decides to clear the SoftReferences.
+ *
+ * The estimate for each set (see RACacheSet.memoryBytes()) is its index arrays, its touched
+ * RACacheEntry objects, and the package sizes of the keys and objects it has loaded, plus a bit
+ * for each. Like RACacheHotTier, it goes by the stored (maybe compressed) package sizes, so it's
+ * a lower estimate. It's added up when asked for, not kept up to date, since the GC can clear
+ * things at any time without telling us.
+ *
+ *  clearMemory()  - Drops every loaded key and object, and empties the hot and off-heap tiers.
+ *  trimTo(bytes)  - Drops loaded keys and objects, least recently used first (by the last used
+ *                   times in the indices), until the estimate is down to the given bytes.
+ *
+ * Automatic trimming: When 'minerva.cache.memoryThresholdFraction' (default 0.85, 0 for off) of a heap
+ * pool is still in use after a collection, the MemoryPoolMXBean's collection usage threshold
+ * notification has the caches trimmed, from a background thread, to 'minerva.cache.memoryTrimFraction'
+ * (default 0.5) of their estimate. Pools that already have a threshold set by someone else are left
+ * with it, and that triggers the trim instead.
+ *
+ * The index itself stays, since the sets need it to find anything. Only sets that have opened
+ * their files are counted.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheMemory {
+
+	private static final double thresholdFraction = Double.parseDouble(
+			SettingsManager.defaultGlobal().getProperty("minerva.cache.memoryThresholdFraction", "0.85"));
+	private static final double trimFraction = Double.parseDouble(
+			SettingsManager.defaultGlobal().getProperty("minerva.cache.memoryTrimFraction", "0.5"));
+
+	/** Sets that have opened their files */
+	private static final Set<RACacheSet> sets = ConcurrentHashMap.newKeySet();
+
+	private static final AtomicBoolean thresholdsInstalled = new AtomicBoolean(false);
+	private static final AtomicBoolean trimQueued = new AtomicBoolean(false);
+
+	/** Does the automatic trims, so the notification thread doesn't wait for them */
+	private static final ExecutorService trimmer = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "RACache memory trim");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** A loaded key and/or object, for trimTo() to sort */
+	static final class Loaded {
+		final RACacheSet set;
+		final RACacheEntry entry;
+		final int lastAccess;
+		final long bytes;
+
+		Loaded(RACacheSet set, RACacheEntry entry, int lastAccess, long bytes){
+			this.set = set;
+			this.entry = entry;
+			this.lastAccess = lastAccess;
+			this.bytes = bytes;
+		}
+	}
+
+	/** Called by sets when they open their files, so they're counted */
+	static void register(RACacheSet set){
+		sets.add(set);
+		if(thresholdFraction > 0 && thresholdsInstalled.compareAndSet(false, true))
+			installThresholds();
+	}
+
+	/** Called by sets when they're closed for good */
+	static void unregister(RACacheSet set){
+		sets.remove(set);
+	}
+
+	/** @return The estimated bytes of heap used by all the sets */
+	public static long memoryBytes(){
+		long bytes = 0;
+		for(RACacheSet set : sets)
+			bytes += set.memoryBytes();
+		return bytes;
+	}
+
+	/** Lets go of every loaded key and object in all the sets, and empties their hot and off-heap tiers */
+	public static void clearMemory(){
+		Set<Object> tiers = Collections.newSetFromMap(new IdentityHashMap<>());
+		for(RACacheSet set : sets){
+			set.unloadAll();
+			RACacheHotTier hotTier = set.getHotTier();
+			if(hotTier != null && tiers.add(hotTier))
+				hotTier.clear();
+			RACacheOffHeapTier offHeapTier = set.getOffHeapTier();
+			if(offHeapTier != null && tiers.add(offHeapTier))
+				offHeapTier.clear();
+		}
+	}
+
+	/** Lets go of the least recently used loaded keys and objects, across all the sets,
+	 * until the estimate (see memoryBytes()) is no more than the given bytes, or there's
+	 * nothing more that can go.
+	 * @return The estimated bytes let go of */
+	public static long trimTo(long maxBytes){
+		long bytes = memoryBytes();
+		if(bytes <= maxBytes)
+			return 0;
+
+		ArrayList<Loaded> loaded = new ArrayList<>();
+		for(RACacheSet set : sets)
+			set.addLoadedEntries(loaded);
+		loaded.sort((a, b) -> Integer.compare(a.lastAccess, b.lastAccess));
+
+		long freed = 0;
+		for(Loaded l : loaded){
+			if(bytes - freed <= maxBytes)
+				break;
+			l.set.unload(l.entry);
+			freed += l.bytes;
+		}
+		return freed;
+	}
+
+	/** Sets the collection usage threshold on the heap pools that can have one, and listens for it being crossed */
+	private static void installThresholds(){
+		try{
+			boolean any = false;
+			for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+				if(pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported())
+					continue;
+				long max = pool.getUsage().getMax();
+				if(max <= 0)
+					continue;
+				if(pool.getCollectionUsageThreshold() == 0)
+					pool.setCollectionUsageThreshold((long)(max * thresholdFraction));
+				any = true;
+			}
+			if(!any)
+				return;
+
+			((NotificationEmitter)ManagementFactory.getMemoryMXBean()).addNotificationListener((notification, handback) -> {
+				if(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType()))
+					queueTrim();
+			}, null, null);
+
+		}catch(Exception e){
+			System.err.println("WARNING: RACache couldn't set up heap usage notifications, it won't trim itself: " + e);
+		}
+	}
+
+	private static void queueTrim(){
+		if(!trimQueued.compareAndSet(false, true))
+			return; //one is already on its way, which will do
+
+		trimmer.execute(() -> {
+			trimQueued.set(false);
+			long bytes = memoryBytes();
+			long freed = trimTo((long)(bytes * trimFraction));
+			System.out.println("RACache: Heap nearly full, dropped ~" + (freed / 1024) + " of ~" + (bytes / 1024) + " kB of loaded cache objects");
+		});
+	}
+}
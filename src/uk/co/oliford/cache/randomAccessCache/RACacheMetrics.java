@@ -0,0 +1,221 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import uk.co.oliford.jolu.SettingsManager;
+
+/** Counters and operation times of one RACacheSet. RACache adds up those of all its sets
+ * when it's asked for its metrics, so nothing is shared between threads working on different sets.
+ *
+ * The times are histograms (see RACacheLatencyHistogram) of:
+ *  - lockWait: Waiting for the index lock in get()/getAll()/put(), and for the file lock when writing.
+ *  - indexLookup: Finding the entry for a key, including loading keys to rule out hash collisions.
+ *  - diskRead: Each positional read of the .mrc file.
+ *  - deserialise: Decoding an object package (after decompression).
+ *  - put: The whole of put() or putAll().
+ *  - fsync: Forcing the .mrc and its sidecar files to disk.
+ *
+ * Timing costs two System.nanoTime() calls per thing timed and can be turned off with
+ * 'minerva.cache.latencyMetrics=false', the counters are always kept.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheMetrics {
+
+	private static final boolean timingEnabled = Boolean.parseBoolean(
+			SettingsManager.defaultGlobal().getProperty("minerva.cache.latencyMetrics", "true"));
+
+	final LongAdder nMisses = new LongAdder();
+	final LongAdder nHitFromMem = new LongAdder();
+	/** Those of nHitFromMem found in the hot tier */
+	final LongAdder nHitFromHotTier = new LongAdder();
+	final LongAdder nHitFromDisk = new LongAdder();
+	/** Those of nHitFromDisk that were actually found in the off-heap tier */
+	final LongAdder nHitFromOffHeap = new LongAdder();
+	final LongAdder nKeyLostFromMem = new LongAdder();
+	final LongAdder nObjectLostFromMem = new LongAdder();
+	final LongAdder nCollisionInPut = new LongAdder();
+	/** Times mightContain() said no, so the set wasn't looked in */
+	final LongAdder nSkippedByBloom = new LongAdder();
+	final LongAdder nPuts = new LongAdder();
+	final LongAdder bytesRead = new LongAdder();
+	final LongAdder bytesWritten = new LongAdder();
+	/** Entries deleted by RACacheQuota to keep the files within their quotas, and their size in the file */
+	final LongAdder nEvicted = new LongAdder();
+	final LongAdder bytesEvicted = new LongAdder();
+
+	final RACacheLatencyHistogram lockWait = new RACacheLatencyHistogram();
+	final RACacheLatencyHistogram indexLookup = new RACacheLatencyHistogram();
+	final RACacheLatencyHistogram diskRead = new RACacheLatencyHistogram();
+	final RACacheLatencyHistogram deserialise = new RACacheLatencyHistogram();
+	final RACacheLatencyHistogram put = new RACacheLatencyHistogram();
+	final RACacheLatencyHistogram fsync = new RACacheLatencyHistogram();
+
+	/** Whether to register MBeans at all ('minerva.cache.jmx') and for each set ('minerva.cache.jmxPerSet') */
+	static final boolean jmxEnabled = Boolean.parseBoolean(
+			SettingsManager.defaultGlobal().getProperty("minerva.cache.jmx", "true"));
+	static final boolean jmxPerSet = jmxEnabled && Boolean.parseBoolean(
+			SettingsManager.defaultGlobal().getProperty("minerva.cache.jmxPerSet", "false"));
+
+	/** @return Start time for RACacheLatencyHistogram.recordSince(), or 0 if timing is off */
+	static long now(){
+		return timingEnabled ? System.nanoTime() : 0;
+	}
+
+	/** @return This set's metrics by name, see snapshot(Collection) */
+	public Map<String, Long> snapshot(){
+		return snapshot(Collections.singleton(this));
+	}
+
+	/** Adds up the counters, and merges the histograms, of the given metrics.
+	 *
+	 * @return Map, in a fixed order, of the counters ('hits', 'misses', 'hitsFromMem', ...) and
+	 * for each timed thing, e.g. 'diskRead.count', '.meanNanos', '.p50Nanos', '.p99Nanos', '.p999Nanos' and '.maxNanos'.
+	 */
+	public static Map<String, Long> snapshot(Collection<RACacheMetrics> all){
+		long misses = 0, hitsFromMem = 0, hitsFromHotTier = 0, hitsFromDisk = 0, hitsFromOffHeap = 0;
+		long keysLostFromMem = 0, objectsLostFromMem = 0, collisionsInPut = 0, skippedByBloom = 0;
+		long puts = 0, read = 0, written = 0, evicted = 0, evictedBytes = 0;
+		RACacheLatencyHistogram.Snapshot lockWait = new RACacheLatencyHistogram.Snapshot();
+		RACacheLatencyHistogram.Snapshot indexLookup = new RACacheLatencyHistogram.Snapshot();
+		RACacheLatencyHistogram.Snapshot diskRead = new RACacheLatencyHistogram.Snapshot();
+		RACacheLatencyHistogram.Snapshot deserialise = new RACacheLatencyHistogram.Snapshot();
+		RACacheLatencyHistogram.Snapshot put = new RACacheLatencyHistogram.Snapshot();
+		RACacheLatencyHistogram.Snapshot fsync = new RACacheLatencyHistogram.Snapshot();
+
+		for(RACacheMetrics m : all){
+			misses += m.nMisses.sum();
+			hitsFromMem += m.nHitFromMem.sum();
+			hitsFromHotTier += m.nHitFromHotTier.sum();
+			hitsFromDisk += m.nHitFromDisk.sum();
+			hitsFromOffHeap += m.nHitFromOffHeap.sum();
+			keysLostFromMem += m.nKeyLostFromMem.sum();
+			objectsLostFromMem += m.nObjectLostFromMem.sum();
+			collisionsInPut += m.nCollisionInPut.sum();
+			skippedByBloom += m.nSkippedByBloom.sum();
+			puts += m.nPuts.sum();
+			read += m.bytesRead.sum();
+			written += m.bytesWritten.sum();
+			evicted += m.nEvicted.sum();
+			evictedBytes += m.bytesEvicted.sum();
+			m.lockWait.addTo(lockWait);
+			m.indexLookup.addTo(indexLookup);
+			m.diskRead.addTo(diskRead);
+			m.deserialise.addTo(deserialise);
+			m.put.addTo(put);
+			m.fsync.addTo(fsync);
+		}
+
+		LinkedHashMap<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("hits", hitsFromMem + hitsFromDisk);
+		metrics.put("misses", misses);
+		metrics.put("hitsFromMem", hitsFromMem);
+		metrics.put("hitsFromHotTier", hitsFromHotTier);
+		metrics.put("hitsFromDisk", hitsFromDisk);
+		metrics.put("hitsFromOffHeap", hitsFromOffHeap);
+		metrics.put("keysLostFromMem", keysLostFromMem);
+		metrics.put("objectsLostFromMem", objectsLostFromMem);
+		metrics.put("collisionsInPut", collisionsInPut);
+		metrics.put("skippedByBloom", skippedByBloom);
+		metrics.put("puts", puts);
+		metrics.put("bytesRead", read);
+		metrics.put("bytesWritten", written);
+		metrics.put("evictions", evicted);
+		metrics.put("evictedBytes", evictedBytes);
+		lockWait.putInto(metrics, "lockWait");
+		indexLookup.putInto(metrics, "indexLookup");
+		diskRead.putInto(metrics, "diskRead");
+		deserialise.putInto(metrics, "deserialise");
+		put.putInto(metrics, "put");
+		fsync.putInto(metrics, "fsync");
+		return metrics;
+	}
+
+	/** Registers an MBean giving the metrics of the owner (a RACache or RACacheSet) with the platform MBean server.
+	 * If there's already one with that name (e.g. from another RACacheService), ',instance=n' is added.
+	 *
+	 * The MBean only has a weak reference to the owner, so the MBean server doesn't keep it (and its hot tier)
+	 * for the life of the VM, and it's unregistered once the owner has been collected.
+	 *
+	 * @param keys ObjectName key properties after the domain, e.g. "type=RACache,name=..." (values quoted as needed)
+	 * @return The name it was registered under, or null if it couldn't be
+	 */
+	static <T> ObjectName registerMBean(String keys, T owner, Function<T, Map<String, Long>> metrics){
+		WeakReference<T> ownerRef = new WeakReference<>(owner);
+		Supplier<Map<String, Long>> source = () -> {
+			T o = ownerRef.get();
+			return (o != null) ? metrics.apply(o) : snapshot(Collections.emptyList());
+		};
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for(int instance=0; ; instance++){
+				ObjectName name = new ObjectName(jmxDomain + ":" + keys + (instance > 0 ? ",instance=" + instance : ""));
+				try{
+					server.registerMBean(new MXBeanImpl(source), name);
+					mbeanCleaner.register(owner, () -> unregisterMBean(name));
+					return name;
+				}catch(InstanceAlreadyExistsException e){ }
+			}
+		}catch(Exception e){
+			System.err.println("WARNING: Couldn't register RACache MBean '" + keys + "': " + e);
+			return null;
+		}
+	}
+
+	/** Unregisters an MBean from registerMBean(), if it still is */
+	static void unregisterMBean(ObjectName name){
+		if(name == null)
+			return;
+		try{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}catch(InstanceNotFoundException e){
+			//already, e.g. removed by emptyAllSets() and then collected
+		}catch(Exception e){
+			System.err.println("WARNING: Couldn't unregister RACache MBean '" + name + "': " + e);
+		}
+	}
+
+	private static final String jmxDomain = "uk.co.oliford.cache";
+
+	/** Unregisters the MBeans of owners that have been collected */
+	private static final Cleaner mbeanCleaner = Cleaner.create();
+
+	private static final class MXBeanImpl implements RACacheMetricsMXBean {
+		private final Supplier<Map<String, Long>> source;
+
+		MXBeanImpl(Supplier<Map<String, Long>> source) { this.source = source; }
+
+		@Override
+		public Map<String, Long> getMetrics() { return source.get(); }
+
+		@Override
+		public long getHits() { return source.get().get("hits"); }
+
+		@Override
+		public long getMisses() { return source.get().get("misses"); }
+
+		@Override
+		public long getPuts() { return source.get().get("puts"); }
+
+		@Override
+		public double getHitRate() {
+			Map<String, Long> metrics = source.get();
+			long hits = metrics.get("hits"), misses = metrics.get("misses");
+			return (hits + misses) > 0 ? (double)hits / (hits + misses) : Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.util.Map;
+
+/** JMX view of the RACacheMetrics of an RACache, or of one RACacheSet.
+ * Registered as 'uk.co.oliford.cache:type=RACache,name=[cacheName]' and
+ * (if 'minerva.cache.jmxPerSet' is on) 'uk.co.oliford.cache:type=RACacheSet,cache=..,set=..[,tag=..]'.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public interface RACacheMetricsMXBean {
+
+	/** All the counters and latency summaries, see RACacheMetrics.snapshot() */
+	public Map<String, Long> getMetrics();
+
+	public long getHits();
+
+	public long getMisses();
+
+	public long getPuts();
+
+	/** @return Hits as a fraction of get()s that got as far as the set, or NaN if there haven't been any */
+	public double getHitRate();
+}
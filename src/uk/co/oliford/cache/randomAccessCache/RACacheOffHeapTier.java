@@ -0,0 +1,227 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Off-heap copies of the (uncompressed) object packages of recently loaded entries,
+ * shared by all the sets of an RACache. It sits between the heap (RACacheHotTier and
+ * the SoftReferences) and the .mrc file, so a repeat hit on something the heap has
+ * let go of needs a decode, but no disk read, and big arrays don't have to stay on
+ * the heap for the GC to keep copying.
+ *
+ * The memory is an arena of direct ByteBuffer chunks, allocated as needed up to
+ * the budget, cut into fixed size blocks. Each package is stored in as many blocks
+ * as it needs, so nothing ever has to be freed back to the VM, and fragmentation
+ * only costs the unused end of each package's last block.
+ *
+ * Eviction is plain LRU. Anything recent enough to be in here is likely to be
+ * in the hot tier anyway, which does the cleverer admission.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheOffHeapTier {
+
+	private static final int chunkSize = 16 * 1024 * 1024;
+
+	private static final class Slot {
+		final RACacheSet set;
+		final int blocks[];
+		final int length;
+
+		Slot(RACacheSet set, int blocks[], int length) {
+			this.set = set;
+			this.blocks = blocks;
+			this.length = length;
+		}
+	}
+
+	private final int blockSize;
+	private final int blocksPerChunk;
+
+	private final ArrayList<ByteBuffer> chunks = new ArrayList<>();
+
+	/** Free block numbers, used as a stack */
+	private int freeBlocks[] = new int[0];
+	private int nFree = 0;
+
+	/** Total number of blocks allowed by the budget */
+	private long maxBlocks;
+	/** Number of blocks in the chunks allocated so far */
+	private int nBlocksAllocated = 0;
+
+	/** In access order, for LRU */
+	private final LinkedHashMap<RACacheEntry, Slot> slots = new LinkedHashMap<>(256, 0.75f, true);
+
+	private long bytesStored = 0;
+
+	private long nHits, nMisses, nStored, nEvicted;
+
+	public RACacheOffHeapTier(long maxBytes, int blockSize) {
+		if(blockSize <= 0 || (chunkSize % blockSize) != 0)
+			throw new IllegalArgumentException("Off-heap block size must divide " + chunkSize + ", not " + blockSize);
+		this.blockSize = blockSize;
+		this.blocksPerChunk = chunkSize / blockSize;
+		setMaxBytes(maxBytes);
+	}
+
+	/** Changes the budget. If it's gone down, things are evicted, but chunks already allocated are kept. */
+	public synchronized void setMaxBytes(long maxBytes){
+		this.maxBlocks = Math.max(0, maxBytes) / blockSize;
+		while(nBlocksInUse() > maxBlocks && !slots.isEmpty())
+			evictEldest();
+	}
+
+	/** @return A copy of the package held for this entry, or null */
+	public synchronized byte[] get(RACacheEntry entry){
+		Slot slot = slots.get(entry);
+		if(slot == null){
+			nMisses++;
+			return null;
+		}
+		nHits++;
+
+		byte data[] = new byte[slot.length];
+		int pos = 0;
+		for(int block : slot.blocks){
+			int n = Math.min(blockSize, slot.length - pos);
+			ByteBuffer buf = blockBuffer(block);
+			buf.get(data, pos, n);
+			pos += n;
+		}
+		return data;
+	}
+
+	/** Stores a copy of the given package for the entry, evicting the least recently used as needed.
+	 * Packages bigger than the whole budget are ignored. */
+	public synchronized void put(RACacheSet set, RACacheEntry entry, byte data[]){
+		remove(entry);
+
+		int nBlocks = (data.length + blockSize - 1) / blockSize;
+		if(nBlocks > maxBlocks || nBlocks == 0)
+			return;
+
+		while(nBlocksInUse() + nBlocks > maxBlocks && !slots.isEmpty())
+			evictEldest();
+
+		int blocks[] = new int[nBlocks];
+		for(int i=0; i < nBlocks; i++){
+			blocks[i] = allocateBlock();
+			if(blocks[i] < 0){ //can't get the chunk, give them back
+				for(int j=0; j < i; j++)
+					freeBlock(blocks[j]);
+				return;
+			}
+		}
+
+		int pos = 0;
+		for(int block : blocks){
+			int n = Math.min(blockSize, data.length - pos);
+			ByteBuffer buf = blockBuffer(block);
+			buf.put(data, pos, n);
+			pos += n;
+		}
+
+		slots.put(entry, new Slot(set, blocks, data.length));
+		bytesStored += data.length;
+		nStored++;
+	}
+
+	public synchronized void remove(RACacheEntry entry){
+		Slot slot = slots.remove(entry);
+		if(slot != null)
+			release(slot);
+	}
+
+	/** Drops everything belonging to the given set */
+	public synchronized void removeSet(RACacheSet set){
+		Iterator<Slot> it = slots.values().iterator();
+		while(it.hasNext()){
+			Slot slot = it.next();
+			if(slot.set == set){
+				it.remove();
+				release(slot);
+			}
+		}
+	}
+
+	public synchronized void clear(){
+		for(Slot slot : slots.values())
+			release(slot);
+		slots.clear();
+	}
+
+	private void evictEldest(){
+		Iterator<Map.Entry<RACacheEntry, Slot>> it = slots.entrySet().iterator();
+		Slot slot = it.next().getValue();
+		it.remove();
+		release(slot);
+		nEvicted++;
+	}
+
+	private void release(Slot slot){
+		for(int block : slot.blocks)
+			freeBlock(block);
+		bytesStored -= slot.length;
+	}
+
+	private int nBlocksInUse(){
+		return nBlocksAllocated - nFree;
+	}
+
+	/** @return A free block number, allocating a new chunk if needed, or -1 if that failed */
+	private int allocateBlock(){
+		if(nFree == 0){
+			ByteBuffer chunk;
+			try{
+				chunk = ByteBuffer.allocateDirect(chunkSize);
+			}catch(OutOfMemoryError e){
+				System.err.println("WARNING: RACacheOffHeapTier couldn't allocate another " + (chunkSize / 1024 / 1024) +
+						" MB of direct memory (see -XX:MaxDirectMemorySize), limiting to " + (nBlocksAllocated * (long)blockSize / 1024 / 1024) + " MB");
+				maxBlocks = nBlocksAllocated;
+				return -1;
+			}
+			chunks.add(chunk);
+
+			if(freeBlocks.length < blocksPerChunk)
+				freeBlocks = new int[blocksPerChunk];
+			//push in reverse, so the chunk gets used from the start
+			for(int i=blocksPerChunk - 1; i >= 0; i--)
+				freeBlocks[nFree++] = nBlocksAllocated + i;
+			nBlocksAllocated += blocksPerChunk;
+		}
+		return freeBlocks[--nFree];
+	}
+
+	private void freeBlock(int block){
+		if(nFree == freeBlocks.length){
+			int tmp[] = new int[Math.max(blocksPerChunk, freeBlocks.length * 2)];
+			System.arraycopy(freeBlocks, 0, tmp, 0, nFree);
+			freeBlocks = tmp;
+		}
+		freeBlocks[nFree++] = block;
+	}
+
+	/** @return A buffer over just the given block */
+	private ByteBuffer blockBuffer(int block){
+		ByteBuffer buf = chunks.get(block / blocksPerChunk).duplicate();
+		int offset = (block % blocksPerChunk) * blockSize;
+		buf.limit(offset + blockSize);
+		buf.position(offset);
+		return buf;
+	}
+
+	public synchronized long getMaxBytes() { return maxBlocks * blockSize; }
+	public synchronized long getBytes() { return bytesStored; }
+	/** Direct memory allocated for the arena so far */
+	public synchronized long getAllocatedBytes() { return (long)chunks.size() * chunkSize; }
+	public synchronized int getCount() { return slots.size(); }
+
+	public synchronized String getStats() {
+		return "Off-heap tier: " + slots.size() + " packages, " + (bytesStored / 1024) + " kB in " + (nBlocksInUse() * (long)blockSize / 1024) +
+				" kB of blocks, " + (getAllocatedBytes() / 1024) + " kB allocated, max " + (getMaxBytes() / 1024) + " kB, " +
+				nHits + " hits, " + nMisses + " misses, " + nStored + " stored, " + nEvicted + " evicted";
+	}
+}
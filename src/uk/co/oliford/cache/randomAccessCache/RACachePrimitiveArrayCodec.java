@@ -0,0 +1,201 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+
+/** Built-in RACacheCodec for rectangular 1, 2 or 3 dimensional arrays of any primitive type,
+ * e.g. double[], double[][], float[][][], int[] etc.
+ *
+ * Jagged arrays, or ones with null rows, are left for Java serialisation.
+ *
+ * Package is:
+ *   x1 Element type, the JVM type letter ('D', 'F', 'J', 'I', 'S', 'C', 'B' or 'Z')
+ *   x1 Number of dimensions
+ *   x4 each, length of each dimension
+ *   then the elements, last index fastest.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACachePrimitiveArrayCodec implements RACacheCodec {
+
+	public static final byte CODEC_ID = 1;
+
+	private static final int maxDims = 3;
+
+	@Override
+	public byte getCodecID() { return CODEC_ID; }
+
+	/** @return The JVM type letter of the primitive elements, or 0 if it isn't an array of primitives */
+	private static char elementType(Class<?> cls){
+		String name = cls.getName();
+		int nDims = 0;
+		while(nDims < name.length() && name.charAt(nDims) == '[')
+			nDims++;
+		if(nDims < 1 || nDims > maxDims || name.length() != nDims + 1)
+			return 0;
+		char type = name.charAt(nDims);
+		return "DFJISCBZ".indexOf(type) >= 0 ? type : 0;
+	}
+
+	private static int nDims(Class<?> cls){
+		return cls.getName().lastIndexOf('[') + 1;
+	}
+
+	private static int elementSize(char type){
+		switch(type){
+			case 'D': case 'J': return 8;
+			case 'F': case 'I': return 4;
+			case 'S': case 'C': return 2;
+			default: return 1;
+		}
+	}
+
+	/** @return the dimensions of the array, or null if it isn't rectangular */
+	private static int[] dims(Object obj, int nDims){
+		int dims[] = new int[nDims];
+		dims[0] = Array.getLength(obj);
+		if(nDims == 1)
+			return dims;
+
+		Object rows[] = (Object[])obj;
+		if(rows.length == 0)
+			return dims; //can't tell the rest, but it doesn't matter
+
+		for(int i=0; i < rows.length; i++){
+			if(rows[i] == null)
+				return null;
+			int subDims[] = dims(rows[i], nDims - 1);
+			if(subDims == null)
+				return null;
+			if(i == 0){
+				System.arraycopy(subDims, 0, dims, 1, nDims - 1);
+			}else{
+				for(int j=0; j < nDims - 1; j++)
+					if(subDims[j] != dims[j+1])
+						return null;
+			}
+		}
+		return dims;
+	}
+
+	@Override
+	public boolean canEncode(Object obj) {
+		char type = elementType(obj.getClass());
+		return type != 0 && dims(obj, nDims(obj.getClass())) != null;
+	}
+
+	@Override
+	public int encodedSize(Object obj) {
+		char type = elementType(obj.getClass());
+		int dims[] = dims(obj, nDims(obj.getClass()));
+		long n = 1;
+		for(int d : dims)
+			n *= d;
+		return 2 + 4 * dims.length + (int)(n * elementSize(type));
+	}
+
+	@Override
+	public void encode(Object obj, ByteBuffer buf) {
+		char type = elementType(obj.getClass());
+		int dims[] = dims(obj, nDims(obj.getClass()));
+		buf.put((byte)type);
+		buf.put((byte)dims.length);
+		for(int d : dims)
+			buf.putInt(d);
+		encodeData(obj, dims.length, type, buf);
+	}
+
+	private static void encodeData(Object obj, int nDims, char type, ByteBuffer buf){
+		if(nDims > 1){
+			for(Object row : (Object[])obj)
+				encodeData(row, nDims - 1, type, buf);
+			return;
+		}
+
+		int n = Array.getLength(obj);
+		switch(type){
+			case 'D': buf.asDoubleBuffer().put((double[])obj); break;
+			case 'F': buf.asFloatBuffer().put((float[])obj); break;
+			case 'J': buf.asLongBuffer().put((long[])obj); break;
+			case 'I': buf.asIntBuffer().put((int[])obj); break;
+			case 'S': buf.asShortBuffer().put((short[])obj); break;
+			case 'C': buf.asCharBuffer().put((char[])obj); break;
+			case 'B': buf.put((byte[])obj); return;
+			case 'Z':
+				for(boolean b : (boolean[])obj)
+					buf.put(b ? (byte)1 : (byte)0);
+				return;
+		}
+		buf.position(buf.position() + n * elementSize(type));
+	}
+
+	@Override
+	public Object decode(ByteBuffer buf) throws IOException {
+		char type = (char)buf.get();
+		int nDims = buf.get();
+		if(nDims < 1 || nDims > maxDims || "DFJISCBZ".indexOf(type) < 0)
+			throw new IOException("Corrupt primitive array package, type '" + type + "', " + nDims + " dimensions");
+
+		int dims[] = new int[nDims];
+		for(int i=0; i < nDims; i++)
+			dims[i] = buf.getInt();
+
+		return decodeData(dims, 0, type, buf);
+	}
+
+	private static Object decodeData(int dims[], int dim, char type, ByteBuffer buf){
+		int n = dims[dim];
+		if(dim < dims.length - 1){
+			Class<?> rowClass = Array.newInstance(primitiveClass(type), new int[dims.length - dim - 1]).getClass();
+			Object rows[] = (Object[])Array.newInstance(rowClass, n);
+			for(int i=0; i < n; i++)
+				rows[i] = decodeData(dims, dim + 1, type, buf);
+			return rows;
+		}
+
+		Object row;
+		switch(type){
+			case 'D': { double a[] = new double[n]; buf.asDoubleBuffer().get(a); row = a; break; }
+			case 'F': { float a[] = new float[n]; buf.asFloatBuffer().get(a); row = a; break; }
+			case 'J': { long a[] = new long[n]; buf.asLongBuffer().get(a); row = a; break; }
+			case 'I': { int a[] = new int[n]; buf.asIntBuffer().get(a); row = a; break; }
+			case 'S': { short a[] = new short[n]; buf.asShortBuffer().get(a); row = a; break; }
+			case 'C': { char a[] = new char[n]; buf.asCharBuffer().get(a); row = a; break; }
+			case 'B': { byte a[] = new byte[n]; buf.get(a); return a; }
+			default: {
+				boolean a[] = new boolean[n];
+				for(int i=0; i < n; i++)
+					a[i] = buf.get() != 0;
+				return a;
+			}
+		}
+		buf.position(buf.position() + n * elementSize(type));
+		return row;
+	}
+
+	/** @return The offset of the element data in a package of 8-byte elements (double or long)
+	 * from this codec, including the codec ID, or -1 if it isn't one of those. */
+	public static int wordDataOffset(byte pkg[]){
+		if(pkg.length < 3 || pkg[0] != CODEC_ID || (pkg[1] != 'D' && pkg[1] != 'J'))
+			return -1;
+		int nDims = pkg[2];
+		int offset = 3 + 4 * nDims;
+		if(nDims < 1 || nDims > maxDims || offset > pkg.length || ((pkg.length - offset) % 8) != 0)
+			return -1;
+		return offset;
+	}
+	
+	private static Class<?> primitiveClass(char type){
+		switch(type){
+			case 'D': return double.class;
+			case 'F': return float.class;
+			case 'J': return long.class;
+			case 'I': return int.class;
+			case 'S': return short.class;
+			case 'C': return char.class;
+			case 'B': return byte.class;
+			default: return boolean.class;
+		}
+	}
+}
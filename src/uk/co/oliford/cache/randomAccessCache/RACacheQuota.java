@@ -0,0 +1,209 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.co.oliford.jolu.OneLiners;
+
+/** Keeps the files of a RACache within their disk quotas, by evicting the least recently
+ * used entries (see RACacheSet.evict()) and then cleaning the files.
+ *
+ * There are two quotas, in bytes of .mrc file (all the segments, for a RACacheSegmentedSet), both 0 (none) by default:
+ *   'minerva.cache.setQuotaBytes' - For each set file.
+ *   'minerva.cache.quotaBytes'    - For all the set files of the cache together, including those
+ *                                   nobody has used in this process (which then have to be opened).
+ * Either can be given for a particular cache as '....<cacheName>'.
+ *
+ * When one is exceeded, entries are evicted until what's left is 'minerva.cache.quotaTargetFraction'
+ * (default 0.8) of it, so that the next few puts don't go straight back over, and then the sets with
+ * the most dead space are cleaned until the files are down to that too. For the cache quota, the
+ * entries evicted are the least recently used of all the sets, so the hottest entries stay whichever
+ * set they are in.
+ *
+ * RACache calls check() after puts, which only looks at the file sizes every 'minerva.cache.quotaCheckMillis'
+ * (default 10000), and then does anything needed on the RACacheService I/O threads. Only one thread
+ * at a time enforces the quotas of a cache in this VM, and only one process, by a lock of
+ * 'quota.lock' in the cache directory. Anyone else who finds it taken just leaves it to them.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheQuota {
+
+	private final RACache cache;
+	private final String cacheName;
+
+	private final long quotaBytes;
+	private final long setQuotaBytes;
+	private final double targetFraction;
+	private final long checkMillis;
+
+	private volatile long lastCheck = 0;
+	private final AtomicBoolean enforcing = new AtomicBoolean(false);
+
+	RACacheQuota(RACache cache, String cacheName) {
+		this.cache = cache;
+		this.cacheName = cacheName;
+		this.quotaBytes = Long.parseLong(RACacheService.getCacheSetting(cacheName, "minerva.cache.quotaBytes", "0"));
+		this.setQuotaBytes = Long.parseLong(RACacheService.getCacheSetting(cacheName, "minerva.cache.setQuotaBytes", "0"));
+		this.targetFraction = Double.parseDouble(RACacheService.getCacheSetting(cacheName, "minerva.cache.quotaTargetFraction", "0.8"));
+		this.checkMillis = Long.parseLong(RACacheService.getCacheSetting(cacheName, "minerva.cache.quotaCheckMillis", "10000"));
+	}
+
+	public boolean isEnabled(){ return quotaBytes > 0 || setQuotaBytes > 0; }
+
+	/** Starts enforcing the quotas in the background, if it's been long enough since we last looked */
+	public void check(){
+		if(!isEnabled())
+			return;
+		long now = System.currentTimeMillis();
+		if((now - lastCheck) < checkMillis)
+			return;
+		lastCheck = now;
+
+		if(!enforcing.compareAndSet(false, true))
+			return;
+		try{
+			RACacheService.ioExecutor().execute(() -> {
+				try{
+					enforce();
+				}finally{
+					enforcing.set(false);
+				}
+			});
+		}catch(RejectedExecutionException e){ //shutting down
+			enforcing.set(false);
+		}
+	}
+
+	/** Brings any sets over the set quota, and the whole cache if it's over the cache quota, back within them */
+	public void enforce(){
+		String cacheDir = RACacheService.getCachePath() + RACacheService.forFilename(cacheName);
+		OneLiners.mkdir(cacheDir);
+
+		try(FileChannel lockFC = FileChannel.open(Paths.get(cacheDir, "quota.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock = lockFC.tryLock()){
+			if(lock == null)
+				return; //another process is at it
+
+			if(setQuotaBytes > 0){
+				for(RACacheSet set : cache.allSets(false)){
+					if(set.fileBytes() > setQuotaBytes)
+						enforce(Collections.singletonList(set), setQuotaBytes, "set '" + set.getSetName() + "'");
+				}
+			}
+
+			if(quotaBytes > 0 && cacheFileBytes(cacheDir) > quotaBytes)
+				enforce(cache.allSets(true), quotaBytes, "cache '" + cacheName + "'");
+
+		}catch(OverlappingFileLockException e){
+			//another RACache of the same name in this VM is at it
+		}catch(Exception e){
+			System.err.println("ERROR enforcing disk quota of cache '" + cacheName + "': ");
+			e.printStackTrace();
+		}
+	}
+
+	/** @return Total size of the set files in the cache directory, including the segments of segmented sets */
+	private static long cacheFileBytes(String cacheDir){
+		File files[] = new File(cacheDir).listFiles();
+		if(files == null)
+			return 0;
+		long total = 0;
+		for(File file : files){
+			String name = file.getName();
+			if(name.startsWith("minervaCache_") && name.endsWith(".mrc"))
+				total += file.length();
+			else if(name.startsWith("minervaCache_") && name.endsWith(RACacheSegmentedSet.EXTENSION)){
+				for(Path segment : RACacheSegmentedSet.segmentFiles(file))
+					total += segment.toFile().length();
+			}
+		}
+		return total;
+	}
+
+	/** Evicts the least recently used entries of the given sets, until they'd fit in
+	 * targetFraction of the quota, then cleans them until the files do. */
+	private void enforce(List<RACacheSet> sets, long quota, String what){
+		long t0 = System.currentTimeMillis();
+		long target = (long)(quota * targetFraction);
+
+		long live = 0;
+		for(RACacheSet set : sets)
+			live += set.liveBytes();
+
+		long evicted = 0;
+		if(live > target){
+			int cutoff = accessCutoff(sets, live - target);
+			for(RACacheSet set : sets){
+				if(evicted >= live - target)
+					break;
+				evicted += set.evict(cutoff, live - target - evicted);
+			}
+		}
+
+		//then give the space back, most dead space first
+		long fileBytes[] = new long[sets.size()];
+		long deadBytes[] = new long[sets.size()];
+		Integer order[] = new Integer[sets.size()];
+		long total = 0;
+		for(int i=0; i < order.length; i++){
+			fileBytes[i] = sets.get(i).fileBytes();
+			deadBytes[i] = fileBytes[i] - sets.get(i).liveBytes();
+			total += fileBytes[i];
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(deadBytes[b], deadBytes[a]));
+
+		int nCleaned = 0;
+		for(int i : order){
+			if(total <= target || deadBytes[i] <= 0)
+				break;
+			sets.get(i).cleanCache(false);
+			total += sets.get(i).fileBytes() - fileBytes[i];
+			nCleaned++;
+		}
+
+		System.out.println("RACacheQuota: " + what + " was over its quota of " + quota + " bytes. Evicted " + evicted +
+				" bytes of entries and cleaned " + nCleaned + " files in " + (System.currentTimeMillis() - t0) +
+				"ms, now " + total + " bytes.");
+	}
+
+	/** @return The last used time such that evicting everything used no later than it frees
+	 * at least the given number of bytes, across all the sets */
+	private static int accessCutoff(List<RACacheSet> sets, long bytesToFree){
+		ArrayList<long[]> snapshots = new ArrayList<>(sets.size());
+		int n = 0;
+		for(RACacheSet set : sets){
+			long snapshot[] = set.accessSnapshot();
+			snapshots.add(snapshot);
+			n += snapshot.length;
+		}
+
+		long all[] = new long[n];
+		n = 0;
+		for(long snapshot[] : snapshots){
+			System.arraycopy(snapshot, 0, all, n, snapshot.length);
+			n += snapshot.length;
+		}
+		Arrays.sort(all);
+
+		long bytes = 0;
+		for(long timeAndSize : all){
+			bytes += timeAndSize & 0xFFFFFFFFL;
+			if(bytes >= bytesToFree)
+				return (int)(timeAndSize >> 32);
+		}
+		return Integer.MAX_VALUE;
+	}
+}
@@ -0,0 +1,891 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import uk.co.oliford.jolu.OneLiners;
+
+/** A cache set kept as a number of segment files rather than one .mrc, so that
+ * compaction only rewrites the segments with the most dead space, merging them into one
+ * (see cleanCache()), which makes organise() cheap enough to run all the time.
+ *
+ * The set is a directory, 'minervaCache_<cacheName>_<setName>[_<tagName>].mrcs', of:
+ *   segment_<n>.mrc  - Ordinary RACacheSet files (with their .idx and .bloom), n counting up from 1.
+ *   manifest         - Which segments make up the set, oldest first.
+ *   lease            - For acquireLoadLease(), as the '.mrc.lease' of a single file set.
+ *
+ * New entries always go to the newest (active) segment. When that reaches 'minerva.cache.segmentBytes'
+ * (or '....<cacheName>'), a new one is started, after which the old one only changes by its entries
+ * being invalidated and by compaction. Setting segmentBytes is also what makes new sets segmented,
+ * existing .mrc sets stay as they are.
+ *
+ * Since an entry could be in any segment, get() looks from the newest to the oldest, skipping those
+ * whose bloom filter says they don't have it, and put() invalidates the key in any older segments
+ * that are open and might have it, once it's in the active one. That's done under each segment's file
+ * lock after catching up with it, as for any other write, so it goes into the file others are using.
+ *
+ * Each segment has its own file lock, so writers only contend on the active segment, and on the
+ * manifest when moving on to the next one.
+ *
+ * The manifest looks like:
+ *  1) Long generation, incremented by every change, so that others can see that from a mapping of it.
+ *  2) String identifier, "MinervaRandomAccessCacheManifestVer" and a version integer.
+ *  3) Integer number of segments.
+ *  4) For each, the integer segment number, oldest first.
+ * It's only written or read with a lock on the whole file. New active segments are put in the manifest
+ * before their files are made, and merged segments are written before they're put in it, with the
+ * manifest locked throughout. So with the manifest locked, any segment file whose number isn't in
+ * it is left over, from a segment that has been dropped or a merge that didn't finish, and can be
+ * deleted. New segments are numbered one more than any in the manifest.
+ *
+ * Merging drops the segments merged, and any with nothing left in them. A process that hasn't yet seen
+ * that, and deletes something from one, loses that delete, so delete() looks again in the new segments
+ * if the manifest changed while it was at it.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheSegmentedSet extends RACacheSet {
+	public static final String MANIFEST_IDSTR = "MinervaRandomAccessCacheManifestVer";
+	public static final int manifestVersion = 1;
+
+	/** Extension of the directory of a segmented set */
+	public static final String EXTENSION = ".mrcs";
+
+	/** Size at which the active segment is closed and a new one started */
+	private final long segmentBytes;
+
+	/** Segments with at least this fraction of their file dead are merged by cleanCache(),
+	 * 'minerva.cache.segmentCompactFraction' (or '....<cacheName>') */
+	private final double compactDeadFraction;
+
+	/** Most segments the set should have, 'minerva.cache.maxSegments' (or '....<cacheName>'). cleanCache() also
+	 * merges the smallest segments until there are no more than this, and starting a segment beyond it has 
+	 * cleanCache() run in the background. */
+	private final int maxSegments;
+	private final AtomicBoolean cleanQueued = new AtomicBoolean(false);
+
+	private final String dirName;
+
+	/** The segments, oldest first, with their numbers. Replaced, never modified, when the manifest changes. */
+	private volatile Segments segments = new Segments(new int[0], new RACacheSet[0]);
+
+	/** Generation of the manifest that segments is from */
+	private volatile long manifestGeneration = -1;
+
+	/** The manifest file, which stays open so we don't lose the lock on it, and a mapping of its generation */
+	private FileChannel manifestFC;
+	private volatile MappedByteBuffer manifestMBBuf;
+
+	/** Held while reading or writing the manifest in this VM, since the file lock is per process */
+	private final Object manifestLock = new Object();
+
+	private static final class Segments {
+		final int numbers[];
+		final RACacheSet sets[];
+
+		Segments(int numbers[], RACacheSet sets[]) {
+			this.numbers = numbers;
+			this.sets = sets;
+		}
+
+		RACacheSet active(){ return sets[sets.length - 1]; }
+	}
+
+	protected RACacheSegmentedSet(String cacheName, String setName, String tagName) {
+		super(cacheName, setName, tagName, setFileName(cacheName, setName, tagName, EXTENSION), new RACacheMetrics());
+		this.dirName = getFileName();
+		this.segmentBytes = Long.parseLong(RACacheService.getCacheSetting(cacheName, "minerva.cache.segmentBytes", "0"));
+		this.compactDeadFraction = Double.parseDouble(RACacheService.getCacheSetting(cacheName, "minerva.cache.segmentCompactFraction", "0.25"));
+		this.maxSegments = Math.max(2, Integer.parseInt(RACacheService.getCacheSetting(cacheName, "minerva.cache.maxSegments", "32")));
+	}
+
+	/** @return Whether the given set should be a RACacheSegmentedSet: It is if it already is, and isn't if there's
+	 * already a single .mrc for it, otherwise it's whether 'minerva.cache.segmentBytes' is set. */
+	public static boolean isSegmented(String cacheName, String setName, String tagName){
+		if(new File(setFileName(cacheName, setName, tagName, EXTENSION)).isDirectory())
+			return true;
+		if(new File(setFileName(cacheName, setName, tagName, ".mrc")).exists())
+			return false;
+		return Long.parseLong(RACacheService.getCacheSetting(cacheName, "minerva.cache.segmentBytes", "0")) > 0;
+	}
+
+	private String segmentFileName(int number){ return dirName + "/segment_" + number + ".mrc"; }
+
+	@Override
+	String getLeaseFileName(){ return dirName + "/lease"; }
+
+	/** Opens the manifest, making the set if it isn't there yet, and maps its generation */
+	private boolean ensureManifest(){
+		if(manifestMBBuf != null)
+			return true;
+
+		synchronized (manifestLock) {
+			if(manifestMBBuf != null)
+				return true;
+			try{
+				OneLiners.mkdir(Paths.get(dirName));
+				manifestFC = FileChannel.open(Paths.get(dirName, "manifest"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				FileLock lock = lockManifest();
+				try{
+					if(manifestFC.size() < 8)
+						writeManifest(new int[]{ 1 });
+					readManifest();
+				}finally{
+					lock.release();
+				}
+				manifestMBBuf = manifestFC.map(MapMode.READ_ONLY, 0, 8);
+				return true;
+
+			}catch(Exception e){
+				System.err.println("ERROR opening manifest of segmented cache set '" + dirName + "': ");
+				e.printStackTrace();
+				try{ if(manifestFC != null) manifestFC.close(); }catch(IOException e2){ }
+				manifestFC = null;
+				return false;
+			}
+		}
+	}
+
+	/** Takes the lock on the manifest file. Needs manifestLock. */
+	private FileLock lockManifest() throws IOException{
+		while(true){
+			try{
+				FileLock lock = manifestFC.tryLock();
+				if(lock != null)
+					return lock;
+			}catch(OverlappingFileLockException e){
+				//another RACacheSegmentedSet for the same set in this VM
+			}
+			try{
+				Thread.sleep(1);
+			}catch(InterruptedException e){ }
+		}
+	}
+
+	/** Re-reads the manifest if it's changed since we last did
+	 * @return false if we can't use the set at all */
+	private boolean syncManifest(){
+		if(!ensureManifest())
+			return false;
+		if(manifestMBBuf.getLong(0) == manifestGeneration)
+			return true;
+
+		synchronized (manifestLock) {
+			try{
+				FileLock lock = lockManifest();
+				try{
+					readManifest();
+				}finally{
+					lock.release();
+				}
+			}catch(IOException e){
+				System.err.println("ERROR reading manifest of segmented cache set '" + dirName + "': " + e);
+			}
+		}
+		return true;
+	}
+
+	/** Reads the manifest and brings segments into line with it, keeping the RACacheSets of
+	 * segments we already had and closing those of segments that have gone.
+	 * Needs manifestLock and the file lock. */
+	private void readManifest() throws IOException{
+		ByteBuffer bBuf = ByteBuffer.allocate((int)manifestFC.size());
+		while(bBuf.hasRemaining() && manifestFC.read(bBuf, bBuf.position()) >= 0);
+		bBuf.flip();
+
+		long generation = bBuf.getLong();
+		if(generation == manifestGeneration)
+			return;
+
+		String id = readString(bBuf);
+		if(!(MANIFEST_IDSTR + manifestVersion).equals(id))
+			throw new IOException("'" + dirName + "/manifest' is not a version " + manifestVersion + " cache set manifest");
+		int numbers[] = new int[bBuf.getInt()];
+		for(int i=0; i < numbers.length; i++)
+			numbers[i] = bBuf.getInt();
+
+		Segments old = segments;
+		HashMap<Integer, RACacheSet> existing = new HashMap<>();
+		for(int i=0; i < old.numbers.length; i++)
+			existing.put(old.numbers[i], old.sets[i]);
+
+		RACacheSet sets[] = new RACacheSet[numbers.length];
+		for(int i=0; i < numbers.length; i++){
+			sets[i] = existing.remove(numbers[i]);
+			if(sets[i] != null && sets[i].isFileReplaced()){
+				//it was dropped, and the number used again for a new one
+				closeSegment(sets[i]);
+				sets[i] = null;
+			}
+			if(sets[i] == null){
+				sets[i] = new RACacheSet(getCacheType(), getSetName(), getTagName(), segmentFileName(numbers[i]), metrics());
+				sets[i].setHotTier(getHotTier());
+				sets[i].setOffHeapTier(getOffHeapTier());
+				sets[i].setWriteBehind(getWriteBehind());
+			}
+		}
+
+		segments = new Segments(numbers, sets);
+		manifestGeneration = generation;
+
+		//anything left has been dropped
+		for(RACacheSet dropped : existing.values())
+			closeSegment(dropped);
+	}
+
+	/** Writes the manifest with the given segments, as the next generation.
+	 * Needs manifestLock and the file lock. Call readManifest() afterwards to use it. */
+	private void writeManifest(int numbers[]) throws IOException{
+		long generation = 0;
+		if(manifestFC.size() >= 8){
+			ByteBuffer genBuf = ByteBuffer.allocate(8);
+			manifestFC.read(genBuf, 0);
+			generation = genBuf.getLong(0);
+		}
+
+		String id = MANIFEST_IDSTR + manifestVersion;
+		ByteBuffer bBuf = ByteBuffer.allocate(8 + 4 + id.length() + 4 + 4 * numbers.length);
+		bBuf.putLong(generation + 1);
+		writeString(bBuf, id);
+		bBuf.putInt(numbers.length);
+		for(int number : numbers)
+			bBuf.putInt(number);
+		bBuf.flip();
+
+		manifestFC.truncate(bBuf.limit());
+		while(bBuf.hasRemaining())
+			manifestFC.write(bBuf, bBuf.position());
+		manifestFC.force(false);
+	}
+
+	private static String readString(ByteBuffer bBuf){
+		int len = bBuf.getInt();
+		if(len < 0)
+			return null;
+		byte strBytes[] = new byte[len];
+		bBuf.get(strBytes);
+		return new String(strBytes);
+	}
+
+	private static void writeString(ByteBuffer bBuf, String str){
+		bBuf.putInt(str.length());
+		bBuf.put(str.getBytes());
+	}
+
+	private void closeSegment(RACacheSet segment){
+		segment.setHotTier(null);
+		segment.setOffHeapTier(null);
+		segment.close();
+	}
+
+	/** @return The segments, after catching up with the manifest. Empty if the set can't be used. */
+	private RACacheSet[] segments(){
+		syncManifest();
+		return segments.sets;
+	}
+
+	/** @return The segment to put things in, first starting a new one if the active one is full,
+	 * or null if the set can't be used. */
+	private RACacheSet activeSegment(){
+		if(!syncManifest())
+			return null;
+		RACacheSet active = segments.active();
+		if(segmentBytes <= 0 || active.endPos() < segmentBytes)
+			return active;
+
+		synchronized (manifestLock) {
+			try{
+				FileLock lock = lockManifest();
+				try{
+					readManifest(); //someone else might have just done it
+					Segments segs = segments;
+					if(segs.active() == active){
+						int numbers[] = Arrays.copyOf(segs.numbers, segs.numbers.length + 1);
+						numbers[numbers.length - 1] = newSegmentNumber(segs.numbers);
+						writeManifest(numbers);
+						readManifest();
+						System.out.println("RACache: Started segment " + numbers[numbers.length - 1] + " of cache set '" + dirName + "'");
+					}
+				}finally{
+					lock.release();
+				}
+			}catch(IOException e){
+				System.err.println("ERROR starting new segment of cache set '" + dirName + "', carrying on with the old one: " + e);
+			}
+		}
+
+		//anything still queued for the old one can't wait, since get() looks in the new one first
+		active.flush();
+
+		if(segments.sets.length > maxSegments && cleanQueued.compareAndSet(false, true)){
+			RACacheService.ioExecutor().execute(() -> {
+				try{
+					cleanCache(false);
+				}finally{
+					cleanQueued.set(false);
+				}
+			});
+		}
+		return segments.active();
+	}
+
+	/** @return A number for a new segment, one more than any in the manifest, after deleting any files
+	 * left over with that number. Needs manifestLock and the file lock. */
+	private int newSegmentNumber(int numbers[]) throws IOException{
+		int number = 0;
+		for(int n : numbers)
+			number = Math.max(number, n);
+		number++;
+
+		File files[] = new File(dirName).listFiles();
+		if(files != null)
+			for(File file : files)
+				if(file.getName().startsWith("segment_" + number + "."))
+					Files.deleteIfExists(file.toPath());
+		return number;
+	}
+
+	/** Invalidates the given keys in all the segments before the given one (which has to be one of them)
+	 * that are open. Those that aren't have nothing indexed, and get() finds the new entry first anyway. */
+	private void invalidateOlder(RACacheSet segs[], RACacheSet active, Collection<?> requestKeys){
+		for(RACacheSet segment : segs){
+			if(segment == active)
+				break;
+			if(!segment.isOpen())
+				continue;
+			ArrayList<Object> toInvalidate = new ArrayList<>();
+			for(Object requestKey : requestKeys)
+				if(segment.mightContain(RACacheKey.hash(requestKey)))
+					toInvalidate.add(requestKey);
+			if(!toInvalidate.isEmpty())
+				segment.invalidate(toInvalidate, true);
+		}
+	}
+
+	@Override
+	public boolean isOpen(){
+		for(RACacheSet segment : segments.sets)
+			if(segment.isOpen())
+				return true;
+		return false;
+	}
+
+	/** @return Whether the manifest has changed since the given segments, after catching up with it */
+	private boolean segmentsChanged(Segments old){
+		return syncManifest() && segments != old;
+	}
+
+	private static boolean isSegment(RACacheSet segs[], RACacheSet set){
+		for(RACacheSet segment : segs)
+			if(segment == set)
+				return true;
+		return false;
+	}
+
+	/** @return Whether any segment we've looked in has grown since we took its end position (-1 if we didn't look),
+	 * and might now have one of the keys. A put goes in the newest segment before invalidating the key in the older
+	 * ones, so while we look from newest to oldest, it can get past us both ways. Those are caught up with. */
+	private static boolean segmentsGrew(Segments segs, long ends[], Collection<?> requestKeys){
+		boolean grew = false;
+		for(int i=0; i < ends.length; i++){
+			if(ends[i] < 0 || !segs.sets[i].hasGrownSince(ends[i]))
+				continue;
+			for(Object requestKey : requestKeys){
+				if(segs.sets[i].mightContain(RACacheKey.hash(requestKey))){
+					segs.sets[i].fastSync();
+					grew = true;
+					break;
+				}
+			}
+		}
+		return grew;
+	}
+
+	/** A miss is looked for again if the manifest changed meanwhile, since a merge might have moved it to a
+	 * segment we didn't have, or if it might have been put while we were looking (see segmentsGrew()). */
+	@Override
+	public Object get(Object requestKey){
+		int hash = RACacheKey.hash(requestKey);
+		Segments segs;
+		long ends[];
+		do{
+			syncManifest();
+			segs = segments;
+			ends = new long[segs.sets.length];
+			for(int i=segs.sets.length-1; i >= 0; i--){
+				ends[i] = segs.sets[i].endPos();
+				if(!segs.sets[i].mightContain(hash))
+					continue;
+				Object object = segs.sets[i].get(requestKey);
+				if(object != null)
+					return object;
+			}
+		}while(segmentsChanged(segs) || segmentsGrew(segs, ends, Arrays.asList(requestKey)));
+		return null;
+	}
+
+	@Override
+	public Map<Object, Object> getAll(Collection<?> requestKeys){
+		HashMap<Object, Object> found = new HashMap<>();
+		ArrayList<Object> remaining = new ArrayList<>(requestKeys);
+		Segments segs;
+		long ends[];
+		do{
+			syncManifest();
+			segs = segments;
+			ends = new long[segs.sets.length];
+			Arrays.fill(ends, -1);
+			for(int i=segs.sets.length-1; i >= 0 && !remaining.isEmpty(); i--){
+				ends[i] = segs.sets[i].endPos();
+				ArrayList<Object> toLook = new ArrayList<>();
+				for(Object requestKey : remaining)
+					if(segs.sets[i].mightContain(RACacheKey.hash(requestKey)))
+						toLook.add(requestKey);
+				if(toLook.isEmpty())
+					continue;
+
+				Map<Object, Object> foundHere = segs.sets[i].getAll(toLook);
+				if(!foundHere.isEmpty()){
+					found.putAll(foundHere);
+					remaining.removeIf(foundHere::containsKey);
+				}
+			}
+		}while(!remaining.isEmpty() && (segmentsChanged(segs) || segmentsGrew(segs, ends, remaining)));
+		return found;
+	}
+
+	@Override
+	public boolean mightContain(int hash){
+		RACacheSet segs[] = segments.sets;
+		if(segs.length == 0)
+			return true; //get() will find out
+		for(RACacheSet segment : segs)
+			if(segment.mightContain(hash))
+				return true;
+		return false;
+	}
+
+	/** The keys of the segments, oldest first. Keys that are also in a newer segment are left out, since
+	 * put() only invalidates keys in older segments it has open. */
+	@Override
+	public Stream<Object> streamKeys(){
+		syncManifest();
+		Segments segs = segments;
+		Stream<Object> keys = Stream.empty();
+		for(int i=0; i < segs.sets.length; i++){
+			int newer = i + 1;
+			keys = Stream.concat(keys, segs.sets[i].streamKeys().filter(
+					key -> !isInSegments(segs, newer, segs.sets.length, null, new RACacheKey(key))));
+		}
+		return keys;
+	}
+
+	@Override
+	public void put(Object requestKey, Object object){
+		putInActive(Arrays.asList(requestKey), active -> active.put(requestKey, object));
+	}
+
+	@Override
+	public void putAll(Map<?, ?> entries){
+		putInActive(entries.keySet(), active -> active.putAll(entries));
+	}
+
+	/** Puts things in the active segment and invalidates their keys in the older ones. If a merge dropped
+	 * the segment before we wrote to it (it was active when we looked), they weren't copied (or it was
+	 * closed and took nothing), so they're put again in the one that's active now. */
+	private void putInActive(Collection<?> requestKeys, Consumer<RACacheSet> putter){
+		while(true){
+			RACacheSet active = activeSegment();
+			if(active == null)
+				return;
+			putter.accept(active);
+
+			syncManifest();
+			RACacheSet segs[] = segments.sets;
+			if(isSegment(segs, active)){
+				invalidateOlder(segs, active, requestKeys);
+				return;
+			}
+		}
+	}
+
+	@Override
+	public boolean delete(Object requestKey){
+		boolean deleted = false;
+		long generation;
+		do{
+			//if the segments were merged while we were at it, the merged one could still have it
+			generation = manifestGeneration;
+			for(RACacheSet segment : segments())
+				deleted |= segment.delete(requestKey);
+		}while(syncManifest() && manifestGeneration != generation);
+		return deleted;
+	}
+
+	@Override
+	public void flush(){
+		for(RACacheSet segment : segments.sets)
+			segment.flush();
+	}
+
+	@Override
+	void forceFile(){
+		for(RACacheSet segment : segments.sets)
+			segment.forceFile();
+	}
+
+	@Override
+	public void fastSync(){
+		for(RACacheSet segment : segments())
+			if(segment.isOpen())
+				segment.fastSync();
+	}
+
+	@Override
+	void close(){
+		synchronized (manifestLock) {
+			for(RACacheSet segment : segments.sets)
+				segment.close();
+			try{ if(manifestFC != null) manifestFC.close(); }catch(IOException e){ e.printStackTrace(); }
+			manifestFC = null;
+			manifestMBBuf = null;
+			manifestGeneration = -1;
+			segments = new Segments(new int[0], new RACacheSet[0]);
+		}
+		super.close();
+	}
+
+	@Override
+	void dropFromMemory(Object requestKey){
+		for(RACacheSet segment : segments.sets)
+			segment.dropFromMemory(requestKey);
+	}
+
+	@Override
+	public FileLock acquireLoadLease(int hash, long maxWaitMillis){
+		ensureManifest(); //so the directory is there
+		return super.acquireLoadLease(hash, maxWaitMillis);
+	}
+
+	@Override
+	public void setHotTier(RACacheHotTier hotTier){
+		super.setHotTier(hotTier);
+		for(RACacheSet segment : segments.sets)
+			segment.setHotTier(hotTier);
+	}
+
+	@Override
+	public void setOffHeapTier(RACacheOffHeapTier offHeapTier){
+		super.setOffHeapTier(offHeapTier);
+		for(RACacheSet segment : segments.sets)
+			segment.setOffHeapTier(offHeapTier);
+	}
+
+	@Override
+	public void setWriteBehind(boolean writeBehind){
+		super.setWriteBehind(writeBehind);
+		for(RACacheSet segment : segments.sets)
+			segment.setWriteBehind(writeBehind);
+	}
+
+	@Override
+	public long fileBytes(){
+		long bytes = 0;
+		for(RACacheSet segment : segments())
+			bytes += segment.fileBytes();
+		return bytes;
+	}
+
+	@Override
+	public long liveBytes(){
+		long bytes = 0;
+		for(RACacheSet segment : segments())
+			bytes += segment.liveBytes();
+		return bytes;
+	}
+
+	@Override
+	public long[] accessSnapshot(){
+		RACacheSet segs[] = segments();
+		long snapshots[][] = new long[segs.length][];
+		int n = 0;
+		for(int i=0; i < segs.length; i++){
+			snapshots[i] = segs[i].accessSnapshot();
+			n += snapshots[i].length;
+		}
+		long all[] = new long[n];
+		n = 0;
+		for(long snapshot[] : snapshots){
+			System.arraycopy(snapshot, 0, all, n, snapshot.length);
+			n += snapshot.length;
+		}
+		return all;
+	}
+
+	/** Evicts from the oldest segments first, for entries last used at the same time */
+	@Override
+	public long evict(int lastAccessCutoff, long maxBytes){
+		long evicted = 0;
+		for(RACacheSet segment : segments()){
+			if(evicted >= maxBytes)
+				break;
+			evicted += segment.evict(lastAccessCutoff, maxBytes - evicted);
+		}
+		return evicted;
+	}
+
+	/** Merges the segments where at least segmentCompactFraction of the file is dead (overwritten or
+	 * deleted entries), most first, into one new segment of up to segmentBytes of live entries. That takes
+	 * the place of the newest of them in the manifest, in the same write that drops them. Segments with
+	 * nothing left in them are always dropped, and while there would still be more than maxSegments, the
+	 * smallest of the others are merged in too. The active segment is left alone. 
+	 * 
+	 * It's done with the manifest locked, so only one process merges at a time, and with the file locks of
+	 * the segments being merged, so nobody changes them in the meantime. Their entries are copied as they 
+	 * are stored, so only the keys are deserialised. Any entry that's also in a newer segment which isn't
+	 * being merged is left out, since it's out of date (put() only invalidates keys in segments it has open).
+	 * 
+	 * With checkObjectPackageIntegrity, each segment is first cleaned by RACacheSet.cleanCache() with that check.
+	 */
+	@Override
+	public void cleanCache(boolean checkObjectPackageIntegrity){
+		flush();
+		if(checkObjectPackageIntegrity)
+			for(RACacheSet segment : segments())
+				segment.cleanCache(true);
+
+		if(!syncManifest())
+			return;
+		synchronized (manifestLock) {
+			if(manifestFC == null)
+				return;
+			try{
+				FileLock lock = lockManifest();
+				try{
+					readManifest();
+					mergeSegments();
+				}finally{
+					lock.release();
+				}
+			}catch(IOException e){
+				System.err.println("ERROR merging segments of cache set '" + dirName + "': ");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Chooses segments to merge and merges them, see cleanCache(). Needs manifestLock and the file lock. */
+	private void mergeSegments() throws IOException{
+		Segments segs = segments;
+		int n = segs.sets.length;
+		if(n < 2)
+			return; //only the active one
+
+		long liveBytes[] = new long[n - 1];
+		double deadFraction[] = new double[n - 1];
+		ArrayList<Integer> candidates = new ArrayList<>();
+		for(int i=0; i < n - 1; i++){
+			segs.sets[i].fastSync(); //others might have changed it since we last looked
+			long fileBytes = segs.sets[i].fileBytes();
+			liveBytes[i] = segs.sets[i].liveBytes();
+			deadFraction[i] = (fileBytes > 0) ? (double)(fileBytes - liveBytes[i]) / fileBytes : 1;
+			candidates.add(i);
+		}
+
+		//the most dead first, as long as they fit in one segment
+		boolean selected[] = new boolean[n];
+		int nSelected = 0;
+		long mergedBytes = 0;
+		long maxMergedBytes = (segmentBytes > 0) ? segmentBytes : Long.MAX_VALUE;
+		candidates.sort((a, b) -> Double.compare(deadFraction[b], deadFraction[a]));
+		for(int i : candidates){
+			if(liveBytes[i] > 0 && (deadFraction[i] < compactDeadFraction || (mergedBytes > 0 && mergedBytes + liveBytes[i] > maxMergedBytes)))
+				continue;
+			selected[i] = true;
+			nSelected++;
+			mergedBytes += liveBytes[i];
+		}
+
+		//then the smallest, if there would still be too many
+		candidates.sort((a, b) -> Long.compare(liveBytes[a], liveBytes[b]));
+		for(int i : candidates){
+			if(n - nSelected + (mergedBytes > 0 ? 1 : 0) <= maxSegments)
+				break;
+			if(selected[i])
+				continue;
+			selected[i] = true;
+			nSelected++;
+			mergedBytes += liveBytes[i];
+		}
+
+		if(nSelected == 0){
+			System.out.println("RandomAccessCache: No segments of cache set '" + dirName + "' need merging.");
+			return;
+		}
+
+		int newest = 0;
+		for(int i=0; i < n - 1; i++)
+			if(selected[i])
+				newest = i;
+		final int target = newest; //where the merged one goes
+
+		long t0 = System.currentTimeMillis();
+		ArrayList<RACacheSet> locked = new ArrayList<>();
+		RACacheSet merged = null;
+		int number = 0;
+		long nKept = 0;
+		try{
+			for(int i=0; i < n - 1; i++){
+				if(!selected[i])
+					continue;
+				if(!segs.sets[i].lockForMerge()){
+					System.err.println("WARNING: Couldn't open segment " + segs.numbers[i] + " of cache set '" + dirName + "', not merging.");
+					return;
+				}
+				locked.add(segs.sets[i]);
+			}
+
+			for(int i=0; i < n - 1; i++){
+				if(!selected[i])
+					continue;
+				List<PendingEntry> entries = segs.sets[i].readValidEntries();
+				int newer = i + 1;
+				entries.removeIf(pending -> isInSegments(segs, newer, n, selected, pending.key));
+				if(entries.isEmpty())
+					continue;
+				if(merged == null){
+					number = newSegmentNumber(segs.numbers);
+					merged = new RACacheSet(getCacheType(), getSetName(), getTagName(), segmentFileName(number), metrics());
+				}
+				merged.appendStored(entries);
+				nKept += entries.size();
+			}
+			if(merged != null){
+				//it's opened again from the manifest, and we don't want two channels on it
+				merged.close();
+				merged = null;
+			}
+
+			int numbers[] = new int[n - nSelected + (nKept > 0 ? 1 : 0)];
+			int k = 0;
+			for(int i=0; i < n; i++){
+				if(i == target && nKept > 0)
+					numbers[k++] = number;
+				else if(!selected[i])
+					numbers[k++] = segs.numbers[i];
+			}
+			writeManifest(numbers);
+
+		}finally{
+			if(merged != null)
+				merged.close();
+			for(RACacheSet segment : locked)
+				segment.unlockForMerge();
+		}
+
+		readManifest();
+		deleteDroppedSegmentFiles();
+
+		System.out.println("RandomAccessCache: Merged " + nSelected + " of " + n + " segments of cache set '" + dirName + "' into " +
+				((nKept > 0) ? ("segment " + number + " with " + nKept + " entries") : "nothing") + " in " + (System.currentTimeMillis() - t0) + "ms.");
+	}
+
+	/** @return Whether any of the segments from 'from' up to (not including) 'to', except those to skip (if any), has an entry for the key */
+	private static boolean isInSegments(Segments segs, int from, int to, boolean skip[], RACacheKey key){
+		for(int i=from; i < to; i++){
+			if((skip == null || !skip[i]) && segs.sets[i].mightContain(key.hash) && segs.sets[i].containsKey(key.key))
+				return true;
+		}
+		return false;
+	}
+
+	/** Deletes the files of segments not in the manifest. Needs manifestLock and the file lock. */
+	private void deleteDroppedSegmentFiles() throws IOException{
+		int numbers[] = segments.numbers;
+		File files[] = new File(dirName).listFiles();
+		if(files == null)
+			return;
+		for(File file : files){
+			String name = file.getName();
+			if(!name.startsWith("segment_"))
+				continue;
+			int end = name.indexOf('.');
+			int number;
+			try{
+				number = Integer.parseInt(name.substring(8, (end < 0) ? name.length() : end));
+			}catch(NumberFormatException e){
+				continue;
+			}
+			boolean inManifest = false;
+			for(int n : numbers)
+				inManifest |= (n == number);
+			if(!inManifest)
+				Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	/** Empties the set, leaving it as one new empty segment */
+	@Override
+	public void emptyFile(){
+		if(!syncManifest())
+			return;
+		synchronized (manifestLock) {
+			try{
+				FileLock lock = lockManifest();
+				try{
+					readManifest();
+					Segments segs = segments;
+					for(RACacheSet segment : segs.sets)
+						segment.emptyFile();
+					writeManifest(new int[]{ newSegmentNumber(segs.numbers) });
+					readManifest();
+					deleteDroppedSegmentFiles();
+				}finally{
+					lock.release();
+				}
+			}catch(IOException e){
+				System.err.println("ERROR: Couldn't empty cache set '" + dirName + "':");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void dumpCacheMemoryStats(PrintStream out){
+		RACacheSet segs[] = segments.sets;
+		out.println("Segmented cache set '" + dirName + "', " + segs.length + " segments:");
+		for(RACacheSet segment : segs)
+			segment.dumpCacheMemoryStats(out);
+	}
+
+	/** @return Paths of the segment files in the given segmented set directory, for adding up their sizes */
+	static List<Path> segmentFiles(File dir){
+		ArrayList<Path> paths = new ArrayList<>();
+		File files[] = dir.listFiles();
+		if(files != null)
+			for(File file : files)
+				if(file.getName().startsWith("segment_") && file.getName().endsWith(".mrc"))
+					paths.add(file.toPath());
+		return paths;
+	}
+}
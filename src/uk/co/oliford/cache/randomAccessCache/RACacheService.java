@@ -2,6 +2,16 @@ package uk.co.oliford.cache.randomAccessCache;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import uk.co.oliford.cache.common.CacheService;
 import uk.co.oliford.jolu.OneLiners;
@@ -25,8 +35,66 @@ public class RACacheService implements CacheService {
 	 * Leaving this on FULL will delegate to individual caches. */
 	private int generalCacheMode = CacheService.CACHEMODE_FULL;
 	
-	/** The list of caches for each cache type */
-	HashMap<String, RACache> caches = new HashMap<>();
+	/** The list of caches for each cache type. Concurrent, since any thread can ask for one first.
+	 * Making an RACache only lists its directory, its sets are opened when they are used. */
+	ConcurrentHashMap<String, RACache> caches = new ConcurrentHashMap<>();
+	
+	/** Threads doing the getAsync()/putAsync()/organiseAsync() work, for all caches. The number is
+	 * 'minerva.cache.ioThreads' and the queue 'minerva.cache.ioQueueSize'. When the queue is full,
+	 * the caller does the job itself, which stops anyone getting too far ahead of the disk. */
+	private static volatile ExecutorService ioExecutor;
+	private static final AtomicInteger nIOThreads = new AtomicInteger();
+	
+	/** The executor for async cache I/O, made the first time it's needed */
+	public static ExecutorService ioExecutor(){
+		ExecutorService executor = ioExecutor;
+		if(executor != null)
+			return executor;
+		
+		synchronized (RACacheService.class) {
+			if(ioExecutor == null){
+				int nThreads = Integer.parseInt(SettingsManager.defaultGlobal().getProperty("minerva.cache.ioThreads", "4"));
+				int queueSize = Integer.parseInt(SettingsManager.defaultGlobal().getProperty("minerva.cache.ioQueueSize", "1024"));
+				
+				ThreadPoolExecutor pool = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<>(queueSize), r -> {
+							Thread t = new Thread(r, "RACache I/O " + nIOThreads.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}, new ThreadPoolExecutor.CallerRunsPolicy());
+				pool.allowCoreThreadTimeOut(true);
+				
+				//let anything queued finish on exit, they are daemons so would otherwise just stop
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+					pool.shutdown();
+					try{
+						pool.awaitTermination(60, TimeUnit.SECONDS);
+					}catch(InterruptedException e){ }
+				}, "RACache I/O exit"));
+				
+				ioExecutor = pool;
+			}
+			return ioExecutor;
+		}
+	}
+	
+	@Override
+	public CompletableFuture<Object> getAsync(String cacheName, String setKeyName, Object requestKey) {
+		if(generalCacheMode == CacheService.CACHEMODE_OFF ||
+				generalCacheMode == CacheService.CACHEMODE_UPDATE)
+			return CompletableFuture.completedFuture(null);
+		
+		return getCache(cacheName).getAsync(setKeyName, requestKey);
+	}
+	
+	@Override
+	public CompletableFuture<Void> putAsync(String cacheName, String setKeyName, Object requestKey, Object object) {
+		if(generalCacheMode == CacheService.CACHEMODE_READONLY ||
+				generalCacheMode == CacheService.CACHEMODE_OFF)
+			return CompletableFuture.completedFuture(null);
+		
+		return getCache(cacheName).putAsync(setKeyName, requestKey, object);
+	}
 	
 	@Override
 	public Object get(String cacheName, String setKeyName,
@@ -52,18 +120,55 @@ public class RACacheService implements CacheService {
 		c.put(setKeyName, requestKey, object);
 	}
 	
+	@Override
+	public Map<Object, Object> getAll(String cacheName, String setKeyName, Collection<?> requestKeys) {
+		if(generalCacheMode == CacheService.CACHEMODE_OFF ||
+				generalCacheMode == CacheService.CACHEMODE_UPDATE)
+			return new HashMap<>();
+		
+		return getCache(cacheName).getAll(setKeyName, requestKeys);
+	}
+	
+	@Override
+	public void putAll(String cacheName, String setKeyName, Map<?, ?> entries) {
+		if(generalCacheMode == CacheService.CACHEMODE_READONLY ||
+				generalCacheMode == CacheService.CACHEMODE_OFF)
+			return; //nothing to do
+		
+		getCache(cacheName).putAll(setKeyName, entries);
+	}
+	
+	/** Only one caller calculates the entry in CACHEMODE_FULL (see RACache.computeIfAbsent()),
+	 * otherwise it's get(), compute, put() with the checks of those. */
+	@Override
+	public Object computeIfAbsent(String cacheName, String setKeyName, Object requestKey, Function<Object, Object> loader) {
+		if(generalCacheMode == CacheService.CACHEMODE_FULL)
+			return getCache(cacheName).computeIfAbsent(setKeyName, requestKey, loader);
+		
+		Object object = get(cacheName, setKeyName, requestKey);
+		if(object != null)
+			return object;
+		
+		object = loader.apply(requestKey);
+		if(object != null)
+			put(cacheName, setKeyName, requestKey, object);
+		return object;
+	}
+	
+	@Override
+	public CompletableFuture<Void> organiseAsync(String cacheName, String setKeyName) {
+		if(generalCacheMode == CacheService.CACHEMODE_READONLY ||
+				generalCacheMode == CacheService.CACHEMODE_OFF)
+			return CompletableFuture.completedFuture(null); //nothing to do
+		
+		return getCache(cacheName).organiseAsync(setKeyName);
+	}
+	
 	/** Get the cache object for the given cache (if you're in minerva, don't store it) */
 	@Override
 	public RACache getCache(String cacheName){
 		
-		RACache c = caches.get(cacheName);
-		if(c == null){
-			//make it
-			c = new RACache(cacheName, generalCacheMode, null, false);
-			caches.put(cacheName, c);
-		}
-		
-		return c;
+		return caches.computeIfAbsent(cacheName, name -> new RACache(name, generalCacheMode, null, false));
 	}
 
 	/** Returns the path to the cache files from the minerva settings manager */
@@ -72,9 +177,31 @@ public class RACacheService implements CacheService {
 					System.getProperty("java.io.tmpdir") + "/minerva/cache");
 	}
 
+	/** Returns a setting for the given cache, which is '[name].[cacheName]' if that's
+	 * in the settings, otherwise '[name]' or the default */
+	public static String getCacheSetting(String cacheName, String name, String defaultValue){
+		SettingsManager settings = SettingsManager.defaultGlobal();
+		if(cacheName != null && settings.propertyDefined(name + "." + cacheName))
+			return settings.getProperty(name + "." + cacheName);
+		return settings.getProperty(name, defaultValue);
+	}
+
+	/** Lets go of all the loaded keys and objects of all the caches in the VM, see RACacheMemory */
 	@Override
 	public void clearMemory() {
-		// TODO Auto-generated method stub
+		RACacheMemory.clearMemory();
+	}
+	
+	/** Lets go of the least recently used loaded keys and objects of all the caches in the VM until
+	 * they're estimated to use no more than the given bytes of heap, see RACacheMemory.
+	 * @return The estimated bytes let go of */
+	public long trimMemoryTo(long maxBytes) {
+		return RACacheMemory.trimTo(maxBytes);
+	}
+	
+	/** @return Estimated bytes of heap used by all the caches in the VM, see RACacheMemory */
+	public long getMemoryBytes() {
+		return RACacheMemory.memoryBytes();
 	}
 
 	@Override
@@ -84,14 +211,9 @@ public class RACacheService implements CacheService {
 
 	@Override
 	public void setCacheMode(String cacheName, int cacheMode) {
-		RACache c = caches.get(cacheName);
-		if(c != null)
-			c.setCacheMode(cacheMode);
-		else{
-			//make it, so it gets picked up later
-			c = new RACache(cacheName, cacheMode, null, false);
-			caches.put(cacheName, c);
-		}	
+		//make it if necessary, so it gets picked up later
+		caches.computeIfAbsent(cacheName, name -> new RACache(name, cacheMode, null, false))
+			.setCacheMode(cacheMode);
 	}
 	
 	@Override
@@ -111,17 +233,20 @@ public class RACacheService implements CacheService {
 	public Collection<RACache> getAllCaches() {		 
 		return caches.values();
 	}
+	
+	@Override
+	public Map<String, Map<String, Long>> getMetrics() {
+		TreeMap<String, Map<String, Long>> metrics = new TreeMap<>();
+		for(Map.Entry<String, RACache> entry : caches.entrySet())
+			metrics.put(entry.getKey(), entry.getValue().getMetrics());
+		return metrics;
+	}
 
 	@Override
 	public void setCacheTag(String cacheName, String tagName, boolean copyExisting) {
-		RACache c = caches.get(cacheName);
-		if(c != null)
-			c.setCacheTag(tagName, copyExisting);
-		else{
-			//make it, so it gets picked up later
-			c = new RACache(cacheName, generalCacheMode, tagName, copyExisting);
-			caches.put(cacheName, c);
-		}
+		//make it if necessary, so it gets picked up later
+		caches.computeIfAbsent(cacheName, name -> new RACache(name, generalCacheMode, tagName, copyExisting))
+			.setCacheTag(tagName, copyExisting);
 	}
 
 	@Override
@@ -144,16 +269,18 @@ public class RACacheService implements CacheService {
 		return false;
 	}
 
+	/** Asks all the sets we have open to read anything added to their files since. 
+	 * This is how sets with the 'explicit' sync policy catch up (see RACacheSet). */
 	@Override
 	public void fastSync() {
-		// TODO Auto-generated method stub
-		// ask the files we have in memory to do a sync
+		for(RACache c : caches.values())
+			c.fastSync();
 	}
 
 	/** Just until we fix the SDK dependancy problem and/or 
 	 * rewrite ServiceManager */
 	private static RACacheService instance = null;
-	public static CacheService instance() {
+	public static synchronized CacheService instance() {
 		if(instance == null)
 			instance = new RACacheService();
 		return instance;
@@ -1,29 +1,50 @@
 package uk.co.oliford.cache.randomAccessCache;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintStream;
-import java.io.PrintWriter;
 import java.io.RandomAccessFile;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.OverlappingFileLockException;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.Checksum;
 
 import uk.co.oliford.jolu.OneLiners;
 import uk.co.oliford.jolu.SettingsManager;
@@ -42,14 +63,23 @@ import uk.co.oliford.jolu.SettingsManager;
  * 
  * Loaded objects are left in memory on a weak reference, so will hopefully get unloaded 
  * by the VM as we run out of memory, as we can always pick them back up off the disk 
- * (and maybe even the OS's disk cache) later on. 
- * 
- * Unfortunately, the mixture of needing all of HashMap's internal logic that I cannot
- * be bothered to copy or rewrite, and needing to store the full keys on disk, means
- * we use a hashmap as map of entries key'ed by another hash. 
+ * (and maybe even the OS's disk cache) later on.
+ * The most used ones are also held strongly by the RACacheHotTier shared by the
+ * sets of our RACache, so those survive the GC, and the weak references are the overflow.
+ * Optionally, an RACacheOffHeapTier keeps copies of the packages of recently loaded
+ * objects outside the heap, so that reloading one doesn't need the disk.
+ *
+ * The index is a RACacheIndex, an open addressing table over primitive arrays
+ * keyed by the hash of the request key, since we need to hold multiple entries under
+ * a single hash and can't afford a HashMap node and RACacheEntry for every entry
+ * in the file. RACacheEntry objects (with the weak references) are only made for
+ * entries that get touched.
  * 
- * Multiple entries under a single hash are chained under RACacheEntry.nextEntry
- * because HashMap's internal logic for this isn't exposed to us.
+ * Threads: Any number of threads can get() at once. They share the read side of
+ * indexLock and load from the file with positional reads, so they never move the
+ * channel position. Anything that changes the index or writes to the file 
+ * (put, sync, clean) takes the write side, and then the file lock for other processes.
+ * Serialisation in put() happens before either lock is taken.
  * 
  * 
  * The file looks something like this...
@@ -76,16 +106,94 @@ import uk.co.oliford.jolu.SettingsManager;
  * 	a) x1 Entry code. One of ENTRYCODE_xxxx
  *  b) x4 integer hash of the request key
  *  c) x4 integer size of request key serialised package
- *  d) x4 integer size of cached object serialised package
- * 	e) x? Serialised request key package
- * 	f) x? Serialised cache object package.
+ *  d) x4 integer size of cached object serialised package (as stored, i.e. compressed)
+ *  e) x1 Compression flags for the object package, see RACacheCompression (version 2 onwards)
+ *  f) x8 64-bit fingerprint of the request key package, see RACacheKey.fingerprint() (version 3 onwards)
+ *  g) x4 CRC32C of b) to f), the key package and the object package, see RACacheChecksum (version 4 onwards)
+ * 	h) x? Serialised request key package
+ * 	i) x? Serialised cache object package.
+ * 
+ * Version 1 files have no flags byte, versions 1 and 2 have no fingerprint and versions 1 to 3
+ * have no checksum. They are still read, and new entries are added to them in their own format,
+ * until a new file is made. That includes the packages being Java serialised in version 1 files,
+ * since code from before the codecs (see RACacheCodecs) might still be reading them.
+ * 
+ * The checksum leaves out the entry code, since that's changed in place when the entry is
+ * overwritten or deleted. When the file is opened, every entry after those covered by the index
+ * file is checked against it, and the file is truncated at the first that doesn't match, which is
+ * what a write torn by a crash looks like. cleanCache(true) also checks the checksums, rather than
+ * deserialising everything.
+ * 
+ * Durability: 'minerva.cache.fsyncPolicy' (or '....<cacheName>') says when appended entries are
+ * forced to the disk:
+ *   'put'      - Before the file lock is released after every put(). (default)
+ *   'periodic' - By a background thread, at most 'minerva.cache.fsyncIntervalMillis' after a put().
+ *   'close'    - Only when the file is closed, or the VM exits.
+ * The last two lose whatever hadn't got to the disk in a crash, but the checksums mean that's all
+ * they lose. Files from before version 4 are always forced on every put(), since nothing would
+ * notice a torn entry in them. The index file is only written once the .mrc is on the disk, so it
+ * never covers entries that might not be.
+ * 
+ * The fingerprint means we only need to load keys from the file for entries that really
+ * match, or not at all if the trustKeyFingerprints setting is on. It relies on equal keys
+ * serialising to the same bytes, which is true of everything the codecs do, and the
+ * usual Java serialised keys, but not e.g. of a HashMap built in a different order.
+ * The codec settings can change which codec a key gets, so the fingerprint carries the codec ID
+ * and entries whose key went through a different codec to the request key's are always
+ * checked against the key in the file.
  * 
  * Serialised object packages are an integer number of bytes and then the data
- * as per the normal object serialisation.
+ * as per the normal object serialisation, or a codec ID byte and that codec's data
+ * (see RACacheCodecs).
  * 
  * Individual objects cannot be over 4GB, that's (at the time of writing) just silly.
  * but the cache files can be.
  * 
+ * 
+ * Index file: Next to each .mrc is a '.mrc.idx' checkpoint of the index, so that opening a
+ * big set doesn't need to walk the whole file. It's only a hint, and is ignored unless
+ * it matches the UUID of the .mrc and covers no more entries than it has.
+ * It looks like:
+ * 	1) String identifier, "MinervaRandomAccessCacheIndexVer" and a version integer.
+ *  2) Long UUID of the .mrc file it was made from.
+ *  3) Long number of entries in the .mrc file (valid or not) it covers. 
+ *  4) Long position in the .mrc of the end of the last entry it covers. 
+ *  5) Integer number of records.
+ *  For each record:
+ *  a) x1 Entry code, always ENTRYCODE_VALID at the moment.
+ *  b) x4 integer hash of the request key.
+ *  c) x8 long fingerprint of the request key, or 0 if not known (index version 2 onwards).
+ *  d) x8 long position of the entry in the .mrc file.
+ *  e) x4 integer size of request key serialised package.
+ *  f) x4 integer size of cached object serialised package.
+ *  g) x4 integer time the entry was last used, see RACacheIndex.accessClock() (index version 3 onwards).
+ * 
+ * Entries after that are read from the .mrc as normal, and the index file is rewritten
+ * when that gets long, or after a clean. The last used times are merged with those already
+ * in the index file when it's rewritten, so that they include other processes' use of the
+ * entries as of their last rewrite of it. Entries we have no time for count as last used
+ * when the .mrc was last modified.
+ *
+ * Quotas: RACacheQuota keeps the .mrc files within 'minerva.cache.setQuotaBytes' each, and
+ * those of a cache within 'minerva.cache.quotaBytes', by deleting the least recently used entries
+ * (see evict()) and then cleaning the file.
+ *
+ * Bloom file: There is also a '.mrc.bloom' with an RACacheBloomFilter of the key hashes,
+ * so that RACache can tell a set definitely doesn't have a key (see mightContain()) without
+ * opening it, which for a set that isn't opened otherwise saves loading its whole index.
+ * It's written with the index file, and after every indexCheckpointEntries appends, and
+ * whoever uses it reads the entries added to the .mrc since. It looks like:
+ * 	1) String identifier, "MinervaRandomAccessCacheBloomVer" and a version integer.
+ *  2) Long UUID of the .mrc file it was made from.
+ *  3) Long number of entries in the .mrc file it covers.
+ *  4) Long position in the .mrc of the end of the last entry it covers.
+ *  5) Integer entry header size of the .mrc.
+ *  6) The filter, see RACacheBloomFilter.write().
+ *
+ * Lease file: '.mrc.lease' is always empty, but processes loading an entry in computeIfAbsent()
+ * lock the byte at the key's hash in it, so that others wanting the same thing wait for
+ * that instead of working it out too. See acquireLoadLease().
+ *
  * @author oliford codes@oliford.co.uk
  *
  */
@@ -110,8 +218,15 @@ public class RACacheSet {
 	/** Probably max header size (for locking and page mapping etc) */
 	public static final int maxHeaderSize = 1024;
 	
-	/** The cache version, to check in the file */
-	public static final int version = 1;
+	/** The cache version, to check in the file. New files are made at this version,
+	 * but older ones are still read and appended to in their own format. */
+	public static final int version = 4;
+	
+	/** Version of the file we have open, from its header */
+	private int fileVersion = version;
+	
+	/** Size of the header before each entry's packages, which depends on the file version */
+	private int entryHeaderSize = entryHeaderSize(version);
 	
 	/** IDs for this object, used by outside via the setters/getters*/
 	private String cacheName;	
@@ -122,17 +237,30 @@ public class RACacheSet {
 	private RandomAccessFile raFile;
 	
 	/** The file (NIO), random access and kept open */
-	private FileChannel fc;
+	private volatile FileChannel fc;
+	
+	/** File system identity (e.g. inode) of the file we opened, so we can tell if it gets replaced */
+	private Object openFileKey;
+	
+	/** Guards the index, the file position and the header state within this VM.
+	 * Readers hold the read lock, anything modifying the index or file holds the write lock. */
+	private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
 	
 	private FileLock writeLock = null;
 	
+	/** The '.mrc.lease' file, for computeIfAbsent() loads, see acquireLoadLease() */
+	private FileChannel leaseFC;
+	
+	/** Hashes whose load lease this thread holds, so a nested computeIfAbsent() doesn't wait for itself */
+	private final ThreadLocal<Set<Integer>> leasesHeld = ThreadLocal.withInitial(HashSet::new);
+	
 	@SuppressWarnings("unused")
 	private String writeLockHolderStackTrace = "";
 	
 	/** Keep the first 16 bytes mapped, so we can tell when
 	 * the file has been modified, hopefully without wearing the heads
 	 * on the disk out. */
-	private MappedByteBuffer headerMBBuf;
+	private volatile MappedByteBuffer headerMBBuf;
 	
 	/** The number of entries in the file as far as we are aware.
 	 * If the number in the file gets bigger and the UUID remains the same
@@ -149,16 +277,170 @@ public class RACacheSet {
 	 * as nEntriesInFile doesn't change */
 	private long lastKnownEndPos; 
 	
-	/** HashMap of memory cache. Keys in this are integer hashes of the real keys. */
-	java.util.HashMap<Integer, RACacheEntry> memCache = new HashMap<>();
+	/** Index of the memory cache, by integer hashes of the real keys.
+	 * Only modified with the write side of indexLock held. It holds the key fingerprints
+	 * unless 'minerva.cache.indexFingerprints' (or '....<cacheName>') is false, which saves
+	 * 8 bytes an entry, for sets whose keys rarely share a hash. Without them, a get() of an entry
+	 * whose key isn't loaded has to read it from the file to check it, trustKeyFingerprints or not,
+	 * and the index file is written without them too. */
+	final RACacheIndex memCache;
 	
-	/** Cache statistics */
-	private static long nCollisionInPut = 0;
-	private static long nMisses = 0;
-	private static long nHitFromMem = 0;
-	private static long nHitFromDisk = 0;
-	private static long nKeyLostFromMem = 0;
-	private static long nObjectLostFromMem = 0;
+	/** Compression of object packages (version 2 files). The method is set by 'minerva.cache.compression'
+	 * ('none', 'deflate' or 'lz'), or 'minerva.cache.compression.<cacheName>' for a particular cache.
+	 * Packages smaller than compressionMinSize are never compressed. */
+	private volatile int compressionMethod;
+	private static final int compressionMinSize = Integer.parseInt(SettingsManager.defaultGlobal().getProperty("minerva.cache.compressionMinSize", "1024"));
+	/** Deflater level, 1 (fastest) to 9 (smallest) */
+	private static final int compressionLevel = Integer.parseInt(SettingsManager.defaultGlobal().getProperty("minerva.cache.compressionLevel", "1"));
+	
+	/** Strong references to the hottest loaded objects, shared with the other sets of our RACache.
+	 * The SoftReferences in the entries only hold what doesn't fit there. null if not in use. */
+	private volatile RACacheHotTier hotTier;
+	
+	/** Off-heap copies of object packages, also shared with the other sets, or null if not in use */
+	private volatile RACacheOffHeapTier offHeapTier;
+	
+	/** Trust that entries with the same key hash and 64-bit fingerprint have the same key, so never
+	 * load keys from the file to check. 'minerva.cache.trustKeyFingerprints' (or '....<cacheName>'), default false */
+	private final boolean trustKeyFingerprints;
+	
+	/** How get() keeps up with what other processes add to the file, 'minerva.cache.syncPolicy'
+	 * (or '....<cacheName>'):
+	 *   'always'   - Check the header on every get(), and read anything new. (default)
+	 *   'interval' - Only check if it's been more than 'minerva.cache.syncIntervalMillis' since the last time,
+	 *                so things can be that stale.
+	 *   'explicit' - Only on fastSync() (e.g. RACacheService.fastSync()), or when we write to the file ourselves.
+	 *   'watch'    - RACacheWatcher follows the file from a background thread when the OS says it's changed.
+	 * Writing always catches up first, whatever the policy. */
+	private final int syncPolicy;
+	public static final int SYNC_ALWAYS = 0;
+	public static final int SYNC_INTERVAL = 1;
+	public static final int SYNC_EXPLICIT = 2;
+	public static final int SYNC_WATCH = 3;
+	private final long syncIntervalMillis;
+	
+	/** When we last checked the file for changes */
+	private volatile long lastSyncTime;
+
+	/** When appended entries are forced to disk, 'minerva.cache.fsyncPolicy' (see the class comment) */
+	private final int fsyncPolicy;
+	public static final int FSYNC_PUT = 0;
+	public static final int FSYNC_PERIODIC = 1;
+	public static final int FSYNC_CLOSE = 2;
+	private final long fsyncIntervalMillis;
+
+	/** Set when we've released the file lock without forcing the file, until something does */
+	private final AtomicBoolean fsyncNeeded = new AtomicBoolean(false);
+	private final AtomicBoolean fsyncScheduled = new AtomicBoolean(false);
+
+	/** One background thread does the periodic forcing for all the sets */
+	private static final ScheduledExecutorService fsyncer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "RACache fsync");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/** Sets with entries that might not be on the disk yet, to be forced on exit */
+	private static final Set<RACacheSet> unforcedSets = ConcurrentHashMap.newKeySet();
+	
+	/** Size of the buffers for copying entries during compaction */
+	private static final int compactionBufferSize = 1024 * 1024;
+	
+	/** getAll() reads entries that are no further apart than this in the same read, up to bulkReadMaxBytes */
+	private static final int bulkReadMaxGap = 65536;
+	private static final int bulkReadMaxBytes = 4 * 1024 * 1024;
+	
+	/** Size of reads when scanning the file for entry headers */
+	private static final int indexReadBufferSize = 65536;
+	
+	/** Identifier and version of the index checkpoint file */
+	public static final String INDEX_IDSTR = "MinervaRandomAccessCacheIndexVer";
+	public static final int indexFileVersion = 3;
+	private static final int indexFileRecordSize = 33;
+	/** Version 2 index files have no last used time, but are still read */
+	private static final int indexFileRecordSizeV2 = 29;
+	
+	/** Identifier and version of the bloom file */
+	public static final String BLOOM_IDSTR = "MinervaRandomAccessCacheBloomVer";
+	public static final int bloomFileVersion = 1;
+
+	/** Bloom filter of the key hashes in memCache, so that RACache can skip us for keys we definitely
+	 * don't have. It's only added to with the write side of indexLock, and replaced with a bigger
+	 * one when full, so mightContain() doesn't need the lock. null if 'minerva.cache.bloomFilter'
+	 * (or '....<cacheName>') is false. */
+	private volatile RACacheBloomFilter bloom;
+	private final boolean bloomEnabled;
+	private static final int bloomMinCapacity = 1024;
+
+	/** Number of entries in the file when we last wrote the bloom file */
+	private long bloomFileNEntries;
+
+	/** Until we open the file: The filter from the bloom file, brought up to closedBloomNEntries
+	 * of the .mrc, and a read only map of the .mrc header to see when that changes.
+	 * All guarded by closedBloomLock. */
+	private final Object closedBloomLock = new Object();
+	private RACacheBloomFilter closedBloom;
+	private MappedByteBuffer closedHeaderMBBuf;
+	/** The channel those are read with, and the identity of its file. It's only closed by close(), along
+	 * with any it was on before the file was replaced, since closing a channel releases all of this
+	 * process's locks on the file, including those other RACacheSets in this VM have on it. */
+	private FileChannel closedFC;
+	private Object closedFileKey;
+	private final ArrayList<FileChannel> replacedClosedFCs = new ArrayList<>();
+	private long closedBloomUUID;
+	private long closedBloomNEntries;
+	private long closedBloomEndPos;
+	private int closedBloomEntryHeaderSize;
+	/** Set (under closedBloomLock) as soon as openFile() starts. After that, the closed filter isn't used */
+	private boolean fileOpened;
+
+	/** Set by close(), after which the file isn't opened again. Segments dropped from a RACacheSegmentedSet
+	 * can still be in use by threads that looked before, and their files might be gone or reused. */
+	private volatile boolean closed;
+
+	/** Rewrite the index checkpoint file when opening needs to read more than this many
+	 * entries from the .mrc past it. 0 to never write them. */
+	private static final long indexCheckpointEntries = Long.parseLong(SettingsManager.defaultGlobal().getProperty("minerva.cache.indexCheckpointEntries", "10000"));
+	
+	/** Write-behind mode: put() serialises the entry and queues it, then a background 
+	 * thread appends the queue in batches under one lock and one flush.
+	 * Off by default, since a crash loses anything still queued. */
+	private volatile boolean writeBehind = Boolean.parseBoolean(SettingsManager.defaultGlobal().getProperty("minerva.cache.writeBehind", "false"));
+	private static final long writeBehindMaxLatency = Long.parseLong(SettingsManager.defaultGlobal().getProperty("minerva.cache.writeBehindMaxLatencyMillis", "200"));
+	private static final int writeBehindMaxBatch = Integer.parseInt(SettingsManager.defaultGlobal().getProperty("minerva.cache.writeBehindMaxBatch", "256"));
+	private static final int writeBehindQueueSize = Integer.parseInt(SettingsManager.defaultGlobal().getProperty("minerva.cache.writeBehindQueueSize", "4096"));
+	
+	private final LinkedBlockingQueue<PendingEntry> pendingQueue = new LinkedBlockingQueue<>(writeBehindQueueSize);
+	private final ConcurrentHashMap<RACacheKey, PendingEntry> pendingEntries = new ConcurrentHashMap<>();
+	/** Held while writing out the queue, so flush() can wait for a background write to finish */
+	private final ReentrantLock flushLock = new ReentrantLock();
+	
+	/** Held by cleanCache(), so that only one thread in this VM cleans the set at a time.
+	 * Other processes are kept out by the temporary file. */
+	private final ReentrantLock cleanLock = new ReentrantLock();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean flushNowQueued = new AtomicBoolean(false);
+	
+	/** One background thread does the writing for all the write-behind sets */
+	private static final ScheduledExecutorService writeBehindFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "RACache write-behind");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/** Sets that have used write-behind, to be flushed on exit */
+	private static final Set<RACacheSet> writeBehindSets = ConcurrentHashMap.newKeySet();
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			for(RACacheSet set : writeBehindSets)
+				set.flush();
+			for(RACacheSet set : unforcedSets)
+				set.forceFile();
+		}, "RACache write-behind exit flush"));
+	}
+	
+	/** Cache statistics and operation times, for this set */
+	private final RACacheMetrics metrics;
 	/** Number of attempts before alerting the user to poor memdisk rates */
 	private long regularStatsInterval = Long.parseLong(SettingsManager.defaultGlobal().getProperty("minerva.cache.regularStatsInterval", "240000"));
 	private long lastStatsOutput = (regularStatsInterval > 0) ? System.currentTimeMillis() : Long.MIN_VALUE;
@@ -166,39 +448,129 @@ public class RACacheSet {
 	private long lastStatsWarning = 0;
 	
 	protected RACacheSet(String cacheName, String setName, String tagName) {
+		this(cacheName, setName, tagName, setFileName(cacheName, setName, tagName, ".mrc"), new RACacheMetrics());
+	}
+	
+	/** For sets in a file other than the usual one, e.g. the segments of a RACacheSegmentedSet,
+	 * which all count in the metrics of that. */
+	RACacheSet(String cacheName, String setName, String tagName, String fileName, RACacheMetrics metrics) {
 		this.cacheName = cacheName;
 		this.setName = setName;
 		this.tagName = tagName;		 
-		this.fileName = RACacheService.getCachePath() + RACacheService.forFilename(cacheName) + //FIXME: Removed file seperator symbol between first two terms. If this breaks something we need to find a different solution. luru@ipp.mpg.de  
+		this.fileName = fileName;
+		this.metrics = metrics;
+		
+		trustKeyFingerprints = Boolean.parseBoolean(RACacheService.getCacheSetting(cacheName, "minerva.cache.trustKeyFingerprints", "false"));
+		memCache = new RACacheIndex(Boolean.parseBoolean(RACacheService.getCacheSetting(cacheName, "minerva.cache.indexFingerprints", "true")));
+		compressionMethod = RACacheCompression.methodFromName(RACacheService.getCacheSetting(cacheName, "minerva.cache.compression", "none"));
+		bloomEnabled = Boolean.parseBoolean(RACacheService.getCacheSetting(cacheName, "minerva.cache.bloomFilter", "true"));
+		bloom = bloomEnabled ? new RACacheBloomFilter(bloomMinCapacity) : null;
+		syncPolicy = syncPolicyFromName(RACacheService.getCacheSetting(cacheName, "minerva.cache.syncPolicy", "always"));
+		syncIntervalMillis = Long.parseLong(RACacheService.getCacheSetting(cacheName, "minerva.cache.syncIntervalMillis", "1000"));
+		fsyncPolicy = fsyncPolicyFromName(RACacheService.getCacheSetting(cacheName, "minerva.cache.fsyncPolicy", "put"));
+		fsyncIntervalMillis = Long.parseLong(RACacheService.getCacheSetting(cacheName, "minerva.cache.fsyncIntervalMillis", "1000"));
+		fc = null; //don't open the file until we are actually called
+	}
+	
+	private static int syncPolicyFromName(String name){
+		switch(name.trim().toLowerCase()){
+			case "always": return SYNC_ALWAYS;
+			case "interval": return SYNC_INTERVAL;
+			case "explicit": return SYNC_EXPLICIT;
+			case "watch": return SYNC_WATCH;
+			default:
+				System.err.println("WARNING: Unknown cache sync policy '" + name + "', using 'always'");
+				return SYNC_ALWAYS;
+		}
+	}
+
+	private static int fsyncPolicyFromName(String name){
+		switch(name.trim().toLowerCase()){
+			case "put": return FSYNC_PUT;
+			case "periodic": return FSYNC_PERIODIC;
+			case "close": return FSYNC_CLOSE;
+			default:
+				System.err.println("WARNING: Unknown cache fsync policy '" + name + "', using 'put'");
+				return FSYNC_PUT;
+		}
+	}
+
+	/** @return The path of the file (or whatever) for a set, with the given extension */
+	static String setFileName(String cacheName, String setName, String tagName, String extension){
+		return RACacheService.getCachePath() + RACacheService.forFilename(cacheName) + //FIXME: Removed file seperator symbol between first two terms. If this breaks something we need to find a different solution. luru@ipp.mpg.de  
 									"/minervaCache_" + RACacheService.forFilename(cacheName) + 
 									"_" + RACacheService.forFilename(setName) +
-									(tagName != null ? ("_" + RACacheService.forFilename(tagName)) : "") + ".mrc";
-		System.out.println("filename in constructor is : "+this.fileName);
-		fc = null; //don't open the file until we are actually called
+									(tagName != null ? ("_" + RACacheService.forFilename(tagName)) : "") + extension;
 	}
 	
+	public int getSyncPolicy(){ return syncPolicy; }
+
+	public int getFsyncPolicy(){ return fsyncPolicy; }
+
+	/** @return true if we've opened the file and read the index */
+	public boolean isOpen(){ return fc != null; }
+	
 	/** Look up the given object, load the data and return it */
 	public Object get(Object requestKey){
 		try{
-			fastSync();
+			//anything still in the write-behind queue is the latest
+			if(!pendingEntries.isEmpty()){
+				PendingEntry pending = pendingEntries.get(new RACacheKey(requestKey));
+				if(pending != null){
+					metrics.nHitFromMem.increment();
+					return pending.object;
+				}
+			}
 			
-			//if(fc == null)
-				//openFile();
+			syncForRead();
 			
-			RACacheEntry raEntry = findTrueRequestKeyMatch(requestKey, false);
+			for(int attempt=0; ; attempt++){
+				Object object = getFromSet(requestKey, attempt == 0);
+				if(object != invalidatedOnDisk)
+					return object;
+				
+				//someone else overwrote it, and still has the file lock if we didn't see the new one.
+				//So wait for that, and look again.
+				syncFromWatcher();
+			}
 			
-			if(raEntry == null){
-				nMisses++;
+		}catch(Exception e){ //cache should never throw errors, only show warnings
+			System.err.println("RACACHE ERROR in get():");
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/** Returned by getFromSet() if the entry found has been invalidated in the file since we read the index */
+	private static final Object invalidatedOnDisk = new Object();
+	
+	/** The rest of get(), once synced. 
+	 * @param canRetry Whether to return invalidatedOnDisk, rather than null, for an entry invalidated on disk */
+	private Object getFromSet(Object requestKey, boolean canRetry){
+		long t0 = RACacheMetrics.now();
+		indexLock.readLock().lock();
+		try{
+			metrics.lockWait.recordSince(t0);
+			if(fc == null){ //failed to open, or closed under us by a clean
+				metrics.nMisses.increment();
 				return null;
 			}
 			
-			Object object = null;
-			if(raEntry.objectRef != null){
-				object = raEntry.objectRef.get();
-				if(object == null)
-					nObjectLostFromMem++;
+			t0 = RACacheMetrics.now();
+			int entry = findTrueRequestKeyMatch(requestKey, 0);
+			metrics.indexLookup.recordSince(t0);
+			
+			if(entry < 0){
+				metrics.nMisses.increment();
+				return null;
 			}
 			
+			RACacheEntry raEntry = memCache.touch(entry);
+			memCache.recordAccess(entry);
+			
+			RACacheHotTier hotTier = this.hotTier;
+			Object object = getFromMemory(raEntry);
+			
 			//checkStatsOutput();
 			
 			//if it's not in memory (it got GC'ed, or never was loaded)
@@ -210,76 +582,455 @@ public class RACacheSet {
 					e.printStackTrace();
 					return null;			
 				}
-				nHitFromDisk++;
+				if(object == null){ //invalidated on disk
+					if(canRetry)
+						return invalidatedOnDisk;
+					metrics.nMisses.increment();
+					return null;
+				}
+				if(hotTier != null)
+					hotTier.put(this, raEntry, object);
+				metrics.nHitFromDisk.increment();
 			}else{
-				nHitFromMem++;
+				metrics.nHitFromMem.increment();
 			}
 			
 			return object; // we've got it, yippee!
+		}finally{
+			indexLock.readLock().unlock();
+		}
+	}
+	
+	/** The object for an entry if it's still in memory, from the hot tier, or the soft reference 
+	 * which is the overflow for it, or null if it needs loading */
+	private Object getFromMemory(RACacheEntry raEntry){
+		RACacheHotTier hotTier = this.hotTier;
+		Object object = (hotTier != null) ? hotTier.get(raEntry) : null;
+		if(object != null){
+			metrics.nHitFromHotTier.increment();
+			return object;
+		}
+		
+		SoftReference<Object> objectRef = raEntry.objectRef;
+		if(objectRef != null){
+			object = objectRef.get();
+			if(object == null)
+				metrics.nObjectLostFromMem.increment();
+			else if(hotTier != null)
+				hotTier.put(this, raEntry, object);
+		}
+		return object;
+	}
+	
+	/** Looks up lots of keys at once, with one sync and one lock. The entries not already in
+	 * memory are loaded in order of their position in the file, with runs of nearby ones
+	 * read in one go.
+	 * 
+	 * @return Map of the request keys (the given objects) that were found to their objects.
+	 */
+	public Map<Object, Object> getAll(Collection<?> requestKeys){
+		HashMap<Object, Object> found = new HashMap<>();
+		try{
+			ArrayList<Object> remainingKeys = new ArrayList<>(requestKeys.size());
+			for(Object requestKey : requestKeys){
+				//anything still in the write-behind queue is the latest
+				PendingEntry pending = pendingEntries.isEmpty() ? null : pendingEntries.get(new RACacheKey(requestKey));
+				if(pending != null){
+					metrics.nHitFromMem.increment();
+					found.put(requestKey, pending.object);
+				}else{
+					remainingKeys.add(requestKey);
+				}
+			}
+			if(remainingKeys.isEmpty())
+				return found;
+			
+			syncForRead();
+			
+			long t0 = RACacheMetrics.now();
+			indexLock.readLock().lock();
+			try{
+				metrics.lockWait.recordSince(t0);
+				if(fc == null){
+					metrics.nMisses.add(remainingKeys.size());
+					return found;
+				}
+				
+				ArrayList<Object> toLoadKeys = new ArrayList<>();
+				ArrayList<RACacheEntry> toLoad = new ArrayList<>();
+				for(Object requestKey : remainingKeys){
+					t0 = RACacheMetrics.now();
+					int entry = findTrueRequestKeyMatch(requestKey, 0);
+					metrics.indexLookup.recordSince(t0);
+					if(entry < 0){
+						metrics.nMisses.increment();
+						continue;
+					}
+					
+					RACacheEntry raEntry = memCache.touch(entry);
+					memCache.recordAccess(entry);
+					Object object = getFromMemory(raEntry);
+					if(object != null){
+						metrics.nHitFromMem.increment();
+						found.put(requestKey, object);
+					}else{
+						toLoadKeys.add(requestKey);
+						toLoad.add(raEntry);
+					}
+				}
+				
+				if(!toLoad.isEmpty())
+					loadCachedObjects(toLoadKeys, toLoad, found);
+				
+			}finally{
+				indexLock.readLock().unlock();
+			}
 			
 		}catch(Exception e){ //cache should never throw errors, only show warnings
-			System.err.println("RACACHE ERROR in get():");
+			System.err.println("RACACHE ERROR in getAll():");
 			e.printStackTrace();
-			return null;
+		}
+		return found;
+	}
+	
+	/** Loads the objects of many entries for getAll(), in order of their position in the file,
+	 * reading runs that are no more than bulkReadMaxGap apart in one read of up to bulkReadMaxBytes.
+	 * Needs at least the read side of indexLock. */
+	private void loadCachedObjects(List<Object> requestKeys, List<RACacheEntry> raEntries, Map<Object, Object> found) throws IOException{
+		RACacheOffHeapTier offHeapTier = this.offHeapTier;
+		RACacheHotTier hotTier = this.hotTier;
+		
+		//anything in the off-heap tier doesn't need reading, sort the rest by position
+		ArrayList<Integer> order = new ArrayList<>(raEntries.size());
+		for(int i=0; i < raEntries.size(); i++){
+			byte data[] = (offHeapTier != null) ? offHeapTier.get(raEntries.get(i)) : null;
+			if(data != null){
+				metrics.nHitFromOffHeap.increment();
+				try{
+					loadedObject(requestKeys.get(i), raEntries.get(i), data, found);
+				}catch(Exception e){
+					System.err.println("ERROR decoding object from the off-heap tier for cache file " + fileName + ": ");
+					e.printStackTrace();
+				}
+			}else{
+				order.add(i);
+			}
+		}
+		order.sort((a, b) -> Long.compare(raEntries.get(a).entryHeaderPos, raEntries.get(b).entryHeaderPos));
+		
+		int first = 0;
+		while(first < order.size()){
+			//extend the run while the next one is close and it doesn't get too big
+			long runStart = raEntries.get(order.get(first)).entryHeaderPos;
+			long runEnd = entryEndPos(raEntries.get(order.get(first)));
+			int last = first;
+			while(last + 1 < order.size()){
+				RACacheEntry next = raEntries.get(order.get(last + 1));
+				if(next.entryHeaderPos - runEnd > bulkReadMaxGap || entryEndPos(next) - runStart > bulkReadMaxBytes)
+					break;
+				runEnd = Math.max(runEnd, entryEndPos(next));
+				last++;
+			}
+			
+			ByteBuffer runBuf = ByteBuffer.allocate((int)(runEnd - runStart));
+			readFully(runBuf, runStart);
+			
+			for(int j=first; j <= last; j++){
+				int i = order.get(j);
+				RACacheEntry raEntry = raEntries.get(i);
+				int offset = (int)(raEntry.entryHeaderPos - runStart);
+				if(runBuf.get(offset) != ENTRYCODE_VALID){ //invalidated on disk
+					metrics.nMisses.increment();
+					continue;
+				}
+				int objectFlags = (fileVersion >= 2) ? (runBuf.get(offset + 13) & 0xFF) : 0;
+				
+				byte data[] = new byte[raEntry.objectPackageSize];
+				System.arraycopy(runBuf.array(), offset + entryHeaderSize + raEntry.keyPackageSize, data, 0, data.length);
+				try{
+					data = RACacheCompression.decompress(data, objectFlags);
+					if(offHeapTier != null)
+						offHeapTier.put(this, raEntry, data);
+					loadedObject(requestKeys.get(i), raEntry, data, found);
+				}catch(Exception e){
+					System.err.println("ERROR loading object in cache file " + fileName + ". If the object package is corrupt, run cleanCache(true) to remove it. Error was: ");
+					e.printStackTrace();
+				}
+			}
+			first = last + 1;
+		}
+		
+		if(hotTier != null){
+			for(int i=0; i < raEntries.size(); i++){
+				Object object = found.get(requestKeys.get(i));
+				if(object != null)
+					hotTier.put(this, raEntries.get(i), object);
+			}
 		}
 	}
 	
-	/** Finds the RACacheEntry that /actually/ matches the request key out
+	/** Decodes a loaded package for loadCachedObjects() */
+	private void loadedObject(Object requestKey, RACacheEntry raEntry, byte data[], Map<Object, Object> found) throws IOException{
+		Object object;
+		try{
+			object = dataToObject(data);
+		}catch(ClassNotFoundException e){
+			throw new IOException(e);
+		}
+		raEntry.objectRef = new SoftReference<>(object);
+		found.put(requestKey, object);
+		metrics.nHitFromDisk.increment();
+	}
+	
+	private long entryEndPos(RACacheEntry raEntry){
+		return raEntry.entryHeaderPos + entryHeaderSize + raEntry.keyPackageSize + raEntry.objectPackageSize;
+	}
+	
+	/** Quick check of whether we might have an entry for a key, without looking at any keys,
+	 * and without opening the file if we haven't yet. Uses the bloom filter, so it can say
+	 * yes when we don't, but never no when we do (except for things being put right now).
+	 *
+	 * @param hash RACacheKey.hash() of the request key
+	 * @return false if we definitely don't have it
+	 */
+	public boolean mightContain(int hash){
+		if(!bloomEnabled || !pendingEntries.isEmpty())
+			return true;
+
+		boolean might;
+		if(fc != null){
+			RACacheBloomFilter bloom = this.bloom;
+			try{
+				//if someone else has added to the file, the filter doesn't know yet, but get() will sync it
+				might = bloom == null || hasFileChanged() || bloom.mightContain(hash);
+			}catch(IOException e){
+				might = true;
+			}
+		}else{
+			might = closedSetMightContain(hash);
+		}
+
+		if(!might)
+			metrics.nSkippedByBloom.increment();
+		return might;
+	}
+
+	/** mightContain() for before we've opened the file, from the bloom file */
+	private boolean closedSetMightContain(int hash){
+		synchronized (closedBloomLock) {
+			//fc is only null for a moment while it's being (re)opened, get() will wait for that
+			if(fileOpened)
+				return true;
+			try{
+				if(closedBloom == null && !loadClosedBloom())
+					return true; //no use, get() will just have to open it
+
+				long nEntriesHeader = closedHeaderMBBuf.getLong(0);
+				long uuid = closedHeaderMBBuf.getLong(8);
+				if(uuid != closedBloomUUID || nEntriesHeader < closedBloomNEntries){
+					//rewritten, there should be a new bloom file
+					closedBloom = null;
+					return true;
+				}
+
+				if(nEntriesHeader > closedBloomNEntries && !catchUpClosedBloom(nEntriesHeader)){
+					closedBloom = null;
+					return true;
+				}
+
+				return closedBloom.mightContain(hash);
+
+			}catch(Exception e){
+				System.err.println("WARNING: Couldn't use bloom file '" + getBloomFileName() + "': " + e);
+				closedBloom = null;
+				return true;
+			}
+		}
+	}
+
+	/** Called before opening the .mrc for ourselves. Once any closedSetMightContain() in progress has
+	 * finished with its channel, no more are opened, so none can be closed under our file lock. */
+	private void stopUsingClosedBloom(){
+		synchronized (closedBloomLock) {
+			fileOpened = true;
+			closedBloom = null;
+			closedHeaderMBBuf = null;
+		}
+	}
+
+	/** @return closedFC, opening it first, or again if the file has been replaced. Needs closedBloomLock. */
+	private FileChannel closedChannel(Path mrcPath) throws IOException{
+		Object fileKey = Files.readAttributes(mrcPath, BasicFileAttributes.class).fileKey();
+		if(closedFC != null && (fileKey == null || fileKey.equals(closedFileKey)))
+			return closedFC;
+		if(closedFC != null)
+			replacedClosedFCs.add(closedFC); //someone could still have a lock on the old one
+		closedFC = FileChannel.open(mrcPath, StandardOpenOption.READ);
+		closedFileKey = fileKey;
+		return closedFC;
+	}
+
+	/** Reads the bloom file, if there is one matching the .mrc, and maps the .mrc header. Needs closedBloomLock. */
+	private boolean loadClosedBloom() throws IOException{
+		Path bloomPath = Paths.get(getBloomFileName());
+		Path mrcPath = Paths.get(fileName);
+		if(!Files.exists(bloomPath) || !Files.exists(mrcPath))
+			return false;
+
+		ByteBuffer bBuf = ByteBuffer.wrap(Files.readAllBytes(bloomPath));
+		String id = readString(bBuf);
+		if(id == null || !id.equals(BLOOM_IDSTR + bloomFileVersion))
+			return false;
+
+		long uuid = bBuf.getLong();
+		long nEntriesCovered = bBuf.getLong();
+		long endPos = bBuf.getLong();
+		int hdrSize = bBuf.getInt();
+		RACacheBloomFilter bloomFromFile = RACacheBloomFilter.read(bBuf);
+		if(bloomFromFile == null)
+			return false;
+
+		FileChannel mrcFC = closedChannel(mrcPath);
+		if(mrcFC.size() < endPos)
+			return false;
+		MappedByteBuffer hdr = mrcFC.map(MapMode.READ_ONLY, 0, 16);
+		if(hdr.getLong(8) != uuid || hdr.getLong(0) < nEntriesCovered)
+			return false;
+
+		closedHeaderMBBuf = hdr;
+		closedBloomUUID = uuid;
+		closedBloomNEntries = nEntriesCovered;
+		closedBloomEndPos = endPos;
+		closedBloomEntryHeaderSize = hdrSize;
+		closedBloom = bloomFromFile;
+		return true;
+	}
+
+	/** Adds the hashes of the entries appended to the .mrc since closedBloomNEntries.
+	 * This is without the file lock, but the count in the header is only updated
+	 * after the entries are written, so everything it counts is there. Needs closedBloomLock.
+	 *
+	 * @return false if the entries didn't make sense, in which case the filter is no longer any use. */
+	private boolean catchUpClosedBloom(long nEntriesHeader) throws IOException{
+		int hdrSize = closedBloomEntryHeaderSize;
+		FileChannel mrcFC = closedFC;
+		ByteBuffer bBuf = ByteBuffer.allocate(indexReadBufferSize);
+		long bufStartPos = -1;
+		bBuf.limit(0);
+
+		long pos = closedBloomEndPos;
+		long nEntries = closedBloomNEntries;
+		while(nEntries < nEntriesHeader){
+			if(pos < bufStartPos || (pos + hdrSize) > (bufStartPos + bBuf.limit())){
+				bBuf.clear();
+				if(readAvailable(mrcFC, bBuf, pos) < hdrSize)
+					return false;
+				bBuf.flip();
+				bufStartPos = pos;
+			}
+
+			int offset = (int)(pos - bufStartPos);
+			byte entryCode = bBuf.get(offset);
+			if(entryCode == ENTRYCODE_VALID)
+				closedBloom.add(bBuf.getInt(offset + 1));
+			else if(entryCode != ENTRYCODE_OVERWRITTEN && entryCode != ENTRYCODE_DETELED)
+				return false;
+
+			pos += hdrSize + bBuf.getInt(offset + 5) + bBuf.getInt(offset + 9);
+			nEntries++;
+		}
+
+		closedBloomNEntries = nEntries;
+		closedBloomEndPos = pos;
+		return true;
+	}
+
+	/** Finds the index entry that /actually/ matches the request key out
 	 * of those (if any) that match the hash. This may involve loaded
-	 * keys from disk.
+	 * keys from disk, but only for entries whose key fingerprint matches
+	 * (or isn't known), and not even then in trustKeyFingerprints mode.
+	 * 
+	 * Needs at least the read side of indexLock.
 	 * 
 	 * @param requestKey	Key to look for exact match of.
-	 * @param remove		If true, the match is removed/decoupled from the memory cache.
-	 * @return
+	 * @param fingerprint	RACacheKey.fingerprint() of the request key's package, or 0 to work it out if needed.
+	 * @return The entry number in memCache, or -1 if there isn't one.
 	 */
-	private RACacheEntry findTrueRequestKeyMatch(Object requestKey, boolean remove){
-		// Yes, I know it's odd, but I do really mean to hashmap a hash here
-		int hash = Arrays.deepHashCode(new Object[]{ requestKey });
-		RACacheEntry raEntry = memCache.get(hash);
-		RACacheEntry lastEntry = null;
-		
-		//for each entry on the hash collision chain
-		while(raEntry != null){
-			
-			Object fullKey = getFullKey(raEntry);
-			
-			if(Arrays.deepEquals(new Object[]{ requestKey }, new Object[]{ fullKey })) {
-				if(remove){
-					//remove the discovered entry from the hashmap, or the collision chain 
-					if(lastEntry == null){
-						memCache.put(hash, raEntry.nextEntry);
-											
-					}else{
-						lastEntry.nextEntry = raEntry.nextEntry;
+	private int findTrueRequestKeyMatch(Object requestKey, long fingerprint){
+		int hash = RACacheKey.hash(requestKey);
+		int match = -1;
+		boolean haveFingerprint = (fingerprint != 0);
+		
+		//for each entry with the same hash
+		for(int slot = memCache.firstSlot(hash); slot >= 0; slot = memCache.nextSlot(hash, slot)){
+			int entry = memCache.entryAt(slot);
+			
+			//another process might have overwritten an entry we know about, and we
+			//only marked the old one invalid if we've reloaded. The latest one is right. 
+			if(match >= 0 && memCache.entryHeaderPos(entry) < memCache.entryHeaderPos(match))
+				continue;
+			
+			//if we still have the key, that's the quickest check
+			Object fullKey = null;
+			RACacheEntry raEntry = memCache.getTouched(entry);
+			if(raEntry != null){
+				SoftReference<Object> keyRef = raEntry.keyRef;
+				if(keyRef != null)
+					fullKey = keyRef.get();
+			}
+			
+			if(fullKey == null){
+				//otherwise, the fingerprint saves loading keys that don't match
+				long entryFingerprint = memCache.fingerprint(entry);
+				if(entryFingerprint != 0){
+					if(!haveFingerprint){
+						fingerprint = keyFingerprint(requestKey);
+						haveFingerprint = true;
+					}
+					//a different codec (e.g. since the codec settings changed) can't say anything
+					if(fingerprint != 0 && RACacheKey.sameCodec(entryFingerprint, fingerprint)){
+						if(entryFingerprint != fingerprint)
+							continue;
+						if(trustKeyFingerprints){
+							match = entry;
+							continue;
+						}
 					}
-					
-					//decouple from chain, since we're return the object
-					raEntry.nextEntry = null;	
 				}
 				
+				fullKey = getFullKey(memCache.touch(entry));
+			}
+			
+			if(RACacheKey.keysEqual(requestKey, fullKey)) {
 				//since we now lose the 'fullKey' hard ref
 				//the GC could free the request key here, but we don't actually care
 				//because the caller has the key they just asked for, which is the
 				//same thing
-				return raEntry;
+				match = entry;
 			}
-			
-			lastEntry = raEntry;
-			raEntry = raEntry.nextEntry;
 		}
 
-		//no matching entries
-		return null;
+		return match;
+	}
+	
+	/** @return The fingerprint of the package of the given request key, or 0 if it can't be serialised */
+	private long keyFingerprint(Object requestKey){
+		try{
+			return RACacheKey.fingerprint(objectToData(requestKey));
+		}catch(IOException e){
+			return 0;
+		}
 	}
 	
 
 	private Object getFullKey(RACacheEntry raEntry) {
 		//we need the key (as a hard reference)
 		Object fullKey = null;
-		if(raEntry.keyRef != null){
-			fullKey = raEntry.keyRef.get();
+		SoftReference<Object> keyRef = raEntry.keyRef;
+		if(keyRef != null){
+			fullKey = keyRef.get();
 			if(fullKey == null)
-				nKeyLostFromMem++;
+				metrics.nKeyLostFromMem.increment();
 		}
 		
 		//if it's not in memory (it got GC'ed, or was never loaded)
@@ -297,66 +1048,299 @@ public class RACacheSet {
 		return fullKey;
 	}
 
+	/** @return All the request keys, in file order. For big sets, streamKeys() doesn't need them all in memory at once. */
 	public List<Object> getKeys() {
-		if(fc == null)
-			openFile();
+		return streamKeys().collect(Collectors.toCollection(ArrayList::new));
+	}
 	
-		LinkedList<Object> allKeys = new LinkedList<>();
+	/** Streams the request keys, in file order, reading them from the file as it goes rather than
+	 * loading them into the index, so nothing is kept once the stream has passed. Keys that are near each
+	 * other in the file come in the same read, see KeySpliterator. It can be made parallel, which
+	 * splits it into ranges of the file.
+	 * 
+	 * It's of the entries in the index when it's called. Those invalidated since are left out when it
+	 * gets to them, and those added since aren't included. If the file is compacted before it's finished,
+	 * it stops there with a warning, since it can't tell where it was in the new one. */
+	public Stream<Object> streamKeys() {
+		flush();
+		syncForRead();
 		
-		for(Entry<Integer, RACacheEntry> setEntry : memCache.entrySet()){
-			RACacheEntry raEntry = setEntry.getValue();
-			while(raEntry != null) {
-				Object fullKey = getFullKey(raEntry);
-				allKeys.add(fullKey);
-				raEntry = raEntry.nextEntry;
+		indexLock.readLock().lock();
+		try{
+			if(fc == null)
+				return Stream.empty();
+			
+			long positions[] = new long[memCache.size()];
+			int keySizes[] = new int[positions.length];
+			int n = 0;
+			for(int entry=0; entry < memCache.count() && n < positions.length; entry++){
+				if(memCache.isEntry(entry)){
+					positions[n] = memCache.entryHeaderPos(entry);
+					keySizes[n] = memCache.keyPackageSize(entry);
+					n++;
+				}
 			}
+			return StreamSupport.stream(new KeySpliterator(fc, fileUUID, positions, keySizes, 0, n), false);
+		}finally{
+			indexLock.readLock().unlock();
+		}
+	}
+	
+	/** Reads the keys of a range of the entries, in order, with reads covering the keys of runs of entries
+	 * no more than bulkReadMaxGap apart (up to bulkReadMaxBytes), so small entries come a window at a time
+	 * and big objects in between are skipped. Each read is done under the read side of indexLock, after
+	 * checking the file is still the one the positions are from. */
+	private final class KeySpliterator implements Spliterator<Object> {
+		/** Below this many entries, it's not worth splitting */
+		private static final int minSplitEntries = 1024;
+		
+		private final FileChannel fc;
+		private final long uuid;
+		private final long positions[];
+		private final int keySizes[];
+		private int index;
+		private final int end;
+		
+		private ByteBuffer window;
+		private long windowStartPos = -1;
+		/** Entries before this one are in the window */
+		private int windowEnd;
+		
+		KeySpliterator(FileChannel fc, long uuid, long positions[], int keySizes[], int index, int end) {
+			this.fc = fc;
+			this.uuid = uuid;
+			this.positions = positions;
+			this.keySizes = keySizes;
+			this.index = index;
+			this.end = end;
+			this.windowEnd = index;
+		}
+		
+		private long keyEndPos(int i){ return positions[i] + entryHeaderSize + keySizes[i]; }
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super Object> action) {
+			while(index < end){
+				if(index >= windowEnd && !fillWindow())
+					return false;
+				int i = index++;
+				int offset = (int)(positions[i] - windowStartPos);
+				if(window.get(offset) != ENTRYCODE_VALID)
+					continue; //invalidated since
+				
+				Object key;
+				try{
+					key = dataToObject(Arrays.copyOfRange(window.array(), offset + entryHeaderSize, offset + entryHeaderSize + keySizes[i]));
+				}catch(Exception e){
+					System.err.println("ERROR loading request key at position " + positions[i] + " in cache file " + fileName + ", skipping it: " + e);
+					continue;
+				}
+				action.accept(key);
+				return true;
+			}
+			return false;
+		}
+		
+		/** Reads the window from the current entry's header to the end of the key of the last entry near enough to it.
+		 * @return false if the file has changed under us, or couldn't be read, in which case we're finished */
+		private boolean fillWindow(){
+			int last = index;
+			while(last + 1 < end && (positions[last + 1] - keyEndPos(last)) <= bulkReadMaxGap 
+					&& (keyEndPos(last + 1) - positions[index]) <= bulkReadMaxBytes)
+				last++;
+			
+			int size = (int)(keyEndPos(last) - positions[index]);
+			if(window == null || window.capacity() < size)
+				window = ByteBuffer.allocate(Math.max(size, indexReadBufferSize));
+			window.clear();
+			window.limit(size);
+			
+			indexLock.readLock().lock();
+			try{
+				if(RACacheSet.this.fc != fc || fileUUID != uuid){
+					System.err.println("WARNING: Cache file " + fileName + " was reorganised while streaming its keys, stopping after " + index + " of " + positions.length + ".");
+					index = end;
+					return false;
+				}
+				long t0 = RACacheMetrics.now();
+				if(readAvailable(fc, window, positions[index]) < size)
+					throw new EOFException("Unexpected end of cache file " + fileName + " reading keys at " + positions[index]);
+				metrics.bytesRead.add(size);
+				metrics.diskRead.recordSince(t0);
+				
+			}catch(IOException e){
+				System.err.println("ERROR reading keys from cache file " + fileName + ": " + e);
+				index = end;
+				return false;
+			}finally{
+				indexLock.readLock().unlock();
+			}
+			
+			windowStartPos = positions[index];
+			windowEnd = last + 1;
+			return true;
+		}
+		
+		@Override
+		public Spliterator<Object> trySplit() {
+			int mid = (index + end) >>> 1;
+			if(mid - index < minSplitEntries || index < windowEnd)
+				return null;
+			KeySpliterator prefix = new KeySpliterator(fc, uuid, positions, keySizes, index, mid);
+			index = mid;
+			windowEnd = mid;
+			return prefix;
 		}
 		
-		return allKeys;
+		@Override
+		public long estimateSize() { return end - index; }
+		
+		@Override
+		public int characteristics() { return ORDERED | NONNULL; }
 	}
 
 	/** Add the given object to the cache */
 	public void put(Object requestKey, Object object){
+		long t0 = RACacheMetrics.now();
+		PendingEntry pending = makePendingEntry(requestKey, object);
+		if(pending == null)
+			return;
+		
+		if(writeBehind){
+			queueEntry(pending);
+		}else{
+			appendEntries(Collections.singletonList(pending));
+		}
+		metrics.nPuts.increment();
+		metrics.put.recordSince(t0);
+	}
+	
+	/** Adds all the given entries to the cache, with one lock, one contiguous 
+	 * write to the end of the file and one flush for the lot. */
+	public void putAll(Map<?, ?> entries){
+		long t0 = RACacheMetrics.now();
+		ArrayList<PendingEntry> batch = new ArrayList<>(entries.size());
+		for(Map.Entry<?, ?> e : entries.entrySet()){
+			PendingEntry pending = makePendingEntry(e.getKey(), e.getValue());
+			if(pending != null)
+				batch.add(pending);
+		}
+		if(batch.isEmpty())
+			return;
+		
+		if(writeBehind){
+			for(PendingEntry pending : batch)
+				queueEntry(pending);
+		}else{
+			appendEntries(batch);
+		}
+		metrics.nPuts.add(batch.size());
+		metrics.put.recordSince(t0);
+	}
+	
+	/** Serialises (and maybe compresses) an entry, outside of any locks since it's the slow bit.
+	 * @return The entry ready to append, or null if it couldn't be serialised */
+	private PendingEntry makePendingEntry(Object requestKey, Object object){
 		try {
-			if(fc == null)
-				openFile();
+			byte objectData[] = objectToData(object);
+			int flags = 0;
+			if(compressionMethod != RACacheCompression.METHOD_NONE && objectData.length >= compressionMinSize){
+				flags = RACacheCompression.compressionFlags(objectData, compressionMethod);
+				byte compressed[] = RACacheCompression.compress(objectData, flags, compressionLevel);
+				if(compressed != null)
+					objectData = compressed;
+				else
+					flags = 0;
+			}
+			return new PendingEntry(requestKey, object, objectToData(requestKey), objectData, flags);
+		} catch (Exception e) {
+			System.err.println("ERROR serialising an entry for cache file " + fileName + ": ");
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/** Writes a batch of entries to the end of the file, under one lock and one flush.
+	 * Existing entries for the same keys are invalidated. The new entries all go in one
+	 * contiguous (gathering) write, followed by one entry count update. */
+	private void appendEntries(List<PendingEntry> batch){
+		//only the last for any one key goes in, so nothing needs invalidating in what we're writing
+		if(batch.size() > 1)
+			batch = lastOfEachKey(batch);
+		
+		long t0 = RACacheMetrics.now();
+		indexLock.writeLock().lock();
+		if(fc == null)
+			openFile();
+		if(fc == null){ //it's said why, or it's been closed
+			indexLock.writeLock().unlock();
+			return;
+		}
 		
+		boolean downgraded = false;
+		try {
 			//all of this is going to have to be done with the file locked 
 			writeLock();
+			metrics.lockWait.recordSince(t0);
 			
 			checkIfFileHasBeenExtended();
-
-			//now see if we already know about this object (either we did already, 
-			// or another process added it and we've just loaded that.
-			// remove/decouple it if found
-			removeExistingEntry(requestKey, true);
-			
-			byte keyData[] = objectToData(requestKey);
-			byte objectData[] = objectToData(object);
-			
-			// we need to make a new entry
-			RACacheEntry entry = new RACacheEntry();
-			entry.entryHeaderPos = lastKnownEndPos;
-			entry.nextEntry = null;
-			entry.keyRef = new SoftReference<>(requestKey);
-			entry.keyPackageSize = keyData.length;
-			entry.objectRef = new SoftReference<>(object);
-			entry.objectPackageSize = objectData.length;
-			
-			int hash = Arrays.deepHashCode(new Object[]{ requestKey });
 			
-			//add it to the memory cache first
-			addEntryToMemoryCache(entry, hash);
+			long batchStartPos = lastKnownEndPos;
+			List<ByteBuffer> toWrite = new ArrayList<>(3 * batch.size() + 1);
+
+			for(PendingEntry pending : batch){
+				//older files have nowhere to say it was compressed, and older code can only read Java serialisation
+				byte keyData[] = pending.keyData;
+				byte objectData[] = pending.objectData;
+				int objectFlags = pending.objectFlags;
+				if(fileVersion < 2){
+					if(objectFlags != 0){
+						objectData = RACacheCompression.decompress(objectData, objectFlags);
+						objectFlags = 0;
+					}
+					keyData = javaSerialisedPackage(pending.key.key, keyData);
+					objectData = javaSerialisedPackage(pending.object, objectData);
+				}
+				
+				//now see if we already know about this object (either we did already, 
+				// or another process added it and we've just loaded that.
+				// remove/decouple it if found
+				removeExistingEntry(pending.key.key, pending.keyFingerprint, true);
+				
+				// we need to make a new entry
+				RACacheEntry entry = new RACacheEntry();
+				entry.entryHeaderPos = lastKnownEndPos;
+				entry.keyRef = new SoftReference<>(pending.key.key);
+				entry.keyPackageSize = keyData.length;
+				entry.objectRef = (pending.object != null) ? new SoftReference<>(pending.object) : null;
+				entry.objectPackageSize = objectData.length;
+				
+				//add it to the memory cache first
+				memCache.setTouched(addEntryToMemoryCache(pending.key.hash, pending.keyFingerprint, entry.entryHeaderPos, entry.keyPackageSize, entry.objectPackageSize), entry);
+				if(hotTier != null && pending.object != null)
+					hotTier.put(this, entry, pending.object);
+				
+				addToFileCache(toWrite, pending.key.hash, pending.keyFingerprint, keyData, objectData, objectFlags);
+			}
 			
-			addToFileCache(hash, keyData, objectData);
+			writeEntries(batchStartPos, toWrite);
 
 			updateEntryCount();
+			
+			//keep the bloom file close enough that sets nobody has opened can still use it
+			if(bloom != null && indexCheckpointEntries > 0 && (nEntriesInFile - bloomFileNEntries) >= indexCheckpointEntries)
+				writeBloomFile();
 
 			checkStatsOutput();
 			
+			//the index is complete, so readers can carry on while we wait for the disk
+			indexLock.readLock().lock();
+			indexLock.writeLock().unlock();
+			downgraded = true;
+			
 		} catch (Exception e) {
 			//cache should never throw errors
-			System.err.println("ERROR adding an entry to cache file " + fileName + ": ");
+			System.err.println("ERROR adding " + batch.size() + " entries to cache file " + fileName + ": ");
 			e.printStackTrace();
 		} finally {
 			//and we're done, force it to disk and release the lock
@@ -369,20 +1353,262 @@ public class RACacheSet {
 			}else{
 				System.err.println("RACacheSet.put() exiting with no file lock.");
 			}
+			if(downgraded)
+				indexLock.readLock().unlock();
+			else
+				indexLock.writeLock().unlock();
 		}
+	}
+	
+	/** A serialised entry on its way to the file */
+	static class PendingEntry {
+		final RACacheKey key;
+		final Object object;
+		final byte keyData[];
+		final long keyFingerprint;
+		/** The object package as it will be stored, possibly compressed */
+		final byte objectData[];
+		/** RACacheCompression flags for the entry header */
+		final int objectFlags;
+		
+		/** @param object The object, or null if we only have its package (see readValidEntries()) */
+		PendingEntry(Object requestKey, Object object, byte keyData[], byte objectData[], int objectFlags) {
+			this.key = new RACacheKey(requestKey);
+			this.object = object;
+			this.keyData = keyData;
+			this.keyFingerprint = RACacheKey.fingerprint(keyData);
+			this.objectData = objectData;
+			this.objectFlags = objectFlags;
+		}
+	}
+	
+	/** Write-behind mode: put() queues entries here and returns. Entries stay in
+	 * pendingEntries, so that get() still finds them, until they are in the file. */
+	private void queueEntry(PendingEntry pending){
+		if(!closed)
+			writeBehindSets.add(this);
+		pendingEntries.put(pending.key, pending);
+		
+		try {
+			pendingQueue.put(pending); //blocks while the queue is full
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			//don't lose it, just write it ourselves
+			pendingEntries.remove(pending.key, pending);
+			appendEntries(Collections.singletonList(pending));
+			return;
+		}
+		
+		if(pendingQueue.size() >= writeBehindMaxBatch){
+			if(flushNowQueued.compareAndSet(false, true))
+				writeBehindFlusher.execute(this::flushQueuedEntries);
+		}else if(flushScheduled.compareAndSet(false, true)){
+			writeBehindFlusher.schedule(this::flushQueuedEntries, writeBehindMaxLatency, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/** Writes everything in the write-behind queue, in batches of up to writeBehindMaxBatch */
+	private void flushQueuedEntries(){
+		flushScheduled.set(false);
+		flushNowQueued.set(false);
+		
+		flushLock.lock();
+		try{
+			ArrayList<PendingEntry> batch = new ArrayList<>(writeBehindMaxBatch);
+			while(pendingQueue.drainTo(batch, writeBehindMaxBatch) > 0){
+				appendEntries(batch);
+				
+				//it's now in the memory index, unless someone has put a newer one
+				for(PendingEntry pending : batch)
+					pendingEntries.remove(pending.key, pending);
+				batch.clear();
+			}
+		}catch(Exception e){
+			System.err.println("ERROR in write-behind flush of cache file " + fileName + ": ");
+			e.printStackTrace();
+		}finally{
+			flushLock.unlock();
+		}
+	}
+	
+	/** Blocks until everything put() so far is written to the file */
+	public void flush(){
+		if(pendingQueue.isEmpty() && !flushLock.isLocked())
+			return;
 		
+		//any flush in progress has the lock, so once we have it, that's done too
+		flushQueuedEntries();
+	}
+	
+	/** Writes anything queued and closes the files. Only for things like the benchmarks, 
+	 * that make lots of sets and throw them away, and segments that have been dropped.
+	 * The set shouldn't be used after this, and finds nothing and keeps nothing if it is. */
+	void close(){
+		flush();
+		closed = true;
+		writeBehindSets.remove(this);
+		RACacheMemory.unregister(this);
+		if(syncPolicy == SYNC_WATCH)
+			RACacheWatcher.unregister(this);
+		indexLock.writeLock().lock();
+		try{
+			closeFile();
+			unforcedSets.remove(this);
+			synchronized (this) {
+				try { if(leaseFC != null) leaseFC.close(); }catch (IOException e) { e.printStackTrace(); }
+				leaseFC = null;
+			}
+			synchronized (closedBloomLock) {
+				if(closedFC != null)
+					replacedClosedFCs.add(closedFC);
+				for(FileChannel oldFC : replacedClosedFCs)
+					try { oldFC.close(); }catch (IOException e) { e.printStackTrace(); }
+				replacedClosedFCs.clear();
+				closedFC = null;
+				closedBloom = null;
+				closedHeaderMBBuf = null;
+			}
+		}finally{
+			indexLock.writeLock().unlock();
+		}
+	}
+	
+	/** Forgets the loaded object for the given key, in all the memory tiers, so the next get()
+	 * has to read it from the file. For the benchmarks. */
+	void dropFromMemory(Object requestKey){
+		indexLock.readLock().lock();
+		try{
+			if(fc == null)
+				return;
+			int entry = findTrueRequestKeyMatch(requestKey, 0);
+			RACacheEntry raEntry = (entry >= 0) ? memCache.getTouched(entry) : null;
+			if(raEntry == null)
+				return;
+			raEntry.objectRef = null;
+			RACacheHotTier hotTier = this.hotTier;
+			if(hotTier != null)
+				hotTier.remove(raEntry);
+			RACacheOffHeapTier offHeapTier = this.offHeapTier;
+			if(offHeapTier != null)
+				offHeapTier.remove(raEntry);
+		}finally{
+			indexLock.readLock().unlock();
+		}
+	}
+	
+	String getLeaseFileName(){ return fileName + ".lease"; }
+	
+	/** Takes the lease on loading an entry for keys with the given hash, for computeIfAbsent()
+	 * across processes. It's a lock of the one byte at the hash's position in '<file>.mrc.lease',
+	 * which never has anything in it, so the OS drops it if the process holding it dies.
+	 * 
+	 * This polls tryLock(), because a blocking lock() can't be given up on, and an interrupt
+	 * would close the channel, and with it every lease this process has.
+	 * 
+	 * If this thread already holds the lease for the hash (the loader is itself loading something
+	 * with the same hash), it gets null straight away and loads without, since it would
+	 * otherwise wait for itself.
+	 * 
+	 * @param maxWaitMillis How long to wait for someone else to finish, 0 for as long as it takes.
+	 * @return The lease, for releaseLoadLease(), or null if we didn't get it.
+	 */
+	public FileLock acquireLoadLease(int hash, long maxWaitMillis){
+		Set<Integer> held = leasesHeld.get();
+		if(held.contains(hash))
+			return null;
 		
+		long t0 = System.currentTimeMillis();
+		long t = t0;
+		long sleep = 10;
+		try{
+			FileChannel leaseFC = getLeaseChannel();
+			do{
+				try{
+					FileLock lease = leaseFC.tryLock(hash & 0xFFFFFFFFL, 1, false);
+					if(lease != null){
+						held.add(hash);
+						return lease;
+					}
+				}catch(OverlappingFileLockException e){
+					//another thread here is loading a different key with the same hash
+				}
+				
+				Thread.sleep(sleep);
+				sleep = Math.min(500, sleep * 2);
+				if((System.currentTimeMillis() - t) > userAttentionSpan){
+					System.out.println("INFO: RandomAccessCache has been waiting for someone else to load an entry for cache file " + fileName + 
+										" for " + ((System.currentTimeMillis() - t0) / 1000) + "s.");
+					t = System.currentTimeMillis();
+				}
+			}while(maxWaitMillis <= 0 || (System.currentTimeMillis() - t0) < maxWaitMillis);
+			
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}catch(Exception e){ //just load it without
+			System.err.println("WARNING: Couldn't take load lease in '" + getLeaseFileName() + "': " + e);
+		}
+		return null;
+	}
+	
+	/** Releases a lease from acquireLoadLease(), which may be null */
+	public void releaseLoadLease(FileLock lease){
+		if(lease == null)
+			return;
+		leasesHeld.get().remove((int)lease.position());
+		try{
+			lease.release();
+		}catch(IOException e){
+			System.err.println("WARNING: Couldn't release load lease in '" + getLeaseFileName() + "': " + e);
+		}
+	}
+	
+	/** The channel of the lease file, which stays open so we don't lose the locks on it */
+	private synchronized FileChannel getLeaseChannel() throws IOException{
+		if(leaseFC == null){
+			OneLiners.mkdir(new File(fileName).getParentFile().toPath());
+			leaseFC = FileChannel.open(Paths.get(getLeaseFileName()), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		return leaseFC;
+	}
+	
+	/** Sets the (shared) tier of strong references to use for loaded objects, or null for none */
+	public void setHotTier(RACacheHotTier hotTier){
+		RACacheHotTier old = this.hotTier;
+		this.hotTier = hotTier;
+		if(old != null && old != hotTier)
+			old.removeSet(this);
+	}
+	
+	public RACacheHotTier getHotTier(){ return hotTier; }
+	
+	/** Sets the (shared) off-heap tier to keep object packages in, or null for none */
+	public void setOffHeapTier(RACacheOffHeapTier offHeapTier){
+		RACacheOffHeapTier old = this.offHeapTier;
+		this.offHeapTier = offHeapTier;
+		if(old != null && old != offHeapTier)
+			old.removeSet(this);
+	}
+	
+	public RACacheOffHeapTier getOffHeapTier(){ return offHeapTier; }
+	
+	/** Switches write-behind mode on or off. Switching it off flushes anything queued */
+	public void setWriteBehind(boolean writeBehind){
+		this.writeBehind = writeBehind;
+		if(!writeBehind)
+			flush();
 	}
 	
+	public boolean getWriteBehind(){ return writeBehind; }
+	
 	private void writeLock()  throws IOException {
 		long t0 = System.currentTimeMillis();
 		long t = t0;
 		
+		/**
 		Writer result = new StringWriter();
 		PrintWriter printWriter = new PrintWriter(result);
 		(new Throwable()).printStackTrace(printWriter);
 
-		/**
 		synchronized (this) {
 			String stackTraceStr = result.toString();
 			if (writeLock != null) {
@@ -405,6 +1631,8 @@ public class RACacheSet {
 			}catch(OverlappingFileLockException e){
 				isLockedHere = true;
 			}
+			if(writeLock != null)
+				break; //don't sleep if we got it first time
 			try {
 				Thread.sleep(0, 100);
 			} catch (InterruptedException e) { }
@@ -419,19 +1647,64 @@ public class RACacheSet {
 		if(singleAccess)
 			return;
 		
-		fc.force(false);	// Not sure if we need this to make multiple access work	
+		if(forcesEveryPut()){
+			long t0 = RACacheMetrics.now();
+			fc.force(false);	// Not sure if we need this to make multiple access work
+			metrics.fsync.recordSince(t0);
+		}else{
+			deferForce();
+		}
 		writeLock.release();
 		writeLock = null;
-	
+
+	}
+
+	/** @return Whether the file has to be forced to disk before the lock is released, which it does
+	 * with the 'put' fsync policy, or if the file is too old to have checksums */
+	private boolean forcesEveryPut(){
+		return fsyncPolicy == FSYNC_PUT || fileVersion < 4;
+	}
+
+	/** Notes that the file needs forcing, and with the 'periodic' policy, arranges for that to happen */
+	private void deferForce(){
+		if(fsyncNeeded.getAndSet(true))
+			return;
+		unforcedSets.add(this);
+		if(fsyncPolicy == FSYNC_PERIODIC && fsyncScheduled.compareAndSet(false, true))
+			fsyncer.schedule(this::forceFile, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Forces anything not yet on the disk there. Doesn't need any locks, since FileChannel.force() is
+	 * safe alongside writes from other threads, and other processes' writes are theirs to force. */
+	void forceFile(){
+		fsyncScheduled.set(false);
+		if(!fsyncNeeded.getAndSet(false))
+			return;
+		unforcedSets.remove(this);
+
+		FileChannel fc = this.fc;
+		if(fc == null)
+			return; //closeFile() did it
+		try{
+			long t0 = RACacheMetrics.now();
+			fc.force(false);
+			metrics.fsync.recordSince(t0);
+		}catch(ClosedChannelException e){
+			//closeFile() did it
+		}catch(IOException e){
+			System.err.println("ERROR forcing cache file " + fileName + " to disk: " + e);
+		}
 	}
 	
 	/** Checks the header entry count to see if the file has grown or been rearranged.
 	 * This doesn't do anything about it. For that, see checkIfFileHasBeenExtended() */
 	private boolean hasFileChanged() throws IOException {
-		//see if the file has been modified		
-		headerMBBuf.rewind();
-		long nEntriesHeader = headerMBBuf.getLong();
-		long uuid = headerMBBuf.getLong();
+		//see if the file has been modified, with absolute gets since other threads may be here too
+		MappedByteBuffer hdr = headerMBBuf;
+		if(hdr == null)
+			return true;
+		long nEntriesHeader = hdr.getLong(0);
+		long uuid = hdr.getLong(8);
 		
 		//if the UUID changed, the file has been totally reorganised, so we have no choice but to clear and reload
 		return fileUUID != uuid || nEntriesHeader != nEntriesInFile;
@@ -446,23 +1719,53 @@ public class RACacheSet {
 		
 		//if the UUID changed, the file has been totally reorganised, so we have no choice but to clear and reload
 		if(fileUUID != uuid){
+			if(isFileReplaced()){
+				//compacted into a new file, which we need to open instead
+				System.out.println("RACache file '" + fileName + "' has been replaced, reopening");
+				reopenFile();
+				//openFile() let go of the lock after reading it, so there could be more already
+				checkIfFileHasBeenExtended();
+				return;
+			}
 			System.out.println("RACache UUID changed from "+fileUUID+" to "+uuid+", reloading index");
-			memCache.clear();						
-			loadAll();
+			reloadIndex();
 			
 		}else if(nEntriesHeader != nEntriesInFile){
 			
-			loadRemainingIndex(nEntriesHeader);
+			//someone else has just written them
+			loadRemainingIndex(nEntriesHeader, RACacheIndex.accessClock(), false);
 		}
 	}
 	
+	/** Swaps to the file now at fileName. Called with the write side of indexLock and 
+	 * the file lock of the old file, and returns with the file lock of the new one. */
+	private void reopenFile() throws IOException {
+		if(writeLock != null){
+			writeLock.release();
+			writeLock = null;
+		}
+		closeFile();
+		openFile();
+		if(fc == null)
+			throw new IOException("Couldn't reopen replaced cache file " + fileName);
+		writeLock();
+	}
+	
 	/** Search for and remove the given entry from both the memory and disk cache */
-	private boolean removeExistingEntry(Object requestKey, boolean overwriting) throws IOException{
-		RACacheEntry raEntry = findTrueRequestKeyMatch(requestKey, true);
+	private boolean removeExistingEntry(Object requestKey, long fingerprint, boolean overwriting) throws IOException{
+		int entry = findTrueRequestKeyMatch(requestKey, fingerprint);
 		
-		if(raEntry != null){
+		if(entry >= 0){
+			long entryHeaderPos = memCache.entryHeaderPos(entry);
+			RACacheEntry raEntry = memCache.getTouched(entry);
+			if(raEntry != null && hotTier != null)
+				hotTier.remove(raEntry);
+			if(raEntry != null && offHeapTier != null)
+				offHeapTier.remove(raEntry);
+			memCache.remove(entry);
+			
 			// we need to invalidate that one
-			fc.position(raEntry.entryHeaderPos);
+			fc.position(entryHeaderPos);
 			ByteBuffer bBuf = ByteBuffer.allocate(1); //yes, really, 1 byte
 			bBuf.put(overwriting ? ENTRYCODE_OVERWRITTEN : ENTRYCODE_DETELED); //invalidate
 			bBuf.flip();
@@ -476,55 +1779,201 @@ public class RACacheSet {
 	
 	/** If an entry for the given key exists, delete it from disk and memory cache */
 	public boolean delete(Object requestKey){
+		flush();
+		if(!ensureOpen())
+			return false;
+		return invalidate(Collections.singletonList(requestKey), false) > 0;
+	}
+	
+	/** Invalidates any entries for the given keys, on disk and in memory. Like appendEntries(), this is
+	 * done with the file lock, after catching up with the file, so the entry codes go into the file
+	 * everyone is using now, at positions that are still right for it. Does nothing if the file isn't
+	 * open, since then we haven't anything to invalidate.
+	 * 
+	 * @param overwriting Whether they're marked as overwritten, rather than deleted
+	 * @return The number of entries invalidated */
+	int invalidate(Collection<?> requestKeys, boolean overwriting){
+		if(fc == null)
+			return 0;
+		
+		indexLock.writeLock().lock();
 		try {
-			return removeExistingEntry(requestKey, false);
+			if(fc == null)
+				return 0;
+			writeLock();
+			checkIfFileHasBeenExtended();
+			
+			int nInvalidated = 0;
+			for(Object requestKey : requestKeys)
+				if(removeExistingEntry(requestKey, 0, overwriting))
+					nInvalidated++;
+			return nInvalidated;
+			
 		} catch (Exception e) {
-			System.err.println("ERROR deleting an entry from cache file " + fileName + ": ");
+			System.err.println("ERROR invalidating entries in cache file " + fileName + ": ");
 			e.printStackTrace();
+			return 0;
+		} finally {
+			if(writeLock != null){
+				try {
+					flushAndRelease();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			indexLock.writeLock().unlock();
+		}
+	}
+	
+	/** For RACacheSegmentedSet merging this segment into another: Takes the write side of indexLock and
+	 * the file lock, and catches up with the file, so that nobody can change the entries until 
+	 * unlockForMerge(), which has to be called from the same thread.
+	 * @return false, with nothing held, if the file couldn't be opened */
+	boolean lockForMerge(){
+		flush();
+		if(!ensureOpen())
+			return false;
+		
+		indexLock.writeLock().lock();
+		try{
+			if(fc == null){
+				indexLock.writeLock().unlock();
+				return false;
+			}
+			writeLock();
+			checkIfFileHasBeenExtended();
 			return true;
+			
+		}catch(Exception e){
+			System.err.println("ERROR locking cache file " + fileName + " to merge it: ");
+			e.printStackTrace();
+			unlockForMerge();
+			return false;
+		}
+	}
+	
+	/** Lets go of what lockForMerge() took */
+	void unlockForMerge(){
+		try{
+			if(writeLock != null)
+				flushAndRelease();
+		}catch(Exception e){
+			e.printStackTrace();
+		}finally{
+			indexLock.writeLock().unlock();
+		}
+	}
+	
+	/** Reads every valid entry in the file as it's stored, in file order, for appendStored() on another set.
+	 * Only the keys are deserialised. Entries whose checksum doesn't match, or whose key can't be read,
+	 * are left out. Needs lockForMerge(). */
+	List<PendingEntry> readValidEntries() throws IOException{
+		ArrayList<PendingEntry> entries = new ArrayList<>(memCache.size());
+		for(int entry=0; entry < memCache.count(); entry++){
+			if(!memCache.isEntry(entry))
+				continue;
+			long entryHeaderPos = memCache.entryHeaderPos(entry);
+			int reqKeySize = memCache.keyPackageSize(entry);
+			int objSize = memCache.objectPackageSize(entry);
+			
+			ByteBuffer bBuf = ByteBuffer.allocate(entryHeaderSize + reqKeySize + objSize);
+			readFully(bBuf, entryHeaderPos);
+			if(bBuf.get(0) != ENTRYCODE_VALID)
+				continue; //invalidated by someone else
+			if(fileVersion >= 4 && !checksumMatches(bBuf, 0, entryHeaderPos, reqKeySize, objSize)){
+				System.err.println("WARNING: Entry at " + entryHeaderPos + " of cache file " + fileName + " doesn't match its checksum, leaving it out.");
+				continue;
+			}
+			int objectFlags = (fileVersion >= 2) ? (bBuf.get(13) & 0xFF) : 0;
+			byte keyData[] = Arrays.copyOfRange(bBuf.array(), entryHeaderSize, entryHeaderSize + reqKeySize);
+			byte objectData[] = Arrays.copyOfRange(bBuf.array(), entryHeaderSize + reqKeySize, bBuf.capacity());
+			
+			Object requestKey;
+			try{
+				requestKey = dataToObject(keyData);
+			}catch(IOException | ClassNotFoundException e){
+				System.err.println("WARNING: Couldn't read the key of the entry at " + entryHeaderPos + " of cache file " + fileName + ", leaving it out: " + e);
+				continue;
+			}
+			entries.add(new PendingEntry(requestKey, null, keyData, objectData, objectFlags));
+		}
+		return entries;
+	}
+	
+	/** Appends entries from readValidEntries() of another set, as they are */
+	void appendStored(List<PendingEntry> entries){
+		if(!entries.isEmpty())
+			appendEntries(entries);
+	}
+	
+	/** @return Whether there's an entry for the key, after catching up with the file */
+	boolean containsKey(Object requestKey){
+		fastSync();
+		indexLock.readLock().lock();
+		try{
+			return fc != null && findTrueRequestKeyMatch(requestKey, 0) >= 0;
+		}finally{
+			indexLock.readLock().unlock();
 		}
 	}
 	
-	private void addToFileCache(int hash, byte keyData[], byte objectData[]) throws IOException{
-		//and now to the file
-		fc.position(lastKnownEndPos);
-		ByteBuffer bBuf = ByteBuffer.allocate(13);		
+	/** Adds the buffers of a new entry to those to be written by writeEntries(), and moves
+	 * lastKnownEndPos and nEntriesInFile on past it */
+	private void addToFileCache(List<ByteBuffer> toWrite, int hash, long keyFingerprint, byte keyData[], byte objectData[], int objectFlags){
+		ByteBuffer bBuf = ByteBuffer.allocate(entryHeaderSize);		
 		bBuf.put(ENTRYCODE_VALID);
 		bBuf.putInt(hash);
 		bBuf.putInt(keyData.length);
 		bBuf.putInt(objectData.length);
+		if(fileVersion >= 2)
+			bBuf.put((byte)objectFlags);
+		if(fileVersion >= 3)
+			bBuf.putLong(keyFingerprint);
+		if(fileVersion >= 4){
+			Checksum crc = RACacheChecksum.create();
+			crc.update(bBuf.array(), 1, entryHeaderSize - 5);
+			crc.update(keyData, 0, keyData.length);
+			crc.update(objectData, 0, objectData.length);
+			bBuf.putInt((int)crc.getValue());
+		}
 		bBuf.flip();
-		fc.write(bBuf);
-		
-		writeData(keyData, objectData);
-		
-		lastKnownEndPos += 13 + keyData.length + objectData.length;
+
+		toWrite.add(bBuf);
+		toWrite.add(ByteBuffer.wrap(keyData));
+		toWrite.add(ByteBuffer.wrap(objectData));
 		
-		writeEOFMarker(lastKnownEndPos);
+		lastKnownEndPos += entryHeaderSize + keyData.length + objectData.length;
 
 		//and change the entry count
 		nEntriesInFile++;
-		
 	}
 	
-	private void writeData(byte keyData[], byte objectData[]) throws IOException{
-		writeDataA(keyData);
-		writeDataA(objectData);
-		/*ByteBuffer bBuf = ByteBuffer.wrap(keyData);
-		fc.write(bBuf);
+	/** Writes the entries from addToFileCache() to the file from the given position,
+	 * in one go, followed by the EOF marker. */
+	private void writeEntries(long startPos, List<ByteBuffer> toWrite) throws IOException{
+		ByteBuffer eofBuf = ByteBuffer.allocate(1);
+		eofBuf.put(ENTRYCODE_EOF);
+		eofBuf.flip();
+		toWrite.add(eofBuf);
 		
-		bBuf = ByteBuffer.wrap(objectData);
-		fc.write(bBuf);*/
-	}
-	
-	private void writeDataA(byte data[]) throws IOException{
-		ByteBuffer bBuf = ByteBuffer.wrap(data);
-		writeDataB(bBuf);
+		ByteBuffer bufs[] = toWrite.toArray(new ByteBuffer[toWrite.size()]);
+		fc.position(startPos);
+		int first = 0;
+		while(first < bufs.length){
+			metrics.bytesWritten.add(fc.write(bufs, first, bufs.length - first));
+			while(first < bufs.length && !bufs[first].hasRemaining())
+				first++;
+		}
 	}
 	
-
-	private void writeDataB(ByteBuffer bBuf) throws IOException{
-		fc.write(bBuf);
+	/** @return The batch with only the last entry for each key, in the order of those */
+	private static List<PendingEntry> lastOfEachKey(List<PendingEntry> batch){
+		LinkedHashMap<RACacheKey, PendingEntry> lastEntries = new LinkedHashMap<>();
+		for(PendingEntry pending : batch){
+			lastEntries.remove(pending.key);
+			lastEntries.put(pending.key, pending);
+		}
+		return (lastEntries.size() == batch.size()) ? batch : new ArrayList<>(lastEntries.values());
 	}
 	
 	private void updateEntryCount() throws IOException{
@@ -538,32 +1987,70 @@ public class RACacheSet {
 	}
 	
 	
+	/** Opens the file if it isn't already, without holding the write lock for the common case */
+	private boolean ensureOpen(){
+		if(fc != null)
+			return true;
+		
+		indexLock.writeLock().lock();
+		try{
+			if(fc == null)
+				openFile();
+			return fc != null;
+		}finally{
+			indexLock.writeLock().unlock();
+		}
+	}
+	
+	/** Opens the file and reads the index. Needs the write side of indexLock */
 	private void openFile(){
+		if(closed)
+			return;
 		try {
 			//with plenty of time, we can make sure the directory exists
-			OneLiners.mkdir(fileName);
+			OneLiners.mkdir(new File(fileName).getParentFile().toPath());
 			
 			// now we need to open/create the file and lock it ASAP.
 			// Maybe there is some nastiness possibility here if two 
 			// programs try to do this at the same time. We really want
 			// to create/open and lock the file in one go
 			File aFile = new File(fileName);
-			raFile = new RandomAccessFile(aFile, "rw");
-			fc = raFile.getChannel();
-			
-			//grab a complete lock on the whole file, because we need to know whether
-			//to read or create the header, and we don't want the index
-			// changing size as we're reading it
-			writeLock(); 
-			
+			stopUsingClosedBloom();
+			boolean retrying = false;
+			do{
+				if(retrying){
+					//it was compacted while we waited for the lock, and the old one's header has
+					//the new UUID in it, so we'd never know. Try again with the new one.
+					writeLock.release();
+					writeLock = null;
+					closeFile();
+				}
+				//the identity from before it's opened, so that it can't be the one swapped in afterwards
+				openFileKey = aFile.exists() ? Files.readAttributes(aFile.toPath(), BasicFileAttributes.class).fileKey() : null;
+				raFile = new RandomAccessFile(aFile, "rw");
+				fc = raFile.getChannel();
+				if(openFileKey == null) //we made it
+					openFileKey = Files.readAttributes(aFile.toPath(), BasicFileAttributes.class).fileKey();
+
+				//grab a complete lock on the whole file, because we need to know whether
+				//to read or create the header, and we don't want the index
+				// changing size as we're reading it
+				writeLock();
+				retrying = true;
+			}while(isFileReplaced());
+
 			//ok, now we have some time we check to see if there is a header (i.e already a file)
 			//and make it if not
 			
-			if(fc.size() > 0)
-				loadAll();
-			else
+			if(fc.size() > 0){
+				//we might be reopening after a clean, which leaves an index behind
+				reloadIndex();
+			}else
 				createHeader();
-
+			
+			if(syncPolicy == SYNC_WATCH)
+				RACacheWatcher.register(this);
+			RACacheMemory.register(this);
 			
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -583,56 +2070,163 @@ public class RACacheSet {
 
 	private Object loadRequestKey(RACacheEntry raEntry) throws IOException, ClassNotFoundException{
 		Object key = loadSerialisedObject(
-				raEntry.entryHeaderPos + 13,
-				raEntry.keyPackageSize );
+				raEntry.entryHeaderPos + entryHeaderSize,
+				raEntry.keyPackageSize, 0);
 		raEntry.keyRef = new SoftReference<>(key);
 		return key;
 	}
 
+	/** The index may have come from an index file made before someone else invalidated
+	 * an entry, so check the entry code in the .mrc */
+	private boolean isValidOnDisk(long entryHeaderPos) throws IOException{
+		ByteBuffer codeBuf = ByteBuffer.allocate(1);
+		readFully(codeBuf, entryHeaderPos);
+		return codeBuf.get(0) == ENTRYCODE_VALID;
+	}
+	
+	/** Checks an entry of a version 4 file against its checksum, from the buffer if it's all in there,
+	 * otherwise from the file.
+	 * @param buf Holds the entry's header at offset, which is at entryHeaderPos in the file
+	 * @return false if it doesn't match, or the entry runs off the end of the file */
+	private boolean checksumMatches(ByteBuffer buf, int offset, long entryHeaderPos, int reqKeySize, int objSize) throws IOException{
+		if(reqKeySize < 0 || objSize < 0)
+			return false;
+		long entrySize = entryHeaderSize + (long)reqKeySize + objSize;
+		Checksum crc = RACacheChecksum.create();
+		crc.update(buf.array(), offset + 1, entryHeaderSize - 5);
+		
+		if((offset + entrySize) <= buf.limit()){
+			crc.update(buf.array(), offset + entryHeaderSize, reqKeySize + objSize);
+			
+		}else{
+			ByteBuffer bBuf = ByteBuffer.allocate((int)Math.min(compactionBufferSize, entrySize - entryHeaderSize));
+			long pos = entryHeaderPos + entryHeaderSize;
+			long endPos = entryHeaderPos + entrySize;
+			while(pos < endPos){
+				bBuf.clear();
+				bBuf.limit((int)Math.min(bBuf.capacity(), endPos - pos));
+				int n = readAvailable(bBuf, pos);
+				if(n < bBuf.limit())
+					return false;
+				crc.update(bBuf.array(), 0, n);
+				pos += n;
+			}
+		}
+		return (int)crc.getValue() == buf.getInt(offset + entryHeaderSize - 4);
+	}
+	
 	private Object loadCachedObject(RACacheEntry raEntry) throws IOException, ClassNotFoundException{
-		Object obj = loadSerialisedObject(
-				raEntry.entryHeaderPos + 13 + raEntry.keyPackageSize,
-				raEntry.objectPackageSize );
+		//the off-heap tier saves the disk read, but it still needs decoding
+		RACacheOffHeapTier offHeapTier = this.offHeapTier;
+		byte data[] = (offHeapTier != null) ? offHeapTier.get(raEntry) : null;
+		if(data != null){
+			metrics.nHitFromOffHeap.increment();
+			
+		}else{
+			//the entry code, and the compression flags if the file has them
+			ByteBuffer hdrBuf = ByteBuffer.allocate(entryHeaderSize);
+			readFully(hdrBuf, raEntry.entryHeaderPos);
+			if(hdrBuf.get(0) != ENTRYCODE_VALID)
+				return null;
+			int objectFlags = (fileVersion >= 2) ? (hdrBuf.get(13) & 0xFF) : 0;
+			
+			data = loadPackage(
+					raEntry.entryHeaderPos + entryHeaderSize + raEntry.keyPackageSize,
+					raEntry.objectPackageSize, objectFlags);
+			
+			if(offHeapTier != null)
+				offHeapTier.put(this, raEntry, data);
+		}
+		
+		Object obj = dataToObject(data);
 		raEntry.objectRef = new SoftReference<>(obj);
 		return obj;
 	}
 	
+	/** @param flags RACacheCompression flags from the entry header, 0 for request keys */
+	private Object loadSerialisedObject(long startPos, int size, int flags) throws IOException, ClassNotFoundException{
+		return dataToObject(loadPackage(startPos, size, flags));
+	}
 	
-	private Object loadSerialisedObject(long startPos, int size) throws IOException, ClassNotFoundException{
+	/** Reads a package from the file, and decompresses it if the flags say so */
+	private byte[] loadPackage(long startPos, int size, int flags) throws IOException{
 		//TODO: Try with the non-mapped IO
 		//MappedByteBuffer mbBuf = fc.map(MapMode.READ_ONLY, startPos, size);
-		fc.position(startPos);
 		ByteBuffer bBuf = ByteBuffer.allocate(size);
-		fc.read(bBuf);
+		readFully(bBuf, startPos);
 		
 		//get the array of the data
 		byte data[] = bBuf.array();
 		//the javaDoc says may have to actually read it 
 		if(data == null){ 
 			data = new byte[size];
+			bBuf.flip();
 			bBuf.get(data);
 		}
 
-		return dataToObject(data);
-			
+		return RACacheCompression.decompress(data, flags);
 	}
 	
-	private static final Object dataToObject(byte data[]) throws IOException, ClassNotFoundException {
-		ByteArrayInputStream bin = new ByteArrayInputStream(data);		
-		ObjectInputStream oin = new ObjectInputStream(bin);
-		return oin.readObject();
+	/** Reads into the buffer from the given file position until it's full or we hit the end of the file.
+	 * @return Number of bytes read, or -1 if we were already at the end. */
+	private int readAvailable(ByteBuffer bBuf, long startPos) throws IOException{
+		return readAvailable(fc, bBuf, startPos);
 	}
 	
-	private static final byte[] objectToData(Object obj) throws IOException {
-		
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		ObjectOutputStream oout = new ObjectOutputStream(bout);
-		oout.writeObject(obj);
-		
-		return bout.toByteArray();
+	private static int readAvailable(FileChannel fc, ByteBuffer bBuf, long startPos) throws IOException{
+		int nRead = 0;
+		while(bBuf.hasRemaining()){
+			int n = fc.read(bBuf, startPos + nRead);
+			if(n < 0)
+				return (nRead > 0) ? nRead : -1;
+			nRead += n;
+		}
+		return nRead;
+	}
+	
+	/** Fills the buffer from the given file position, without touching the channel's own
+	 * position, so any number of threads can do this at once. */
+	private void readFully(ByteBuffer bBuf, long startPos) throws IOException{
+		long t0 = RACacheMetrics.now();
+		long pos = startPos;
+		while(bBuf.hasRemaining()){
+			int n = fc.read(bBuf, pos);
+			if(n < 0)
+				throw new EOFException("Unexpected end of cache file " + fileName + " at " + pos + " reading package at " + startPos);
+			pos += n;
+		}
+		metrics.bytesRead.add(pos - startPos);
+		metrics.diskRead.recordSince(t0);
+	}
+	
+	private final Object dataToObject(byte data[]) throws IOException, ClassNotFoundException {
+		long t0 = RACacheMetrics.now();
+		Object obj = RACacheCodecs.decode(data);
+		metrics.deserialise.recordSince(t0);
+		return obj;
 	}
 	
-	private void loadAll() throws IOException{
+	private final byte[] objectToData(Object obj) throws IOException {
+		return RACacheCodecs.encode(cacheName, obj);
+	}
+	
+	/** @return The package as it is if it's Java serialised, otherwise the object (from the package if not given) Java serialised */
+	private final byte[] javaSerialisedPackage(Object obj, byte data[]) throws IOException, ClassNotFoundException {
+		if(data.length > 0 && data[0] == RACacheCodecs.JAVA_SERIALISATION_MAGIC)
+			return data;
+		return RACacheCodecs.javaSerialise((obj != null) ? obj : dataToObject(data));
+	}
+	
+	/** Empties the index and reads it all again, keeping the last used times of the entries still there */
+	private void reloadIndex() throws IOException{
+		RACacheIndex.AccessTimes accessTimes = memCache.saveAccessTimes();
+		clearIndex();
+		loadAll(accessTimes);
+	}
+	
+	/** Reads the whole index, from the index file and then the .mrc.
+	 * @param accessTimes Last used times of entries from before, or null */
+	private void loadAll(RACacheIndex.AccessTimes accessTimes) throws IOException{
 		headerMBBuf = fc.map(MapMode.READ_WRITE, 0, 16);
 		
 		long nEntriesHeader = headerMBBuf.getLong();
@@ -655,11 +2249,7 @@ public class RACacheSet {
 		if(!id.startsWith(IDSTR))
 			throw new RuntimeException("File '"+fileName+"' is not a minerva random access cache file (doesn't start with '"+ IDSTR +"')");
 		
-		int ver = Integer.parseInt(id.substring(IDSTR.length()));
-		
-		if(ver != RACacheSet.version) 
-			//TODO: With this, we will probably want to convert the file to the new version, or something like that?
-			throw new RuntimeException("Cache file '"+fileName+"' is version "+ver+" but this code is version "+version);
+		setFileVersion(id);
 		
 		if(!fileCacheName.equals(cacheName))
 			System.err.println("WARNING: Cache file internal type '"+fileCacheName+"' doesn't match fileName ''"+fileName+"'.");
@@ -669,58 +2259,344 @@ public class RACacheSet {
 					(fileTagName == null || !fileTagName.equals(tagName) ) )
 			System.err.println("WARNING: Cache file internal tag '"+fileTagName+"' doesn't match fileName ''"+fileName+"'.");
 
-		if(!memCache.isEmpty()) //sanity check
+		if(memCache.size() > 0) //sanity check
 			System.err.println("ERROR: loadAll() called when memCache is not empty.");
 		
+		if(bloomEnabled)
+			bloom = new RACacheBloomFilter(Math.max(bloomMinCapacity, nEntriesHeader));
+		
 		 lastKnownEndPos = 16 + bBuf.position();
 		 nEntriesInFile = 0;
-		 loadRemainingIndex(nEntriesHeader);
 		 
+		 long nEntriesFromIndexFile = loadIndexFile(nEntriesHeader);
+		 
+		 //anything past the index file might be from before a crash, so check it's all there
+		 loadRemainingIndex(nEntriesHeader, RACacheIndex.UNKNOWN_ACCESS, true);
+		 //all we know about the others is that they were written before the file was last changed
+		 memCache.restoreAccessTimes(accessTimes, RACacheIndex.accessClock(new File(fileName).lastModified()));
+		 
+		 if(indexCheckpointEntries > 0 && (nEntriesInFile - nEntriesFromIndexFile) >= indexCheckpointEntries)
+			 writeIndexFile();
+		 else if(bloom != null && !Files.exists(Paths.get(getBloomFileName())))
+			 writeBloomFile();
+		 else
+			 bloomFileNEntries = nEntriesInFile; //near enough
 	}
 	
-	/** Loads any more index, from the last known position in the file.
+	private String getIndexFileName(){ return fileName + ".idx"; }
+	
+	/** Loads the index checkpoint file, if there is one and it matches the .mrc file.
+	 * Needs the file lock. Sets nEntriesInFile and lastKnownEndPos to the end of what it covers.
 	 * 
-	 * Expects the number of entries to reach nEntriesHeader.
+	 * @return Number of entries of the .mrc covered. 0 if there was no usable index file.
 	 */
-	private void loadRemainingIndex(long nEntriesHeader) throws IOException{
+	private long loadIndexFile(long nEntriesHeader){
+		Path idxPath = Paths.get(getIndexFileName());
+		if(!Files.exists(idxPath))
+			return 0;
+		
+		try(FileChannel idxFC = FileChannel.open(idxPath)){
+			long size = idxFC.size();
+			if(size > Integer.MAX_VALUE)
+				throw new IOException("Index file too big to read in one go");
+			
+			//one read for the lot
+			ByteBuffer bBuf = ByteBuffer.allocate((int)size);
+			while(bBuf.hasRemaining() && idxFC.read(bBuf) >= 0);
+			bBuf.flip();
+			
+			int idxVersion = indexFileVersion(readString(bBuf));
+			if(idxVersion < 2)
+				return 0; //someone else's version, we'll write our own
+			int recordSize = (idxVersion >= 3) ? indexFileRecordSize : indexFileRecordSizeV2;
+			
+			long uuid = bBuf.getLong();
+			long nEntriesCovered = bBuf.getLong();
+			long endPos = bBuf.getLong();
+			int nRecords = bBuf.getInt();
+			
+			if(uuid != fileUUID || nEntriesCovered > nEntriesHeader || endPos > fc.size() || endPos < lastKnownEndPos
+					|| bBuf.remaining() < (long)nRecords * recordSize)
+				return 0; //stale or broken, just ignore it
+			
+			memCache.ensureCapacity(Math.max(nRecords, nEntriesHeader));
+			
+			long lastPos = -1;
+			int lastHash = 0;
+			for(int i=0; i < nRecords; i++){
+				byte entryCode = bBuf.get();
+				int hash = bBuf.getInt();
+				long fingerprint = bBuf.getLong();
+				long pos = bBuf.getLong();
+				int reqKeySize = bBuf.getInt();
+				int objSize = bBuf.getInt();
+				int lastAccess = (idxVersion >= 3) ? bBuf.getInt() : RACacheIndex.UNKNOWN_ACCESS;
 				
-		 ByteBuffer bBuf = ByteBuffer.allocate(13); //17 bytes for the package info
-		 
-		 int nNewEntriesFound = 0;
-		 do{
-		 	 
-			fc.position(lastKnownEndPos);
+				if(entryCode != ENTRYCODE_VALID)
+					continue;
+				
+				int entry = addEntryToMemoryCache(hash, fingerprint, pos, reqKeySize, objSize);
+				memCache.setLastAccess(entry, lastAccess);
+				lastPos = pos;
+				lastHash = hash;
+			}
+			
+			//spot check that the last one really is in the .mrc where we think
+			if(lastPos >= 0){
+				ByteBuffer hdrBuf = ByteBuffer.allocate(5);
+				readFully(hdrBuf, lastPos);
+				if(hdrBuf.getInt(1) != lastHash){
+					System.err.println("WARNING: Index file '" + idxPath + "' doesn't match its cache file, ignoring it.");
+					clearIndex();
+					return 0;
+				}
+			}
+			
+			nEntriesInFile = nEntriesCovered;
+			lastKnownEndPos = endPos;
+			return nEntriesCovered;
 			
+		}catch(Exception e){
+			System.err.println("WARNING: Couldn't read index file '" + idxPath + "', reading the whole cache file instead: " + e);
+			clearIndex();
+			return 0;
+		}
+	}
+	
+	/** Writes the current index to the checkpoint file, as of nEntriesInFile and lastKnownEndPos.
+	 * Needs the file lock, so that it matches what's on disk. */
+	private void writeIndexFile(){
+		Path idxPath = Paths.get(getIndexFileName());
+		Path tmpPath = Paths.get(getIndexFileName() + ".tmp" + Long.toHexString((new Random()).nextLong()));
+		
+		try{
+			//entries it covers aren't checked on opening, so they have to be on the disk,
+			//including anything other processes haven't forced yet
+			if(!forcesEveryPut()){
+				long t0 = RACacheMetrics.now();
+				fc.force(false);
+				metrics.fsync.recordSince(t0);
+			}
 
-			if(fc.read(bBuf) <= 0)	//read the 13 bytes of info
-				break;
-				
+			mergeIndexFileAccessTimes();
+
+			String idStr = INDEX_IDSTR + indexFileVersion;
+			int nRecords = memCache.size();
+			ByteBuffer bBuf = ByteBuffer.allocate(4 + idStr.length() + 28 + nRecords * indexFileRecordSize);
+			
+			writeString(bBuf, idStr);
+			bBuf.putLong(fileUUID);
+			bBuf.putLong(nEntriesInFile);
+			bBuf.putLong(lastKnownEndPos);
+			bBuf.putInt(nRecords);
+			
+			for(int entry=0; entry < memCache.count(); entry++){
+				if(!memCache.isEntry(entry))
+					continue;
+				bBuf.put(ENTRYCODE_VALID);
+				bBuf.putInt(memCache.hash(entry));
+				bBuf.putLong(memCache.fingerprint(entry));
+				bBuf.putLong(memCache.entryHeaderPos(entry));
+				bBuf.putInt(memCache.keyPackageSize(entry));
+				bBuf.putInt(memCache.objectPackageSize(entry));
+				bBuf.putInt(memCache.lastAccess(entry));
+			}
+			bBuf.flip();
+			
+			try(FileChannel idxFC = FileChannel.open(tmpPath, java.nio.file.StandardOpenOption.CREATE_NEW, java.nio.file.StandardOpenOption.WRITE)){
+				while(bBuf.hasRemaining())
+					idxFC.write(bBuf);
+				long t0 = RACacheMetrics.now();
+				idxFC.force(false);
+				metrics.fsync.recordSince(t0);
+			}
+			
+			moveIntoPlace(tmpPath, idxPath);
+			
+		}catch(Exception e){
+			//not fatal, we'll just read the whole file next time
+			System.err.println("WARNING: Couldn't write index file '" + idxPath + "': " + e);
+			try{ Files.deleteIfExists(tmpPath); }catch(IOException e2){ }
+		}
+		
+		writeBloomFile();
+	}
+	
+	/** @return The version of an index file from its identifier, or -1 if it isn't one */
+	private static int indexFileVersion(String id){
+		if(id == null || !id.startsWith(INDEX_IDSTR))
+			return -1;
+		try{
+			int ver = Integer.parseInt(id.substring(INDEX_IDSTR.length()));
+			return (ver <= indexFileVersion) ? ver : -1;
+		}catch(NumberFormatException e){
+			return -1;
+		}
+	}
+	
+	/** Takes the later of ours and the index file's last used time for each entry, if the index file
+	 * is of the same .mrc, so that we know about other processes' use of the entries as of when they
+	 * last wrote it, and it doesn't lose that when we write it. Needs the file lock. */
+	private void mergeIndexFileAccessTimes(){
+		Path idxPath = Paths.get(getIndexFileName());
+		if(!Files.exists(idxPath))
+			return;
+		
+		try(FileChannel idxFC = FileChannel.open(idxPath)){
+			long size = idxFC.size();
+			if(size > Integer.MAX_VALUE)
+				return;
+			ByteBuffer bBuf = ByteBuffer.allocate((int)size);
+			while(bBuf.hasRemaining() && idxFC.read(bBuf) >= 0);
+			bBuf.flip();
+			
+			if(indexFileVersion(readString(bBuf)) < 3 || bBuf.remaining() < 28 || bBuf.getLong() != fileUUID)
+				return;
+			bBuf.getLong(); //entries and end position covered
+			bBuf.getLong();
+			int nRecords = bBuf.getInt();
+			if(bBuf.remaining() < (long)nRecords * indexFileRecordSize)
+				return;
+			
+			//both are in file order, so just walk along them together
+			int entry = 0;
+			for(int i=0; i < nRecords; i++){
+				int offset = bBuf.position() + i * indexFileRecordSize;
+				long pos = bBuf.getLong(offset + 13);
+				while(entry < memCache.count() && (!memCache.isEntry(entry) || memCache.entryHeaderPos(entry) < pos))
+					entry++;
+				if(entry >= memCache.count())
+					break;
+				if(memCache.entryHeaderPos(entry) == pos){
+					int lastAccess = bBuf.getInt(offset + 29);
+					if(lastAccess > memCache.lastAccess(entry))
+						memCache.setLastAccess(entry, lastAccess);
+				}
+			}
+		}catch(Exception e){
+			//only a hint anyway
+		}
+	}
+	
+	private String getBloomFileName(){ return fileName + ".bloom"; }
+	
+	/** Writes the bloom filter to the bloom file, as of nEntriesInFile and lastKnownEndPos.
+	 * Needs the file lock, and at least the read side of indexLock. */
+	private void writeBloomFile(){
+		RACacheBloomFilter bloom = this.bloom;
+		if(bloom == null)
+			return;
+		
+		Path bloomPath = Paths.get(getBloomFileName());
+		Path tmpPath = Paths.get(getBloomFileName() + ".tmp" + Long.toHexString((new Random()).nextLong()));
+		
+		try{
+			String idStr = BLOOM_IDSTR + bloomFileVersion;
+			ByteBuffer bBuf = ByteBuffer.allocate(4 + idStr.length() + 28 + bloom.serialisedSize());
+			
+			writeString(bBuf, idStr);
+			bBuf.putLong(fileUUID);
+			bBuf.putLong(nEntriesInFile);
+			bBuf.putLong(lastKnownEndPos);
+			bBuf.putInt(entryHeaderSize);
+			bloom.write(bBuf);
 			bBuf.flip();
 			
-			byte entryCode = bBuf.get();
+			//a half written one would say no to things that are there, so it has to get to the disk first
+			try(FileChannel bloomFC = FileChannel.open(tmpPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)){
+				while(bBuf.hasRemaining())
+					bloomFC.write(bBuf);
+				long t0 = RACacheMetrics.now();
+				bloomFC.force(false);
+				metrics.fsync.recordSince(t0);
+			}
+			
+			moveIntoPlace(tmpPath, bloomPath);
+			bloomFileNEntries = nEntriesInFile;
+			
+		}catch(Exception e){
+			//not fatal, other processes will just open the set
+			System.err.println("WARNING: Couldn't write bloom file '" + bloomPath + "': " + e);
+			try{ Files.deleteIfExists(tmpPath); }catch(IOException e2){ }
+		}
+	}
+	
+	/** Renames a finished temporary file over the real one, so readers either get the old one or the new one */
+	private static void moveIntoPlace(Path tmpPath, Path path) throws IOException{
+		try{
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(AtomicMoveNotSupportedException e){
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/** Deletes the index and bloom files */
+	private void deleteIndexFile(){
+		try{
+			Files.deleteIfExists(Paths.get(getIndexFileName()));
+			Files.deleteIfExists(Paths.get(getBloomFileName()));
+		}catch(IOException e){
+			System.err.println("WARNING: Couldn't delete index file '" + getIndexFileName() + "': " + e);
+		}
+	}
+	
+	/** Loads any more index, from the last known position in the file.
+	 * 
+	 * Expects the number of entries to reach nEntriesHeader.
+	 * @param accessTime Last used time to give the new entries
+	 * @param verify Check the entries against their checksums (version 4 files), and truncate the file at the
+	 * 			first that doesn't match. Needs the file lock, as writers only release it once an entry is complete.
+	 */
+	private void loadRemainingIndex(long nEntriesHeader, int accessTime, boolean verify) throws IOException{
+		
+		memCache.ensureCapacity(memCache.size() + Math.max(0, nEntriesHeader - nEntriesInFile));
+		
+		//Read through a window of the file, so that runs of small entries
+		//come in one read rather than one per entry
+		ByteBuffer bBuf = ByteBuffer.allocate(indexReadBufferSize);
+		long bufStartPos = -1;
+		bBuf.limit(0);
+		
+		int nNewEntriesFound = 0;
+		do{
+			
+			//if the window doesn't cover the entry header, read from here
+			if(lastKnownEndPos < bufStartPos || (lastKnownEndPos + entryHeaderSize) > (bufStartPos + bBuf.limit())){
+				bBuf.clear();
+				if(readAvailable(bBuf, lastKnownEndPos) <= 0)
+					break;
+				bBuf.flip();
+				bufStartPos = lastKnownEndPos;
+			}
+			
+			int offset = (int)(lastKnownEndPos - bufStartPos);
+			
+			byte entryCode = bBuf.get(offset);
 			if(entryCode == ENTRYCODE_EOF)
 				break;
 			
-			if(bBuf.limit() < 13){
+			if((bBuf.limit() - offset) < entryHeaderSize){
 				System.err.println("WARNING: loadRemainingIndex(): Cache entry header corrupt at position " + lastKnownEndPos + " in cache file " +fileName + ". Dropping all further items");
 				break;
 			}
 
-			int hash = bBuf.getInt();
-			int reqKeySize = bBuf.getInt();
-			int objSize = bBuf.getInt();
+			int hash = bBuf.getInt(offset + 1);
+			int reqKeySize = bBuf.getInt(offset + 5);
+			int objSize = bBuf.getInt(offset + 9);
+			long fingerprint = (fileVersion >= 3) ? bBuf.getLong(offset + 14) : 0;
 			
-			bBuf.flip();
+			if(verify && fileVersion >= 4 && !checksumMatches(bBuf, offset, lastKnownEndPos, reqKeySize, objSize)){
+				nEntriesInFile += nNewEntriesFound;
+				System.err.println("WARNING: Checksum mismatch at position " + lastKnownEndPos + " in cache file " + fileName +
+									", probably a write torn by a crash. Truncating file here at nEntries = " + nEntriesInFile);
+				writeEOFMarker(lastKnownEndPos);
+				updateEntryCount();
+				return;
+			}
 
 			switch(entryCode){			
 				case ENTRYCODE_VALID:
-					RACacheEntry raEntry = new RACacheEntry();
-					raEntry.entryHeaderPos = lastKnownEndPos;
-					raEntry.nextEntry = null;
-					raEntry.keyPackageSize = reqKeySize;
-					raEntry.objectPackageSize = objSize;
-					
-					addEntryToMemoryCache(raEntry, hash);
+					memCache.setLastAccess(addEntryToMemoryCache(hash, fingerprint, lastKnownEndPos, reqKeySize, objSize), accessTime);
 					break;
 				case ENTRYCODE_DETELED:
 				case ENTRYCODE_OVERWRITTEN:
@@ -735,7 +2611,7 @@ public class RACacheSet {
 					return;
 			}
 				
-			lastKnownEndPos += 13 + reqKeySize + objSize;
+			lastKnownEndPos += entryHeaderSize + reqKeySize + objSize;
 			
 			nNewEntriesFound++;
 		}while(true);
@@ -748,28 +2624,71 @@ public class RACacheSet {
 		nEntriesInFile = (nEntriesInFile + nNewEntriesFound) ;
 	}
 	
-	/** Puts a new RACacheEntry in memCache, coping with collisions */ 
-	private void addEntryToMemoryCache(RACacheEntry raEntry, int hash){
-		
-		//see if something already exists under this 
-		RACacheEntry collision = memCache.get(hash);
-		if(collision != null){
-			nCollisionInPut++;
-			
-			//chain this one on the end
-			while(collision.nextEntry != null)
-				collision = collision.nextEntry;
-			
-			collision.nextEntry = raEntry;
-		}else{
-			memCache.put(hash, raEntry);
-		}
+	/** Puts a new entry in memCache, coping with collisions
+	 * @return The new entry number */ 
+	private int addEntryToMemoryCache(int hash, long fingerprint, long entryHeaderPos, int keyPackageSize, int objectPackageSize){
+		
+		//see if something already exists under this 
+		if(memCache.first(hash) >= 0)
+			metrics.nCollisionInPut.increment();
+		
+		int entry = memCache.add(hash, fingerprint, entryHeaderPos, keyPackageSize, objectPackageSize);
+		
+		RACacheBloomFilter bloom = this.bloom;
+		if(bloom != null){
+			bloom.add(hash);
+			if(bloom.isFull())
+				rebuildBloom();
+		}
+		return entry;
+	}
+	
+	/** Replaces the bloom filter with one with room for twice what's in the index now,
+	 * which also drops anything that has since been removed. Needs the write side of indexLock. */
+	private void rebuildBloom(){
+		RACacheBloomFilter newBloom = new RACacheBloomFilter(Math.max(bloomMinCapacity, 2L * memCache.size()));
+		for(int entry=0; entry < memCache.count(); entry++){
+			if(memCache.isEntry(entry))
+				newBloom.add(memCache.hash(entry));
+		}
+		bloom = newBloom;
+	}
+	
+	/** Sets fileVersion and entryHeaderSize from the file's identifier string */
+	private void setFileVersion(String id){
+		int ver = Integer.parseInt(id.substring(IDSTR.length()));
+		
+		if(ver < 1 || ver > RACacheSet.version) 
+			throw new RuntimeException("Cache file '"+fileName+"' is version "+ver+" but this code is version "+version);
+		
+		fileVersion = ver;
+		entryHeaderSize = entryHeaderSize(ver);
+	}
+	
+	/** @return Size of the entry headers in a file of the given version */
+	private static int entryHeaderSize(int ver){
+		return (ver >= 4) ? 26 : (ver >= 3) ? 22 : (ver >= 2) ? 14 : 13;
+	}
+	
+	/** Empties the index, and drops our objects from the hot and off-heap tiers since the entries are gone */
+	private void clearIndex(){
+		memCache.clear();
+		if(bloomEnabled)
+			bloom = new RACacheBloomFilter(bloomMinCapacity);
+		if(hotTier != null)
+			hotTier.removeSet(this);
+		if(offHeapTier != null)
+			offHeapTier.removeSet(this);
 	}
 	
 	private void createHeader() throws IOException{
 		headerMBBuf = fc.map(MapMode.READ_WRITE, 0, 16);
 		
+		fileVersion = version;
+		entryHeaderSize = entryHeaderSize(version);
+		
 		nEntriesInFile = 0;
+		bloomFileNEntries = 0;
 		//this isn't for numerics, we don't need a proper randGen here
 		fileUUID = (new Random()).nextLong(); 
 		
@@ -816,12 +2735,94 @@ public class RACacheSet {
 	}
 	
 
+	/** The sync before reading, according to the sync policy */
+	private void syncForRead(){
+		switch(syncPolicy){
+			case SYNC_ALWAYS:
+				fastSync();
+				return;
+			case SYNC_INTERVAL:
+				if(fc == null || (System.currentTimeMillis() - lastSyncTime) >= syncIntervalMillis)
+					fastSync();
+				return;
+			default: //someone else does it, we just need it open
+				ensureOpen();
+		}
+	}
+	
+	/** For RACacheWatcher, and get() when another process is part way through overwriting 
+	 * an entry: reads whatever has been added to the file. This waits for the file
+	 * lock, since the count in the header is written through the mapping after the entries, 
+	 * and that doesn't make an event, so whoever made the event might not have got there yet.
+	 * Most events are from our own writes though, so it first checks, without blocking anyone,
+	 * whether there's anything to read or anyone still writing. */
+	void syncFromWatcher(){
+		if(fc == null || !mightHaveChanged())
+			return;
+		
+		indexLock.writeLock().lock();
+		try{
+			if(fc == null)
+				return;
+			writeLock();
+			checkIfFileHasBeenExtended();
+			lastSyncTime = System.currentTimeMillis();
+			
+		}catch(Exception e){
+			System.err.println("ERROR during background sync of cache file " + fileName + ": ");
+			e.printStackTrace();
+		}finally{
+			if(writeLock != null){
+				try{
+					writeLock.release();
+				}catch(IOException e){
+					e.printStackTrace();
+				}
+				writeLock = null;
+			}
+			indexLock.writeLock().unlock();
+		}
+	}
+
+	/** @return false if the file hasn't changed since we last read it and nobody is part way through
+	 * changing it, i.e. there's no need for syncFromWatcher() to take the locks. */
+	private boolean mightHaveChanged(){
+		indexLock.readLock().lock();
+		try{
+			if(fc == null || hasFileChanged() || isFileReplaced())
+				return true;
+			
+			//a writer has the file lock until the header is written, so if we can have it, that's done
+			FileLock lock;
+			try{
+				lock = fc.tryLock(0, Long.MAX_VALUE, true);
+			}catch(OverlappingFileLockException e){
+				return true; //a writer in this VM
+			}
+			if(lock == null)
+				return true; //a writer in another process
+			try{
+				return hasFileChanged(); //finished just before we looked
+			}finally{
+				lock.release();
+			}
+		}catch(IOException e){
+			return true; //let the full sync deal with it
+		}finally{
+			indexLock.readLock().unlock();
+		}
+	}
+
 	/** Check the UUID and number of entries in the cache file 
-	 * and load any new ones into the file 
+	 * and load any new ones into the file. This is done by every get() with the 'always'
+	 * sync policy, or every so often with 'interval', otherwise call it to pick up changes
+	 * from other processes.
 	 */
 	public void fastSync(){
-		if(fc == null)
-			openFile();
+		if(!ensureOpen())
+			return;
+		
+		lastSyncTime = System.currentTimeMillis();
 		
 		try{
 			//aquiring the write lock is expensive, so just do an indicative check first
@@ -832,8 +2833,18 @@ public class RACacheSet {
 			e.printStackTrace();
 		}
 			
+		indexLock.writeLock().lock();
+		boolean locking = false;
 		try {
+			if(fc == null)
+				openFile();
+			
+			//someone else in this VM might have already done it
+			if(fc == null || !hasFileChanged())
+				return;
+			
 			//otherwise we need to get the write lock
+			locking = true;
 			writeLock();
 			
 			checkIfFileHasBeenExtended();
@@ -849,22 +2860,189 @@ public class RACacheSet {
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
-			}else{
+			}else if(locking){
 				System.err.println("RACacheSet.fastSync() exiting with no file lock.");
 			}
+			indexLock.writeLock().unlock();
+		}
+	}
+	
+	/** @return Where the next entry will be written, as of the last time we looked, without any locking.
+	 * 0 if we haven't opened the file yet. */
+	long endPos(){ return (fc != null) ? lastKnownEndPos : 0; }
+
+	/** @return Whether anything might have been added since endPos() gave the given position, by us or by
+	 * another process that we haven't caught up with yet, which we can only tell once the file is open.
+	 * Also without any locking. */
+	boolean hasGrownSince(long endPos){
+		if(closed)
+			return false;
+		try{
+			return fc == null || endPos() != endPos || hasFileChanged();
+		}catch(IOException e){
+			return true;
+		}
+	}
+
+	/** @return Size of the .mrc file on disk, or 0 if there isn't one */
+	public long fileBytes(){
+		try{
+			return Files.size(Paths.get(fileName));
+		}catch(IOException e){
+			return 0;
+		}
+	}
+	
+	/** @return Bytes of the entries in the index, which is about the size the .mrc would be after a clean.
+	 * Opens the file if we haven't yet. */
+	public long liveBytes(){
+		if(!ensureOpen())
+			return 0;
+		indexLock.readLock().lock();
+		try{
+			long bytes = 0;
+			for(int entry=0; entry < memCache.count(); entry++){
+				if(memCache.isEntry(entry))
+					bytes += entrySize(entry);
+			}
+			return bytes;
+		}finally{
+			indexLock.readLock().unlock();
+		}
+	}
+	
+	private long entrySize(int entry){
+		return entryHeaderSize + (long)memCache.keyPackageSize(entry) + memCache.objectPackageSize(entry);
+	}
+	
+	/** For RACacheQuota to choose what to evict across sets.
+	 * @return For each entry, its last used time in the top 32 bits and its size in the file
+	 * in the bottom 32 (or 0xFFFFFFFF if bigger), so that sorting them puts the least recently used first.
+	 * Opens the file if we haven't yet. */
+	public long[] accessSnapshot(){
+		if(!ensureOpen())
+			return new long[0];
+		indexLock.readLock().lock();
+		try{
+			long snapshot[] = new long[memCache.size()];
+			int n = 0;
+			for(int entry=0; entry < memCache.count() && n < snapshot.length; entry++){
+				if(memCache.isEntry(entry))
+					snapshot[n++] = ((long)memCache.lastAccess(entry) << 32) | Math.min(entrySize(entry), 0xFFFFFFFFL);
+			}
+			return snapshot;
+		}finally{
+			indexLock.readLock().unlock();
+		}
+	}
+	
+	/** Deletes the least recently used entries, of those last used no later than the given time,
+	 * until the given number of bytes of entries have gone. They are marked deleted in the file,
+	 * like delete(), so the space is only given back by the next cleanCache().
+	 * Other processes' use of the entries counts as of when they last wrote the index file.
+	 * 
+	 * @param lastAccessCutoff Latest last used time (see RACacheIndex.accessClock()) to evict
+	 * @return The number of bytes of entries deleted
+	 */
+	public long evict(int lastAccessCutoff, long maxBytes){
+		flush();
+		if(maxBytes <= 0)
+			return 0;
+		
+		long bytesEvicted = 0;
+		long nEvicted = 0;
+		indexLock.writeLock().lock();
+		try{
+			if(fc == null)
+				openFile();
+			if(fc == null)
+				return 0;
+			
+			writeLock();
+			try{
+				checkIfFileHasBeenExtended();
+				mergeIndexFileAccessTimes();
+				
+				//least recently used first, and the oldest in the file of those used at the same time
+				long candidates[] = new long[memCache.size()];
+				int n = 0;
+				for(int entry=0; entry < memCache.count(); entry++){
+					if(memCache.isEntry(entry) && memCache.lastAccess(entry) <= lastAccessCutoff)
+						candidates[n++] = ((long)memCache.lastAccess(entry) << 32) | entry;
+				}
+				Arrays.sort(candidates, 0, n);
+				
+				ByteBuffer bBuf = ByteBuffer.allocate(1);
+				for(int i=0; i < n && bytesEvicted < maxBytes; i++){
+					int entry = (int)candidates[i]; //entry numbers don't change until the next add()
+					long entryHeaderPos = memCache.entryHeaderPos(entry);
+					bytesEvicted += entrySize(entry);
+					nEvicted++;
+					
+					RACacheEntry raEntry = memCache.getTouched(entry);
+					if(raEntry != null && hotTier != null)
+						hotTier.remove(raEntry);
+					if(raEntry != null && offHeapTier != null)
+						offHeapTier.remove(raEntry);
+					memCache.remove(entry);
+					
+					bBuf.clear();
+					bBuf.put(ENTRYCODE_DETELED);
+					bBuf.flip();
+					fc.write(bBuf, entryHeaderPos);
+				}
+				
+			}finally{
+				flushAndRelease();
+			}
+		}catch(Exception e){
+			System.err.println("ERROR evicting entries from cache file " + fileName + ": ");
+			e.printStackTrace();
+		}finally{
+			indexLock.writeLock().unlock();
 		}
+		
+		metrics.nEvicted.add(nEvicted);
+		metrics.bytesEvicted.add(bytesEvicted);
+		return bytesEvicted;
 	}
 	
 	/** Deletes and overwrites of existing entries normally just tag the old ones
 	 * as deleted and add the new one to the end of the file.  
 	 * 
-	 * This method completely rewrites the cache file, in place,
-	 * clearing all deleted and overwritten items.
+	 * This method completely rewrites the cache file, clearing all deleted and 
+	 * overwritten items. 
+	 * 
+	 * Normally that's done by copying the valid entries forward into a new file 
+	 * while everyone carries on using the old one, and then swapping it in
+	 * (see compactCopyForward()). If the file system can't do that, it's done
+	 * in place, with everyone locked out.
 	 */ 
 	public void cleanCache(boolean checkObjectPackageIntegrity) {
+		//if another thread is already at it, there's nothing more to gain
+		if(!cleanLock.tryLock()){
+			System.out.println("RandomAccessCache: Cache file '"+fileName+"' is already being cleaned.");
+			return;
+		}
+		try{
+			System.out.println("RandomAccessCache: Cleaning cache file '"+fileName+"': ");
+			
+			flush();
+			
+			if(compactCopyForward(checkObjectPackageIntegrity))
+				return;
+			
+			cleanCacheInPlace(checkObjectPackageIntegrity);
+		}finally{
+			cleanLock.unlock();
+		}
+	}
+	
+	/** Rewrites the file in place under the file lock, shifting entries down over
+	 * the removed ones, then closes it. */
+	private void cleanCacheInPlace(boolean checkObjectPackageIntegrity) {
 		
-		System.out.println("RandomAccessCache: Cleaning cache file '"+fileName+"': ");
-		
+		indexLock.writeLock().lock();
 		try {
 			long nEntriesKept = 0;
 			long nEntriesRemoved = 0;
@@ -875,6 +3053,7 @@ public class RACacheSet {
 				//because we are about the parse the index anyway
 				File aFile = new File(fileName);
 				OneLiners.mkdir(aFile.getParentFile().toPath());
+				stopUsingClosedBloom();
 				raFile = new RandomAccessFile(aFile, "rws");
 				fc = raFile.getChannel();
 				headerMBBuf =null;
@@ -898,8 +3077,8 @@ public class RACacheSet {
 			bBuf.flip();
 
 			// not used at the moment, which is probably fine. we cannot delete, because this advances the buffer 
-			@SuppressWarnings("unused")
 			String id = readString(bBuf);
+			setFileVersion(id);
 			@SuppressWarnings("unused")
 			String fileCacheName = readString(bBuf);
 			@SuppressWarnings("unused")
@@ -911,14 +3090,14 @@ public class RACacheSet {
 			long readPos = headerEndPos;
 			long writePos = headerEndPos;
 			
-			bBuf = ByteBuffer.allocate(13);
+			bBuf = ByteBuffer.allocate(entryHeaderSize);
 			
 			boolean breakWhile = false;
 			do {
 			 	 
 				fc.position(readPos);
 				
-				if(fc.read(bBuf) <= 0)	//read the 13 bytes of info
+				if(fc.read(bBuf) <= 0)	//read the entry header
 					break;
 					
 				bBuf.flip();
@@ -927,7 +3106,7 @@ public class RACacheSet {
 				if(entryCode == ENTRYCODE_EOF)
 					break;
 				
-				if (bBuf.limit() < 13) {
+				if (bBuf.limit() < entryHeaderSize) {
 					System.err.println("WARNING: Cache entry header corrupt at position " + readPos + " in cache file "
 							+ fileName + ". Dropping all further items");
 					break;
@@ -938,20 +3117,26 @@ public class RACacheSet {
 
 				int reqKeySize = bBuf.getInt();
 				int objSize = bBuf.getInt();
+				int objectFlags = (fileVersion >= 2) ? (bBuf.get() & 0xFF) : 0;
 				
 				switch(entryCode){
 					case ENTRYCODE_VALID:
 						if(checkObjectPackageIntegrity){
 							try{
-								loadSerialisedObject(readPos + 13, reqKeySize);
-								loadSerialisedObject(readPos + 13 + reqKeySize, objSize);
+								if(fileVersion >= 4){
+									if(!checksumMatches(bBuf, 0, readPos, reqKeySize, objSize))
+										throw new IOException("Checksum mismatch");
+								}else{
+									loadSerialisedObject(readPos + entryHeaderSize, reqKeySize, 0);
+									loadSerialisedObject(readPos + entryHeaderSize + reqKeySize, objSize, objectFlags);
+								}
 							}catch(Exception e){
 								System.err.println("WARNING: Object package integrity failed for entry at position " + readPos + " in cache file " +fileName + ". Dropping this item ");
 								//failed, so skip the read forward, but leave the write where it is
-								readPos += 13 + reqKeySize + objSize;
+								readPos += entryHeaderSize + reqKeySize + objSize;
 								
 								nEntriesRemoved++;
-								nBytesFreed += 13 + reqKeySize + objSize;
+								nBytesFreed += entryHeaderSize + reqKeySize + objSize;
 								
 								break;
 							}
@@ -961,20 +3146,20 @@ public class RACacheSet {
 						if (writePos == readPos) {
 							//if we are still reading and writing in the same place 
 							//(i.e. nothing had been removed yet, just skip)
-							readPos += 13 + reqKeySize + objSize;
+							readPos += entryHeaderSize + reqKeySize + objSize;
 							writePos = readPos;							
 							nEntriesKept++;
 							
 						} else {
 							//otherwise, read the data and write it back
-							/*if(readPos > (writePos + 13 + reqKeySize + objSize))
+							/*if(readPos > (writePos + entryHeaderSize + reqKeySize + objSize))
 								shiftEntryFast(bBuf, readPos, writePos, reqKeySize, objSize);
 							else*/
 								shiftEntrySlow(bBuf, readPos, writePos, reqKeySize, objSize);
 
 							//both pointers move on
-							readPos += 13 + reqKeySize + objSize;
-							writePos += 13 + reqKeySize + objSize;
+							readPos += entryHeaderSize + reqKeySize + objSize;
+							writePos += entryHeaderSize + reqKeySize + objSize;
 							nEntriesKept++;
 						}
 						break;
@@ -987,10 +3172,10 @@ public class RACacheSet {
 					case ENTRYCODE_DETELED:
 					case ENTRYCODE_OVERWRITTEN:
 						//skip the read forward, but leave the write where it is
-						readPos += 13 + reqKeySize + objSize;
+						readPos += entryHeaderSize + reqKeySize + objSize;
 						
 						nEntriesRemoved++;
-						nBytesFreed += 13 + reqKeySize + objSize;
+						nBytesFreed += entryHeaderSize + reqKeySize + objSize;
 
 						break;
 				}
@@ -1029,9 +3214,11 @@ public class RACacheSet {
 			nEntriesInFile = nEntriesKept;
 			updateEntryCount();
 			
-			//reset to start
-			memCache.clear();
-			loadAll();
+			//reset to start, and checkpoint the new index so nobody has to read the whole file again
+			deleteIndexFile();
+			reloadIndex();
+			if(!Files.exists(Paths.get(getIndexFileName())))
+				writeIndexFile();
 
 			
 		} catch (Exception e) {
@@ -1051,19 +3238,378 @@ public class RACacheSet {
 				System.err.println("RACacheSet.cleanCache() exiting with no file lock.");
 			}
 
-			//close the file
-			try {  fc.close(); }catch (Exception e) { e.printStackTrace(); }
-			try {  raFile.close(); }catch (Exception e) { e.printStackTrace(); }
-			fc = null; //mark it closed so we open again on next op
-			raFile = null;
+			//close the file, so we open again on next op
+			closeFile();
+
+			indexLock.writeLock().unlock();
 		}
 	}
 
+	/** Online compaction: copies the valid entries into a new file without holding any lock, 
+	 * while other threads and processes carry on reading and appending to the old one.
+	 * Then, under the locks:
+	 *  - Entries that were invalidated in the old file since they were copied are invalidated in the new one.
+	 *  - Entries appended to the old file since the copy started are copied over.
+	 *  - The new file, with a new UUID, is renamed over the old one.
+	 *  - The old file's header gets the new UUID too, so everyone who still has it open 
+	 *    knows to reopen the file by name (see checkIfFileHasBeenExtended()).
+	 * 
+	 * @return false if it couldn't be done this way (e.g. no atomic rename over an open file) and nothing 
+	 * 			was changed, so the in-place clean should be used. true if it was done, or abandoned for
+	 *  		a good reason (e.g. someone else cleaned the file in the meantime).
+	 */
+	private boolean compactCopyForward(boolean checkObjectPackageIntegrity) {
+		if(!ensureOpen())
+			return true;
+		
+		//without file identities, we couldn't tell the others that the file was replaced under them
+		if(getOpenFileKey() == null)
+			return false;
+		
+		Path tmpPath = Paths.get(fileName + ".compact" + Long.toHexString((new Random()).nextLong()));
+		CompactionState state = new CompactionState();
+		FileChannel src;
+		long snapshotUUID;
+		long nEntriesSnapshot;
+		
+		//1) Note where the file ends now. Everything up to there is complete and won't move,
+		// although the entry codes might change
+		indexLock.writeLock().lock();
+		try{
+			if(fc == null)
+				return true;
+			writeLock();
+			try{
+				//if someone else already swapped in a compacted file, the old one's header has its UUID,
+				//so the check in 3) would pass and we'd rename a copy of the stale file over the new one.
+				checkIfFileHasBeenExtended();
+				src = fc;
+				nEntriesSnapshot = headerMBBuf.getLong(0);
+				snapshotUUID = headerMBBuf.getLong(8);
+			}finally{
+				flushAndRelease();
+			}
+		}catch(IOException e){
+			System.err.println("ERROR starting compaction of cache file " + fileName + ": ");
+			e.printStackTrace();
+			return true;
+		}finally{
+			indexLock.writeLock().unlock();
+		}
+		
+		//2) Copy the valid entries to the new file, without holding anything
+		long t0 = System.currentTimeMillis();
+		//not try-with-resources, since it has to be closed before the swap (see 3)
+		FileChannel dst = null;
+		try{
+			dst = FileChannel.open(tmpPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			
+			//the header strings are copied as they are, the count and UUID go in at the end
+			ByteBuffer hdrBuf = ByteBuffer.allocate(maxHeaderSize);
+			readAvailable(src, hdrBuf, 16);
+			hdrBuf.flip();
+			for(int i=0; i < 4; i++)
+				readString(hdrBuf);
+			int hdrStringsSize = hdrBuf.position();
+			
+			ByteBuffer startBuf = ByteBuffer.allocate(16 + hdrStringsSize);
+			startBuf.putLong(0);
+			startBuf.putLong(snapshotUUID);
+			hdrBuf.flip();
+			startBuf.put(hdrBuf);
+			startBuf.flip();
+			dst.write(startBuf);
+			
+			state.headerEndPos = 16 + hdrStringsSize;
+			state.readPos = state.headerEndPos;
+			state.writePos = state.headerEndPos;
+			
+			copyEntriesForward(src, dst, nEntriesSnapshot, checkObjectPackageIntegrity, state);
+			long snapshotEndPos = state.readPos;
+			long nParsedSnapshot = state.nEntriesKept + state.nEntriesRemoved;
+			
+			System.out.println("RandomAccessCache: Copied " + state.nEntriesKept + " entries of '" + fileName + "' in " + 
+								(System.currentTimeMillis() - t0) + "ms, now swapping.");
+			
+			//3) Catch up with what happened to the old file in the meantime, and swap
+			indexLock.writeLock().lock();
+			boolean locked = false;
+			try{
+				if(fc != src){
+					System.err.println("WARNING: Cache file " + fileName + " was reopened during compaction, abandoning it.");
+					return true;
+				}
+				writeLock();
+				locked = true;
+				
+				if(headerMBBuf.getLong(8) != snapshotUUID || isFileReplaced()){
+					System.err.println("WARNING: Cache file " + fileName + " was cleaned by someone else during compaction, abandoning it.");
+					return true;
+				}
+				
+				long t1 = System.currentTimeMillis();
+				
+				//anything we copied that has since been overwritten or deleted
+				long nInvalidated = invalidateCopiedEntries(src, dst, state);
+				
+				//anything added since
+				long nEntriesHeader = headerMBBuf.getLong(0);
+				state.readPos = snapshotEndPos;
+				copyEntriesForward(src, dst, nEntriesHeader - nParsedSnapshot, false, state);
+				
+				long nEntriesKept = state.nEntriesKept - nInvalidated;
+				long newUUID = (new Random()).nextLong();
+				
+				ByteBuffer bBuf = ByteBuffer.allocate(1);
+				bBuf.put(ENTRYCODE_EOF);
+				bBuf.flip();
+				dst.write(bBuf, state.writePos);
+				dst.truncate(state.writePos + 1);
+				
+				bBuf = ByteBuffer.allocate(16);
+				bBuf.putLong(state.nEntriesKept); //including any we've just invalidated
+				bBuf.putLong(newUUID);
+				bBuf.flip();
+				dst.write(bBuf, 0);
+				dst.force(true);
+				
+				//once it's renamed, closing our channel to it would release any file lock this process
+				//has on it (POSIX locks are per process), including those taken by other threads
+				dst.close();
+				dst = null;
+				
+				try{
+					Files.move(tmpPath, Paths.get(fileName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				}catch(IOException e){
+					System.err.println("WARNING: Couldn't swap compacted cache file into place (" + e + "), cleaning it in place instead.");
+					return false;
+				}
+				
+				//tell everyone still on the old file to reopen it
+				headerMBBuf.putLong(8, newUUID);
+				
+				System.out.println("Cleaned cache file '" + fileName + "':\n" +
+						"\tOriginal: " + nEntriesHeader + " reported, " + (state.nEntriesKept + state.nEntriesRemoved + state.nNewEntriesRemoved) + " found and " + state.readPos + " bytes read.\n" +
+						"\tRemoved " + (state.nEntriesRemoved + state.nNewEntriesRemoved + nInvalidated) + " entries and " + (state.readPos - state.writePos) + " bytes.\n" +
+						"\tKept " + nEntriesKept + " entries and " + state.writePos + " bytes.\n" +
+						"\tOthers were locked out for " + (System.currentTimeMillis() - t1) + "ms of " + (System.currentTimeMillis() - t0) + "ms.");
+				
+				//and we reopen it too
+				flushAndRelease();
+				locked = false;
+				closeFile();
+				deleteIndexFile();
+				openFile();
+				if(fc != null && !Files.exists(Paths.get(getIndexFileName())))
+					writeIndexFile();
+				
+				return true;
+				
+			}finally{
+				if(locked && writeLock != null)
+					flushAndRelease();
+				indexLock.writeLock().unlock();
+			}
+			
+		}catch(ClosedChannelException e){
+			//another thread reopened it because someone else replaced it, so this is out of date anyway
+			System.err.println("WARNING: Cache file " + fileName + " was reopened during compaction, abandoning it.");
+			return true;
+			
+		}catch(Exception e){
+			System.err.println("ERROR during compaction of cache file " + fileName + ", the old file is still in use: ");
+			e.printStackTrace();
+			return true;
+			
+		}finally{
+			try{
+				if(dst != null)
+					dst.close();
+			}catch(IOException e){ }
+			try{
+				Files.deleteIfExists(tmpPath);
+			}catch(IOException e){ }
+		}
+	}
+	
+	/** Progress of compactCopyForward() */
+	private static class CompactionState {
+		long headerEndPos;
+		long readPos, writePos;
+		long nEntriesKept, nEntriesRemoved;
+		/** Of those appended during the compaction, the number already invalid when we got to them */
+		long nNewEntriesRemoved;
+		/** Positions in the old file of the entries kept */
+		long keptPositions[] = new long[1024];
+		/** Number of keptPositions from the first pass, which need checking again. -1 before it */
+		int nKeptChecked = -1;
+	}
+	
+	/** Copies up to maxEntries entries from state.readPos in src to state.writePos in dst, 
+	 * skipping the invalid ones, through a buffer so that small entries are done in bulk */
+	private void copyEntriesForward(FileChannel src, FileChannel dst, long maxEntries, boolean checkObjectPackageIntegrity, CompactionState state) throws IOException {
+		ByteBuffer inBuf = ByteBuffer.allocate(compactionBufferSize);
+		ByteBuffer outBuf = ByteBuffer.allocate(compactionBufferSize);
+		long bufStartPos = -1;
+		inBuf.limit(0);
+		boolean catchingUp = state.nKeptChecked >= 0;
+		if(!catchingUp)
+			state.nKeptChecked = 0;
+		
+		for(long n=0; n < maxEntries; n++){
+			//make sure the window covers the entry header
+			if(state.readPos < bufStartPos || (state.readPos + entryHeaderSize) > (bufStartPos + inBuf.limit())){
+				inBuf.clear();
+				if(readAvailable(src, inBuf, state.readPos) <= 0)
+					break;
+				inBuf.flip();
+				bufStartPos = state.readPos;
+			}
+			int offset = (int)(state.readPos - bufStartPos);
+			
+			byte entryCode = inBuf.get(offset);
+			if(entryCode == ENTRYCODE_EOF)
+				break;
+			if((inBuf.limit() - offset) < entryHeaderSize){
+				System.err.println("WARNING: Cache entry header corrupt at position " + state.readPos + " in cache file " +fileName + ". Dropping all further items");
+				break;
+			}
+			int reqKeySize = inBuf.getInt(offset + 5);
+			int objSize = inBuf.getInt(offset + 9);
+			int objectFlags = (fileVersion >= 2) ? (inBuf.get(offset + 13) & 0xFF) : 0;
+			long entrySize = entryHeaderSize + (long)reqKeySize + objSize;
+			
+			if(entryCode != ENTRYCODE_VALID && entryCode != ENTRYCODE_OVERWRITTEN && entryCode != ENTRYCODE_DETELED){
+				System.err.println("WARNING: Unrecognised entry code "+entryCode+" at position " + state.readPos +
+						" in cache file " + fileName + ". Truncating file here at nEntries = " + state.nEntriesKept);
+				break;
+			}
+			
+			boolean keep = (entryCode == ENTRYCODE_VALID);
+			if(keep && checkObjectPackageIntegrity){
+				try{
+					//with checksums, that's all we need to know, without deserialising anything
+					if(fileVersion >= 4){
+						if(!checksumMatches(inBuf, offset, state.readPos, reqKeySize, objSize))
+							throw new IOException("Checksum mismatch");
+					}else{
+						loadSerialisedObject(state.readPos + entryHeaderSize, reqKeySize, 0);
+						loadSerialisedObject(state.readPos + entryHeaderSize + reqKeySize, objSize, objectFlags);
+					}
+				}catch(Exception e){
+					System.err.println("WARNING: Object package integrity failed for entry at position " + state.readPos + " in cache file " +fileName + ". Dropping this item ");
+					keep = false;
+				}
+			}
+			
+			if(keep){
+				if((offset + entrySize) <= inBuf.limit() && entrySize <= outBuf.capacity()){
+					//all in the window, so via the output buffer
+					if(outBuf.remaining() < entrySize)
+						writeAll(dst, outBuf, state);
+					ByteBuffer entryBuf = inBuf.duplicate();
+					entryBuf.position(offset);
+					entryBuf.limit(offset + (int)entrySize);
+					outBuf.put(entryBuf);
+				}else{
+					//big ones go straight across
+					writeAll(dst, outBuf, state);
+					long nDone = 0;
+					while(nDone < entrySize){
+						long n2 = src.transferTo(state.readPos + nDone, entrySize - nDone, dst);
+						if(n2 <= 0)
+							throw new EOFException("Unexpected end of cache file " + fileName + " copying entry at " + state.readPos);
+						nDone += n2;
+					}
+				}
+				
+				if(state.nEntriesKept >= state.keptPositions.length)
+					state.keptPositions = Arrays.copyOf(state.keptPositions, state.keptPositions.length * 2);
+				state.keptPositions[(int)state.nEntriesKept] = state.readPos;
+				state.nEntriesKept++;
+				if(!catchingUp)
+					state.nKeptChecked++;
+			}else if(catchingUp){
+				state.nNewEntriesRemoved++;
+			}else{
+				state.nEntriesRemoved++;
+			}
+			
+			state.readPos += entrySize;
+		}
+		writeAll(dst, outBuf, state);
+		state.writePos = dst.position();
+	}
+	
+	private static void writeAll(FileChannel dst, ByteBuffer outBuf, CompactionState state) throws IOException {
+		outBuf.flip();
+		while(outBuf.hasRemaining())
+			dst.write(outBuf);
+		outBuf.clear();
+	}
+	
+	/** Marks entries in the new file whose originals have been invalidated since we copied them.
+	 * @return The number invalidated */
+	private long invalidateCopiedEntries(FileChannel src, FileChannel dst, CompactionState state) throws IOException {
+		ByteBuffer hdrBuf = ByteBuffer.allocate(entryHeaderSize);
+		ByteBuffer codeBuf = ByteBuffer.allocate(1);
+		long nInvalidated = 0;
+		long newPos = state.headerEndPos; //the header is the same size in both
+		for(int i=0; i < state.nKeptChecked; i++){
+			hdrBuf.clear();
+			readAvailable(src, hdrBuf, state.keptPositions[i]);
+			
+			byte entryCode = hdrBuf.get(0);
+			if(entryCode != ENTRYCODE_VALID){
+				codeBuf.clear();
+				codeBuf.put(entryCode);
+				codeBuf.flip();
+				dst.write(codeBuf, newPos);
+				nInvalidated++;
+			}
+			newPos += entryHeaderSize + (long)hdrBuf.getInt(5) + hdrBuf.getInt(9);
+		}
+		return nInvalidated;
+	}
+	
+	/** @return The file system's identity of the file we have open, or null if it doesn't have them */
+	private Object getOpenFileKey(){
+		return openFileKey;
+	}
+	
+	/** @return true if the file at fileName isn't the one we have open any more (e.g. after a compaction) */
+	boolean isFileReplaced(){
+		if(openFileKey == null)
+			return false;
+		try{
+			Object key = Files.readAttributes(Paths.get(fileName), BasicFileAttributes.class).fileKey();
+			return !openFileKey.equals(key);
+		}catch(IOException e){
+			return true; //not there anymore
+		}
+	}
+	
+	/** Closes the file without releasing anything else. Needs the write side of indexLock. */
+	private void closeFile(){
+		//whatever the fsync policy deferred (forceFile() might be about to find it closed)
+		if(fc != null && !forcesEveryPut()){
+			fsyncNeeded.set(false);
+			unforcedSets.remove(this);
+			try { fc.force(false); }catch (Exception e) { e.printStackTrace(); }
+		}
+		try { if(fc != null) fc.close(); }catch (Exception e) { e.printStackTrace(); }
+		try { if(raFile != null) raFile.close(); }catch (Exception e) { e.printStackTrace(); }
+		fc = null;
+		raFile = null;
+		headerMBBuf = null;
+		openFileKey = null;
+	}
+	
 	/** Doesn't work, even if not overlapping */
 	@SuppressWarnings("unused")
 	private void shiftEntryFast(ByteBuffer bBuf, long readPos, long writePos, int reqKeySize, int objSize) throws IOException{
 		fc.position(writePos);
-		fc.transferFrom(fc, readPos, 13 + reqKeySize + objSize);
+		fc.transferFrom(fc, readPos, entryHeaderSize + reqKeySize + objSize);
 	}
 	
 	private void shiftEntrySlow(ByteBuffer bBuf, long readPos, long writePos, int reqKeySize, int objSize) throws IOException{
@@ -1074,10 +3620,10 @@ public class RACacheSet {
 		
 		// we should be able to fit key and object in memory together
 		ByteBuffer copyBuf = ByteBuffer.allocate(reqKeySize + objSize);
-		fc.position(readPos + 13);
+		fc.position(readPos + entryHeaderSize);
 		fc.read(copyBuf);
 		copyBuf.flip();
-		fc.position(writePos + 13);
+		fc.position(writePos + entryHeaderSize);
 		fc.write(copyBuf);
 		
 		
@@ -1102,9 +3648,14 @@ public class RACacheSet {
 	public final String getTagName(){ return this.tagName; };	
 	public final String getFileName(){ return this.fileName; };  
 	
+	/** @return This set's counters and operation times, see RACacheMetrics.snapshot() */
+	public Map<String, Long> getMetrics(){ return metrics.snapshot(); }
+	
+	RACacheMetrics metrics(){ return metrics; }
+	
 	private void checkStatsOutput(){
 		//Check to see how the memory loss rate is going, and notify the user if its bad
-		if((nObjectLostFromMem / (nHitFromDisk + nHitFromMem + 1.0)) > nObjectLossRateBeforeStatsOutput &&
+		if((metrics.nObjectLostFromMem.sum() / (metrics.nHitFromDisk.sum() + metrics.nHitFromMem.sum() + 1.0)) > nObjectLossRateBeforeStatsOutput &&
 				 (System.currentTimeMillis() - lastStatsWarning) > 5000){
 			System.err.println("WARNING: RACache is loosing a lot of objects from memory, you probably want to increase the VM size");
 			dumpCacheMemoryStats(System.err);
@@ -1120,6 +3671,77 @@ public class RACacheSet {
 		}
 	}
 	
+	/** Rough heap cost of a touched RACacheEntry, and on top of the package size for each loaded key or object */
+	private static final int touchedEntryBytes = 48;
+	private static final int loadedOverheadBytes = 64;
+	
+	/** @return Estimated bytes of heap used by the index and the loaded keys and objects, for RACacheMemory */
+	long memoryBytes(){
+		indexLock.readLock().lock();
+		try{
+			long bytes = memCache.indexMemoryBytes();
+			for(int entry=0; entry < memCache.count(); entry++){
+				RACacheEntry raEntry = memCache.isEntry(entry) ? memCache.getTouched(entry) : null;
+				if(raEntry != null)
+					bytes += touchedEntryBytes + loadedBytes(raEntry);
+			}
+			return bytes;
+		}finally{
+			indexLock.readLock().unlock();
+		}
+	}
+	
+	/** @return Estimated bytes of the key and object loaded for the entry, 0 if neither is */
+	private static long loadedBytes(RACacheEntry raEntry){
+		SoftReference<Object> keyRef = raEntry.keyRef, objectRef = raEntry.objectRef;
+		long bytes = 0;
+		if(keyRef != null && keyRef.get() != null)
+			bytes += loadedOverheadBytes + raEntry.keyPackageSize;
+		if(objectRef != null && objectRef.get() != null)
+			bytes += loadedOverheadBytes + raEntry.objectPackageSize;
+		return bytes;
+	}
+	
+	/** Adds the entries with a loaded key or object to the list, for RACacheMemory.trimTo() */
+	void addLoadedEntries(List<RACacheMemory.Loaded> loaded){
+		indexLock.readLock().lock();
+		try{
+			for(int entry=0; entry < memCache.count(); entry++){
+				RACacheEntry raEntry = memCache.isEntry(entry) ? memCache.getTouched(entry) : null;
+				long bytes = (raEntry != null) ? loadedBytes(raEntry) : 0;
+				if(bytes > 0)
+					loaded.add(new RACacheMemory.Loaded(this, raEntry, memCache.lastAccess(entry), bytes));
+			}
+		}finally{
+			indexLock.readLock().unlock();
+		}
+	}
+	
+	/** Lets go of the loaded key and object of the entry, including from the hot tier, so the next get()
+	 * has to read them from the file (or the off-heap tier). Readers cope with them going at any time,
+	 * as they do when the GC clears them. */
+	void unload(RACacheEntry raEntry){
+		raEntry.objectRef = null;
+		raEntry.keyRef = null;
+		RACacheHotTier hotTier = this.hotTier;
+		if(hotTier != null)
+			hotTier.remove(raEntry);
+	}
+	
+	/** Lets go of all the loaded keys and objects, see unload() */
+	void unloadAll(){
+		indexLock.readLock().lock();
+		try{
+			for(int entry=0; entry < memCache.count(); entry++){
+				RACacheEntry raEntry = memCache.isEntry(entry) ? memCache.getTouched(entry) : null;
+				if(raEntry != null)
+					unload(raEntry);
+			}
+		}finally{
+			indexLock.readLock().unlock();
+		}
+	}
+	
 	public void dumpCacheMemoryStats(){ dumpCacheMemoryStats(System.out); }
 	
 	public void dumpCacheMemoryStats(PrintStream out){
@@ -1129,28 +3751,34 @@ public class RACacheSet {
 		long bytesKeyPacksInMem = 0; //This doesn't really make sense, since the packages are not kept in mem.
 		long bytesObjPacksInMem = 0; // but it gives a lower estimate of the memory used by the objects
 		
-		for(Entry<Integer, RACacheEntry> entry : memCache.entrySet()){
-			RACacheEntry raEntry = entry.getValue();
-			
-			do{
-				if(raEntry.keyRef != null && raEntry.keyRef.get() != null){
-					bytesKeyPacksInMem += raEntry.keyPackageSize;
-					nKeysInMem++;
-				}
-
-				if(raEntry.objectRef != null && raEntry.objectRef.get() != null){
-					bytesObjPacksInMem += raEntry.objectPackageSize;
-					nObjsInMem++;
+		indexLock.readLock().lock();
+		try{
+			for(int entry=0; entry < memCache.count(); entry++){
+				if(!memCache.isEntry(entry))
+					continue;
+				
+				RACacheEntry raEntry = memCache.getTouched(entry);
+				if(raEntry != null){
+					SoftReference<Object> keyRef = raEntry.keyRef, objectRef = raEntry.objectRef;
+					if(keyRef != null && keyRef.get() != null){
+						bytesKeyPacksInMem += raEntry.keyPackageSize;
+						nKeysInMem++;
+					}
+	
+					if(objectRef != null && objectRef.get() != null){
+						bytesObjPacksInMem += raEntry.objectPackageSize;
+						nObjsInMem++;
+					}
 				}
 				
 				nEntries++;
-				
-				raEntry = raEntry.nextEntry;
-			}while(raEntry != null);
+			}
+		}finally{
+			indexLock.readLock().unlock();
 		}
 		
 		out.println("Statistics for RACache set cache='"+cacheName+"', set='"+setName+"', tag='"+tagName+"':");
-		out.println("  Entries = " + nEntries);
+		out.println("  Entries = " + nEntries + ", index ~" + (memCache.indexMemoryBytes()/1024) + " kB, " + memCache.nTouched() + " touched");
 		
 		if(nEntries > 0){
 			out.println("  nKeysInMem = " + nKeysInMem + " = " + ((100*nKeysInMem)/nEntries) + 
@@ -1159,12 +3787,20 @@ public class RACacheSet {
 					"% = " + (bytesObjPacksInMem/1024) + " kB (very approx)");
 		}
 		
+		long nMisses = metrics.nMisses.sum();
+		long nHitFromMem = metrics.nHitFromMem.sum();
+		long nHitFromHotTier = metrics.nHitFromHotTier.sum();
+		long nHitFromDisk = metrics.nHitFromDisk.sum();
+		long nHitFromOffHeap = metrics.nHitFromOffHeap.sum();
+		long nKeyLostFromMem = metrics.nKeyLostFromMem.sum();
+		long nObjectLostFromMem = metrics.nObjectLostFromMem.sum();
+		
 		long nAttempts = nMisses + nHitFromMem + nHitFromDisk;
 		out.println("  nAttempts = " + nAttempts);
 		if(nAttempts > 0){
 			out.println("  nMisses = " + nMisses + " = " + ((100*nMisses)/nAttempts) + "% ");
-			out.println("  nHitFromMem = " + nHitFromMem + " = " + ((100*nHitFromMem)/nAttempts) + "% ");
-			out.println("  nHitFromDisk = " + nHitFromDisk + " = " + ((100*nHitFromDisk)/nAttempts) + "% ");
+			out.println("  nHitFromMem = " + nHitFromMem + " = " + ((100*nHitFromMem)/nAttempts) + "% (" + nHitFromHotTier + " from hot tier)");
+			out.println("  nHitFromDisk = " + nHitFromDisk + " = " + ((100*nHitFromDisk)/nAttempts) + "% (" + nHitFromOffHeap + " from off-heap tier)");
 		}
 		long nHits = nHitFromMem + nHitFromDisk;
 		if(nHits > 0){
@@ -1172,7 +3808,15 @@ public class RACacheSet {
 			out.println("  nObjectLostFromMem = " + nObjectLostFromMem + " = " + ((100*nObjectLostFromMem)/(nHits)) + "% ");
 		}
 		
-		out.println("nCollisionInPut = " + nCollisionInPut);
+		out.println("nCollisionInPut = " + metrics.nCollisionInPut.sum());
+		out.println("nSkippedByBloom = " + metrics.nSkippedByBloom.sum());
+		
+		RACacheHotTier hotTier = this.hotTier;
+		if(hotTier != null)
+			out.println(hotTier.getStats());
+		RACacheOffHeapTier offHeapTier = this.offHeapTier;
+		if(offHeapTier != null)
+			out.println(offHeapTier.getStats());
 		
 	}
 
@@ -1182,11 +3826,17 @@ public class RACacheSet {
 	 * breaking the simultaneous access.
 	 */
 	public void emptyFile() {
+		//anything queued is about to be thrown away anyway
+		pendingQueue.clear();
+		pendingEntries.clear();
+		
+		indexLock.writeLock().lock();
 		try {
 			if(fc == null){
 				//we need to open the file to lock it, but we don't need to do
 				//a  full index read
 				File aFile = new File(fileName);
+				stopUsingClosedBloom();
 				raFile = new RandomAccessFile(aFile, "rw");
 				fc = raFile.getChannel();
 			}
@@ -1196,6 +3846,7 @@ public class RACacheSet {
 			writeLock(); //make sure no one else is in operation
 			
 			createHeader();
+			deleteIndexFile();
 			
 			writeLock.release();
 			writeLock = null;
@@ -1206,7 +3857,7 @@ public class RACacheSet {
 			fc = null;
 			raFile = null;
 			
-			memCache.clear();
+			clearIndex();
 			
 		} catch (Exception e) {
 			System.err.println("ERROR: Couldn't delete cache file '"+fileName+"':");
@@ -1219,6 +3870,7 @@ public class RACacheSet {
 					e.printStackTrace();
 				}				
 			}
+			indexLock.writeLock().unlock();
 		}
 		
 		
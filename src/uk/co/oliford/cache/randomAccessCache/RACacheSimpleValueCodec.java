@@ -0,0 +1,167 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Built-in RACacheCodec for the things typically used as request keys:
+ * boxed numbers, Strings, Booleans, Characters, and arrays of those (including
+ * Object[] holding any mix of them, or further such arrays).
+ *
+ * Each value is a 1 byte tag followed by its data:
+ *   'N' null, 'D' Double, 'F' Float, 'J' Long, 'I' Integer, 'S' Short, 'B' Byte,
+ *   'Z' Boolean, 'C' Character, 'T' String (x4 length then UTF-8),
+ *   '[' array (x1 component type tag, 'O' for Object, x4 length, then the elements).
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheSimpleValueCodec implements RACacheCodec {
+
+	public static final byte CODEC_ID = 2;
+
+	/** Don't go mad with nested arrays, Java serialisation can have those */
+	private static final int maxDepth = 4;
+
+	private static final Class<?> arrayComponentTypes[] = {
+			Object.class, Double.class, Float.class, Long.class, Integer.class, Short.class,
+			Byte.class, Boolean.class, Character.class, String.class };
+	private static final String arrayComponentTags = "ODFJISBZCT";
+
+	@Override
+	public byte getCodecID() { return CODEC_ID; }
+
+	private static char tag(Object obj){
+		if(obj == null) return 'N';
+		Class<?> cls = obj.getClass();
+		if(cls == Double.class) return 'D';
+		if(cls == Float.class) return 'F';
+		if(cls == Long.class) return 'J';
+		if(cls == Integer.class) return 'I';
+		if(cls == Short.class) return 'S';
+		if(cls == Byte.class) return 'B';
+		if(cls == Boolean.class) return 'Z';
+		if(cls == Character.class) return 'C';
+		if(cls == String.class) return 'T';
+		if(cls.isArray() && componentTag(cls.getComponentType()) != 0) return '[';
+		return 0;
+	}
+
+	private static char componentTag(Class<?> cls){
+		for(int i=0; i < arrayComponentTypes.length; i++)
+			if(arrayComponentTypes[i] == cls)
+				return arrayComponentTags.charAt(i);
+		return 0;
+	}
+
+	@Override
+	public boolean canEncode(Object obj) {
+		return canEncode(obj, 0);
+	}
+
+	private static boolean canEncode(Object obj, int depth){
+		char tag = tag(obj);
+		if(tag == 0)
+			return false;
+		if(tag == 'T'){
+			//Unpaired surrogates wouldn't come back from UTF-8 the same
+			String str = (String)obj;
+			for(int i=0; i < str.length(); i++)
+				if(Character.isSurrogate(str.charAt(i)))
+					return false;
+		}
+		if(tag == '['){
+			if(depth >= maxDepth)
+				return false;
+			for(Object elem : (Object[])obj)
+				if(!canEncode(elem, depth + 1))
+					return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int encodedSize(Object obj) {
+		switch(tag(obj)){
+			case 'N': return 1;
+			case 'D': case 'J': return 9;
+			case 'F': case 'I': return 5;
+			case 'S': case 'C': return 3;
+			case 'B': case 'Z': return 2;
+			case 'T': return 5 + utf8Length((String)obj);
+			default:
+				int size = 6;
+				for(Object elem : (Object[])obj)
+					size += encodedSize(elem);
+				return size;
+		}
+	}
+
+	private static int utf8Length(String str){
+		int len = 0;
+		for(int i=0; i < str.length(); i++){
+			char c = str.charAt(i);
+			len += (c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+		}
+		return len;
+	}
+
+	@Override
+	public void encode(Object obj, ByteBuffer buf) {
+		char tag = tag(obj);
+		buf.put((byte)tag);
+		switch(tag){
+			case 'N': break;
+			case 'D': buf.putDouble((Double)obj); break;
+			case 'F': buf.putFloat((Float)obj); break;
+			case 'J': buf.putLong((Long)obj); break;
+			case 'I': buf.putInt((Integer)obj); break;
+			case 'S': buf.putShort((Short)obj); break;
+			case 'B': buf.put((Byte)obj); break;
+			case 'Z': buf.put((Boolean)obj ? (byte)1 : (byte)0); break;
+			case 'C': buf.putChar((Character)obj); break;
+			case 'T':
+				byte strBytes[] = ((String)obj).getBytes(StandardCharsets.UTF_8);
+				buf.putInt(strBytes.length);
+				buf.put(strBytes);
+				break;
+			default:
+				Object elems[] = (Object[])obj;
+				buf.put((byte)componentTag(obj.getClass().getComponentType()));
+				buf.putInt(elems.length);
+				for(Object elem : elems)
+					encode(elem, buf);
+		}
+	}
+
+	@Override
+	public Object decode(ByteBuffer buf) throws IOException {
+		char tag = (char)buf.get();
+		switch(tag){
+			case 'N': return null;
+			case 'D': return buf.getDouble();
+			case 'F': return buf.getFloat();
+			case 'J': return buf.getLong();
+			case 'I': return buf.getInt();
+			case 'S': return buf.getShort();
+			case 'B': return buf.get();
+			case 'Z': return buf.get() != 0;
+			case 'C': return buf.getChar();
+			case 'T':
+				byte strBytes[] = new byte[buf.getInt()];
+				buf.get(strBytes);
+				return new String(strBytes, StandardCharsets.UTF_8);
+			case '[':
+				int typeIdx = arrayComponentTags.indexOf((char)buf.get());
+				if(typeIdx < 0)
+					throw new IOException("Corrupt simple value package, unknown array type");
+				int n = buf.getInt();
+				Object elems[] = (Object[])Array.newInstance(arrayComponentTypes[typeIdx], n);
+				for(int i=0; i < n; i++)
+					elems[i] = decode(buf);
+				return elems;
+			default:
+				throw new IOException("Corrupt simple value package, unknown tag " + (int)tag);
+		}
+	}
+}
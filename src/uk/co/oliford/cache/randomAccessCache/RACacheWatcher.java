@@ -0,0 +1,114 @@
+package uk.co.oliford.cache.randomAccessCache;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Follows the .mrc files of sets with the 'watch' sync policy (see RACacheSet) from a
+ * background thread, so that their get()s never need to check the file.
+ *
+ * One WatchService and one thread for the whole VM. When anything is written to a watched
+ * file (or it's replaced by a compaction), the set's syncFromWatcher() reads whatever
+ * has been added. Bursts of events are drained first, so each set syncs once per burst.
+ *
+ * This only hears about writes done on this machine, since that's all the OS tells us about,
+ * so sets on a shared network filesystem written from elsewhere should use 'interval'.
+ * On systems without native file notification, the JDK polls, which can take seconds.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RACacheWatcher {
+
+	private static WatchService watchService;
+
+	/** Sets for each (absolute) file name. There can be more than one if there are several RACacheServices */
+	private static final ConcurrentHashMap<Path, Set<RACacheSet>> setsByFile = new ConcurrentHashMap<>();
+
+	/** Directories already registered, until nothing in them is watched */
+	private static final HashMap<Path, WatchKey> dirs = new HashMap<>();
+
+	/** Starts watching the given set's file, if it isn't already */
+	public static synchronized void register(RACacheSet set){
+		Path file = Paths.get(set.getFileName()).toAbsolutePath().normalize();
+		Path dir = file.getParent();
+		try{
+			if(watchService == null){
+				watchService = FileSystems.getDefault().newWatchService();
+				Thread t = new Thread(RACacheWatcher::run, "RACache watcher");
+				t.setDaemon(true);
+				t.start();
+			}
+
+			if(!dirs.containsKey(dir))
+				dirs.put(dir, dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+
+			setsByFile.computeIfAbsent(file, f -> ConcurrentHashMap.newKeySet()).add(set);
+
+		}catch(IOException e){
+			System.err.println("WARNING: Couldn't watch cache directory '" + dir + "', it won't see changes from elsewhere: " + e);
+		}
+	}
+
+	/** Stops watching the given set's file, and its directory if there's nothing else watched in there */
+	public static synchronized void unregister(RACacheSet set){
+		Path file = Paths.get(set.getFileName()).toAbsolutePath().normalize();
+		Set<RACacheSet> sets = setsByFile.get(file);
+		if(sets == null || !sets.remove(set))
+			return;
+		if(sets.isEmpty())
+			setsByFile.remove(file);
+
+		Path dir = file.getParent();
+		for(Path watched : setsByFile.keySet()){
+			if(dir.equals(watched.getParent()))
+				return;
+		}
+		WatchKey key = dirs.remove(dir);
+		if(key != null)
+			key.cancel();
+	}
+
+	private static void run(){
+		try{
+			while(true){
+				WatchKey key = watchService.take();
+
+				HashSet<RACacheSet> changed = new HashSet<>();
+				do{
+					Path dir = (Path)key.watchable();
+					for(WatchEvent<?> event : key.pollEvents()){
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+							//lost track, so everything in there
+							for(Map.Entry<Path, Set<RACacheSet>> e : setsByFile.entrySet()){
+								if(dir.equals(e.getKey().getParent()))
+									changed.addAll(e.getValue());
+							}
+							continue;
+						}
+
+						Set<RACacheSet> sets = setsByFile.get(dir.resolve((Path)event.context()));
+						if(sets != null)
+							changed.addAll(sets);
+					}
+					key.reset();
+				}while((key = watchService.poll()) != null);
+
+				for(RACacheSet set : changed)
+					set.syncFromWatcher();
+			}
+		}catch(InterruptedException | ClosedWatchServiceException e){
+			System.err.println("WARNING: RACache watcher stopped: " + e);
+		}
+	}
+}
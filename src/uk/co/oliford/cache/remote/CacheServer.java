@@ -0,0 +1,501 @@
+package uk.co.oliford.cache.remote;
+
+import static uk.co.oliford.cache.remote.RemoteCacheProtocol.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.oliford.cache.common.CacheService;
+import uk.co.oliford.cache.randomAccessCache.RACache;
+import uk.co.oliford.cache.randomAccessCache.RACacheKey;
+import uk.co.oliford.cache.randomAccessCache.RACacheService;
+import uk.co.oliford.jolu.SettingsManager;
+
+/** Process that owns the cache files and serves them to RemoteCacheServices, so that
+ * the nodes of a cluster share one cache rather than each thrashing their own copy over NFS.
+ * See RemoteCacheProtocol for the wire format.
+ *
+ * Run it on the machine with the cache directory:
+ *    java uk.co.oliford.cache.remote.CacheServer [port]
+ *
+ * The port is otherwise 'minerva.cache.server.port' (default 7437) and it listens on
+ * 'minerva.cache.server.bindAddress' (default the loopback address, '*' for all interfaces).
+ * There's no authentication, so only listen on other interfaces where the network is trusted.
+ *
+ * Objects from the clients that are Java serialised (i.e. that no RACacheCodec does) would let
+ * a client have the server run the readObject() of any serialisable class on its classpath,
+ * so they have to pass the ObjectInputFilter pattern 'minerva.cache.server.serialFilter'
+ * (same syntax as jdk.serialFilter, e.g. "java.lang.*;java.util.*;my.package.**;!*").
+ * The default "!*" refuses them all, with a STATUS_ERROR to the client. The objects the
+ * server sends back aren't filtered, since the clients chose to trust it.
+ *
+ * Each connection has a thread reading requests, which are done by a pool of
+ * 'minerva.cache.server.threads' threads (default 2x the number of processors), so pipelined
+ * requests from one client are worked on in parallel. A connection can have at most
+ * 'minerva.cache.server.maxInFlight' (default 256) requests being worked on, after which
+ * we stop reading from it and TCP makes the client wait.
+ *
+ * The objects are decoded here before they go into the CacheService, so their classes
+ * need to be on the server's classpath too.
+ *
+ * The cache modes of the clients are their own business, but the tag is set
+ * on the server, so it's shared by all the clients of a cache.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class CacheServer implements Closeable {
+
+	private static final int nThreads = Integer.parseInt(SettingsManager.defaultGlobal().getProperty("minerva.cache.server.threads",
+										"" + (2 * Runtime.getRuntime().availableProcessors())));
+	private static final int maxInFlight = Integer.parseInt(SettingsManager.defaultGlobal().getProperty("minerva.cache.server.maxInFlight", "256"));
+
+	/** Applied to Java serialised packages from the clients */
+	private static final ObjectInputFilter clientFilter = ObjectInputFilter.Config.createFilter(
+							SettingsManager.defaultGlobal().getProperty("minerva.cache.server.serialFilter", "!*"));
+
+	private final CacheService cacheService;
+
+	private final ServerSocket serverSocket;
+
+	private final ExecutorService workers;
+
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+	/** Entries being calculated by a client, after OP_LOAD said STATUS_LOAD to them */
+	private final ConcurrentHashMap<LeaseKey, Lease> leases = new ConcurrentHashMap<>();
+
+	private final AtomicInteger nConnections = new AtomicInteger();
+
+	private volatile boolean closed = false;
+
+	/** Starts serving the given cache service on the given port (0 for any free one, see getPort())
+	 * of the given address (null for the loopback address). */
+	public CacheServer(CacheService cacheService, InetAddress bindAddress, int port) throws IOException {
+		this.cacheService = cacheService;
+
+		AtomicInteger nWorkers = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread t = new Thread(r, "CacheServer worker " + nWorkers.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		this.workers = pool;
+
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress((bindAddress != null) ? bindAddress : InetAddress.getLoopbackAddress(), port));
+
+		Thread acceptThread = new Thread(this::acceptLoop, "CacheServer accept " + getPort());
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	public int getPort() { return serverSocket.getLocalPort(); }
+
+	public CacheService getCacheService() { return cacheService; }
+
+	private void acceptLoop() {
+		while(!closed){
+			try{
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				Connection conn = new Connection(socket);
+				connections.add(conn);
+				Thread t = new Thread(conn, "CacheServer connection " + nConnections.incrementAndGet() + " " + socket.getRemoteSocketAddress());
+				t.setDaemon(true);
+				t.start();
+			}catch(IOException e){
+				if(!closed)
+					System.err.println("WARNING: CacheServer couldn't accept a connection: " + e);
+			}
+		}
+	}
+
+	/** Stops listening, drops all the clients and flushes the caches */
+	@Override
+	public void close() {
+		closed = true;
+		try{
+			serverSocket.close();
+		}catch(IOException e){ }
+
+		for(Connection conn : connections)
+			conn.close();
+
+		workers.shutdown();
+		try{
+			workers.awaitTermination(60, TimeUnit.SECONDS);
+		}catch(InterruptedException e){ }
+
+		if(cacheService instanceof RACacheService){
+			for(RACache c : ((RACacheService)cacheService).getAllCaches())
+				c.flush();
+		}
+	}
+
+	/** Identity of an entry that is being calculated */
+	private static final class LeaseKey {
+		final String cacheName, setKeyName;
+		final RACacheKey key;
+
+		LeaseKey(String cacheName, String setKeyName, Object requestKey) {
+			this.cacheName = cacheName;
+			this.setKeyName = setKeyName;
+			this.key = new RACacheKey(requestKey);
+		}
+
+		@Override
+		public int hashCode() { return (31 * cacheName.hashCode() + setKeyName.hashCode()) * 31 + key.hash; }
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof LeaseKey))
+				return false;
+			LeaseKey other = (LeaseKey)obj;
+			return Objects.equals(cacheName, other.cacheName) && Objects.equals(setKeyName, other.setKeyName) && key.equals(other.key);
+		}
+	}
+
+	/** A client calculating an entry, and the OP_LOADs of anyone else waiting for it */
+	private static final class Lease {
+		final Connection holder;
+		private List<Runnable> waiters = new ArrayList<>();
+
+		Lease(Connection holder) { this.holder = holder; }
+
+		/** @return false if the lease has already been released, so there's no point waiting */
+		synchronized boolean addWaiter(Runnable waiter) {
+			if(waiters == null)
+				return false;
+			waiters.add(waiter);
+			return true;
+		}
+
+		synchronized List<Runnable> release() {
+			List<Runnable> w = waiters;
+			waiters = null;
+			return w;
+		}
+	}
+
+	/** Ends the lease, if the connection has one, and reruns the OP_LOADs waiting for it.
+	 * They will either find the entry or one of them gets the lease. */
+	private void releaseLease(LeaseKey leaseKey, Connection conn) {
+		Lease lease = leases.get(leaseKey);
+		if(lease == null || lease.holder != conn || !leases.remove(leaseKey, lease))
+			return;
+		conn.leasesHeld.remove(leaseKey);
+		runWaiters(lease);
+	}
+
+	private void runWaiters(Lease lease) {
+		try{
+			for(Runnable waiter : lease.release())
+				workers.execute(waiter);
+		}catch(RejectedExecutionException e){
+			//we're closing, no-one is waiting any more
+		}
+	}
+
+	/** One client */
+	private final class Connection implements Runnable {
+		private final Socket socket;
+		private DataInputStream in;
+		private FrameWriter out;
+
+		private final Semaphore inFlight = new Semaphore(maxInFlight);
+
+		/** Leases this client has, which are released if it goes away */
+		final Set<LeaseKey> leasesHeld = ConcurrentHashMap.newKeySet();
+
+		Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			try{
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+				DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+				handshake(in, dout);
+				out = new FrameWriter(dout);
+
+				while(!closed){
+					Frame request = readFrame(in);
+
+					if(request.opOrStatus == OP_LOAD){
+						//these can wait on other clients for a long time, so aren't counted
+						workers.execute(() -> handle(request, false));
+					}else{
+						inFlight.acquire();
+						workers.execute(() -> handle(request, true));
+					}
+				}
+
+			}catch(EOFException | SocketException | RejectedExecutionException e){
+				//client went away, or we're closing
+			}catch(IOException e){
+				if(!closed)
+					System.err.println("WARNING: CacheServer dropping client " + socket.getRemoteSocketAddress() + ": " + e);
+			}catch(InterruptedException e){
+			}finally{
+				close();
+			}
+		}
+
+		void close() {
+			connections.remove(this);
+			try{
+				socket.close();
+			}catch(IOException e){ }
+
+			for(LeaseKey leaseKey : leasesHeld)
+				releaseLease(leaseKey, this);
+		}
+
+		/** Does a request and sends the response */
+		private void handle(Frame request, boolean holdsPermit) {
+			try{
+				Payload response = new Payload();
+				byte status;
+				try{
+					status = doRequest(request, response);
+				}catch(Exception | LinkageError e){
+					//LinkageError is mostly a NoClassDefFoundError of something in a cached object
+					response = new Payload();
+					response.writeUTF(e.toString());
+					status = STATUS_ERROR;
+				}
+
+				if(status >= 0)
+					out.write(status, request.requestID, response.toByteArray());
+
+			}catch(IOException e){
+				//can't write to the client, the reader will notice too
+				close();
+			}finally{
+				if(holdsPermit)
+					inFlight.release();
+			}
+		}
+
+		/** Does the request and writes the response payload.
+		 * @return The response status, or -1 if the response will be sent later */
+		private byte doRequest(Frame request, Payload response) throws IOException {
+			DataInputStream p = request.payload;
+			switch(request.opOrStatus){
+				case OP_GET: {
+					String cacheName = p.readUTF(), setKeyName = p.readUTF();
+					Object key = readObject(p, clientFilter);
+					Object obj = cacheService.get(cacheName, setKeyName, key);
+					if(obj == null)
+						return STATUS_NOTFOUND;
+					response.writeObject(cacheName, obj);
+					return STATUS_OK;
+				}
+
+				case OP_PUT: {
+					String cacheName = p.readUTF(), setKeyName = p.readUTF();
+					Object key = readObject(p, clientFilter);
+					Object obj = readObject(p, clientFilter);
+					cacheService.put(cacheName, setKeyName, key, obj);
+					if(!leases.isEmpty())
+						releaseLease(new LeaseKey(cacheName, setKeyName, key), this);
+					return STATUS_OK;
+				}
+
+				case OP_GET_ALL: {
+					String cacheName = p.readUTF(), setKeyName = p.readUTF();
+					int n = p.readInt();
+					List<Object> keys = new ArrayList<>(n);
+					for(int i=0; i < n; i++)
+						keys.add(readObject(p, clientFilter));
+					Map<Object, Object> found = cacheService.getAll(cacheName, setKeyName, keys);
+					response.writeInt(n);
+					for(Object key : keys)
+						response.writeObject(cacheName, found.get(key));
+					return STATUS_OK;
+				}
+
+				case OP_PUT_ALL: {
+					String cacheName = p.readUTF(), setKeyName = p.readUTF();
+					int n = p.readInt();
+					Map<Object, Object> entries = new HashMap<>();
+					for(int i=0; i < n; i++){
+						Object key = readObject(p, clientFilter);
+						entries.put(key, readObject(p, clientFilter));
+					}
+					cacheService.putAll(cacheName, setKeyName, entries);
+					if(!leases.isEmpty()){
+						for(Object key : entries.keySet())
+							releaseLease(new LeaseKey(cacheName, setKeyName, key), this);
+					}
+					return STATUS_OK;
+				}
+
+				case OP_LOAD:
+					return doLoad(request, response);
+
+				case OP_LOAD_ABANDON: {
+					String cacheName = p.readUTF(), setKeyName = p.readUTF();
+					releaseLease(new LeaseKey(cacheName, setKeyName, readObject(p, clientFilter)), this);
+					return STATUS_OK;
+				}
+
+				case OP_GET_KEYS: {
+					String cacheName = p.readUTF(), setKeyName = p.readUTF();
+					List<Object> keys = cacheService.getCache(cacheName).getKeys(setKeyName);
+					if(keys == null)
+						keys = Collections.emptyList();
+					response.writeInt(keys.size());
+					for(Object key : keys)
+						response.writeObject(cacheName, key);
+					return STATUS_OK;
+				}
+
+				case OP_ORGANISE: {
+					String cacheName = p.readUTF(), setKeyName = p.readUTF();
+					cacheService.getCache(cacheName).organise(setKeyName);
+					return STATUS_OK;
+				}
+
+				case OP_FLUSH:
+					cacheService.getCache(p.readUTF()).flush();
+					return STATUS_OK;
+
+				case OP_FAST_SYNC:
+					cacheService.fastSync();
+					return STATUS_OK;
+
+				case OP_DELETE_SET: {
+					String cacheName = p.readUTF(), setKeyName = p.readUTF();
+					cacheService.deleteSet(cacheName, setKeyName);
+					return STATUS_OK;
+				}
+
+				case OP_CLEAR_MEMORY:
+					cacheService.clearMemory();
+					return STATUS_OK;
+
+				case OP_SET_TAG: {
+					String cacheName = p.readUTF();
+					String tagName = readNullableUTF(p);
+					cacheService.setCacheTag(cacheName, tagName, p.readBoolean());
+					return STATUS_OK;
+				}
+
+				case OP_METRICS: {
+					String cacheName = readNullableUTF(p);
+					Map<String, Map<String, Long>> metrics = (cacheName != null)
+							? Collections.singletonMap(cacheName, cacheService.getMetrics(cacheName))
+							: cacheService.getMetrics();
+					response.writeInt(metrics.size());
+					for(Map.Entry<String, Map<String, Long>> cacheMetrics : metrics.entrySet()){
+						response.writeUTF(cacheMetrics.getKey());
+						response.writeInt(cacheMetrics.getValue().size());
+						for(Map.Entry<String, Long> metric : cacheMetrics.getValue().entrySet()){
+							response.writeUTF(metric.getKey());
+							response.writeLong(metric.getValue());
+						}
+					}
+					return STATUS_OK;
+				}
+
+				default:
+					throw new IOException("Unknown op " + request.opOrStatus);
+			}
+		}
+
+		/** OP_LOAD: The entry if it's there, otherwise a lease to calculate it,
+		 * otherwise wait for whoever has the lease */
+		private byte doLoad(Frame request, Payload response) throws IOException {
+			DataInputStream p = request.payload;
+			p.mark(Integer.MAX_VALUE);
+			String cacheName = p.readUTF(), setKeyName = p.readUTF();
+			Object key = readObject(p, clientFilter);
+
+			LeaseKey leaseKey = new LeaseKey(cacheName, setKeyName, key);
+			Lease lease = new Lease(this);
+
+			while(true){
+				Object obj = cacheService.get(cacheName, setKeyName, key);
+				if(obj != null){
+					response.writeObject(cacheName, obj);
+					return STATUS_OK;
+				}
+
+				Lease existing = leases.putIfAbsent(leaseKey, lease);
+				if(existing == null){
+					//it might have been put between the get() and now
+					obj = cacheService.get(cacheName, setKeyName, key);
+					if(obj != null){
+						leases.remove(leaseKey, lease);
+						runWaiters(lease);
+						response.writeObject(cacheName, obj);
+						return STATUS_OK;
+					}
+					leasesHeld.add(leaseKey);
+					if(socket.isClosed()) //we might have missed the cleanup
+						releaseLease(leaseKey, this);
+					return STATUS_LOAD;
+				}
+
+				if(existing.holder == this)
+					return STATUS_LOAD; //client asked again, maybe from another thread
+
+				p.reset();
+				if(existing.addWaiter(() -> handle(request, false)))
+					return -1;
+				//released just now, try again
+			}
+		}
+	}
+
+	/** Cache server on the port from the first argument or 'minerva.cache.server.port',
+	 * serving the cache directory from the settings as usual. */
+	public static void main(String[] args) throws Exception {
+		new SettingsManager("minerva", true);
+		SettingsManager settings = SettingsManager.defaultGlobal();
+
+		int port = (args.length > 0) ? Integer.parseInt(args[0])
+						: Integer.parseInt(settings.getProperty("minerva.cache.server.port", "" + DEFAULT_PORT));
+		String bindAddress = settings.getProperty("minerva.cache.server.bindAddress", null);
+
+		CacheServer server = new CacheServer(new RACacheService(),
+								(bindAddress == null) ? InetAddress.getLoopbackAddress()
+									: bindAddress.equals("*") ? new InetSocketAddress(0).getAddress()
+									: InetAddress.getByName(bindAddress), port);
+		Runtime.getRuntime().addShutdownHook(new Thread(server::close, "CacheServer exit"));
+
+		System.out.println("CacheServer serving " + RACacheService.getCachePath() + " on " + server.serverSocket.getLocalSocketAddress());
+		Thread.currentThread().join();
+	}
+
+}
@@ -0,0 +1,518 @@
+package uk.co.oliford.cache.remote;
+
+import static uk.co.oliford.cache.remote.RemoteCacheProtocol.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import uk.co.oliford.cache.common.Cache;
+import uk.co.oliford.cache.common.CacheService;
+import uk.co.oliford.cache.randomAccessCache.RACacheCodecs;
+import uk.co.oliford.cache.randomAccessCache.RACacheService;
+import uk.co.oliford.cache.remote.RemoteCacheService.NearKey;
+
+/** One of these for each cache type of a RemoteCacheService.
+ * Everything is a request to the CacheServer, apart from what the near-cache has.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RemoteCache implements Cache {
+
+	private final RemoteCacheService service;
+
+	/** The identity of us */
+	private final String cacheName;
+
+	/** Cache mode for this cache type, one of CacheService.CACHEMODE_xxxx */
+	private volatile int cacheMode;
+
+	/** Current tag set for this cache type, or null. Also set on the server. */
+	private volatile String tagName = null;
+
+	private volatile boolean copyExisting = false;
+
+	/** putAsync()s that haven't been acknowledged yet, so flush() can wait for them */
+	private final Set<CompletableFuture<Void>> pendingPuts = ConcurrentHashMap.newKeySet();
+
+	/** computeIfAbsent() loads going on in this VM, so that other threads wanting the same thing can wait for them.
+	 * The server does the same between VMs. */
+	private final ConcurrentHashMap<NearKey, CompletableFuture<Object>> loadsInFlight = new ConcurrentHashMap<>();
+
+	/** The loadsInFlight that this thread is doing, so that a loader asking for its own key doesn't wait for itself */
+	private final ThreadLocal<Set<NearKey>> loadsHere = ThreadLocal.withInitial(HashSet::new);
+
+	private final LongAdder nNearCacheHits = new LongAdder();
+	private final LongAdder nRequests = new LongAdder();
+	private final LongAdder nFailedRequests = new LongAdder();
+
+	/** Only things in this package should instantiate this */
+	RemoteCache(RemoteCacheService service, String cacheName, int cacheMode) {
+		this.service = service;
+		this.cacheName = cacheName;
+		this.cacheMode = cacheMode;
+	}
+
+	/** Payload starting with our name and the set name */
+	private Payload request(String setKeyName) throws IOException {
+		Payload p = new Payload();
+		p.writeUTF(cacheName);
+		p.writeUTF(setKeyName);
+		return p;
+	}
+
+	private CompletableFuture<Frame> send(byte op, Payload payload) {
+		nRequests.increment();
+		return service.request(op, payload);
+	}
+
+	private Frame sendAndWait(byte op, Payload payload, boolean waitForever) throws IOException {
+		return RemoteCacheService.await(send(op, payload), waitForever);
+	}
+
+	private void failed(String what, Throwable e) {
+		nFailedRequests.increment();
+		RemoteCacheService.warn(what + " of cache '" + cacheName + "'", e);
+	}
+
+	/** Reads and decodes an object from a response, and puts it in the near-cache */
+	private Object readAndRemember(DataInputStream in, NearKey nearKey) throws IOException {
+		byte data[] = readPackage(in);
+		if(data == null)
+			return null;
+
+		Object object;
+		try{
+			object = RACacheCodecs.decode(data);
+		}catch(ClassNotFoundException e){
+			throw new IOException("Class of cached object isn't available here: " + e.getMessage(), e);
+		}
+		if(nearKey != null)
+			service.nearCache.put(nearKey, object, data.length);
+		return object;
+	}
+
+	private NearKey nearKey(String setKeyName, Object requestKey) {
+		return service.nearCache.enabled() ? new NearKey(cacheName, setKeyName, requestKey) : null;
+	}
+
+	private Object fromNearCache(NearKey nearKey) {
+		if(nearKey == null)
+			return null;
+		Object object = service.nearCache.get(nearKey);
+		if(object != null)
+			nNearCacheHits.increment();
+		return object;
+	}
+
+	@Override
+	public Object get(String setKeyName, Object requestKey) {
+		if(cacheMode == CacheService.CACHEMODE_OFF ||
+				cacheMode == CacheService.CACHEMODE_UPDATE)
+			return null;
+
+		NearKey nearKey = nearKey(setKeyName, requestKey);
+		Object object = fromNearCache(nearKey);
+		if(object != null)
+			return object;
+
+		try{
+			Payload p = request(setKeyName);
+			p.writeObject(cacheName, requestKey);
+			Frame response = sendAndWait(OP_GET, p, false);
+			return (response.opOrStatus == STATUS_OK) ? readAndRemember(response.payload, nearKey) : null;
+		}catch(IOException e){
+			failed("get()", e);
+			return null;
+		}
+	}
+
+	/** Sends the request without waiting, so lots of these are pipelined.
+	 * The response is decoded on the RACacheService I/O threads. */
+	@Override
+	public CompletableFuture<Object> getAsync(String setKeyName, Object requestKey) {
+		if(cacheMode == CacheService.CACHEMODE_OFF ||
+				cacheMode == CacheService.CACHEMODE_UPDATE)
+			return CompletableFuture.completedFuture(null);
+
+		NearKey nearKey = nearKey(setKeyName, requestKey);
+		Object object = fromNearCache(nearKey);
+		if(object != null)
+			return CompletableFuture.completedFuture(object);
+
+		CompletableFuture<Frame> response;
+		try{
+			Payload p = request(setKeyName);
+			p.writeObject(cacheName, requestKey);
+			response = send(OP_GET, p);
+		}catch(IOException e){
+			failed("getAsync()", e);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		return response.thenApplyAsync(r -> {
+			try{
+				RemoteCacheService.checkStatus(r);
+				return (r.opOrStatus == STATUS_OK) ? readAndRemember(r.payload, nearKey) : null;
+			}catch(IOException e){
+				throw new CompletionException(e);
+			}
+		}, RACacheService.ioExecutor()).exceptionally(e -> {
+			failed("getAsync()", e);
+			return null;
+		});
+	}
+
+	/** Gets the ones the near-cache doesn't have in one request.
+	 * @return Map of the given request key objects that were found, to the cached objects */
+	@Override
+	public Map<Object, Object> getAll(String setKeyName, Collection<?> requestKeys) {
+		Map<Object, Object> found = new HashMap<>();
+		if(cacheMode == CacheService.CACHEMODE_OFF ||
+				cacheMode == CacheService.CACHEMODE_UPDATE || requestKeys.isEmpty())
+			return found;
+
+		List<Object> toRequest = new ArrayList<>(requestKeys.size());
+		List<NearKey> nearKeys = new ArrayList<>(requestKeys.size());
+		for(Object requestKey : requestKeys){
+			NearKey nearKey = nearKey(setKeyName, requestKey);
+			Object object = fromNearCache(nearKey);
+			if(object != null){
+				found.put(requestKey, object);
+			}else{
+				toRequest.add(requestKey);
+				nearKeys.add(nearKey);
+			}
+		}
+		if(toRequest.isEmpty())
+			return found;
+
+		try{
+			Payload p = request(setKeyName);
+			p.writeInt(toRequest.size());
+			for(Object requestKey : toRequest)
+				p.writeObject(cacheName, requestKey);
+
+			DataInputStream in = sendAndWait(OP_GET_ALL, p, false).payload;
+			int n = in.readInt();
+			if(n != toRequest.size())
+				throw new IOException("Asked for " + toRequest.size() + " objects but got " + n);
+			for(int i=0; i < n; i++){
+				Object object = readAndRemember(in, nearKeys.get(i));
+				if(object != null)
+					found.put(toRequest.get(i), object);
+			}
+		}catch(IOException e){
+			failed("getAll()", e);
+		}
+		return found;
+	}
+
+	/** Waits for the server to have it, so a get() straight after will find it */
+	@Override
+	public void put(String setKeyName, Object requestKey, Object object) {
+		if(cacheMode == CacheService.CACHEMODE_OFF ||
+				cacheMode == CacheService.CACHEMODE_READONLY)
+			return;
+
+		try{
+			sendAndWait(OP_PUT, putRequest(setKeyName, requestKey, object), false);
+		}catch(IOException e){
+			failed("put()", e);
+			forget(setKeyName, requestKey);
+		}
+	}
+
+	/** Takes something we failed to put out of the near-cache, so we don't pretend we have it */
+	private void forget(String setKeyName, Object requestKey) {
+		NearKey nearKey = nearKey(setKeyName, requestKey);
+		if(nearKey != null)
+			service.nearCache.remove(nearKey);
+	}
+
+	/** The OP_PUT payload, noting the object in the near-cache as we go */
+	private Payload putRequest(String setKeyName, Object requestKey, Object object) throws IOException {
+		Payload p = request(setKeyName);
+		p.writeObject(cacheName, requestKey);
+		int before = p.size();
+		p.writeObject(cacheName, object);
+
+		NearKey nearKey = nearKey(setKeyName, requestKey);
+		if(nearKey != null)
+			service.nearCache.put(nearKey, object, p.size() - before);
+		return p;
+	}
+
+	/** Sends the request without waiting. The future completes when the server has it. */
+	@Override
+	public CompletableFuture<Void> putAsync(String setKeyName, Object requestKey, Object object) {
+		if(cacheMode == CacheService.CACHEMODE_OFF ||
+				cacheMode == CacheService.CACHEMODE_READONLY)
+			return CompletableFuture.completedFuture(null);
+
+		CompletableFuture<Frame> response;
+		try{
+			response = send(OP_PUT, putRequest(setKeyName, requestKey, object));
+		}catch(IOException e){
+			failed("putAsync()", e);
+			return CompletableFuture.completedFuture(null);
+		}
+
+		CompletableFuture<Void> future = response.handle((r, e) -> {
+			try{
+				if(e == null)
+					RemoteCacheService.checkStatus(r);
+			}catch(IOException e2){
+				e = e2;
+			}
+			if(e != null){
+				failed("putAsync()", e);
+				forget(setKeyName, requestKey);
+			}
+			return null;
+		});
+		pendingPuts.add(future);
+		future.whenComplete((r, e) -> pendingPuts.remove(future));
+		return future;
+	}
+
+	/** All in one request */
+	@Override
+	public void putAll(String setKeyName, Map<?, ?> entries) {
+		if(cacheMode == CacheService.CACHEMODE_OFF ||
+				cacheMode == CacheService.CACHEMODE_READONLY || entries.isEmpty())
+			return;
+
+		try{
+			Payload p = request(setKeyName);
+			p.writeInt(entries.size());
+			for(Map.Entry<?, ?> entry : entries.entrySet()){
+				p.writeObject(cacheName, entry.getKey());
+				int before = p.size();
+				p.writeObject(cacheName, entry.getValue());
+
+				NearKey nearKey = nearKey(setKeyName, entry.getKey());
+				if(nearKey != null)
+					service.nearCache.put(nearKey, entry.getValue(), p.size() - before);
+			}
+			sendAndWait(OP_PUT_ALL, p, false);
+		}catch(IOException e){
+			failed("putAll()", e);
+			for(Object requestKey : entries.keySet())
+				forget(setKeyName, requestKey);
+		}
+	}
+
+	/** Gets the object, or calculates and puts it. Only one thread in this VM calculates any
+	 * given entry at once, and the others wait for it. Between VMs, the server only tells one client
+	 * to calculate it (OP_LOAD) and holds the others' requests until that's been put.
+	 *
+	 * Only in CACHEMODE_FULL, otherwise it's just get(), compute, put().
+	 */
+	@Override
+	public Object computeIfAbsent(String setKeyName, Object requestKey, Function<Object, Object> loader) {
+		if(cacheMode != CacheService.CACHEMODE_FULL)
+			return Cache.super.computeIfAbsent(setKeyName, requestKey, loader);
+
+		NearKey nearKey = new NearKey(cacheName, setKeyName, requestKey);
+		Object object = fromNearCache(service.nearCache.enabled() ? nearKey : null);
+		if(object != null)
+			return object;
+
+		Set<NearKey> ownLoads = loadsHere.get();
+		if(ownLoads.contains(nearKey))
+			return Cache.super.computeIfAbsent(setKeyName, requestKey, loader);
+
+		CompletableFuture<Object> ours = new CompletableFuture<>();
+		CompletableFuture<Object> theirs = loadsInFlight.putIfAbsent(nearKey, ours);
+		if(theirs != null){
+			//another thread here is already doing it
+			try{
+				return theirs.join();
+			}catch(CompletionException e){
+				if(e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				if(e.getCause() instanceof Error)
+					throw (Error)e.getCause();
+				throw e;
+			}
+		}
+
+		ownLoads.add(nearKey);
+		try{
+			object = loadFromServer(setKeyName, requestKey, nearKey, loader);
+			ours.complete(object);
+			return object;
+		}catch(RuntimeException | Error e){
+			ours.completeExceptionally(e);
+			throw e;
+		}finally{
+			ownLoads.remove(nearKey);
+			loadsInFlight.remove(nearKey, ours);
+		}
+	}
+
+	/** OP_LOAD, and the calculation if the server says it's us to do it */
+	private Object loadFromServer(String setKeyName, Object requestKey, NearKey nearKey, Function<Object, Object> loader) {
+		Frame response;
+		try{
+			Payload p = request(setKeyName);
+			p.writeObject(cacheName, requestKey);
+			response = sendAndWait(OP_LOAD, p, true);
+			if(response.opOrStatus == STATUS_OK)
+				return readAndRemember(response.payload, service.nearCache.enabled() ? nearKey : null);
+
+		}catch(IOException e){
+			//no server, just do it ourselves
+			failed("computeIfAbsent()", e);
+			Object object = loader.apply(requestKey);
+			if(object != null)
+				put(setKeyName, requestKey, object);
+			return object;
+		}
+
+		//STATUS_LOAD, it's us
+		Object object = null;
+		try{
+			object = loader.apply(requestKey);
+		}finally{
+			//the server releases the lease when it gets the put, or we tell it we haven't got anything
+			try{
+				if(object != null){
+					sendAndWait(OP_PUT, putRequest(setKeyName, requestKey, object), false);
+				}else{
+					Payload p = request(setKeyName);
+					p.writeObject(cacheName, requestKey);
+					sendAndWait(OP_LOAD_ABANDON, p, false);
+				}
+			}catch(IOException e){
+				failed("computeIfAbsent()", e);
+			}
+		}
+		return object;
+	}
+
+	/** Returns all the request keys in the given cache set, according to the server */
+	@Override
+	public List<Object> getKeys(String setKeyName) {
+		try{
+			DataInputStream in = sendAndWait(OP_GET_KEYS, request(setKeyName), false).payload;
+			int n = in.readInt();
+			List<Object> keys = new ArrayList<>(n);
+			for(int i=0; i < n; i++)
+				keys.add(readObject(in));
+			return keys;
+		}catch(IOException e){
+			failed("getKeys()", e);
+			return new ArrayList<>();
+		}
+	}
+
+	@Override
+	public void organise(String setKeyName) {
+		try{
+			sendAndWait(OP_ORGANISE, request(setKeyName), true);
+		}catch(IOException e){
+			failed("organise()", e);
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> organiseAsync(String setKeyName) {
+		CompletableFuture<Frame> response;
+		try{
+			response = send(OP_ORGANISE, request(setKeyName));
+		}catch(IOException e){
+			failed("organiseAsync()", e);
+			return CompletableFuture.completedFuture(null);
+		}
+		return response.handle((r, e) -> {
+			if(e != null)
+				failed("organiseAsync()", e);
+			return null;
+		});
+	}
+
+	/** Waits for our putAsync()s, then for the server to have everything in its files */
+	@Override
+	public void flush() {
+		for(CompletableFuture<Void> future : pendingPuts)
+			future.join(); //these never fail, see putAsync()
+
+		try{
+			Payload p = new Payload();
+			p.writeUTF(cacheName);
+			sendAndWait(OP_FLUSH, p, true);
+		}catch(IOException e){
+			failed("flush()", e);
+		}
+	}
+
+	/** The server's metrics for this cache, with ours added:
+	 *  - remoteRequests: Requests sent to the server.
+	 *  - remoteFailures: How many of those failed, including not being able to reach the server.
+	 *  - nearCacheHits: Objects got from the near-cache instead. */
+	@Override
+	public Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		try{
+			Map<String, Long> serverMetrics = RemoteCacheService.readMetrics(
+					sendAndWait(OP_METRICS, RemoteCacheService.metricsRequest(cacheName), false)).get(cacheName);
+			if(serverMetrics != null)
+				metrics.putAll(serverMetrics);
+		}catch(IOException e){
+			failed("getMetrics()", e);
+		}
+		addClientMetrics(metrics);
+		return metrics;
+	}
+
+	void addClientMetrics(Map<String, Long> metrics) {
+		metrics.put("remoteRequests", nRequests.sum());
+		metrics.put("remoteFailures", nFailedRequests.sum());
+		metrics.put("nearCacheHits", nNearCacheHits.sum());
+	}
+
+	@Override
+	public int getCacheMode() { return this.cacheMode; }
+
+	@Override
+	public void setCacheMode(int cacheMode) { this.cacheMode = cacheMode; }
+
+	@Override
+	public String getCacheTag() { return this.tagName; }
+
+	@Override
+	public boolean getCopyExisting() { return this.copyExisting; }
+
+	/** Sets the tag here and on the server, which means for all its clients. Empties our part of the near-cache. */
+	@Override
+	public void setCacheTag(String tagName, boolean copyExisting) {
+		this.tagName = tagName;
+		this.copyExisting = copyExisting;
+		service.nearCache.clear(cacheName);
+		try{
+			Payload p = new Payload();
+			p.writeUTF(cacheName);
+			p.writeNullableUTF(tagName);
+			p.writeBoolean(copyExisting);
+			sendAndWait(OP_SET_TAG, p, false);
+		}catch(IOException e){
+			failed("setCacheTag()", e);
+		}
+	}
+
+	public String getCacheName() { return cacheName; }
+}
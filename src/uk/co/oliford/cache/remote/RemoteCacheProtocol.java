@@ -0,0 +1,209 @@
+package uk.co.oliford.cache.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.oliford.cache.randomAccessCache.RACacheCodecs;
+import uk.co.oliford.jolu.SettingsManager;
+
+/** The wire format between RemoteCacheService and CacheServer.
+ *
+ * After connecting, both ends send MAGIC and VERSION (two ints) and check the other's.
+ * Everything after that is frames:
+ *
+ *   int length (of the rest of the frame)
+ *   byte op (client to server) or status (server to client)
+ *   long requestID
+ *   payload
+ *
+ * The client can send as many requests as it likes without waiting for the responses (pipelining).
+ * The server works on them in parallel and each response carries the ID of its request,
+ * so they can come back in any order.
+ *
+ * In payloads, strings are writeUTF() and nullable strings are a boolean then the string.
+ * Objects (request keys and cached objects) are an int length, -1 for null, and
+ * the package from RACacheCodecs.encode(), so the same codecs are used as for the files.
+ * The server only decodes Java serialised packages from clients that pass its filter (see CacheServer).
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+final class RemoteCacheProtocol {
+
+	static final int MAGIC = 0x4D52434E; // 'MRCN'
+	static final int VERSION = 1;
+
+	/** Default port of the server, 'minerva.cache.server.port' */
+	static final int DEFAULT_PORT = 7437;
+
+	/** Largest frame either end will accept, so garbage on the socket can't make us allocate everything */
+	static final int maxFrameBytes = Integer.parseInt(SettingsManager.defaultGlobal().getProperty("minerva.cache.remote.maxFrameBytes", "1073741824"));
+
+	/** cacheName, setKeyName, key -> STATUS_OK object or STATUS_NOTFOUND */
+	static final byte OP_GET = 1;
+	/** cacheName, setKeyName, key, object -> STATUS_OK */
+	static final byte OP_PUT = 2;
+	/** cacheName, setKeyName, int n, n keys -> STATUS_OK n objects (null where not found), in the same order */
+	static final byte OP_GET_ALL = 3;
+	/** cacheName, setKeyName, int n, n (key, object) -> STATUS_OK */
+	static final byte OP_PUT_ALL = 4;
+	/** cacheName, setKeyName, key -> STATUS_OK object, or STATUS_LOAD when this client should calculate it
+	 * and then OP_PUT or OP_LOAD_ABANDON it. If another client is already calculating it, the response
+	 * waits until they have. */
+	static final byte OP_LOAD = 5;
+	/** cacheName, setKeyName, key -> STATUS_OK. The calculation asked for with STATUS_LOAD didn't produce anything */
+	static final byte OP_LOAD_ABANDON = 6;
+	/** cacheName, setKeyName -> STATUS_OK int n, n keys */
+	static final byte OP_GET_KEYS = 7;
+	/** cacheName, setKeyName -> STATUS_OK */
+	static final byte OP_ORGANISE = 8;
+	/** cacheName -> STATUS_OK, once everything put so far is in the permanent store */
+	static final byte OP_FLUSH = 9;
+	/** -> STATUS_OK */
+	static final byte OP_FAST_SYNC = 10;
+	/** cacheName, setKeyName -> STATUS_OK */
+	static final byte OP_DELETE_SET = 11;
+	/** -> STATUS_OK */
+	static final byte OP_CLEAR_MEMORY = 12;
+	/** cacheName, nullable tagName, boolean copyExisting -> STATUS_OK */
+	static final byte OP_SET_TAG = 13;
+	/** nullable cacheName (null for all) -> STATUS_OK int nCaches, nCaches (cacheName, int n, n (name, long value)) */
+	static final byte OP_METRICS = 14;
+
+	static final byte STATUS_OK = 0;
+	static final byte STATUS_NOTFOUND = 1;
+	static final byte STATUS_LOAD = 2;
+	/** writeUTF() message */
+	static final byte STATUS_ERROR = 3;
+
+	private RemoteCacheProtocol() { }
+
+	/** Builds the payload of a frame */
+	static final class Payload extends DataOutputStream {
+		Payload() { super(new ByteArrayOutputStream(256)); }
+
+		byte[] toByteArray() { return ((ByteArrayOutputStream)out).toByteArray(); }
+
+		void writeNullableUTF(String str) throws IOException {
+			writeBoolean(str != null);
+			if(str != null)
+				writeUTF(str);
+		}
+
+		void writeObject(String cacheName, Object obj) throws IOException {
+			if(obj == null){
+				writeInt(-1);
+				return;
+			}
+			byte data[] = RACacheCodecs.encode(cacheName, obj);
+			writeInt(data.length);
+			write(data);
+		}
+	}
+
+	static String readNullableUTF(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/** Reads the package of an object, without decoding it */
+	static byte[] readPackage(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if(len < 0)
+			return null;
+		if(len > maxFrameBytes)
+			throw new IOException("Object of " + len + " bytes is bigger than minerva.cache.remote.maxFrameBytes");
+		byte data[] = new byte[len];
+		in.readFully(data);
+		return data;
+	}
+
+	static Object readObject(DataInputStream in) throws IOException {
+		return readObject(in, null);
+	}
+
+	/** Reads and decodes an object, with the given filter (if not null) on Java serialised packages */
+	static Object readObject(DataInputStream in, ObjectInputFilter javaFilter) throws IOException {
+		byte data[] = readPackage(in);
+		if(data == null)
+			return null;
+		try{
+			return RACacheCodecs.decode(data, javaFilter);
+		}catch(ClassNotFoundException e){
+			throw new IOException("Class of cached object isn't available here: " + e.getMessage(), e);
+		}
+	}
+
+	/** Sends MAGIC and VERSION, then checks that the other end did the same */
+	static void handshake(DataInputStream in, DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.flush();
+		int magic = in.readInt();
+		int version = in.readInt();
+		if(magic != MAGIC)
+			throw new IOException("Not a cache server/client at the other end (magic 0x" + Integer.toHexString(magic) + ")");
+		if(version != VERSION)
+			throw new IOException("Cache protocol version " + version + " at the other end, we only speak " + VERSION);
+	}
+
+	/** Writes a whole frame. The caller must be the only one writing to the stream. */
+	static void writeFrame(DataOutputStream out, byte opOrStatus, long requestID, byte payload[]) throws IOException {
+		out.writeInt(1 + 8 + payload.length);
+		out.writeByte(opOrStatus);
+		out.writeLong(requestID);
+		out.write(payload);
+	}
+
+	/** Writes frames from any number of threads. The stream is only flushed by the last
+	 * writer when no-one else is waiting to write, so that bursts of small frames
+	 * (e.g. lots of getAsync()s) go out in as few packets as possible. */
+	static final class FrameWriter {
+		private final DataOutputStream out;
+		private final AtomicInteger nWaiting = new AtomicInteger();
+
+		FrameWriter(DataOutputStream out) { this.out = out; }
+
+		void write(byte opOrStatus, long requestID, byte payload[]) throws IOException {
+			nWaiting.incrementAndGet();
+			synchronized (out) {
+				boolean last;
+				try{
+					writeFrame(out, opOrStatus, requestID, payload);
+				}finally{
+					last = (nWaiting.decrementAndGet() == 0);
+				}
+				if(last)
+					out.flush();
+			}
+		}
+	}
+
+	/** A frame as read from the stream */
+	static final class Frame {
+		final byte opOrStatus;
+		final long requestID;
+		final DataInputStream payload;
+
+		Frame(byte opOrStatus, long requestID, DataInputStream payload) {
+			this.opOrStatus = opOrStatus;
+			this.requestID = requestID;
+			this.payload = payload;
+		}
+	}
+
+	/** Blocks until a whole frame has arrived */
+	static Frame readFrame(DataInputStream in) throws IOException {
+		int len = in.readInt();
+		if(len < 9 || len > maxFrameBytes)
+			throw new IOException("Bad frame length " + len);
+		byte opOrStatus = in.readByte();
+		long requestID = in.readLong();
+		byte payload[] = new byte[len - 9];
+		in.readFully(payload);
+		return new Frame(opOrStatus, requestID, new DataInputStream(new ByteArrayInputStream(payload)));
+	}
+}
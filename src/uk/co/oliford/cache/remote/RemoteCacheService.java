@@ -0,0 +1,535 @@
+package uk.co.oliford.cache.remote;
+
+import static uk.co.oliford.cache.remote.RemoteCacheProtocol.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.oliford.cache.common.CacheService;
+import uk.co.oliford.cache.randomAccessCache.RACacheKey;
+import uk.co.oliford.jolu.SettingsManager;
+
+/** Part of the Minerva environment general caching service.
+ * Caching service that talks to a CacheServer, which owns the actual cache files,
+ * so that all the nodes of a cluster share one cache.
+ *
+ * The server is 'minerva.cache.remote.host' (default localhost) on 'minerva.cache.server.port' (default 7437).
+ *
+ * Everything goes over one connection, with any number of requests in flight at once,
+ * so getAsync()/putAsync() from one thread, or get()/put() from many, are pipelined.
+ * The connection is made when first needed. If the server can't be reached, or goes away, everything
+ * is a miss and puts are dropped (with a warning) and we don't try again for 'minerva.cache.remote.retryMillis'
+ * (default 10s). Synchronous calls give up on the server after 'minerva.cache.remote.timeoutMillis' (default 60s).
+ *
+ * In front of the server is a near-cache of recently got and put objects, of up to
+ * 'minerva.cache.remote.nearCacheMaxBytes' (default 64MB, 0 to disable) of their packages, kept for
+ * 'minerva.cache.remote.nearCacheMillis' (default 60s), since other clients can overwrite things.
+ * fastSync() and changing the tag empty it. As with RACache, the objects returned are shared, so don't modify them.
+ *
+ * Cache modes are kept here, they aren't sent to the server. The tag is, see CacheServer.
+ *
+ * @author oliford codes@oliford.co.uk
+ */
+public class RemoteCacheService implements CacheService, Closeable {
+
+	private static final long timeoutMillis = Long.parseLong(SettingsManager.defaultGlobal().getProperty("minerva.cache.remote.timeoutMillis", "60000"));
+	private static final long retryMillis = Long.parseLong(SettingsManager.defaultGlobal().getProperty("minerva.cache.remote.retryMillis", "10000"));
+	private static final long nearCacheMaxBytes = Long.parseLong(SettingsManager.defaultGlobal().getProperty("minerva.cache.remote.nearCacheMaxBytes", "67108864"));
+	private static final long nearCacheMillis = Long.parseLong(SettingsManager.defaultGlobal().getProperty("minerva.cache.remote.nearCacheMillis", "60000"));
+
+	private final String host;
+	private final int port;
+
+	/** General cache mode for all cache types, one of CacheService.CACHEMODE_xxxx
+	 * Leaving this on FULL will delegate to individual caches. */
+	private volatile int generalCacheMode = CacheService.CACHEMODE_FULL;
+
+	private final ConcurrentHashMap<String, RemoteCache> caches = new ConcurrentHashMap<>();
+
+	private final Object connectLock = new Object();
+	private volatile Connection connection;
+	/** When we last failed to connect, or lost the connection (System.nanoTime()), or 0 */
+	private volatile long lastFailure = 0;
+	private volatile boolean closed = false;
+
+	private final AtomicLong nextRequestID = new AtomicLong();
+
+	final NearCache nearCache = new NearCache(nearCacheMaxBytes);
+
+	/** Thrown for requests while we're waiting to retry the connection, so that the failure isn't reported every time */
+	private static final IOException unavailable = new IOException("Cache server unavailable");
+
+	/** Service using the server from the settings */
+	public RemoteCacheService() {
+		this(SettingsManager.defaultGlobal().getProperty("minerva.cache.remote.host", "localhost"),
+			Integer.parseInt(SettingsManager.defaultGlobal().getProperty("minerva.cache.server.port", "" + DEFAULT_PORT)));
+	}
+
+	public RemoteCacheService(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/** The connection to the server, made now if necessary */
+	private Connection connection() throws IOException {
+		Connection conn = connection;
+		if(conn != null)
+			return conn;
+
+		synchronized (connectLock) {
+			if(connection != null)
+				return connection;
+			if(closed)
+				throw new IOException("RemoteCacheService has been closed");
+			if(lastFailure != 0 && (System.nanoTime() - lastFailure) < retryMillis * 1_000_000L)
+				throw unavailable;
+
+			try{
+				connection = new Connection();
+				lastFailure = 0;
+				return connection;
+			}catch(IOException e){
+				lastFailure = System.nanoTime();
+				System.err.println("WARNING: Can't reach cache server " + host + ":" + port + " (" + e + "), everything is a miss for the next " + retryMillis + "ms.");
+				throw unavailable;
+			}
+		}
+	}
+
+	/** Sends a request to the server.
+	 * @return Future of the response, which completes exceptionally if the server couldn't be reached or went away. */
+	CompletableFuture<Frame> request(byte op, Payload payload) {
+		try{
+			return connection().send(op, payload.toByteArray());
+		}catch(IOException e){
+			CompletableFuture<Frame> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/** Sends a request and waits for the response
+	 * @param waitForever Don't give up after 'minerva.cache.remote.timeoutMillis' (for OP_LOAD, which can wait for other clients) */
+	Frame requestAndWait(byte op, Payload payload, boolean waitForever) throws IOException {
+		return await(request(op, payload), waitForever);
+	}
+
+	/** Waits for the response, and throws anything that went wrong, including STATUS_ERROR from the server */
+	static Frame await(CompletableFuture<Frame> future, boolean waitForever) throws IOException {
+		Frame response;
+		try{
+			response = waitForever ? future.get() : future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		}catch(ExecutionException e){
+			throw (e.getCause() instanceof IOException) ? (IOException)e.getCause() : new IOException(e.getCause());
+		}catch(TimeoutException e){
+			throw new IOException("No response from cache server after " + timeoutMillis + "ms");
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for cache server");
+		}
+		return checkStatus(response);
+	}
+
+	/** @return the response, unless it's STATUS_ERROR, which is thrown */
+	static Frame checkStatus(Frame response) throws IOException {
+		if(response.opOrStatus == STATUS_ERROR)
+			throw new IOException("Cache server: " + response.payload.readUTF());
+		return response;
+	}
+
+	/** Warns about a failed request, unless it's because we already know the server isn't there */
+	static void warn(String what, Throwable e) {
+		if(e instanceof CompletionException && e.getCause() != null)
+			e = e.getCause();
+		if(e != unavailable)
+			System.err.println("WARNING: Remote cache " + what + " failed: " + e);
+	}
+
+	/** One connection to the server, and the requests waiting for their responses */
+	private final class Connection implements Runnable {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final FrameWriter out;
+		private final ConcurrentHashMap<Long, CompletableFuture<Frame>> pending = new ConcurrentHashMap<>();
+		private volatile boolean dead = false;
+
+		Connection() throws IOException {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), (int)Math.min(Integer.MAX_VALUE, timeoutMillis));
+			try{
+				in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+				DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+				handshake(in, dout);
+				out = new FrameWriter(dout);
+			}catch(IOException e){
+				socket.close();
+				throw e;
+			}
+
+			Thread reader = new Thread(this, "RemoteCacheService " + host + ":" + port);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		CompletableFuture<Frame> send(byte op, byte payload[]) {
+			long requestID = nextRequestID.incrementAndGet();
+			CompletableFuture<Frame> future = new CompletableFuture<>();
+			pending.put(requestID, future);
+			try{
+				if(dead) //in case we missed the failAll()
+					throw new EOFException("Connection to cache server lost");
+				out.write(op, requestID, payload);
+			}catch(IOException e){
+				pending.remove(requestID);
+				future.completeExceptionally(e);
+				lost(e);
+			}
+			return future;
+		}
+
+		/** Reads the responses */
+		@Override
+		public void run() {
+			try{
+				while(true){
+					Frame response = readFrame(in);
+					CompletableFuture<Frame> future = pending.remove(response.requestID);
+					if(future != null)
+						future.complete(response);
+				}
+			}catch(IOException e){
+				lost(e);
+			}
+		}
+
+		/** Drops the connection and fails everything waiting on it */
+		void lost(IOException e) {
+			synchronized (connectLock) {
+				if(dead)
+					return;
+				dead = true;
+				if(connection == this)
+					connection = null;
+				if(!closed){
+					lastFailure = System.nanoTime();
+					System.err.println("WARNING: Lost connection to cache server " + host + ":" + port + " (" + e + "), everything is a miss for the next " + retryMillis + "ms.");
+				}
+			}
+			try{
+				socket.close();
+			}catch(IOException e2){ }
+
+			IOException failure = new IOException("Connection to cache server lost", e);
+			for(Iterator<CompletableFuture<Frame>> it = pending.values().iterator(); it.hasNext(); ){
+				CompletableFuture<Frame> future = it.next();
+				it.remove();
+				future.completeExceptionally(failure);
+			}
+		}
+	}
+
+	/** Drops the connection to the server. Anything still waiting for it fails. */
+	@Override
+	public void close() {
+		Connection conn;
+		synchronized (connectLock) {
+			closed = true;
+			conn = connection;
+		}
+		if(conn != null)
+			conn.lost(new EOFException("closed"));
+	}
+
+	/** Identity of an entry in the near-cache */
+	static final class NearKey {
+		final String cacheName, setKeyName;
+		final RACacheKey key;
+
+		NearKey(String cacheName, String setKeyName, Object requestKey) {
+			this.cacheName = cacheName;
+			this.setKeyName = setKeyName;
+			this.key = new RACacheKey(requestKey);
+		}
+
+		@Override
+		public int hashCode() { return (31 * cacheName.hashCode() + setKeyName.hashCode()) * 31 + key.hash; }
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof NearKey))
+				return false;
+			NearKey other = (NearKey)obj;
+			return Objects.equals(cacheName, other.cacheName) && Objects.equals(setKeyName, other.setKeyName) && key.equals(other.key);
+		}
+	}
+
+	/** LRU of recently used objects, bounded by the size of their packages, that expire after nearCacheMillis */
+	static final class NearCache {
+		private static final class Entry {
+			final Object object;
+			final long weight, expiry;
+
+			Entry(Object object, long weight, long expiry) {
+				this.object = object;
+				this.weight = weight;
+				this.expiry = expiry;
+			}
+		}
+
+		private final long maxBytes;
+		private long bytes = 0;
+		private final LinkedHashMap<NearKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+		NearCache(long maxBytes) { this.maxBytes = maxBytes; }
+
+		boolean enabled() { return maxBytes > 0; }
+
+		synchronized Object get(NearKey key) {
+			Entry entry = entries.get(key);
+			if(entry == null)
+				return null;
+			if(System.nanoTime() - entry.expiry > 0){
+				remove(key);
+				return null;
+			}
+			return entry.object;
+		}
+
+		/** @param packageSize Size of the object's package, as an estimate of its size */
+		synchronized void put(NearKey key, Object object, long packageSize) {
+			long weight = packageSize + 64;
+			if(weight > maxBytes / 8){ //don't let one thing flush everything else
+				remove(key);
+				return;
+			}
+			Entry old = entries.put(key, new Entry(object, weight, System.nanoTime() + nearCacheMillis * 1_000_000L));
+			if(old != null)
+				bytes -= old.weight;
+			bytes += weight;
+
+			for(Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ){
+				bytes -= it.next().weight;
+				it.remove();
+			}
+		}
+
+		synchronized void remove(NearKey key) {
+			Entry old = entries.remove(key);
+			if(old != null)
+				bytes -= old.weight;
+		}
+
+		/** Removes everything of the given cache, or everything for null */
+		synchronized void clear(String cacheName) {
+			for(Iterator<Map.Entry<NearKey, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ){
+				Map.Entry<NearKey, Entry> entry = it.next();
+				if(cacheName == null || cacheName.equals(entry.getKey().cacheName)){
+					bytes -= entry.getValue().weight;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	@Override
+	public RemoteCache getCache(String cacheName) {
+		return caches.computeIfAbsent(cacheName, name -> new RemoteCache(this, name, generalCacheMode));
+	}
+
+	@Override
+	public Object get(String cacheName, String setKeyName, Object requestKey) {
+		if(generalCacheMode == CacheService.CACHEMODE_OFF ||
+				generalCacheMode == CacheService.CACHEMODE_UPDATE)
+			return null;
+
+		return getCache(cacheName).get(setKeyName, requestKey);
+	}
+
+	@Override
+	public void put(String cacheName, String setKeyName, Object requestKey, Object object) {
+		if(generalCacheMode == CacheService.CACHEMODE_READONLY ||
+				generalCacheMode == CacheService.CACHEMODE_OFF)
+			return; //nothing to do
+
+		getCache(cacheName).put(setKeyName, requestKey, object);
+	}
+
+	@Override
+	public Map<Object, Object> getAll(String cacheName, String setKeyName, Collection<?> requestKeys) {
+		if(generalCacheMode == CacheService.CACHEMODE_OFF ||
+				generalCacheMode == CacheService.CACHEMODE_UPDATE)
+			return new HashMap<>();
+
+		return getCache(cacheName).getAll(setKeyName, requestKeys);
+	}
+
+	@Override
+	public void putAll(String cacheName, String setKeyName, Map<?, ?> entries) {
+		if(generalCacheMode == CacheService.CACHEMODE_READONLY ||
+				generalCacheMode == CacheService.CACHEMODE_OFF)
+			return; //nothing to do
+
+		getCache(cacheName).putAll(setKeyName, entries);
+	}
+
+	@Override
+	public CompletableFuture<Object> getAsync(String cacheName, String setKeyName, Object requestKey) {
+		if(generalCacheMode == CacheService.CACHEMODE_OFF ||
+				generalCacheMode == CacheService.CACHEMODE_UPDATE)
+			return CompletableFuture.completedFuture(null);
+
+		return getCache(cacheName).getAsync(setKeyName, requestKey);
+	}
+
+	@Override
+	public CompletableFuture<Void> putAsync(String cacheName, String setKeyName, Object requestKey, Object object) {
+		if(generalCacheMode == CacheService.CACHEMODE_READONLY ||
+				generalCacheMode == CacheService.CACHEMODE_OFF)
+			return CompletableFuture.completedFuture(null);
+
+		return getCache(cacheName).putAsync(setKeyName, requestKey, object);
+	}
+
+	@Override
+	public void setCacheTag(String cacheName, String tagName, boolean copyExisting) {
+		getCache(cacheName).setCacheTag(tagName, copyExisting);
+	}
+
+	@Override
+	public String getCacheTag(String cacheName) {
+		RemoteCache c = caches.get(cacheName);
+		if(c == null)
+			throw new RuntimeException("Trying to get tag for cache type '"+cacheName+"', but we don't have one of them yet.");
+		return c.getCacheTag();
+	}
+
+	/** Empties the near-cache and asks the server to release what it has in memory */
+	@Override
+	public void clearMemory() {
+		nearCache.clear(null);
+		try{
+			requestAndWait(OP_CLEAR_MEMORY, new Payload(), false);
+		}catch(IOException e){
+			warn("clearMemory()", e);
+		}
+	}
+
+	@Override
+	public void deleteSet(String cacheName, String setKeyName) {
+		nearCache.clear(cacheName);
+		try{
+			Payload p = new Payload();
+			p.writeUTF(cacheName);
+			p.writeUTF(setKeyName);
+			requestAndWait(OP_DELETE_SET, p, false);
+		}catch(IOException e){
+			warn("deleteSet()", e);
+		}
+	}
+
+	@Override
+	public void setCacheMode(String cacheName, int cacheMode) {
+		caches.computeIfAbsent(cacheName, name -> new RemoteCache(this, name, cacheMode))
+			.setCacheMode(cacheMode);
+	}
+
+	@Override
+	public int getCacheMode(String cacheName) {
+		RemoteCache c = caches.get(cacheName);
+		if(c == null)
+			throw new RuntimeException("Trying to get mode for cache type '"+cacheName+"', but we don't have one of them yet.");
+		return c.getCacheMode();
+	}
+
+	@Override
+	public void setCacheModeAll(int cacheMode) {
+		for(RemoteCache c : caches.values())
+			c.setCacheMode(cacheMode);
+	}
+
+	@Override
+	public void setCacheMode(int cacheMode) { this.generalCacheMode = cacheMode; }
+
+	@Override
+	public int getCacheMode() { return generalCacheMode; }
+
+	@Override
+	public boolean isReadOnly() {
+		return false;
+	}
+
+	/** Empties the near-cache, so everything comes from the server again, and asks the server to sync */
+	@Override
+	public void fastSync() {
+		nearCache.clear(null);
+		try{
+			requestAndWait(OP_FAST_SYNC, new Payload(), false);
+		}catch(IOException e){
+			warn("fastSync()", e);
+		}
+	}
+
+	/** The server's metrics of all the caches it has, with ours added for the ones we're using (see RemoteCache.getMetrics()) */
+	@Override
+	public Map<String, Map<String, Long>> getMetrics() {
+		Map<String, Map<String, Long>> metrics = new TreeMap<>();
+		try{
+			metrics.putAll(readMetrics(requestAndWait(OP_METRICS, metricsRequest(null), false)));
+		}catch(IOException e){
+			warn("getMetrics()", e);
+		}
+		for(Map.Entry<String, RemoteCache> c : caches.entrySet()){
+			Map<String, Long> cacheMetrics = metrics.computeIfAbsent(c.getKey(), name -> new LinkedHashMap<>());
+			c.getValue().addClientMetrics(cacheMetrics);
+		}
+		return metrics;
+	}
+
+	static Payload metricsRequest(String cacheName) throws IOException {
+		Payload p = new Payload();
+		p.writeNullableUTF(cacheName);
+		return p;
+	}
+
+	/** @return The OP_METRICS response, by cache name */
+	static Map<String, Map<String, Long>> readMetrics(Frame response) throws IOException {
+		DataInputStream in = response.payload;
+		Map<String, Map<String, Long>> metrics = new TreeMap<>();
+		int nCaches = in.readInt();
+		for(int i=0; i < nCaches; i++){
+			String cacheName = in.readUTF();
+			Map<String, Long> cacheMetrics = new LinkedHashMap<>();
+			int n = in.readInt();
+			for(int j=0; j < n; j++)
+				cacheMetrics.put(in.readUTF(), in.readLong());
+			metrics.put(cacheName, cacheMetrics);
+		}
+		return metrics;
+	}
+
+	public String getHost() { return host; }
+
+	public int getPort() { return port; }
+}